@@ -487,21 +487,22 @@ public class DialtactsActivity extends TransactionSafeActivity implements View.O
         // make this call on start in case user changed t9 locale in settings
         SmartDialPrefix.initializeNanpSettings(this);
 
-        // if locale has changed since last time, refresh the smart dial db
+        // if locale has changed since last time, refresh the smart dial db. The update only
+        // rewrites the prefixes which differ with the new locale, see SmartDialConfig
         Locale locale = SettingsUtil.getT9SearchInputLocale(this);
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         String prevLocale = prefs.getString(PREF_LAST_T9_LOCALE, null);
 
         if (!TextUtils.equals(locale.toString(), prevLocale)) {
-            mDialerDatabaseHelper.recreateSmartDialDatabaseInBackground();
+            mDialerDatabaseHelper.startSmartDialUpdateThread();
             if (mDialpadFragment != null) {
                 mDialpadFragment.refreshKeypad();
             }
 
             prefs.edit().putString(PREF_LAST_T9_LOCALE, locale.toString()).apply();
-        } else {
-            mDialerDatabaseHelper.startSmartDialUpdateThread();
         }
+        // Otherwise the smart dial db is kept up to date as contacts change, see
+        // SmartDialUpdateScheduler
 
         super.onStart();
     }
@@ -251,8 +251,12 @@ public class ContactInfoHelper {
         ContactInfo info = lookupContactFromUri(uri);
         if (info != null && info != ContactInfo.EMPTY) {
             info.formattedNumber = formatPhoneNumber(number, null, countryIso);
-        } else if (LookupCache.hasCachedContact(mContext, number)) {
-            info = LookupCache.getCachedContact(mContext, number);
+            return info;
+        }
+
+        ContactInfo cachedInfo = LookupCache.getCachedContact(mContext, number);
+        if (cachedInfo != null) {
+            info = cachedInfo;
         } else if (mCachedNumberLookupService != null) {
             CachedContactInfo cacheInfo =
                     mCachedNumberLookupService.lookupCachedContactFromNumber(mContext, number);
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+
+/**
+ * Inserts rows into a table through multi-row INSERT ... VALUES (...), (...) statements, so that
+ * a batch of rows costs a single statement execution rather than one per row.
+ *
+ * Values of the current row are bound with {@link #bindLong} and {@link #bindString}, using the
+ * 1-based index of the column as given to the constructor; columns left unbound are inserted as
+ * NULL. {@link #addRow()} then queues the row, and full batches are written as they fill up.
+ * Each batch holds as many rows as fit in the {@link #MAX_VARIABLES} values a statement can bind.
+ * {@link #close()} writes the remaining rows and must be called before the enclosing transaction
+ * is committed.
+ */
+class BatchInsert {
+    /** Default maximum number of variables SQLite binds in a single statement. */
+    private static final int MAX_VARIABLES = 999;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_STRING = 2;
+
+    private final SQLiteDatabase mDb;
+    private final String mSqlInsert;
+    private final int mColumnCount;
+    private final int mRowsPerStatement;
+
+    /** Values of the queued rows, followed by the row being bound. */
+    private final byte[] mTypes;
+    private final long[] mLongs;
+    private final String[] mStrings;
+    private int mRowCount;
+
+    /** Statement inserting a full batch, compiled on first use. */
+    private SQLiteStatement mStatement;
+
+    /**
+     * @param db Database to insert the rows in, with a transaction open.
+     * @param table Name of the table.
+     * @param columns Names of the columns bound for each row.
+     */
+    public BatchInsert(SQLiteDatabase db, String table, String... columns) {
+        mDb = db;
+        mColumnCount = columns.length;
+        mRowsPerStatement = MAX_VARIABLES / mColumnCount;
+        mSqlInsert = "INSERT INTO " + table + " (" + TextUtils.join(", ", columns) + ") VALUES ";
+
+        final int size = mColumnCount * mRowsPerStatement;
+        mTypes = new byte[size];
+        mLongs = new long[size];
+        mStrings = new String[size];
+    }
+
+    public void bindLong(int column, long value) {
+        final int index = mRowCount * mColumnCount + column - 1;
+        mTypes[index] = TYPE_LONG;
+        mLongs[index] = value;
+    }
+
+    public void bindString(int column, String value) {
+        final int index = mRowCount * mColumnCount + column - 1;
+        mTypes[index] = value == null ? TYPE_NULL : TYPE_STRING;
+        mStrings[index] = value;
+    }
+
+    /**
+     * Queues the row bound so far, and writes the batch if it is full.
+     */
+    public void addRow() {
+        mRowCount++;
+        if (mRowCount == mRowsPerStatement) {
+            if (mStatement == null) {
+                mStatement = compileStatement(mRowsPerStatement);
+            }
+            execute(mStatement);
+        }
+    }
+
+    /**
+     * Writes the queued rows, and releases the compiled statements.
+     */
+    public void close() {
+        if (mRowCount > 0) {
+            final SQLiteStatement statement = compileStatement(mRowCount);
+            try {
+                execute(statement);
+            } finally {
+                statement.close();
+            }
+        }
+        if (mStatement != null) {
+            mStatement.close();
+            mStatement = null;
+        }
+    }
+
+    private SQLiteStatement compileStatement(int rowCount) {
+        final StringBuilder sql = new StringBuilder(mSqlInsert);
+        for (int row = 0; row < rowCount; row++) {
+            sql.append(row == 0 ? "(" : ", (");
+            for (int column = 0; column < mColumnCount; column++) {
+                sql.append(column == 0 ? "?" : ", ?");
+            }
+            sql.append(')');
+        }
+        return mDb.compileStatement(sql.toString());
+    }
+
+    private void execute(SQLiteStatement statement) {
+        final int count = mRowCount * mColumnCount;
+        for (int i = 0; i < count; i++) {
+            switch (mTypes[i]) {
+                case TYPE_LONG:
+                    statement.bindLong(i + 1, mLongs[i]);
+                    break;
+                case TYPE_STRING:
+                    statement.bindString(i + 1, mStrings[i]);
+                    break;
+                default:
+                    statement.bindNull(i + 1);
+                    break;
+            }
+        }
+        statement.executeInsert();
+        statement.clearBindings();
+
+        Arrays.fill(mTypes, 0, count, TYPE_NULL);
+        Arrays.fill(mStrings, 0, count, null);
+        mRowCount = 0;
+    }
+}
@@ -18,26 +18,36 @@ package com.android.dialer.database;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
+import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.contacts.common.util.StopWatch;
 import com.android.dialer.R;
+import com.android.dialer.dialpad.SmartDialConfig;
+import com.android.dialer.dialpad.SmartDialMap;
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
 
@@ -48,9 +58,11 @@ import com.google.common.collect.Lists;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Database helper for smart dial. Designed as a singleton to make sure there is
@@ -64,20 +76,54 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     private static DialerDatabaseHelper sSingleton = null;
 
     private static final Object mLock = new Object();
-    private static final AtomicBoolean sInUpdate = new AtomicBoolean(false);
+    /** Incremented whenever an update of the smart dial database completes. */
+    private final AtomicInteger mUpdateGeneration = new AtomicInteger(0);
+    /** Time taken by the last update to commit its changes, in nanoseconds. */
+    private volatile long mLastSwapNanos;
+    /** Time at which the rank score of a row is next due to change, guarded by mLock. */
+    private long mNextRankScoreChangeMillis;
+    /**
+     * Generation of the {@link SmartDialConfig} the tables were last checked against, guarded by
+     * mLock.
+     */
+    private int mIndexedConfigGeneration = -1;
     private final Context mContext;
+    private final SmartDialUpdateScheduler mUpdateScheduler;
 
     private Class mMultiMatchClass;
     private Object mMultiMatchObject;
     private Method mMultiMatchMethod;
 
+    /** System property choosing the in-memory {@link SmartDialIndex} over the SQLite tables. */
+    private static final String SMARTDIAL_INDEX_PROPERTY = "persist.dialer.smartdial_trie";
+    private volatile boolean mUseSmartDialIndex;
+    /**
+     * System property adding contacts one mistyped digit away from the query after the exact
+     * matches. Only the in-memory index supports it, so it turns the index on as well.
+     */
+    private static final String SMARTDIAL_FUZZY_PROPERTY = "persist.dialer.smartdial_fuzzy";
+    private volatile boolean mUseFuzzyMatching;
+    /**
+     * System property holding the number of candidate rows from which they are matched on
+     * several threads by {@link ParallelMatcher}, 0 to always match them on the calling thread.
+     */
+    private static final String SMARTDIAL_PARALLEL_ROWS_PROPERTY =
+            "persist.dialer.smartdial_parallel_rows";
+    private static final int DEFAULT_PARALLEL_ROWS = 2000;
+    private volatile int mParallelMatchingMinRows;
+    /** Matcher splitting large candidate sets between threads, or null for the shared one. */
+    private volatile ParallelMatcher mParallelMatcher;
+    /** Index built from {@link Tables#SMARTDIAL_TABLE}, or null if it was not built yet. */
+    private volatile SmartDialIndex mSmartDialIndex;
+    private final Object mSmartDialIndexLock = new Object();
+
     /**
      * SmartDial DB version ranges:
      * <pre>
      *   0-98   KitKat
      * </pre>
      */
-    public static final int DATABASE_VERSION = 70004;
+    public static final int DATABASE_VERSION = 70009;
     public static final String DATABASE_NAME = "dialer.db";
 
     /**
@@ -87,7 +133,28 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     private static final String LAST_UPDATED_MILLIS = "last_updated_millis";
     private static final String DATABASE_VERSION_PROPERTY = "database_version";
 
-    private static final int MAX_ENTRIES = 40;
+    /**
+     * Properties tracking the statistics of the smart dial tables: rows of the smartdial table
+     * when they were last analyzed, and rows inserted or removed since.
+     */
+    private static final String ANALYZED_ROWS_PROPERTY = "smartdial_analyzed_rows";
+    @VisibleForTesting
+    static final String CHANGED_ROWS_PROPERTY = "smartdial_changed_rows";
+    /** Fraction of the analyzed rows which must change before the tables are analyzed again. */
+    private static final float ANALYZE_CHANGED_FRACTION = 0.1f;
+    /** Changes smaller than this never trigger an ANALYZE on their own. */
+    private static final int ANALYZE_MIN_CHANGED_ROWS = 100;
+    /**
+     * Property holding the time spent in each phase of the last update of the smart dial
+     * database, in milliseconds, along with the number of rows it changed.
+     */
+    @VisibleForTesting
+    static final String UPDATE_TIMINGS_PROPERTY = "smartdial_update_timings";
+    /** Property holding the key of the {@link SmartDialConfig} the prefixes were computed with. */
+    @VisibleForTesting
+    static final String SMARTDIAL_CONFIG_PROPERTY = "smartdial_config";
+
+    static final int MAX_ENTRIES = 40;
 
     public interface Tables {
         /** Saves the necessary smart dial information of all contacts. */
@@ -113,6 +180,14 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         static final String IN_VISIBLE_GROUP = "in_visible_group";
         static final String IS_PRIMARY = "is_primary";
         static final String LAST_SMARTDIAL_UPDATE_TIME = "last_smartdial_update_time";
+        static final String ACCOUNT_TYPE = "account_type";
+        static final String ACCOUNT_NAME = "account_name";
+        /** Display name converted by {@link SmartDialMap#transliterateName}, or null if the
+         * conversion leaves it unchanged. */
+        static final String TRANSLITERATED_NAME = "transliterated_name";
+        /** Leading sort keys of the row folded into one value, see
+         * {@link SmartDialSortingOrder#RANK_SCORE}. */
+        static final String RANK_SCORE = "rank_score";
     }
 
     public static interface PrefixColumns extends BaseColumns {
@@ -148,6 +223,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             Data.IS_SUPER_PRIMARY,              // 11
             Contacts.IN_VISIBLE_GROUP,          // 12
             Data.IS_PRIMARY,                    // 13
+            RawContacts.ACCOUNT_TYPE,           // 14
+            RawContacts.ACCOUNT_NAME,           // 15
         };
 
         static final int PHONE_ID = 0;
@@ -164,6 +241,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         static final int PHONE_IS_SUPER_PRIMARY = 11;
         static final int PHONE_IN_VISIBLE_GROUP = 12;
         static final int PHONE_IS_PRIMARY = 13;
+        static final int PHONE_ACCOUNT_TYPE = 14;
+        static final int PHONE_ACCOUNT_NAME = 15;
 
         /** Selects only rows that have been updated after a certain time stamp.*/
         static final String SELECT_UPDATED_CLAUSE =
@@ -201,8 +280,14 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     /**
      * Gets the sorting order for the smartdial table. This computes a SQL "ORDER BY" argument by
      * composing contact status and recent contact details together.
+     *
+     * The leading keys, starred, super primary and recent use, are stored in
+     * {@link SmartDialDbColumns#RANK_SCORE} when rows are inserted, so that the sort order does not
+     * depend on the current time and can be read from an index. Recent use depends on the time
+     * the score was computed, so scores are updated when rows cross the 3 and 30 days thresholds,
+     * see {@link DialerDatabaseHelper#updateRankScores}.
      */
-    private static interface SmartDialSortingOrder {
+    static interface SmartDialSortingOrder {
         /** Current contacts - those contacted within the last 3 days (in milliseconds) */
         static final long LAST_TIME_USED_CURRENT_MS = 3L * 24 * 60 * 60 * 1000;
         /** Recent contacts - those contacted within the last 30 days (in milliseconds) */
@@ -223,18 +308,57 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 " THEN 1 " +
                 " ELSE 2 END)";
 
+        /** Lower scores rank first: starred contacts, then super primary numbers, then the most
+         * recently used. Computed in Java by {@link DialerDatabaseHelper#computeRankScore}.
+         */
+        static final String RANK_SCORE =
+                "((CASE WHEN " + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.STARRED +
+                " != 0 THEN 0 ELSE 6 END) + " +
+                "(CASE WHEN " + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.IS_SUPER_PRIMARY +
+                " != 0 THEN 0 ELSE 3 END) + " + SORT_BY_DATA_USAGE + ")";
+
+        /** Time at which a row in the usage bucket of its score moves to the next one. */
+        static final String NEXT_RANK_SCORE_CHANGE =
+                "(" + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.LAST_TIME_USED + " + " +
+                "(CASE WHEN " + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.RANK_SCORE +
+                " % 3 = 0 THEN " + LAST_TIME_USED_CURRENT_MS + " ELSE " + LAST_TIME_USED_RECENT_MS +
+                " END))";
+
         /** This sort order is similar to that used by the ContactsProvider when returning a list
          * of frequently called contacts.
          */
         static final String SORT_ORDER =
-                Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.STARRED + " DESC, "
-                + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.IS_SUPER_PRIMARY + " DESC, "
-                + SORT_BY_DATA_USAGE + ", "
+                Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.RANK_SCORE + ", "
                 + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.TIMES_USED + " DESC, "
                 + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.IN_VISIBLE_GROUP + " DESC, "
                 + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", "
                 + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.CONTACT_ID + ", "
-                + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.IS_PRIMARY + " DESC";
+                + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.IS_PRIMARY + " DESC, "
+                + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns._ID;
+    }
+
+    /** Columns read from the smartdial table when looking up loose matches. */
+    private static interface LooseMatchQuery {
+        static final String COLUMNS =
+                SmartDialDbColumns.DATA_ID + ", " +
+                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
+                SmartDialDbColumns.PHOTO_ID + ", " +
+                SmartDialDbColumns.NUMBER + ", " +
+                SmartDialDbColumns.CONTACT_ID + ", " +
+                SmartDialDbColumns.LOOKUP_KEY + ", " +
+                SmartDialDbColumns.ACCOUNT_TYPE + ", " +
+                SmartDialDbColumns.ACCOUNT_NAME + ", " +
+                SmartDialDbColumns.TRANSLITERATED_NAME;
+
+        static final int DATA_ID = 0;
+        static final int DISPLAY_NAME_PRIMARY = 1;
+        static final int PHOTO_ID = 2;
+        static final int NUMBER = 3;
+        static final int CONTACT_ID = 4;
+        static final int LOOKUP_KEY = 5;
+        static final int ACCOUNT_TYPE = 6;
+        static final int ACCOUNT_NAME = 7;
+        static final int TRANSLITERATED_NAME = 8;
     }
 
     /**
@@ -248,20 +372,35 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         public final String phoneNumber;
         public final String lookupKey;
         public final long photoId;
+        public final String accountType;
+        public final String accountName;
+        /** Display name as transliterated for matching, or null if unknown. Being derived from
+         * the display name, it is not part of the equality of two numbers. */
+        public final String transliteratedName;
 
         public ContactNumber(long id, long dataID, String displayName, String phoneNumber,
                 String lookupKey, long photoId) {
+            this(id, dataID, displayName, phoneNumber, lookupKey, photoId, null, null, null);
+        }
+
+        public ContactNumber(long id, long dataID, String displayName, String phoneNumber,
+                String lookupKey, long photoId, String accountType, String accountName,
+                String transliteratedName) {
             this.dataId = dataID;
             this.id = id;
             this.displayName = displayName;
             this.phoneNumber = phoneNumber;
             this.lookupKey = lookupKey;
             this.photoId = photoId;
+            this.accountType = accountType;
+            this.accountName = accountName;
+            this.transliteratedName = transliteratedName;
         }
 
         @Override
         public int hashCode() {
-            return Objects.hashCode(id, dataId, displayName, phoneNumber, lookupKey, photoId);
+            return Objects.hashCode(id, dataId, displayName, phoneNumber, lookupKey, photoId,
+                    accountType, accountName);
         }
 
         @Override
@@ -276,7 +415,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                         && Objects.equal(this.displayName, that.displayName)
                         && Objects.equal(this.phoneNumber, that.phoneNumber)
                         && Objects.equal(this.lookupKey, that.lookupKey)
-                        && Objects.equal(this.photoId, that.photoId);
+                        && Objects.equal(this.photoId, that.photoId)
+                        && Objects.equal(this.accountType, that.accountType)
+                        && Objects.equal(this.accountName, that.accountName);
             }
             return false;
         }
@@ -285,7 +426,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     /**
      * Data format for finding duplicated contacts.
      */
-    private class ContactMatch {
+    static class ContactMatch {
         private final String lookupKey;
         private final long id;
 
@@ -313,6 +454,39 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Result of {@link #getLooseMatches(String, SmartDialNameMatcher, LooseMatchResult)}. Besides
+     * the top matches of the query, it keeps every row that may still match a query extending it,
+     * so that the next keystroke only needs to look at those rows.
+     */
+    public static class LooseMatchResult {
+        /** The query the result was computed for. */
+        public final String query;
+        /** Top candidate contacts, as returned by {@link #getLooseMatches(String,
+         * SmartDialNameMatcher)}. */
+        public final ArrayList<ContactNumber> matches;
+        /** Rows in sort order that may match a longer query, or null if they are unknown. */
+        private final ArrayList<ContactNumber> candidates;
+        private final int generation;
+
+        private LooseMatchResult(String query, ArrayList<ContactNumber> matches,
+                ArrayList<ContactNumber> candidates, int generation) {
+            this.query = query;
+            this.matches = matches;
+            this.candidates = candidates;
+            this.generation = generation;
+        }
+
+        /**
+         * Returns whether the candidates of this result can be narrowed down to the given query,
+         * that is the query extends this one and the database did not change in the meantime.
+         */
+        private boolean canNarrowTo(String newQuery, int currentGeneration) {
+            return candidates != null && generation == currentGeneration
+                    && newQuery.startsWith(query);
+        }
+    }
+
     /**
      * Access function to get the singleton instance of DialerDatabaseHelper.
      */
@@ -326,6 +500,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             // dialer database helper is still doing work.
             sSingleton = new DialerDatabaseHelper(context.getApplicationContext(),
                     DATABASE_NAME);
+            /** Keeps the smart dial database up to date with the contacts from now on. The map
+             * and NANP settings decide which prefixes the first update inserts.
+             */
+            SmartDialPrefix.initializeNanpSettings(context.getApplicationContext());
+            sSingleton.mUpdateScheduler.startObserving(
+                    context.getApplicationContext().getContentResolver());
         }
         return sSingleton;
     }
@@ -345,6 +525,67 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     protected DialerDatabaseHelper(Context context, String databaseName, int dbVersion) {
         super(context, databaseName, null, dbVersion);
         mContext = Preconditions.checkNotNull(context, "Context must not be null");
+        mUseFuzzyMatching = SystemProperties.getBoolean(SMARTDIAL_FUZZY_PROPERTY, false);
+        mUseSmartDialIndex = SystemProperties.getBoolean(SMARTDIAL_INDEX_PROPERTY, false)
+                || mUseFuzzyMatching;
+        mParallelMatchingMinRows = SystemProperties.getInt(SMARTDIAL_PARALLEL_ROWS_PROPERTY,
+                DEFAULT_PARALLEL_ROWS);
+        mUpdateScheduler = new SmartDialUpdateScheduler(this, AsyncTask.THREAD_POOL_EXECUTOR,
+                new Handler(Looper.getMainLooper()));
+        /** Lets readers query the last committed tables while an update is in progress. */
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Returns the time taken by the last update of the smart dial database to commit its changes,
+     * which is how long it took to swap the previous contents of the tables for the new ones.
+     */
+    public long getLastSwapNanos() {
+        return mLastSwapNanos;
+    }
+
+    /**
+     * Chooses between the in-memory {@link SmartDialIndex} and the SQLite tables to look up smart
+     * dial matches. The tables are maintained either way, as the index is built from them.
+     */
+    @VisibleForTesting
+    void setUseSmartDialIndex(boolean useSmartDialIndex) {
+        mUseSmartDialIndex = useSmartDialIndex;
+        if (!useSmartDialIndex) {
+            mUseFuzzyMatching = false;
+            mSmartDialIndex = null;
+        }
+    }
+
+    /**
+     * Chooses whether contacts one mistyped digit away from the query are looked up after the
+     * exact matches, see {@link SmartDialIndex#getLooseMatches(String, SmartDialNameMatcher,
+     * boolean)}. Turning it on also switches lookups to the in-memory index.
+     */
+    @VisibleForTesting
+    void setUseFuzzyMatching(boolean useFuzzyMatching) {
+        if (useFuzzyMatching) {
+            mUseSmartDialIndex = true;
+        }
+        mUseFuzzyMatching = useFuzzyMatching;
+    }
+
+    /**
+     * Sets the number of candidate rows from which they are matched on several threads, 0 to
+     * always match them on the calling thread.
+     */
+    @VisibleForTesting
+    void setParallelMatchingMinRows(int minRows) {
+        mParallelMatchingMinRows = minRows;
+    }
+
+    /**
+     * Replaces the shared {@link ParallelMatcher}, e.g. to match on several threads on a single
+     * core device.
+     */
+    @VisibleForTesting
+    void setParallelMatcher(ParallelMatcher parallelMatcher) {
+        mParallelMatcher = parallelMatcher;
     }
 
     private void initMultiLanguageSearch() {
@@ -400,7 +641,11 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 SmartDialDbColumns.STARRED + " INTEGER, " +
                 SmartDialDbColumns.IS_SUPER_PRIMARY + " INTEGER, " +
                 SmartDialDbColumns.IN_VISIBLE_GROUP + " INTEGER, " +
-                SmartDialDbColumns.IS_PRIMARY + " INTEGER" +
+                SmartDialDbColumns.IS_PRIMARY + " INTEGER, " +
+                SmartDialDbColumns.ACCOUNT_TYPE + " TEXT, " +
+                SmartDialDbColumns.ACCOUNT_NAME + " TEXT, " +
+                SmartDialDbColumns.TRANSLITERATED_NAME + " TEXT, " +
+                SmartDialDbColumns.RANK_SCORE + " INTEGER" +
         ");");
 
         db.execSQL("CREATE TABLE " + Tables.PREFIX_TABLE + " (" +
@@ -505,7 +750,10 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    private void resetSmartDialLastUpdatedTime() {
+    /**
+     * Makes the next update of the smart dial database insert all contacts again.
+     */
+    void resetSmartDialLastUpdatedTime() {
         final SharedPreferences databaseLastUpdateSharedPref = mContext.getSharedPreferences(
                 DATABASE_LAST_CREATED_SHARED_PREF, Context.MODE_PRIVATE);
         final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
@@ -514,78 +762,22 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Starts the database upgrade process in the background.
+     * Requests an update of the smart dial database in the background. Requests made while an
+     * update runs are merged, see {@link SmartDialUpdateScheduler}.
      */
     public void startSmartDialUpdateThread() {
-        new SmartDialUpdateAsyncTask().execute();
-    }
-
-    private class SmartDialUpdateAsyncTask extends AsyncTask {
-        @Override
-        protected Object doInBackground(Object[] objects) {
-            if (DEBUG) {
-                Log.v(TAG, "Updating database");
-            }
-            updateSmartDialDatabase();
-            return null;
-        }
-
-        @Override
-        protected void onCancelled() {
-            if (DEBUG) {
-                Log.v(TAG, "Updating Cancelled");
-            }
-            super.onCancelled();
-        }
-
-        @Override
-        protected void onPostExecute(Object o) {
-            if (DEBUG) {
-                Log.v(TAG, "Updating Finished");
-            }
-            super.onPostExecute(o);
-        }
+        mUpdateScheduler.requestUpdate();
     }
 
     /**
      * Deletes all smart dial data and recreates it from contacts
      */
-    public void recreateSmartDialDatabaseInBackground() { new SmartDialRecreateAsyncTask().execute(); }
-
-    private class SmartDialRecreateAsyncTask extends AsyncTask {
-        @Override
-        protected Object doInBackground(Object[] objects) {
-            if (DEBUG) {
-                Log.v(TAG, "Recreating database");
-            }
-
-            // reset last updated so that we query for all contacts
-            resetSmartDialLastUpdatedTime();
-
-            // clear all contacts
-            final SQLiteDatabase db = getWritableDatabase();
-            removeAllContacts(db);
-
-            // repopulate
-            updateSmartDialDatabase();
-            return null;
-        }
-
-        @Override
-        protected void onCancelled() {
-            if (DEBUG) {
-                Log.v(TAG, "Recreate Cancelled");
-            }
-            super.onCancelled();
-        }
+    public void recreateSmartDialDatabaseInBackground() {
+        mUpdateScheduler.requestRecreate();
+    }
 
-        @Override
-        protected void onPostExecute(Object o) {
-            if (DEBUG) {
-                Log.v(TAG, "Recreate Finished");
-            }
-            super.onPostExecute(o);
-        }
+    public SmartDialUpdateScheduler getSmartDialUpdateScheduler() {
+        return mUpdateScheduler;
     }
 
     /**
@@ -594,23 +786,25 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      *
      * @param db Database pointer to the dialer database.
      * @param last_update_time Time stamp of last update on the smartdial database
+     * @return The number of rows removed from the smartdial table.
      */
-    private void removeDeletedContacts(SQLiteDatabase db, String last_update_time) {
+    private int removeDeletedContacts(SQLiteDatabase db, String last_update_time) {
         final Cursor deletedContactCursor = mContext.getContentResolver().query(
                 DeleteContactQuery.URI,
                 DeleteContactQuery.PROJECTION,
                 DeleteContactQuery.SELECT_UPDATED_CLAUSE,
                 new String[] {last_update_time}, null);
         if (deletedContactCursor == null) {
-            return;
+            return 0;
         }
 
+        int removedRows = 0;
         db.beginTransaction();
         try {
             while (deletedContactCursor.moveToNext()) {
                 final Long deleteContactId =
                         deletedContactCursor.getLong(DeleteContactQuery.DELETED_CONTACT_ID);
-                db.delete(Tables.SMARTDIAL_TABLE,
+                removedRows += db.delete(Tables.SMARTDIAL_TABLE,
                         SmartDialDbColumns.CONTACT_ID + "=" + deleteContactId, null);
                 db.delete(Tables.PREFIX_TABLE,
                         PrefixColumns.CONTACT_ID + "=" + deleteContactId, null);
@@ -621,6 +815,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             deletedContactCursor.close();
             db.endTransaction();
         }
+        return removedRows;
     }
 
     /**
@@ -630,15 +825,16 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
      * @param db Database pointer to the dialer database.
      * @param last_update_time Time stamp of last successful update of the dialer database.
+     * @return The number of rows removed from the smartdial table.
      */
-    private void removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
+    private int removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
         db.delete(Tables.PREFIX_TABLE,
                 PrefixColumns.CONTACT_ID + " IN " +
                 "(SELECT " + SmartDialDbColumns.CONTACT_ID + " FROM " + Tables.SMARTDIAL_TABLE +
                 " WHERE " + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " +
                 last_update_time + ")",
                 null);
-        db.delete(Tables.SMARTDIAL_TABLE,
+        return db.delete(Tables.SMARTDIAL_TABLE,
                 SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " + last_update_time, null);
     }
 
@@ -665,15 +861,17 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      *
      * @param db Database pointer to the smartdial database
      * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
+     * @return The number of rows removed from the smartdial table.
      */
-    private void removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
+    private int removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
+        int removedRows = 0;
         db.beginTransaction();
         try {
             while (updatedContactCursor.moveToNext()) {
                 final Long contactId = updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
 
-                db.delete(Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" +
-                        contactId, null);
+                removedRows += db.delete(Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID +
+                        "=" + contactId, null);
                 db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" +
                         contactId, null);
             }
@@ -682,139 +880,484 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         } finally {
             db.endTransaction();
         }
+        return removedRows;
     }
 
     /**
-     * Inserts updated contacts as rows to the smartdial table.
+     * Inserts updated contacts as rows to the smartdial table, and the prefixes of their names and
+     * numbers to the prefix table, in a single pass over the cursor.
+     *
+     * Rows are written through multi-row INSERT statements. The prefixes of a contact are
+     * de-duplicated before they are inserted, which works best when the rows of a contact follow
+     * each other in the cursor.
      *
      * @param db Database pointer to the smartdial database.
      * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
      * @param currentMillis Current time to be recorded in the smartdial table as update timestamp.
+     * @return The number of rows inserted to the smartdial table.
      */
     @VisibleForTesting
-    protected void insertUpdatedContactsAndNumberPrefix(SQLiteDatabase db,
+    protected int insertUpdatedContactsAndPrefixes(SQLiteDatabase db,
             Cursor updatedContactCursor, Long currentMillis) {
+        return insertUpdatedContactsAndPrefixes(db, updatedContactCursor, currentMillis,
+                SmartDialPrefix.getConfig());
+    }
+
+    /**
+     * Same as {@link #insertUpdatedContactsAndPrefixes(SQLiteDatabase, Cursor, Long)}, with the
+     * prefixes and transliterated names computed with the given configuration.
+     */
+    private int insertUpdatedContactsAndPrefixes(SQLiteDatabase db, Cursor updatedContactCursor,
+            Long currentMillis, SmartDialConfig config) {
+        int insertedRows = 0;
         db.beginTransaction();
         try {
-            final String sqlInsert = "INSERT INTO " + Tables.SMARTDIAL_TABLE + " (" +
-                    SmartDialDbColumns.DATA_ID + ", " +
-                    SmartDialDbColumns.NUMBER + ", " +
-                    SmartDialDbColumns.CONTACT_ID + ", " +
-                    SmartDialDbColumns.LOOKUP_KEY + ", " +
-                    SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
-                    SmartDialDbColumns.PHOTO_ID + ", " +
-                    SmartDialDbColumns.LAST_TIME_USED + ", " +
-                    SmartDialDbColumns.TIMES_USED + ", " +
-                    SmartDialDbColumns.STARRED + ", " +
-                    SmartDialDbColumns.IS_SUPER_PRIMARY + ", " +
-                    SmartDialDbColumns.IN_VISIBLE_GROUP+ ", " +
-                    SmartDialDbColumns.IS_PRIMARY + ", " +
-                    SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + ") " +
-                    " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-            final SQLiteStatement insert = db.compileStatement(sqlInsert);
-
-            final String numberSqlInsert = "INSERT INTO " + Tables.PREFIX_TABLE + " (" +
-                    PrefixColumns.CONTACT_ID + ", " +
-                    PrefixColumns.PREFIX  + ") " +
-                    " VALUES (?, ?)";
-            final SQLiteStatement numberInsert = db.compileStatement(numberSqlInsert);
+            final BatchInsert insert = new BatchInsert(db, Tables.SMARTDIAL_TABLE,
+                    SmartDialDbColumns.DATA_ID,
+                    SmartDialDbColumns.NUMBER,
+                    SmartDialDbColumns.CONTACT_ID,
+                    SmartDialDbColumns.LOOKUP_KEY,
+                    SmartDialDbColumns.DISPLAY_NAME_PRIMARY,
+                    SmartDialDbColumns.PHOTO_ID,
+                    SmartDialDbColumns.LAST_TIME_USED,
+                    SmartDialDbColumns.TIMES_USED,
+                    SmartDialDbColumns.STARRED,
+                    SmartDialDbColumns.IS_SUPER_PRIMARY,
+                    SmartDialDbColumns.IN_VISIBLE_GROUP,
+                    SmartDialDbColumns.IS_PRIMARY,
+                    SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME,
+                    SmartDialDbColumns.ACCOUNT_TYPE,
+                    SmartDialDbColumns.ACCOUNT_NAME,
+                    SmartDialDbColumns.TRANSLITERATED_NAME,
+                    SmartDialDbColumns.RANK_SCORE);
+            final BatchInsert prefixInsert = new BatchInsert(db, Tables.PREFIX_TABLE,
+                    PrefixColumns.CONTACT_ID,
+                    PrefixColumns.PREFIX);
+
+            final SmartDialMap map = config.getMap();
+            final String missingName = mContext.getResources().getString(R.string.missing_name);
+            String lastName = null;
+            String lastTransliteratedName = null;
+            /** Usage buckets of the rank scores are relative to the time of insertion. */
+            final long rankMillis = System.currentTimeMillis();
+
+            /** Prefixes already inserted for the contact of the previous row, and the name they
+             * were computed for.
+             */
+            final HashSet<String> contactPrefixes = new HashSet<String>();
+            long lastContactId = -1;
+            String lastPrefixedName = null;
 
             updatedContactCursor.moveToPosition(-1);
             while (updatedContactCursor.moveToNext()) {
-                insert.clearBindings();
-
                 // Handle string columns which can possibly be null first. In the case of certain
                 // null columns (due to malformed rows possibly inserted by third-party apps
                 // or sync adapters), skip the phone number row.
                 final String number = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
                 if (TextUtils.isEmpty(number)) {
                     continue;
-                } else {
-                    insert.bindString(2, number);
                 }
 
                 final String lookupKey = updatedContactCursor.getString(
                         PhoneQuery.PHONE_LOOKUP_KEY);
                 if (TextUtils.isEmpty(lookupKey)) {
                     continue;
-                } else {
-                    insert.bindString(4, lookupKey);
                 }
 
                 final String displayName = updatedContactCursor.getString(
                         PhoneQuery.PHONE_DISPLAY_NAME);
-                if (displayName == null) {
-                    insert.bindString(5, mContext.getResources().getString(R.string.missing_name));
-                } else {
-                    insert.bindString(5, displayName);
+                final String storedName = displayName == null ? missingName : displayName;
+                final long contactId = updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
+
+                /** Transliterates the name once here rather than for every query. Numbers of a
+                 * contact usually follow each other, so the last result is reused.
+                 */
+                if (!storedName.equals(lastName)) {
+                    lastName = storedName;
+                    lastTransliteratedName = map.transliterateName(storedName);
                 }
+
                 insert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_ID));
-                insert.bindLong(3, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
+                insert.bindString(2, number);
+                insert.bindLong(3, contactId);
+                insert.bindString(4, lookupKey);
+                insert.bindString(5, storedName);
                 insert.bindLong(6, updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID));
-                insert.bindLong(7, updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED));
+                final long lastTimeUsed =
+                        updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED);
+                final int starred = updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED);
+                final int superPrimary =
+                        updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY);
+                insert.bindLong(7, lastTimeUsed);
                 insert.bindLong(8, updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED));
-                insert.bindLong(9, updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED));
-                insert.bindLong(10, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY));
+                insert.bindLong(9, starred);
+                insert.bindLong(10, superPrimary);
                 insert.bindLong(11, updatedContactCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP));
                 insert.bindLong(12, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY));
                 insert.bindLong(13, currentMillis);
-                insert.executeInsert();
-                final String contactPhoneNumber =
-                        updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
-                final ArrayList<String> numberPrefixes =
-                        SmartDialPrefix.parseToNumberTokens(contactPhoneNumber);
-
-                for (String numberPrefix : numberPrefixes) {
-                    numberInsert.bindLong(1, updatedContactCursor.getLong(
-                            PhoneQuery.PHONE_CONTACT_ID));
-                    numberInsert.bindString(2, numberPrefix);
-                    numberInsert.executeInsert();
-                    numberInsert.clearBindings();
+                /** Accounts are stored so that matches do not need to be looked up again. */
+                insert.bindString(14, updatedContactCursor.getString(
+                        PhoneQuery.PHONE_ACCOUNT_TYPE));
+                insert.bindString(15, updatedContactCursor.getString(
+                        PhoneQuery.PHONE_ACCOUNT_NAME));
+                if (!storedName.equals(lastTransliteratedName)) {
+                    insert.bindString(16, lastTransliteratedName);
+                }
+                insert.bindLong(17, computeRankScore(starred != 0, superPrimary != 0,
+                        lastTimeUsed, rankMillis));
+                insert.addRow();
+                insertedRows++;
+
+                if (contactId != lastContactId) {
+                    lastContactId = contactId;
+                    lastPrefixedName = null;
+                    contactPrefixes.clear();
+                }
+                /** Name prefixes are computed once for each name of the contact. */
+                if (!storedName.equals(lastPrefixedName)) {
+                    lastPrefixedName = storedName;
+                    for (String namePrefix : SmartDialPrefix.generateNamePrefixes(config,
+                            storedName)) {
+                        if (contactPrefixes.add(namePrefix)) {
+                            prefixInsert.bindLong(1, contactId);
+                            prefixInsert.bindString(2, namePrefix);
+                            prefixInsert.addRow();
+                        }
+                    }
+                }
+                for (String numberPrefix : SmartDialPrefix.parseToNumberTokens(config, number)) {
+                    if (contactPrefixes.add(numberPrefix)) {
+                        prefixInsert.bindLong(1, contactId);
+                        prefixInsert.bindString(2, numberPrefix);
+                        prefixInsert.addRow();
+                    }
+                }
+                // Suffixes let numbers containing the query be found by the prefix range query
+                for (String numberSuffix : SmartDialPrefix.generateNumberSuffixes(number)) {
+                    if (contactPrefixes.add(numberSuffix)) {
+                        prefixInsert.bindLong(1, contactId);
+                        prefixInsert.bindString(2, numberSuffix);
+                        prefixInsert.addRow();
+                    }
                 }
             }
+            insert.close();
+            prefixInsert.close();
 
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
+        return insertedRows;
     }
 
     /**
-     * Inserts prefixes of contact names to the prefix table.
+     * Brings the prefixes and transliterated names of the rows already in the smart dial tables
+     * in line with the given configuration, after the T9 locale or the NANP setting changed.
      *
-     * @param db Database pointer to the smartdial database.
-     * @param nameCursor Cursor pointing to the list of distinct updated contacts.
+     * Prefixes and transliterated names are computed again from the stored names and numbers and
+     * compared with the stored ones. Only the contacts whose prefixes differ, and the rows whose
+     * transliterated name differs, are rewritten, so that a change affecting few contacts does not
+     * require inserting all contacts again.
+     *
+     * @param db Database pointer to the smartdial database, with a transaction open.
+     * @param config Configuration to compute the prefixes with.
+     * @return The number of contacts whose prefixes or transliterated names were rewritten.
      */
     @VisibleForTesting
-    void insertNamePrefixes(SQLiteDatabase db, Cursor nameCursor) {
-        final int columnIndexName = nameCursor.getColumnIndex(
-                SmartDialDbColumns.DISPLAY_NAME_PRIMARY);
-        final int columnIndexContactId = nameCursor.getColumnIndex(SmartDialDbColumns.CONTACT_ID);
+    int updatePrefixesForConfig(SQLiteDatabase db, SmartDialConfig config) {
+        final SmartDialMap map = config.getMap();
+        /** Changes are collected first and written once both cursors are closed, so that the
+         * cursors do not see the tables change while they are read.
+         */
+        final HashMap<Long, HashSet<String>> changedPrefixes =
+                new HashMap<Long, HashSet<String>>();
+        final HashMap<Long, String> changedNames = new HashMap<Long, String>();
+        final HashSet<Long> changedContacts = new HashSet<Long>();
 
-        db.beginTransaction();
+        final Cursor rowCursor = db.rawQuery("SELECT " +
+                SmartDialDbColumns._ID + ", " +
+                SmartDialDbColumns.CONTACT_ID + ", " +
+                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
+                SmartDialDbColumns.NUMBER + ", " +
+                SmartDialDbColumns.TRANSLITERATED_NAME +
+                " FROM " + Tables.SMARTDIAL_TABLE +
+                " ORDER BY " + SmartDialDbColumns.CONTACT_ID, null);
+        final Cursor prefixCursor = db.rawQuery("SELECT " +
+                PrefixColumns.CONTACT_ID + ", " +
+                PrefixColumns.PREFIX +
+                " FROM " + Tables.PREFIX_TABLE +
+                " ORDER BY " + PrefixColumns.CONTACT_ID, null);
         try {
-            final String sqlInsert = "INSERT INTO " + Tables.PREFIX_TABLE + " (" +
-                    PrefixColumns.CONTACT_ID + ", " +
-                    PrefixColumns.PREFIX  + ") " +
-                    " VALUES (?, ?)";
-            final SQLiteStatement insert = db.compileStatement(sqlInsert);
-
-            while (nameCursor.moveToNext()) {
-                /** Computes a list of prefixes of a given contact name. */
-                final ArrayList<String> namePrefixes =
-                        SmartDialPrefix.generateNamePrefixes(nameCursor.getString(columnIndexName));
-
-                for (String namePrefix : namePrefixes) {
-                    insert.bindLong(1, nameCursor.getLong(columnIndexContactId));
-                    insert.bindString(2, namePrefix);
-                    insert.executeInsert();
-                    insert.clearBindings();
+            final HashSet<String> storedPrefixes = new HashSet<String>();
+            prefixCursor.moveToFirst();
+            boolean hasRow = rowCursor.moveToFirst();
+            while (hasRow) {
+                final long contactId = rowCursor.getLong(1);
+                final HashSet<String> prefixes = new HashSet<String>();
+                String lastName = null;
+                /** Computes the prefixes of all rows of the contact, as they are inserted. */
+                do {
+                    final String displayName = rowCursor.getString(2);
+                    String transliteratedName = map.transliterateName(displayName);
+                    if (transliteratedName.equals(displayName)) {
+                        transliteratedName = null;
+                    }
+                    if (!TextUtils.equals(transliteratedName, rowCursor.getString(4))) {
+                        changedNames.put(rowCursor.getLong(0), transliteratedName);
+                        changedContacts.add(contactId);
+                    }
+                    if (!displayName.equals(lastName)) {
+                        lastName = displayName;
+                        prefixes.addAll(SmartDialPrefix.generateNamePrefixes(config,
+                                displayName));
+                    }
+                    prefixes.addAll(SmartDialPrefix.parseToNumberTokens(config,
+                            rowCursor.getString(3)));
+                    prefixes.addAll(SmartDialPrefix.generateNumberSuffixes(
+                            rowCursor.getString(3)));
+                    hasRow = rowCursor.moveToNext();
+                } while (hasRow && rowCursor.getLong(1) == contactId);
+
+                /** Reads the stored prefixes of the contact, both cursors being sorted by
+                 * contact.
+                 */
+                storedPrefixes.clear();
+                while (!prefixCursor.isAfterLast() && prefixCursor.getLong(0) < contactId) {
+                    prefixCursor.moveToNext();
+                }
+                while (!prefixCursor.isAfterLast() && prefixCursor.getLong(0) == contactId) {
+                    storedPrefixes.add(prefixCursor.getString(1));
+                    prefixCursor.moveToNext();
+                }
+                if (!prefixes.equals(storedPrefixes)) {
+                    changedPrefixes.put(contactId, prefixes);
+                    changedContacts.add(contactId);
                 }
             }
+        } finally {
+            rowCursor.close();
+            prefixCursor.close();
+        }
 
-            db.setTransactionSuccessful();
+        final ContentValues values = new ContentValues();
+        for (Long rowId : changedNames.keySet()) {
+            values.put(SmartDialDbColumns.TRANSLITERATED_NAME, changedNames.get(rowId));
+            db.update(Tables.SMARTDIAL_TABLE, values, SmartDialDbColumns._ID + "=" + rowId,
+                    null);
+        }
+        final BatchInsert prefixInsert = new BatchInsert(db, Tables.PREFIX_TABLE,
+                PrefixColumns.CONTACT_ID,
+                PrefixColumns.PREFIX);
+        for (Long contactId : changedPrefixes.keySet()) {
+            db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" + contactId, null);
+            for (String prefix : changedPrefixes.get(contactId)) {
+                prefixInsert.bindLong(1, contactId);
+                prefixInsert.bindString(2, prefix);
+                prefixInsert.addRow();
+            }
+        }
+        prefixInsert.close();
+        return changedContacts.size();
+    }
+
+    /**
+     * Creates the indexes used to look up and sort smart dial entries, and updates the index
+     * statistics.
+     *
+     * @param db Database pointer to the smartdial database.
+     */
+    @VisibleForTesting
+    void updateSmartDialIndexes(SQLiteDatabase db) {
+        createSmartDialIndexes(db);
+        analyzeSmartDialTables(db);
+    }
+
+    /**
+     * Creates the indexes used to look up and sort smart dial entries, if they do not exist.
+     *
+     * @param db Database pointer to the smartdial database.
+     */
+    private void createSmartDialIndexes(SQLiteDatabase db) {
+        /** Creates index on contact_id for fast JOIN operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" + SmartDialDbColumns.CONTACT_ID  + ");");
+        /** Creates index on last_smartdial_update_time for fast SELECT operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_last_update_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" +
+                SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + ");");
+        /** Creates index following SmartDialSortingOrder.SORT_ORDER, so that matches are read
+         * in sort order without sorting the whole table.
+         */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_sort_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" +
+                SmartDialDbColumns.RANK_SCORE + ", " +
+                SmartDialDbColumns.TIMES_USED + " DESC, " +
+                SmartDialDbColumns.IN_VISIBLE_GROUP +  " DESC, " +
+                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
+                SmartDialDbColumns.CONTACT_ID + ", " +
+                SmartDialDbColumns.IS_PRIMARY + " DESC, " +
+                SmartDialDbColumns._ID +
+                ");");
+        /** Creates index on prefix for fast SELECT operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_index ON " +
+                Tables.PREFIX_TABLE + " (" + PrefixColumns.PREFIX + ");");
+        /** Creates index on contact_id for fast JOIN operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_contact_id_index ON " +
+                Tables.PREFIX_TABLE + " (" + PrefixColumns.CONTACT_ID + ");");
+    }
+
+    /**
+     * Updates the statistics the query planner keeps on the smart dial tables and indexes, and
+     * resets the count of rows changed since.
+     *
+     * @param db Database pointer to the smartdial database.
+     */
+    private void analyzeSmartDialTables(SQLiteDatabase db) {
+        /** Updates the database index statistics.*/
+        db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
+        db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
+        db.execSQL("ANALYZE smartdial_contact_id_index");
+        db.execSQL("ANALYZE smartdial_last_update_index");
+        db.execSQL("ANALYZE nameprefix_index");
+        db.execSQL("ANALYZE nameprefix_contact_id_index");
+
+        setProperty(db, ANALYZED_ROWS_PROPERTY, String.valueOf(
+                DatabaseUtils.queryNumEntries(db, Tables.SMARTDIAL_TABLE)));
+        setProperty(db, CHANGED_ROWS_PROPERTY, "0");
+    }
+
+    /**
+     * Decides whether an update should refresh the statistics of the smart dial tables. ANALYZE
+     * reads every row of the tables and their indexes, which costs far more than a small delta
+     * update, while the query plans only change once a good part of the rows did. Statistics are
+     * therefore refreshed once the rows changed since the last ANALYZE reach
+     * {@link #ANALYZE_CHANGED_FRACTION} of the rows analyzed then, or earlier if the device is idle
+     * or charging.
+     *
+     * @param changedRows Rows of the smartdial table inserted or removed since the last ANALYZE.
+     * @param analyzedRows Rows of the smartdial table at the last ANALYZE, 0 if it never ran.
+     * @param idleOrCharging Whether the device is idle or charging.
+     */
+    @VisibleForTesting
+    static boolean shouldAnalyze(int changedRows, int analyzedRows, boolean idleOrCharging) {
+        if (changedRows == 0) {
+            return false;
+        }
+        if (analyzedRows == 0 || idleOrCharging) {
+            return true;
+        }
+        return changedRows >= Math.max(ANALYZE_MIN_CHANGED_ROWS,
+                analyzedRows * ANALYZE_CHANGED_FRACTION);
+    }
+
+    /**
+     * Returns whether the device is charging or not interactive, in which case maintenance of
+     * the database does not compete with the user for the CPU or the battery.
+     */
+    @VisibleForTesting
+    boolean isIdleOrCharging() {
+        final Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return true;
+        }
+        final PowerManager powerManager =
+                (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        return powerManager != null && !powerManager.isInteractive();
+    }
+
+    /**
+     * Returns the usage bucket of a row, as computed by
+     * {@link SmartDialSortingOrder#SORT_BY_DATA_USAGE}.
+     */
+    static int getUsageBucket(long lastTimeUsed, long currentMillis) {
+        final long timeSinceLastUsed = currentMillis - lastTimeUsed;
+        if (timeSinceLastUsed < SmartDialSortingOrder.LAST_TIME_USED_CURRENT_MS) {
+            return 0;
+        } else if (timeSinceLastUsed < SmartDialSortingOrder.LAST_TIME_USED_RECENT_MS) {
+            return 1;
+        }
+        return 2;
+    }
+
+    /**
+     * Returns the value of {@link SmartDialSortingOrder#RANK_SCORE} for a row.
+     */
+    @VisibleForTesting
+    static int computeRankScore(boolean starred, boolean superPrimary, long lastTimeUsed,
+            long currentMillis) {
+        return (starred ? 0 : 6) + (superPrimary ? 0 : 3)
+                + getUsageBucket(lastTimeUsed, currentMillis);
+    }
+
+    /**
+     * Moves the rows whose last use crossed the 3 or 30 days threshold since their score was
+     * computed to their new usage bucket. Only rows in the first two buckets can move, and scores
+     * are only rewritten when they change.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param currentMillis Time the scores are computed for.
+     * @return The time at which the next row crosses a threshold, or {@link Long#MAX_VALUE} if
+     *     every row is in the last bucket.
+     */
+    @VisibleForTesting
+    long updateRankScores(SQLiteDatabase db, long currentMillis) {
+        final String[] args = new String[] {Long.toString(currentMillis)};
+        db.execSQL("UPDATE " + Tables.SMARTDIAL_TABLE +
+                " SET " + SmartDialDbColumns.RANK_SCORE + " = " + SmartDialSortingOrder.RANK_SCORE +
+                " WHERE " + SmartDialDbColumns.RANK_SCORE + " % 3 != 2" +
+                " AND " + SmartDialDbColumns.RANK_SCORE + " != " + SmartDialSortingOrder.RANK_SCORE,
+                args);
+        return queryNextRankScoreChange(db, null);
+    }
+
+    /**
+     * Returns the time at which the next row crosses the 3 or 30 days threshold, or
+     * {@link Long#MAX_VALUE} if every row is in the last bucket.
+     *
+     * @param updateMillis If not null, only the rows written by the update started at that time
+     *     are checked.
+     */
+    private static long queryNextRankScoreChange(SQLiteDatabase db, Long updateMillis) {
+        final Cursor cursor = db.rawQuery("SELECT MIN(" +
+                SmartDialSortingOrder.NEXT_RANK_SCORE_CHANGE + ") FROM " + Tables.SMARTDIAL_TABLE +
+                " WHERE " + SmartDialDbColumns.RANK_SCORE + " % 3 != 2" +
+                (updateMillis != null ? " AND " + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME +
+                        " = " + updateMillis : ""), null);
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+            return Long.MAX_VALUE;
         } finally {
-            db.endTransaction();
+            cursor.close();
+        }
+    }
+
+    /**
+     * Time spent in each phase of an update of the smart dial database, formatted as
+     * "phase=milliseconds" pairs for {@link #UPDATE_TIMINGS_PROPERTY}.
+     */
+    private static class UpdateTimings {
+        private final StringBuilder mPhases = new StringBuilder();
+        private long mLapStartMillis = SystemClock.elapsedRealtime();
+
+        /**
+         * Records the time since the previous lap as spent in the given phase.
+         */
+        public void lap(String phase) {
+            final long nowMillis = SystemClock.elapsedRealtime();
+            if (mPhases.length() > 0) {
+                mPhases.append(' ');
+            }
+            mPhases.append(phase).append('=').append(nowMillis - mLapStartMillis);
+            mLapStartMillis = nowMillis;
+        }
+
+        @Override
+        public String toString() {
+            return mPhases.toString();
         }
     }
 
@@ -835,139 +1378,167 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 Log.v(TAG, "Starting to update database");
             }
             final StopWatch stopWatch = DEBUG ? StopWatch.start("Updating databases") : null;
+            final UpdateTimings timings = new UpdateTimings();
 
             /** Gets the last update time on the database. */
             final SharedPreferences databaseLastUpdateSharedPref = mContext.getSharedPreferences(
                     DATABASE_LAST_CREATED_SHARED_PREF, Context.MODE_PRIVATE);
             final String lastUpdateMillis = String.valueOf(
                     databaseLastUpdateSharedPref.getLong(LAST_UPDATED_MILLIS, 0));
+            final boolean fullUpdate = lastUpdateMillis.equals("0");
 
             if (DEBUG) {
                 Log.v(TAG, "Last updated at " + lastUpdateMillis);
             }
             /** Queries the contact database to get contacts that have been updated since the last
-             * update time.
+             * update time. Rows are sorted by contact so that the prefixes of each contact can be
+             * de-duplicated as they are inserted.
              */
             final Cursor updatedContactCursor = mContext.getContentResolver().query(PhoneQuery.URI,
                     PhoneQuery.PROJECTION, PhoneQuery.SELECTION,
-                    new String[]{lastUpdateMillis}, null);
+                    new String[]{lastUpdateMillis}, Phone.CONTACT_ID);
             if (updatedContactCursor == null) {
                 if (DEBUG) {
                     Log.e(TAG, "SmartDial query received null for cursor");
                 }
                 return;
             }
+            timings.lap("query");
+
+            /** Reads the configuration once, so that all prefixes written by the update are
+             * computed with the same map and NANP setting.
+             */
+            final SmartDialConfig config = SmartDialPrefix.getConfig();
 
             /** Sets the time after querying the database as the current update time. */
             final Long currentMillis = System.currentTimeMillis();
+            int changedRows = 0;
+            long nextRankScoreChangeMillis = -1;
 
+            /** Makes all changes in a single transaction. Until it is committed, readers keep
+             * seeing the previous contents of the tables rather than partially updated ones.
+             */
+            db.beginTransaction();
             try {
-                if (DEBUG) {
-                    stopWatch.lap("Queried the Contacts database");
-                }
-
-                /** Prevents the app from reading the dialer database when updating. */
-                sInUpdate.getAndSet(true);
-
-                /** Removes contacts that have been deleted. */
-                removeDeletedContacts(db, lastUpdateMillis);
-                removePotentiallyCorruptedContacts(db, lastUpdateMillis);
+                try {
+                    if (DEBUG) {
+                        stopWatch.lap("Queried the Contacts database");
+                    }
 
-                if (DEBUG) {
-                    stopWatch.lap("Finished deleting deleted entries");
-                }
+                    /** Removes contacts that have been deleted. */
+                    changedRows += removeDeletedContacts(db, lastUpdateMillis);
+                    changedRows += removePotentiallyCorruptedContacts(db, lastUpdateMillis);
 
-                /** If the database did not exist before, jump through deletion as there is nothing
-                 * to delete.
-                 */
-                if (!lastUpdateMillis.equals("0")) {
-                    /** Removes contacts that have been updated. Updated contact information will be
-                     * inserted later.
-                     */
-                    removeUpdatedContacts(db, updatedContactCursor);
                     if (DEBUG) {
-                        stopWatch.lap("Finished deleting updated entries");
+                        stopWatch.lap("Finished deleting deleted entries");
                     }
-                }
 
-                /** Inserts recently updated contacts to the smartdial database.*/
-                insertUpdatedContactsAndNumberPrefix(db, updatedContactCursor, currentMillis);
-                if (DEBUG) {
-                    stopWatch.lap("Finished building the smart dial table");
-                }
-            } finally {
-                /** Inserts prefixes of phone numbers into the prefix table.*/
-                updatedContactCursor.close();
-            }
+                    if (fullUpdate) {
+                        /** All contacts are inserted again, clears any left from a previous
+                         * database.
+                         */
+                        removeAllContacts(db);
+                    } else {
+                        /** Removes contacts that have been updated. Updated contact information
+                         * will be inserted later.
+                         */
+                        changedRows += removeUpdatedContacts(db, updatedContactCursor);
+                        if (DEBUG) {
+                            stopWatch.lap("Finished deleting updated entries");
+                        }
+                    }
+                    timings.lap("delete");
 
-            /** Gets a list of distinct contacts which have been updated, and adds the name prefixes
-             * of these contacts to the prefix table.
-             */
-            final Cursor nameCursor = db.rawQuery(
-                    "SELECT DISTINCT " +
-                    SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " + SmartDialDbColumns.CONTACT_ID +
-                    " FROM " + Tables.SMARTDIAL_TABLE +
-                    " WHERE " + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME +
-                    " = " + Long.toString(currentMillis),
-                    new String[] {});
-            if (nameCursor != null) {
-                try {
-                    if (DEBUG) {
-                        stopWatch.lap("Queried the smart dial table for contact names");
+                    /** Rewrites the prefixes affected by a change of the configuration since the
+                     * tables were written. The stored key is only read again once a new
+                     * configuration is published.
+                     */
+                    if (config.getGeneration() != mIndexedConfigGeneration && !config.getKey()
+                            .equals(getProperty(db, SMARTDIAL_CONFIG_PROPERTY, null))) {
+                        if (!fullUpdate) {
+                            changedRows += updatePrefixesForConfig(db, config);
+                            timings.lap("config");
+                        }
+                        setProperty(db, SMARTDIAL_CONFIG_PROPERTY, config.getKey());
                     }
 
-                    /** Inserts prefixes of names into the prefix table.*/
-                    insertNamePrefixes(db, nameCursor);
+                    /** Inserts recently updated contacts to the smartdial database, and the
+                     * prefixes of their names and numbers to the prefix table.
+                     */
+                    changedRows += insertUpdatedContactsAndPrefixes(db, updatedContactCursor,
+                            currentMillis, config);
+                    timings.lap("insert");
                     if (DEBUG) {
-                        stopWatch.lap("Finished building the name prefix table");
+                        stopWatch.lap("Finished building the smart dial and prefix tables");
                     }
                 } finally {
-                    nameCursor.close();
+                    updatedContactCursor.close();
                 }
-            }
 
-            /** Creates index on contact_id for fast JOIN operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON " +
-                    Tables.SMARTDIAL_TABLE + " (" + SmartDialDbColumns.CONTACT_ID  + ");");
-            /** Creates index on last_smartdial_update_time for fast SELECT operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_last_update_index ON " +
-                    Tables.SMARTDIAL_TABLE + " (" +
-                    SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + ");");
-            /** Creates index on sorting fields for fast sort operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_sort_index ON " +
-                    Tables.SMARTDIAL_TABLE + " (" +
-                    SmartDialDbColumns.STARRED + ", " +
-                    SmartDialDbColumns.IS_SUPER_PRIMARY + ", " +
-                    SmartDialDbColumns.LAST_TIME_USED + ", " +
-                    SmartDialDbColumns.TIMES_USED + ", " +
-                    SmartDialDbColumns.IN_VISIBLE_GROUP +  ", " +
-                    SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
-                    SmartDialDbColumns.CONTACT_ID + ", " +
-                    SmartDialDbColumns.IS_PRIMARY +
-                    ");");
-            /** Creates index on prefix for fast SELECT operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_index ON " +
-                    Tables.PREFIX_TABLE + " (" + PrefixColumns.PREFIX + ");");
-            /** Creates index on contact_id for fast JOIN operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_contact_id_index ON " +
-                    Tables.PREFIX_TABLE + " (" + PrefixColumns.CONTACT_ID + ");");
+                /** Refreshes the index statistics only when enough rows changed since they were
+                 * last computed. Indexes are created by full updates and checked again along with
+                 * the statistics, SQLite maintains them in between.
+                 */
+                final int pendingRows = changedRows + getPropertyAsInt(db, CHANGED_ROWS_PROPERTY,
+                        0);
+                if (fullUpdate || shouldAnalyze(pendingRows,
+                        getPropertyAsInt(db, ANALYZED_ROWS_PROPERTY, 0), isIdleOrCharging())) {
+                    createSmartDialIndexes(db);
+                    timings.lap("index");
+                    analyzeSmartDialTables(db);
+                    timings.lap("analyze");
+                    if (DEBUG) {
+                        stopWatch.lap("Finished updating index stats");
+                    }
+                } else if (changedRows > 0) {
+                    setProperty(db, CHANGED_ROWS_PROPERTY, String.valueOf(pendingRows));
+                }
 
+                // Inserted rows are scored as they are written, the others are moved to their
+                // new usage bucket once one of them is due.
+                if (fullUpdate || currentMillis >= mNextRankScoreChangeMillis) {
+                    nextRankScoreChangeMillis = updateRankScores(db, currentMillis);
+                    timings.lap("rank");
+                } else {
+                    // Rows inserted by this update may cross a threshold before the others.
+                    nextRankScoreChangeMillis = Math.min(mNextRankScoreChangeMillis,
+                            queryNextRankScoreChange(db, currentMillis));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                final long swapStart = SystemClock.elapsedRealtimeNanos();
+                db.endTransaction();
+                mLastSwapNanos = SystemClock.elapsedRealtimeNanos() - swapStart;
+            }
+            timings.lap("commit");
             if (DEBUG) {
-                stopWatch.lap(TAG + "Finished recreating index");
+                stopWatch.lap("Committed the update in " + mLastSwapNanos / 1000 + "us");
+            }
+            if (nextRankScoreChangeMillis != -1) {
+                mNextRankScoreChangeMillis = nextRankScoreChangeMillis;
+            }
+            mIndexedConfigGeneration = config.getGeneration();
+            mUpdateScheduler.scheduleRankScoreUpdate(mNextRankScoreChangeMillis);
+
+            if (mUseSmartDialIndex) {
+                /** Replaces the in-memory index, readers keep using the old one until then. */
+                final SmartDialIndex index = buildSmartDialIndex(db, config);
+                synchronized (mSmartDialIndexLock) {
+                    mSmartDialIndex = index;
+                }
+                timings.lap("trie");
+                if (DEBUG) {
+                    stopWatch.lap("Finished building the in-memory index");
+                }
             }
-
-            /** Updates the database index statistics.*/
-            db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
-            db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
-            db.execSQL("ANALYZE smartdial_contact_id_index");
-            db.execSQL("ANALYZE smartdial_last_update_index");
-            db.execSQL("ANALYZE nameprefix_index");
-            db.execSQL("ANALYZE nameprefix_contact_id_index");
             if (DEBUG) {
-                stopWatch.stopAndLog(TAG + "Finished updating index stats", 0);
+                stopWatch.stopAndLog(TAG + "Finished updating databases", 0);
             }
 
-            sInUpdate.getAndSet(false);
+            /** Keeps the timings for diagnosing slow updates in the field. */
+            setProperty(db, UPDATE_TIMINGS_PROPERTY, timings + " rows=" + changedRows);
+
+            mUpdateGeneration.incrementAndGet();
 
             final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
             editor.putLong(LAST_UPDATED_MILLIS, currentMillis);
@@ -979,104 +1550,314 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      * Returns a list of candidate contacts where the query is a prefix of the dialpad index of
      * the contact's name or phone number.
      *
+     * Candidates are narrowed down through {@link Tables#PREFIX_TABLE} before the name matcher
+     * runs, so only contacts having an indexed prefix starting with the query are read back from
+     * the database. The suffixes of the numbers are indexed too, so that numbers containing the
+     * query are found by the same range query. Contacts whose names have middle tokens, whose
+     * initials are not indexed, are always candidates, see
+     * {@link SmartDialPrefix#UNINDEXED_INITIALS_PREFIX}. Queries shorter than the indexed
+     * suffixes are checked against every row.
+     *
      * @param query The prefix of a contact's dialpad index.
      * @return A list of top candidate contacts that will be suggested to user to match their input.
      */
     public ArrayList<ContactNumber>  getLooseMatches(String query,
             SmartDialNameMatcher nameMatcher) {
-        final boolean inUpdate = sInUpdate.get();
-        if (inUpdate) {
+        mUpdateScheduler.requestRankScoreUpdateIfDue();
+        if (mMultiMatchObject != null && mMultiMatchMethod != null) {
+            /** The vendor matcher does not follow the prefix table rules, check every row. */
+            return getLooseMatchesFullScan(query, nameMatcher);
+        }
+
+        if (mUseSmartDialIndex) {
+            final SmartDialIndex index = getSmartDialIndex();
+            if (index != null) {
+                return index.getLooseMatches(query, nameMatcher, mUseFuzzyMatching);
+            }
+        }
+
+        if (TextUtils.isEmpty(query)) {
             return Lists.newArrayList();
         }
 
-        final SQLiteDatabase db = getReadableDatabase();
+        return readLooseMatches(queryLooseMatchCandidates(query), query, nameMatcher);
+    }
 
-        /** Uses SQL query wildcard '%' to represent prefix matching.*/
-        //final String looseQuery = query + "%";
+    /**
+     * Same as {@link #getLooseMatches(String, SmartDialNameMatcher)}, but reuses the candidates of
+     * the previous keystroke when the query extends the previous one. Any contact matching the
+     * longer query also matches the shorter one, so only rows which were not ruled out for the
+     * previous query need to be checked. Otherwise, e.g. after a backspace, the prefix table is
+     * queried again.
+     *
+     * @param query The prefix of a contact's dialpad index.
+     * @param nameMatcher Matcher configured with the query.
+     * @param previous Result of the previous keystroke, or null.
+     * @return The top candidate contacts, along with the rows to narrow down for the next query.
+     */
+    public LooseMatchResult getLooseMatches(String query, SmartDialNameMatcher nameMatcher,
+            LooseMatchResult previous) {
+        final int generation = mUpdateGeneration.get();
+        if ((mMultiMatchObject != null && mMultiMatchMethod != null) || mUseSmartDialIndex
+                || TextUtils.isEmpty(query)) {
+            /** Lookups in the in-memory index are cheap enough to not need narrowing. */
+            return new LooseMatchResult(query, getLooseMatches(query, nameMatcher), null,
+                    generation);
+        }
 
-        final ArrayList<ContactNumber> result = Lists.newArrayList();
+        mUpdateScheduler.requestRankScoreUpdateIfDue();
+        final ArrayList<ContactNumber> candidates;
+        if (previous != null && previous.canNarrowTo(query, generation)) {
+            candidates = previous.candidates;
+        } else {
+            candidates = readCandidates(queryLooseMatchCandidates(query));
+        }
 
-        final StopWatch stopWatch = DEBUG ? StopWatch.start(":Name Prefix query") : null;
+        final ArrayList<ContactNumber> remaining = Lists.newArrayList();
+        final ArrayList<ContactNumber> matches = matchCandidates(candidates, query, nameMatcher,
+                remaining);
+        return new LooseMatchResult(query, matches, remaining, generation);
+    }
 
-        final String currentTimeStamp = Long.toString(System.currentTimeMillis());
+    /**
+     * Returns the in-memory index, building it from {@link Tables#SMARTDIAL_TABLE} if no update
+     * did so yet.
+     */
+    @VisibleForTesting
+    SmartDialIndex getSmartDialIndex() {
+        SmartDialIndex index = mSmartDialIndex;
+        if (index == null) {
+            synchronized (mSmartDialIndexLock) {
+                index = mSmartDialIndex;
+                if (index == null) {
+                    index = buildSmartDialIndex(getReadableDatabase(),
+                            SmartDialPrefix.getConfig());
+                    mSmartDialIndex = index;
+                }
+            }
+        }
+        return index;
+    }
 
-        /** Queries the database to find contacts that have an index matching the query prefix. */
+    /**
+     * Builds a {@link SmartDialIndex} over the rows of {@link Tables#SMARTDIAL_TABLE}, read in
+     * the shape of {@link PhoneQuery#PROJECTION}. Rows are ranked by recent use at build time,
+     * which is when the table was last updated.
+     *
+     * @param config Configuration the prefixes of the table were computed with.
+     */
+    private SmartDialIndex buildSmartDialIndex(SQLiteDatabase db, SmartDialConfig config) {
+        final StopWatch stopWatch = DEBUG ? StopWatch.start("Building in-memory index") : null;
         final Cursor cursor = db.rawQuery("SELECT " +
                 SmartDialDbColumns.DATA_ID + ", " +
-                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
-                SmartDialDbColumns.PHOTO_ID + ", " +
+                "NULL, NULL, " + // Phone.TYPE and Phone.LABEL are not stored.
                 SmartDialDbColumns.NUMBER + ", " +
                 SmartDialDbColumns.CONTACT_ID + ", " +
-                SmartDialDbColumns.LOOKUP_KEY +
+                SmartDialDbColumns.LOOKUP_KEY + ", " +
+                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
+                SmartDialDbColumns.PHOTO_ID + ", " +
+                SmartDialDbColumns.LAST_TIME_USED + ", " +
+                SmartDialDbColumns.TIMES_USED + ", " +
+                SmartDialDbColumns.STARRED + ", " +
+                SmartDialDbColumns.IS_SUPER_PRIMARY + ", " +
+                SmartDialDbColumns.IN_VISIBLE_GROUP + ", " +
+                SmartDialDbColumns.IS_PRIMARY + ", " +
+                SmartDialDbColumns.ACCOUNT_TYPE + ", " +
+                SmartDialDbColumns.ACCOUNT_NAME +
                 " FROM " + Tables.SMARTDIAL_TABLE +
-                " ORDER BY " + SmartDialSortingOrder.SORT_ORDER,
-                new String[] {currentTimeStamp});
+                " ORDER BY " + SmartDialDbColumns._ID, null);
         if (cursor == null) {
-            return result;
+            return null;
         }
         try {
+            final SmartDialIndex index = SmartDialIndex.build(cursor,
+                    mContext.getResources().getString(R.string.missing_name),
+                    System.currentTimeMillis(), config);
             if (DEBUG) {
-                stopWatch.lap("Prefix query completed");
+                stopWatch.stopAndLog(TAG + "Built in-memory index of " + index.getContactCount()
+                        + " contacts, " + index.getMemoryFootprintBytes() + " bytes", 0);
             }
+            return index;
+        } finally {
+            cursor.close();
+        }
+    }
 
-            /** Gets the column ID from the cursor.*/
-            final int columnDataId = 0;
-            final int columnDisplayNamePrimary = 1;
-            final int columnPhotoId = 2;
-            final int columnNumber = 3;
-            final int columnId = 4;
-            final int columnLookupKey = 5;
-            if (DEBUG) {
-                stopWatch.lap("Found column IDs");
-            }
+    /**
+     * Queries the rows of {@link Tables#SMARTDIAL_TABLE} that have an index matching the query
+     * prefix, or a number that contains the query, in sort order.
+     *
+     * @return Cursor over {@link LooseMatchQuery#COLUMNS}.
+     */
+    private Cursor queryLooseMatchCandidates(String query) {
+        final SQLiteDatabase db = getReadableDatabase();
+        if (query.length() < SmartDialPrefix.MIN_NUMBER_SUFFIX_LENGTH) {
+            // Suffixes that short are not indexed, so any number may contain the query.
+            return queryAllCandidates(db);
+        }
+        final StopWatch stopWatch = DEBUG ? StopWatch.start(":Indexed prefix query") : null;
 
-            final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
-            int counter = 0;
-            if (DEBUG) {
-                stopWatch.lap("Moved cursor to start");
+        final String lastChar = String.valueOf((char) (query.charAt(query.length() - 1) + 1));
+        final String prefixUpperBound = query.substring(0, query.length() - 1) + lastChar;
+
+        /** Queries the database to find contacts that have an index matching the query prefix,
+         * number suffixes included, or a name with initials that are not indexed.
+         */
+        final Cursor cursor = db.rawQuery("SELECT " + LooseMatchQuery.COLUMNS +
+                " FROM " + Tables.SMARTDIAL_TABLE +
+                " WHERE " + SmartDialDbColumns.CONTACT_ID + " IN " +
+                    "(SELECT " + PrefixColumns.CONTACT_ID + " FROM " + Tables.PREFIX_TABLE +
+                    " WHERE (" + PrefixColumns.PREFIX + " >= ?1" +
+                    " AND " + PrefixColumns.PREFIX + " < ?2)" +
+                    " OR " + PrefixColumns.PREFIX + " = ?3)" +
+                " ORDER BY " + SmartDialSortingOrder.SORT_ORDER,
+                new String[] {query, prefixUpperBound, SmartDialPrefix.UNINDEXED_INITIALS_PREFIX});
+        if (DEBUG) {
+            stopWatch.stopAndLog(TAG + "Indexed prefix query completed", 0);
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the same candidates as {@link #getLooseMatches}, but runs the name matcher against
+     * every row of {@link Tables#SMARTDIAL_TABLE} instead of consulting the prefix table.
+     */
+    @VisibleForTesting
+    ArrayList<ContactNumber> getLooseMatchesFullScan(String query,
+            SmartDialNameMatcher nameMatcher) {
+        return readLooseMatches(queryAllCandidates(getReadableDatabase()), query, nameMatcher);
+    }
+
+    /**
+     * Queries every row of {@link Tables#SMARTDIAL_TABLE} in sort order.
+     *
+     * @return Cursor over {@link LooseMatchQuery#COLUMNS}.
+     */
+    private static Cursor queryAllCandidates(SQLiteDatabase db) {
+        return db.rawQuery("SELECT " + LooseMatchQuery.COLUMNS +
+                " FROM " + Tables.SMARTDIAL_TABLE +
+                " ORDER BY " + SmartDialSortingOrder.SORT_ORDER, null);
+    }
+
+    /**
+     * Runs the name matcher over a cursor of {@link LooseMatchQuery#COLUMNS} and returns the top
+     * matches without duplication. The cursor is closed.
+     */
+    private ArrayList<ContactNumber> readLooseMatches(Cursor cursor, String query,
+            SmartDialNameMatcher nameMatcher) {
+        return matchCandidates(readCandidates(cursor), query, nameMatcher, null);
+    }
+
+    /**
+     * Reads all rows of a cursor over {@link LooseMatchQuery#COLUMNS}, which is closed.
+     */
+    private static ArrayList<ContactNumber> readCandidates(Cursor cursor) {
+        if (cursor == null) {
+            return Lists.newArrayList();
+        }
+        try {
+            final ArrayList<ContactNumber> candidates =
+                    Lists.newArrayListWithCapacity(cursor.getCount());
+            while (cursor.moveToNext()) {
+                candidates.add(readContactNumber(cursor));
             }
-            /** Iterates the cursor to find top contact suggestions without duplication.*/
-            while ((cursor.moveToNext()) && (counter < MAX_ENTRIES)) {
-                final long dataID = cursor.getLong(columnDataId);
-                final String displayName = cursor.getString(columnDisplayNamePrimary);
-                final String phoneNumber = cursor.getString(columnNumber);
-                final long id = cursor.getLong(columnId);
-                final long photoId = cursor.getLong(columnPhotoId);
-                final String lookupKey = cursor.getString(columnLookupKey);
-
-                /** If a contact already exists and another phone number of the contact is being
-                 * processed, skip the second instance.
-                 */
-                final ContactMatch contactMatch = new ContactMatch(lookupKey, id);
-                if (duplicates.contains(contactMatch)) {
-                    continue;
+            return candidates;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Runs the name matcher over candidates in sort order and returns the top matches without
+     * duplication. Large candidate sets are split between the cores by {@link ParallelMatcher}.
+     *
+     * @param remaining If not null, receives the rows a longer query may still match: the
+     *     matches, the other numbers of the matched contacts and the rows after the last match,
+     *     which were not checked.
+     */
+    private ArrayList<ContactNumber> matchCandidates(List<ContactNumber> candidates,
+            String query, SmartDialNameMatcher nameMatcher, ArrayList<ContactNumber> remaining) {
+        final StopWatch stopWatch = DEBUG ? StopWatch.start(":Name Prefix query") : null;
+        final int candidateCount = candidates.size();
+
+        // The vendor matcher may not be thread-safe, so it always runs on the calling thread.
+        final int minRows = mParallelMatchingMinRows;
+        if (minRows > 0 && candidateCount >= minRows
+                && (mMultiMatchObject == null || mMultiMatchMethod == null)) {
+            final ParallelMatcher parallelMatcher = mParallelMatcher != null
+                    ? mParallelMatcher : ParallelMatcher.getInstance();
+            if (parallelMatcher.getParallelism() > 1) {
+                final ArrayList<ContactNumber> matches = parallelMatcher.getTopMatches(
+                        candidates, query, nameMatcher, remaining);
+                if (DEBUG) {
+                    stopWatch.stopAndLog(TAG + "Matched " + candidateCount +
+                            " candidates on " + parallelMatcher.getParallelism() +
+                            " threads", 0);
                 }
+                return matches;
+            }
+        }
 
-                /**
-                 * If the contact has either the name or number that matches the query, add to the
-                 * result.
-                 */
-                final boolean nameMatches = nameMatcher.matches(displayName);
-                final boolean numberMatches =
-                        (nameMatcher.matchesNumber(phoneNumber, query) != null);
-                if (nameMatches || numberMatches) {
-                    /** If a contact has not been added, add it to the result and the hash set.*/
-                    duplicates.add(contactMatch);
-                    result.add(new ContactNumber(id, dataID, displayName, phoneNumber, lookupKey,
-                            photoId));
-                    counter++;
-                    if (DEBUG) {
-                        stopWatch.lap("Added one result: Name: " + displayName);
-                    }
+        final ArrayList<ContactNumber> matches = Lists.newArrayList();
+        final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
+        for (int i = 0; i < candidateCount; i++) {
+            if (matches.size() >= MAX_ENTRIES) {
+                // Rows after the last match were not checked, so they all remain candidates.
+                if (remaining != null) {
+                    remaining.addAll(candidates.subList(i, candidateCount));
                 }
+                break;
             }
 
-            if (DEBUG) {
-                stopWatch.stopAndLog(TAG + "Finished loading cursor", 0);
+            // If another number of the contact was already added, skip this one.
+            final ContactNumber contact = candidates.get(i);
+            final ContactMatch contactMatch = new ContactMatch(contact.lookupKey, contact.id);
+            if (duplicates.contains(contactMatch)) {
+                if (remaining != null) {
+                    remaining.add(contact);
+                }
+                continue;
+            }
+            if (matchesQuery(contact, query, nameMatcher)) {
+                duplicates.add(contactMatch);
+                matches.add(contact);
+                if (remaining != null) {
+                    remaining.add(contact);
+                }
+                if (DEBUG) {
+                    stopWatch.lap("Added one result: Name: " + contact.displayName);
+                }
             }
-        } finally {
-            cursor.close();
         }
-        return result;
+        if (DEBUG) {
+            stopWatch.stopAndLog(TAG + "Finished matching candidates", 0);
+        }
+        return matches;
+    }
+
+    /**
+     * Reads the row at the current position of a cursor over {@link LooseMatchQuery#COLUMNS}.
+     */
+    private static ContactNumber readContactNumber(Cursor cursor) {
+        final String displayName = cursor.getString(LooseMatchQuery.DISPLAY_NAME_PRIMARY);
+        final String transliteratedName = cursor.getString(LooseMatchQuery.TRANSLITERATED_NAME);
+        return new ContactNumber(cursor.getLong(LooseMatchQuery.CONTACT_ID),
+                cursor.getLong(LooseMatchQuery.DATA_ID),
+                displayName,
+                cursor.getString(LooseMatchQuery.NUMBER),
+                cursor.getString(LooseMatchQuery.LOOKUP_KEY),
+                cursor.getLong(LooseMatchQuery.PHOTO_ID),
+                cursor.getString(LooseMatchQuery.ACCOUNT_TYPE),
+                cursor.getString(LooseMatchQuery.ACCOUNT_NAME),
+                transliteratedName != null ? transliteratedName : displayName);
+    }
+
+    /**
+     * Returns whether either the name or the number of the contact matches the query.
+     */
+    static boolean matchesQuery(ContactNumber contact, String query,
+            SmartDialNameMatcher nameMatcher) {
+        return nameMatcher.matches(contact.displayName, contact.transliteratedName)
+                || nameMatcher.matchesNumber(contact.phoneNumber, query) != null;
     }
 }
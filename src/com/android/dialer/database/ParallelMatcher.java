@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactMatch;
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies smart dial candidates against a query on several threads.
+ *
+ * Candidates are split into chunks of {@link #CHUNK_SIZE} rows. Each chunk is matched on a pool
+ * thread with its own copy of the {@link SmartDialNameMatcher}, which is not thread-safe. Chunks
+ * run in waves of one chunk per thread. After each wave, the matches are merged in candidate
+ * order with the same de-duplication as the serial loop, and no further wave starts once
+ * {@link DialerDatabaseHelper#MAX_ENTRIES} matches are found. The result, and the rows left to
+ * narrow down for the next keystroke, are therefore the same as matching the candidates one after
+ * the other.
+ */
+class ParallelMatcher {
+    /** Rows matched by a single task. */
+    private static final int CHUNK_SIZE = 256;
+    /** Threads are released after staying idle that long. */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ParallelMatcher sInstance;
+
+    private final ExecutorService mExecutor;
+    private final int mParallelism;
+
+    /**
+     * Returns the shared matcher, whose pool has one thread per core.
+     */
+    public static synchronized ParallelMatcher getInstance() {
+        if (sInstance == null) {
+            final int parallelism = Runtime.getRuntime().availableProcessors();
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            final Thread thread = new Thread(runnable,
+                                    "SmartDialMatcher #" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sInstance = new ParallelMatcher(executor, parallelism);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param executor Executor running the chunks, with at least parallelism threads.
+     * @param parallelism Number of chunks matched at the same time.
+     */
+    public ParallelMatcher(ExecutorService executor, int parallelism) {
+        mExecutor = executor;
+        mParallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * Returns the top candidates matching the query without duplication, in candidate order.
+     *
+     * @param candidates Rows in sort order.
+     * @param query The prefix of a contact's dialpad index.
+     * @param nameMatcher Matcher configured with the query, copied for each chunk.
+     */
+    public ArrayList<ContactNumber> getTopMatches(List<ContactNumber> candidates, String query,
+            SmartDialNameMatcher nameMatcher) {
+        return getTopMatches(candidates, query, nameMatcher, null);
+    }
+
+    /**
+     * Same as {@link #getTopMatches(List, String, SmartDialNameMatcher)}, but also collects the
+     * candidates a longer query may still match.
+     *
+     * @param remaining If not null, receives the matches, the other numbers of the matched
+     *     contacts and the rows after the last match, which were not checked.
+     */
+    public ArrayList<ContactNumber> getTopMatches(final List<ContactNumber> candidates,
+            final String query, final SmartDialNameMatcher nameMatcher,
+            ArrayList<ContactNumber> remaining) {
+        final ArrayList<ContactNumber> result = Lists.newArrayList();
+        final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
+        final ArrayList<Future<boolean[]>> futures = Lists.newArrayList();
+        final int candidateCount = candidates.size();
+
+        int waveStart = 0;
+        while (waveStart < candidateCount) {
+            if (result.size() >= DialerDatabaseHelper.MAX_ENTRIES) {
+                addRemaining(candidates, waveStart, remaining);
+                break;
+            }
+            final int waveEnd = (int) Math.min(candidateCount,
+                    waveStart + (long) CHUNK_SIZE * mParallelism);
+            futures.clear();
+            for (int start = waveStart; start < waveEnd; start += CHUNK_SIZE) {
+                final List<ContactNumber> chunk = candidates.subList(start,
+                        Math.min(waveEnd, start + CHUNK_SIZE));
+                futures.add(mExecutor.submit(new Callable<boolean[]>() {
+                    @Override
+                    public boolean[] call() {
+                        return matchChunk(chunk, query, nameMatcher.copy());
+                    }
+                }));
+            }
+
+            // Merges the chunks in order, skipping the numbers of contacts already added.
+            for (int i = 0; i < futures.size(); i++) {
+                final boolean[] matched = getChunk(futures, i);
+                final int chunkStart = waveStart + i * CHUNK_SIZE;
+                for (int j = 0; j < matched.length; j++) {
+                    final int index = chunkStart + j;
+                    if (result.size() >= DialerDatabaseHelper.MAX_ENTRIES) {
+                        cancel(futures);
+                        addRemaining(candidates, index, remaining);
+                        return result;
+                    }
+                    final ContactNumber contact = candidates.get(index);
+                    final ContactMatch contactMatch = new ContactMatch(contact.lookupKey,
+                            contact.id);
+                    if (duplicates.contains(contactMatch)) {
+                        if (remaining != null) {
+                            remaining.add(contact);
+                        }
+                    } else if (matched[j]) {
+                        duplicates.add(contactMatch);
+                        result.add(contact);
+                        if (remaining != null) {
+                            remaining.add(contact);
+                        }
+                    }
+                }
+            }
+            waveStart = waveEnd;
+        }
+        return result;
+    }
+
+    /** Adds the candidates from the given position on, which were not checked. */
+    private static void addRemaining(List<ContactNumber> candidates, int start,
+            ArrayList<ContactNumber> remaining) {
+        if (remaining != null) {
+            remaining.addAll(candidates.subList(start, candidates.size()));
+        }
+    }
+
+    private static boolean[] matchChunk(List<ContactNumber> chunk, String query,
+            SmartDialNameMatcher nameMatcher) {
+        final boolean[] matched = new boolean[chunk.size()];
+        for (int i = 0; i < matched.length; i++) {
+            matched[i] = DialerDatabaseHelper.matchesQuery(chunk.get(i), query, nameMatcher);
+        }
+        return matched;
+    }
+
+    /**
+     * Waits for a chunk of the wave. If matching failed or was interrupted, the remaining chunks
+     * are cancelled and the failure is thrown.
+     */
+    private static boolean[] getChunk(ArrayList<Future<boolean[]>> futures, int index) {
+        try {
+            return futures.get(index).get();
+        } catch (InterruptedException e) {
+            cancel(futures);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while matching candidates", e);
+        } catch (ExecutionException e) {
+            cancel(futures);
+            throw new IllegalStateException("Failed to match candidates", e.getCause());
+        }
+    }
+
+    private static void cancel(ArrayList<Future<boolean[]>> futures) {
+        for (Future<boolean[]> future : futures) {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,659 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactMatch;
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.DialerDatabaseHelper.PhoneQuery;
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialSortingOrder;
+import com.android.dialer.dialpad.SmartDialConfig;
+import com.android.dialer.dialpad.SmartDialMap;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * In-memory alternative to the smart dial tables of {@link DialerDatabaseHelper}. It is a digit
+ * trie over the same strings as the prefix table, that is the strings generated by
+ * {@link SmartDialPrefix#generateNamePrefixes} and {@link SmartDialPrefix#parseToNumberTokens},
+ * plus the suffixes of the phone numbers so that numbers containing the query are found as well.
+ *
+ * Nodes, child pointers and posting lists are stored in primitive arrays. Rows are ranked once
+ * at build time following the smart dial sort order, so a lookup only walks the query digits,
+ * collects the contacts below the reached node and verifies them in rank order with the name
+ * matcher. Instances are immutable once built and can be shared between threads.
+ */
+public class SmartDialIndex {
+    private static final int DIGITS = 10;
+
+    /** Queries shorter than this are too ambiguous to look up with a mistyped digit. */
+    private static final int MIN_FUZZY_QUERY_LENGTH = 3;
+
+    /** Child of each node for each digit, at {@code node * DIGITS + digit}. The root is node 0,
+     * which is never a child, so 0 means there is no child. */
+    private final int[] mChildren;
+    /** Contacts having a string ending at node n are in mPostings, from mPostingStarts[n] to
+     * mPostingStarts[n + 1]. */
+    private final int[] mPostingStarts;
+    private final int[] mPostings;
+
+    /** Rows of contact c are in mContactRows, from mContactRowStarts[c] to
+     * mContactRowStarts[c + 1]. */
+    private final int[] mContactRowStarts;
+    private final int[] mContactRows;
+    /** Contacts with names whose middle initials are not indexed, checked against every query,
+     * see {@link SmartDialPrefix#UNINDEXED_INITIALS_PREFIX}. */
+    private final int[] mUnindexedInitialsContacts;
+
+    private final long[] mDataIds;
+    private final long[] mContactIds;
+    private final long[] mPhotoIds;
+    private final String[] mLookupKeys;
+    private final String[] mDisplayNames;
+    private final String[] mNumbers;
+    private final String[] mAccountTypes;
+    private final String[] mAccountNames;
+    /** Display names converted by {@link SmartDialMap#transliterateName}. */
+    private final String[] mTransliteratedNames;
+    /** Position of each row in the smart dial sort order. */
+    private final int[] mRanks;
+    /** Row at each position of the smart dial sort order. */
+    private final int[] mRowsByRank;
+
+    private SmartDialIndex(Builder builder, String[] transliteratedNames, int[] ranks,
+            int[] rowsByRank) {
+        mChildren = Arrays.copyOf(builder.mChildren, builder.mNodeCount * DIGITS);
+
+        /** Flattens the posting lists of each node into a single array. */
+        final int nodeCount = builder.mNodeCount;
+        mPostingStarts = new int[nodeCount + 1];
+        mPostings = new int[builder.mPostingCount];
+        int offset = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            mPostingStarts[node] = offset;
+            for (int p = builder.mPostingHeads[node]; p != -1; p = builder.mPostingNext[p]) {
+                mPostings[offset++] = builder.mPostingValues[p];
+            }
+        }
+        mPostingStarts[nodeCount] = offset;
+
+        final int contactCount = builder.mContactRows.size();
+        mContactRowStarts = new int[contactCount + 1];
+        mContactRows = new int[builder.mRows.size()];
+        offset = 0;
+        for (int contact = 0; contact < contactCount; contact++) {
+            mContactRowStarts[contact] = offset;
+            for (int row : builder.mContactRows.get(contact)) {
+                mContactRows[offset++] = row;
+            }
+        }
+        mContactRowStarts[contactCount] = offset;
+
+        mUnindexedInitialsContacts = new int[builder.mUnindexedInitialsContacts.size()];
+        for (int i = 0; i < mUnindexedInitialsContacts.length; i++) {
+            mUnindexedInitialsContacts[i] = builder.mUnindexedInitialsContacts.get(i);
+        }
+
+        final int rowCount = builder.mRows.size();
+        mDataIds = new long[rowCount];
+        mContactIds = new long[rowCount];
+        mPhotoIds = new long[rowCount];
+        mLookupKeys = new String[rowCount];
+        mDisplayNames = new String[rowCount];
+        mNumbers = new String[rowCount];
+        mAccountTypes = new String[rowCount];
+        mAccountNames = new String[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            final Row row = builder.mRows.get(i);
+            mDataIds[i] = row.dataId;
+            mContactIds[i] = row.contactId;
+            mPhotoIds[i] = row.photoId;
+            mLookupKeys[i] = row.lookupKey;
+            mDisplayNames[i] = row.displayName;
+            mNumbers[i] = row.number;
+            mAccountTypes[i] = row.accountType;
+            mAccountNames[i] = row.accountName;
+        }
+        mTransliteratedNames = transliteratedNames;
+        mRanks = ranks;
+        mRowsByRank = rowsByRank;
+    }
+
+    /**
+     * Builds an index from a cursor over {@link PhoneQuery#PROJECTION}, such as the one consumed
+     * by {@link DialerDatabaseHelper#insertUpdatedContactsAndPrefixes}. Rows are expected in
+     * the order they were inserted in the smartdial table.
+     *
+     * @param cursor Cursor over all phone rows to index.
+     * @param missingName Name used for rows without a display name.
+     * @param currentMillis Time used to rank recently contacted rows.
+     * @param config Configuration the names and numbers are indexed with, the same one the
+     *     prefix table was computed with.
+     */
+    public static SmartDialIndex build(Cursor cursor, String missingName, long currentMillis,
+            SmartDialConfig config) {
+        final Builder builder = new Builder();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            final String number = cursor.getString(PhoneQuery.PHONE_NUMBER);
+            final String lookupKey = cursor.getString(PhoneQuery.PHONE_LOOKUP_KEY);
+            if (TextUtils.isEmpty(number) || TextUtils.isEmpty(lookupKey)) {
+                continue;
+            }
+            final String displayName = cursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
+            builder.addRow(new Row(cursor.getLong(PhoneQuery.PHONE_ID),
+                    cursor.getLong(PhoneQuery.PHONE_CONTACT_ID), lookupKey,
+                    displayName == null ? missingName : displayName, number,
+                    cursor.getLong(PhoneQuery.PHONE_PHOTO_ID),
+                    cursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED),
+                    cursor.getInt(PhoneQuery.PHONE_TIMES_USED),
+                    cursor.getInt(PhoneQuery.PHONE_STARRED),
+                    cursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY),
+                    cursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP),
+                    cursor.getInt(PhoneQuery.PHONE_IS_PRIMARY),
+                    builder.shareAccount(cursor.getString(PhoneQuery.PHONE_ACCOUNT_TYPE)),
+                    builder.shareAccount(cursor.getString(PhoneQuery.PHONE_ACCOUNT_NAME))));
+        }
+        return builder.build(currentMillis, config);
+    }
+
+    /**
+     * Returns the top contacts matching the query, in the same way as
+     * {@link DialerDatabaseHelper#getLooseMatches(String, SmartDialNameMatcher)}.
+     *
+     * @param query The prefix of a contact's dialpad index.
+     * @param nameMatcher Matcher configured with the query.
+     */
+    public ArrayList<ContactNumber> getLooseMatches(String query,
+            SmartDialNameMatcher nameMatcher) {
+        return getLooseMatches(query, nameMatcher, false);
+    }
+
+    /**
+     * Returns the top contacts matching the query. In fuzzy mode, contacts whose index is one
+     * mistyped digit away from the query are returned as well, after the exact matches: one digit
+     * of the query may be wrong, missing or in excess. Fuzzy candidates are found by walking the
+     * trie with an edit budget of one digit, so only the few branches within that distance are
+     * visited, and they are not verified by the name matcher which would reject them.
+     *
+     * @param query The prefix of a contact's dialpad index.
+     * @param nameMatcher Matcher configured with the query.
+     * @param fuzzy Whether to add the contacts within one mistyped digit of the query.
+     */
+    public ArrayList<ContactNumber> getLooseMatches(String query,
+            SmartDialNameMatcher nameMatcher, boolean fuzzy) {
+        final ArrayList<ContactNumber> result = Lists.newArrayList();
+        if (TextUtils.isEmpty(query)) {
+            return result;
+        }
+        for (int i = 0; i < query.length(); i++) {
+            final int digit = query.charAt(i) - '0';
+            if (digit < 0 || digit >= DIGITS) {
+                return result;
+            }
+        }
+
+        final boolean[] seenContacts = new boolean[mContactRowStarts.length - 1];
+        final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
+
+        /** Walks down the trie along the query digits. Short number suffixes are not indexed,
+         * so every contact is a candidate for queries shorter than the indexed ones.
+         */
+        int node = 0;
+        if (query.length() >= SmartDialPrefix.MIN_NUMBER_SUFFIX_LENGTH) {
+            for (int i = 0; i < query.length() && node != -1; i++) {
+                node = mChildren[node * DIGITS + query.charAt(i) - '0'];
+                if (node == 0) {
+                    node = -1;
+                }
+            }
+        }
+
+        final IntList exactNodes = new IntList();
+        if (node != -1) {
+            exactNodes.add(node);
+        }
+        final IntList exactRanks = collectRanks(exactNodes, mUnindexedInitialsContacts,
+                seenContacts);
+
+        /** Verifies the candidates in rank order until enough matches are found. */
+        for (int i = 0; i < exactRanks.size && result.size() < DialerDatabaseHelper.MAX_ENTRIES;
+                i++) {
+            final int row = mRowsByRank[exactRanks.values[i]];
+            final ContactMatch contactMatch = new ContactMatch(mLookupKeys[row],
+                    mContactIds[row]);
+            if (duplicates.contains(contactMatch)) {
+                continue;
+            }
+            final ContactNumber contact = newContactNumber(row);
+            if (DialerDatabaseHelper.matchesQuery(contact, query, nameMatcher)) {
+                duplicates.add(contactMatch);
+                result.add(contact);
+            }
+        }
+
+        if (fuzzy && query.length() >= MIN_FUZZY_QUERY_LENGTH
+                && result.size() < DialerDatabaseHelper.MAX_ENTRIES) {
+            final IntList nodes = new IntList();
+            collectFuzzyNodes(0, query, 0, false, nodes);
+            final IntList ranks = collectRanks(nodes, null, seenContacts);
+            for (int i = 0; i < ranks.size && result.size() < DialerDatabaseHelper.MAX_ENTRIES;
+                    i++) {
+                final int row = mRowsByRank[ranks.values[i]];
+                if (duplicates.add(new ContactMatch(mLookupKeys[row], mContactIds[row]))) {
+                    result.add(newContactNumber(row));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collects the nodes whose digits are exactly one substitution, insertion or deletion away
+     * from the query, walking down from the given node with query digits consumed up to index.
+     * The exact node may be collected again, its contacts are then skipped as already seen.
+     *
+     * @param edited Whether the single allowed edit was already spent on the way to the node.
+     */
+    private void collectFuzzyNodes(int node, String query, int index, boolean edited,
+            IntList nodes) {
+        if (index == query.length()) {
+            if (edited) {
+                nodes.add(node);
+            }
+            return;
+        }
+        final int digit = query.charAt(index) - '0';
+        final int exactChild = mChildren[node * DIGITS + digit];
+        if (exactChild != 0) {
+            collectFuzzyNodes(exactChild, query, index + 1, edited, nodes);
+        }
+        if (edited) {
+            return;
+        }
+
+        /** The query digit was typed in excess. */
+        collectFuzzyNodes(node, query, index + 1, true, nodes);
+        for (int childDigit = 0; childDigit < DIGITS; childDigit++) {
+            final int child = mChildren[node * DIGITS + childDigit];
+            if (child == 0) {
+                continue;
+            }
+            /** The query digit was typed instead of this one. */
+            if (childDigit != digit) {
+                collectFuzzyNodes(child, query, index + 1, true, nodes);
+            }
+            /** This digit was not typed before the query digit. */
+            collectFuzzyNodes(child, query, index, true, nodes);
+        }
+    }
+
+    /**
+     * Returns the sorted ranks of all rows of the contacts found below the nodes on the stack,
+     * and of the given contacts, leaving out contacts already seen and marking the others as
+     * seen. The stack is emptied.
+     *
+     * @param contacts Contacts to add to those of the nodes, or null.
+     */
+    private IntList collectRanks(IntList stack, int[] contacts, boolean[] seenContacts) {
+        final IntList ranks = new IntList();
+        if (contacts != null) {
+            for (int contact : contacts) {
+                addContactRanks(contact, seenContacts, ranks);
+            }
+        }
+        while (stack.size > 0) {
+            final int current = stack.values[--stack.size];
+            for (int p = mPostingStarts[current]; p < mPostingStarts[current + 1]; p++) {
+                addContactRanks(mPostings[p], seenContacts, ranks);
+            }
+            for (int digit = 0; digit < DIGITS; digit++) {
+                final int child = mChildren[current * DIGITS + digit];
+                if (child != 0) {
+                    stack.add(child);
+                }
+            }
+        }
+        Arrays.sort(ranks.values, 0, ranks.size);
+        return ranks;
+    }
+
+    /**
+     * Adds the ranks of all rows of the contact, unless it was already seen.
+     */
+    private void addContactRanks(int contact, boolean[] seenContacts, IntList ranks) {
+        if (seenContacts[contact]) {
+            return;
+        }
+        seenContacts[contact] = true;
+        for (int r = mContactRowStarts[contact]; r < mContactRowStarts[contact + 1]; r++) {
+            ranks.add(mRanks[mContactRows[r]]);
+        }
+    }
+
+    private ContactNumber newContactNumber(int row) {
+        return new ContactNumber(mContactIds[row], mDataIds[row], mDisplayNames[row],
+                mNumbers[row], mLookupKeys[row], mPhotoIds[row], mAccountTypes[row],
+                mAccountNames[row], mTransliteratedNames[row]);
+    }
+
+    /**
+     * Returns the number of distinct contacts in the index.
+     */
+    public int getContactCount() {
+        return mContactRowStarts.length - 1;
+    }
+
+    /**
+     * Returns the number of trie nodes.
+     */
+    public int getNodeCount() {
+        return mChildren.length / DIGITS;
+    }
+
+    /**
+     * Returns an estimate of the heap used by the index, including the strings it holds.
+     */
+    public long getMemoryFootprintBytes() {
+        long bytes = 4L * (mChildren.length + mPostingStarts.length + mPostings.length
+                + mContactRowStarts.length + mContactRows.length
+                + mUnindexedInitialsContacts.length + mRanks.length + mRowsByRank.length);
+        bytes += 8L * (mDataIds.length + mContactIds.length + mPhotoIds.length);
+
+        /** Strings shared between rows, such as account names, are only counted once. */
+        final Set<String> strings = Collections.newSetFromMap(
+                new IdentityHashMap<String, Boolean>());
+        for (String[] column : new String[][] {mLookupKeys, mDisplayNames, mNumbers,
+                mAccountTypes, mAccountNames, mTransliteratedNames}) {
+            bytes += 4L * column.length;
+            for (String value : column) {
+                if (value != null && strings.add(value)) {
+                    // Object header, fields and char array header, plus two bytes per char.
+                    bytes += 40 + 2L * value.length();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Growable list of ints, used as a stack of nodes and a list of ranks during lookups.
+     */
+    private static class IntList {
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Phone row read from the cursor, only kept while building the index.
+     */
+    private static class Row {
+        final long dataId;
+        final long contactId;
+        final String lookupKey;
+        final String displayName;
+        final String number;
+        final long photoId;
+        final long lastTimeUsed;
+        final int timesUsed;
+        final int starred;
+        final int isSuperPrimary;
+        final int inVisibleGroup;
+        final int isPrimary;
+        final String accountType;
+        final String accountName;
+
+        Row(long dataId, long contactId, String lookupKey, String displayName, String number,
+                long photoId, long lastTimeUsed, int timesUsed, int starred, int isSuperPrimary,
+                int inVisibleGroup, int isPrimary, String accountType, String accountName) {
+            this.dataId = dataId;
+            this.contactId = contactId;
+            this.lookupKey = lookupKey;
+            this.displayName = displayName;
+            this.number = number;
+            this.photoId = photoId;
+            this.lastTimeUsed = lastTimeUsed;
+            this.timesUsed = timesUsed;
+            this.starred = starred;
+            this.isSuperPrimary = isSuperPrimary;
+            this.inVisibleGroup = inVisibleGroup;
+            this.isPrimary = isPrimary;
+            this.accountType = accountType;
+            this.accountName = accountName;
+        }
+
+        /**
+         * Returns the usage bucket of the row, as computed by
+         * {@link SmartDialSortingOrder#SORT_BY_DATA_USAGE}.
+         */
+        int getUsageBucket(long currentMillis) {
+            return DialerDatabaseHelper.getUsageBucket(lastTimeUsed, currentMillis);
+        }
+    }
+
+    private static class Builder {
+        private final ArrayList<Row> mRows = Lists.newArrayList();
+        private final HashMap<Long, Integer> mContactSlots = new HashMap<Long, Integer>();
+        private final ArrayList<ArrayList<Integer>> mContactRows = Lists.newArrayList();
+        private final ArrayList<Integer> mUnindexedInitialsContacts = Lists.newArrayList();
+        /** Account types and names, which repeat across most rows. */
+        private final HashMap<String, String> mAccounts = new HashMap<String, String>();
+
+        private int[] mChildren = new int[DIGITS * 1024];
+        private int mNodeCount = 1;
+
+        /** Posting lists are built as linked lists, one per node. */
+        private int[] mPostingHeads = new int[1024];
+        private int[] mPostingNext = new int[1024];
+        private int[] mPostingValues = new int[1024];
+        private int mPostingCount = 0;
+
+        Builder() {
+            Arrays.fill(mPostingHeads, -1);
+        }
+
+        /**
+         * Returns a single instance for equal account types or names.
+         */
+        String shareAccount(String account) {
+            if (account == null) {
+                return null;
+            }
+            final String shared = mAccounts.get(account);
+            if (shared != null) {
+                return shared;
+            }
+            mAccounts.put(account, account);
+            return account;
+        }
+
+        void addRow(Row row) {
+            Integer slot = mContactSlots.get(row.contactId);
+            if (slot == null) {
+                slot = mContactRows.size();
+                mContactSlots.put(row.contactId, slot);
+                mContactRows.add(new ArrayList<Integer>());
+            }
+            mContactRows.get(slot).add(mRows.size());
+            mRows.add(row);
+        }
+
+        SmartDialIndex build(final long currentMillis, SmartDialConfig config) {
+            /** Transliterates each distinct name once, for matching at query time. */
+            final SmartDialMap map = config.getMap();
+            final HashMap<String, String> transliterations = new HashMap<String, String>();
+            final String[] transliteratedNames = new String[mRows.size()];
+            for (int i = 0; i < transliteratedNames.length; i++) {
+                final String displayName = mRows.get(i).displayName;
+                String transliteratedName = transliterations.get(displayName);
+                if (transliteratedName == null) {
+                    transliteratedName = map.transliterateName(displayName);
+                    if (transliteratedName.equals(displayName)) {
+                        transliteratedName = displayName;
+                    }
+                    transliterations.put(displayName, transliteratedName);
+                }
+                transliteratedNames[i] = transliteratedName;
+            }
+
+            for (int contact = 0; contact < mContactRows.size(); contact++) {
+                final HashSet<String> names = new HashSet<String>();
+                for (int rowIndex : mContactRows.get(contact)) {
+                    final Row row = mRows.get(rowIndex);
+                    if (names.add(row.displayName)) {
+                        for (String prefix : SmartDialPrefix.generateNamePrefixes(config,
+                                row.displayName)) {
+                            if (!prefix.equals(SmartDialPrefix.UNINDEXED_INITIALS_PREFIX)) {
+                                insert(prefix, 0, prefix.length(), contact);
+                            } else if (mUnindexedInitialsContacts.isEmpty()
+                                    || mUnindexedInitialsContacts.get(
+                                            mUnindexedInitialsContacts.size() - 1) != contact) {
+                                mUnindexedInitialsContacts.add(contact);
+                            }
+                        }
+                    }
+                    for (String prefix : SmartDialPrefix.parseToNumberTokens(config,
+                            row.number)) {
+                        insert(prefix, 0, prefix.length(), contact);
+                    }
+                    for (String suffix : SmartDialPrefix.generateNumberSuffixes(row.number)) {
+                        insert(suffix, 0, suffix.length(), contact);
+                    }
+                }
+            }
+
+            /** Ranks the rows following SmartDialSortingOrder.SORT_ORDER. */
+            final Integer[] order = new Integer[mRows.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhsIndex, Integer rhsIndex) {
+                    final Row lhs = mRows.get(lhsIndex);
+                    final Row rhs = mRows.get(rhsIndex);
+                    int result = compareInts(rhs.starred, lhs.starred);
+                    if (result == 0) {
+                        result = compareInts(rhs.isSuperPrimary, lhs.isSuperPrimary);
+                    }
+                    if (result == 0) {
+                        result = compareInts(lhs.getUsageBucket(currentMillis),
+                                rhs.getUsageBucket(currentMillis));
+                    }
+                    if (result == 0) {
+                        result = compareInts(rhs.timesUsed, lhs.timesUsed);
+                    }
+                    if (result == 0) {
+                        result = compareInts(rhs.inVisibleGroup, lhs.inVisibleGroup);
+                    }
+                    if (result == 0) {
+                        result = lhs.displayName.compareTo(rhs.displayName);
+                    }
+                    if (result == 0) {
+                        result = lhs.contactId < rhs.contactId ? -1
+                                : (lhs.contactId == rhs.contactId ? 0 : 1);
+                    }
+                    if (result == 0) {
+                        result = compareInts(rhs.isPrimary, lhs.isPrimary);
+                    }
+                    if (result == 0) {
+                        result = compareInts(lhsIndex, rhsIndex);
+                    }
+                    return result;
+                }
+            });
+            final int[] ranks = new int[order.length];
+            final int[] rowsByRank = new int[order.length];
+            for (int rank = 0; rank < order.length; rank++) {
+                rowsByRank[rank] = order[rank];
+                ranks[order[rank]] = rank;
+            }
+            return new SmartDialIndex(this, transliteratedNames, ranks, rowsByRank);
+        }
+
+        private static int compareInts(int lhs, int rhs) {
+            return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+        }
+
+        /**
+         * Inserts the digits of s between start and end, and adds the contact to the posting
+         * list of the last node. Non-digit characters end the inserted string.
+         */
+        private void insert(CharSequence s, int start, int end, int contact) {
+            int node = 0;
+            for (int i = start; i < end; i++) {
+                final int digit = s.charAt(i) - '0';
+                if (digit < 0 || digit >= DIGITS) {
+                    break;
+                }
+                int child = mChildren[node * DIGITS + digit];
+                if (child == 0) {
+                    child = newNode();
+                    mChildren[node * DIGITS + digit] = child;
+                }
+                node = child;
+            }
+            if (node == 0) {
+                return;
+            }
+            /** Contacts are inserted one after the other, so duplicates are always at the head. */
+            final int head = mPostingHeads[node];
+            if (head != -1 && mPostingValues[head] == contact) {
+                return;
+            }
+            if (mPostingCount == mPostingValues.length) {
+                mPostingValues = Arrays.copyOf(mPostingValues, mPostingCount * 2);
+                mPostingNext = Arrays.copyOf(mPostingNext, mPostingCount * 2);
+            }
+            mPostingValues[mPostingCount] = contact;
+            mPostingNext[mPostingCount] = head;
+            mPostingHeads[node] = mPostingCount++;
+        }
+
+        private int newNode() {
+            if ((mNodeCount + 1) * DIGITS > mChildren.length) {
+                mChildren = Arrays.copyOf(mChildren, mChildren.length * 2);
+            }
+            if (mNodeCount == mPostingHeads.length) {
+                final int oldLength = mPostingHeads.length;
+                mPostingHeads = Arrays.copyOf(mPostingHeads, oldLength * 2);
+                Arrays.fill(mPostingHeads, oldLength, mPostingHeads.length, -1);
+            }
+            return mNodeCount++;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs updates of the smart dial database one at a time, merging the requests made in the
+ * meantime.
+ *
+ * At most one update runs, and at most one is pending. A request made while an update runs marks
+ * the next one as pending, further requests are merged into it. Requests made before an update
+ * starts are served by that update, since it reads the latest contacts.
+ *
+ * Once {@link #startObserving} is called, updates are requested when phone numbers change in the
+ * contacts provider, after the changes stopped for {@link #DEBOUNCE_MILLIS}, and when the rank
+ * score of a row is due to change, see {@link #scheduleRankScoreUpdate}.
+ */
+public class SmartDialUpdateScheduler {
+    private static final String TAG = "SmartDialUpdateScheduler";
+    private static final boolean DEBUG = false;
+
+    /** Time the contacts must stay unchanged before an update is requested, in milliseconds. */
+    @VisibleForTesting
+    static final long DEBOUNCE_MILLIS = 1000;
+
+    private final DialerDatabaseHelper mHelper;
+    private final Executor mExecutor;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+    /** Whether an update was handed to the executor and did not finish yet. */
+    private boolean mRunning;
+    /** Whether an update was requested after the running one started. */
+    private boolean mPending;
+    /** Whether the next update must recreate the database from all contacts. */
+    private boolean mRecreatePending;
+
+    private final AtomicInteger mRequestedCount = new AtomicInteger();
+    private final AtomicInteger mExecutedCount = new AtomicInteger();
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            runUpdates();
+        }
+    };
+
+    private final Runnable mDebouncedRequest = new Runnable() {
+        @Override
+        public void run() {
+            requestUpdate();
+        }
+    };
+
+    private final Runnable mRankScoreRequest = new Runnable() {
+        @Override
+        public void run() {
+            mNextRankScoreChangeMillis = Long.MAX_VALUE;
+            requestUpdate();
+        }
+    };
+
+    private final ContentObserver mContactsObserver;
+    private volatile boolean mObserving;
+    /** Time at which the rank score of a row is next due to change. */
+    private volatile long mNextRankScoreChangeMillis = Long.MAX_VALUE;
+
+    /**
+     * @param helper Database helper whose smart dial database is updated.
+     * @param executor Executor running the updates in the background.
+     * @param handler Handler receiving change notifications of the contacts provider.
+     */
+    public SmartDialUpdateScheduler(DialerDatabaseHelper helper, Executor executor,
+            Handler handler) {
+        mHelper = helper;
+        mExecutor = executor;
+        mHandler = handler;
+        mContactsObserver = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mHandler.removeCallbacks(mDebouncedRequest);
+                mHandler.postDelayed(mDebouncedRequest, DEBOUNCE_MILLIS);
+            }
+        };
+    }
+
+    /**
+     * Registers for changes of phone numbers in the contacts provider, and requests an update to
+     * catch up with the changes made before.
+     */
+    public void startObserving(ContentResolver resolver) {
+        resolver.registerContentObserver(Phone.CONTENT_URI, true, mContactsObserver);
+        mObserving = true;
+        requestUpdate();
+    }
+
+    public void stopObserving(ContentResolver resolver) {
+        mObserving = false;
+        resolver.unregisterContentObserver(mContactsObserver);
+        mHandler.removeCallbacks(mDebouncedRequest);
+        mHandler.removeCallbacks(mRankScoreRequest);
+    }
+
+    /**
+     * Requests an update at the given time, when the rank score of a row in the smart dial
+     * database is due to change. Updates move such rows to their new usage bucket. The delay does
+     * not run while the device sleeps, so lookups also request the update if it is overdue, see
+     * {@link #requestRankScoreUpdateIfDue()}.
+     *
+     * @param atMillis Wall clock time of the change, or {@link Long#MAX_VALUE} if none is due.
+     */
+    public void scheduleRankScoreUpdate(long atMillis) {
+        mNextRankScoreChangeMillis = atMillis;
+        mHandler.removeCallbacks(mRankScoreRequest);
+        if (mObserving && atMillis != Long.MAX_VALUE) {
+            mHandler.postDelayed(mRankScoreRequest,
+                    Math.max(0, atMillis - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Requests an update if the rank score of a row is overdue to change.
+     */
+    public void requestRankScoreUpdateIfDue() {
+        if (mObserving && System.currentTimeMillis() >= mNextRankScoreChangeMillis) {
+            mNextRankScoreChangeMillis = Long.MAX_VALUE;
+            requestUpdate();
+        }
+    }
+
+    /**
+     * Requests an update of the smart dial database with the contacts changed since the last one.
+     */
+    public void requestUpdate() {
+        request(false);
+    }
+
+    /**
+     * Requests the smart dial database to be recreated from all contacts.
+     */
+    public void requestRecreate() {
+        request(true);
+    }
+
+    /**
+     * Returns the number of updates requested since this scheduler was created.
+     */
+    public int getRequestedCount() {
+        return mRequestedCount.get();
+    }
+
+    /**
+     * Returns the number of updates run since this scheduler was created. The difference with
+     * {@link #getRequestedCount()} is the number of requests that were merged.
+     */
+    public int getExecutedCount() {
+        return mExecutedCount.get();
+    }
+
+    private void request(boolean recreate) {
+        mRequestedCount.incrementAndGet();
+        synchronized (mLock) {
+            mRecreatePending |= recreate;
+            if (mRunning) {
+                mPending = true;
+                return;
+            }
+            mRunning = true;
+        }
+        mExecutor.execute(mUpdateRunnable);
+    }
+
+    private void runUpdates() {
+        boolean recreate;
+        synchronized (mLock) {
+            mPending = false;
+            recreate = mRecreatePending;
+            mRecreatePending = false;
+        }
+        boolean finished = false;
+        try {
+            while (true) {
+                mExecutedCount.incrementAndGet();
+                if (recreate) {
+                    mHelper.resetSmartDialLastUpdatedTime();
+                }
+                mHelper.updateSmartDialDatabase();
+                if (DEBUG) {
+                    Log.v(TAG, "Ran " + mExecutedCount.get() + " updates out of "
+                            + mRequestedCount.get() + " requested");
+                }
+
+                synchronized (mLock) {
+                    if (!mPending) {
+                        mRunning = false;
+                        finished = true;
+                        return;
+                    }
+                    mPending = false;
+                    recreate = mRecreatePending;
+                    mRecreatePending = false;
+                }
+            }
+        } finally {
+            if (!finished) {
+                /** The update failed, lets the next request start a new one. */
+                synchronized (mLock) {
+                    mRunning = false;
+                }
+            }
+        }
+    }
+}
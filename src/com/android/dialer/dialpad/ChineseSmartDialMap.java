@@ -6,6 +6,7 @@ import android.text.TextUtils;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class ChineseSmartDialMap implements SmartDialMap {
@@ -418,6 +419,12 @@ public class ChineseSmartDialMap implements SmartDialMap {
         return ch;
     }
 
+    @Override
+    public char getNormalizedDialpadCharacter(char ch) {
+        ch = normalizeCharacter(ch);
+        return isValidDialpadCharacter(ch) ? getDialpadNumericCharacter(ch) : 0;
+    }
+
     /*
      * Generates a space delimited string of pinyins
      */
@@ -447,17 +454,30 @@ public class ChineseSmartDialMap implements SmartDialMap {
     @Override
     public boolean matchesCombination(SmartDialNameMatcher smartDialNameMatcher,
             String displayName, String query, ArrayList<SmartDialMatchPosition> matchList) {
+        return matchesCombination(smartDialNameMatcher, displayName,
+                tokenizeToPinyins(displayName), query, matchList);
+    }
 
-        String pinyinName = tokenizeToPinyins(displayName);
+    /*
+     * Same as above, with the pinyin name computed by transliterateName
+     */
+    @Override
+    public boolean matchesCombination(SmartDialNameMatcher smartDialNameMatcher,
+            String displayName, String pinyinName, String query,
+            ArrayList<SmartDialMatchPosition> matchList) {
 
-        ArrayList<SmartDialMatchPosition> computedMatchList = new ArrayList<SmartDialMatchPosition>();
-        boolean matches = smartDialNameMatcher.matchesCombination(pinyinName, query, computedMatchList);
+        // positions are added to matchList directly, so that names which do not match are
+        // checked without allocating
+        final int firstPosition = matchList.size();
+        boolean matches = smartDialNameMatcher.matchesCombination(pinyinName, query, matchList);
         if (!matches)
             return false;
 
         // name was translated to pinyin before matching.  attempt to map the match positions
         // back to the original display string
         if (!displayName.equals(pinyinName)) {
+            final List<SmartDialMatchPosition> pinyinPositions =
+                    matchList.subList(firstPosition, matchList.size());
 
             // construct an array that maps each character of the pinyin name back to the index of
             // the hanzi token from which it came
@@ -481,7 +501,7 @@ public class ChineseSmartDialMap implements SmartDialMap {
 
             // calculate unique hanzi characters that are matched
             Set<Integer> positionsToHighlight = new HashSet<Integer>();
-            for (SmartDialMatchPosition matchPosition : computedMatchList) {
+            for (SmartDialMatchPosition matchPosition : pinyinPositions) {
                 for (int pos = matchPosition.start; pos < matchPosition.end; ++pos) {
                     int mappedPos = pinyinMapping[pos];
                     if (mappedPos >= 0)
@@ -489,15 +509,14 @@ public class ChineseSmartDialMap implements SmartDialMap {
                 }
             }
 
-            // reset computed matches
-            computedMatchList = new ArrayList<SmartDialMatchPosition>();
+            // replace the pinyin positions
+            pinyinPositions.clear();
             for (int matchPos : positionsToHighlight) {
                 // use one object per position for simplicity
-                computedMatchList.add(new SmartDialMatchPosition(matchPos, matchPos+1));
+                matchList.add(new SmartDialMatchPosition(matchPos, matchPos+1));
             }
         }
 
-        matchList.addAll(computedMatchList);
         return true;
     }
 
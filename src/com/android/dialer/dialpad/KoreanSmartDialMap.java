@@ -499,6 +499,12 @@ public class KoreanSmartDialMap implements SmartDialMap {
         return ch;
     }
 
+    @Override
+    public char getNormalizedDialpadCharacter(char ch) {
+        ch = normalizeCharacter(ch);
+        return isValidDialpadCharacter(ch) ? getDialpadNumericCharacter(ch) : 0;
+    }
+
     private char convert(char ch) {
         if (ch >= UNICODE_HANGUL_START && ch <= UNICODE_HANGUL_END) {
             // number of initial character = (codepoint - 0xAC00) / (21 * 28)
@@ -553,6 +559,17 @@ public class KoreanSmartDialMap implements SmartDialMap {
     @Override
     public boolean matchesCombination(SmartDialNameMatcher smartDialNameMatcher,
             String displayName, String query, ArrayList<SmartDialMatchPosition> matchList) {
+        return matchesCombination(smartDialNameMatcher, displayName,
+                separateFirstNameLastName(displayName), query, matchList);
+    }
+
+    /*
+     * Same as above, with the name already separated by transliterateName
+     */
+    @Override
+    public boolean matchesCombination(SmartDialNameMatcher smartDialNameMatcher,
+            String displayName, String separatedName, String query,
+            ArrayList<SmartDialMatchPosition> matchList) {
         matchList.clear();
         final int nameLength = displayName.length();
         final int queryLength = query.length();
@@ -564,36 +581,28 @@ public class KoreanSmartDialMap implements SmartDialMap {
         if (queryLength == 0) {
             return false;
         }
-        for (int i=0; i<nameLength; i++) {
-            char ch = (char)displayName.codePointAt(i);
-            if (ch <= UNICODE_HANGUL_START || ch >= UNICODE_HANGUL_END) {
-                return smartDialNameMatcher.matchesCombination(displayName, query, matchList);
-            }
+        if (separatedName.equals(displayName)) {
+            return smartDialNameMatcher.matchesCombination(displayName, query, matchList);
         }
         /*
          * For the matcher to work, we need to separate first/last names.
          * Adjust the positions of the matches to account for the added space.
          */
-        NameSplitter.Name name = splitName(displayName);
-        if (name.familyName != null && name.givenNames != null) {
-            int separatorIndex = name.familyName.length();
-            boolean matches = smartDialNameMatcher.matchesCombination(name.familyName + " " + name.givenNames,
-                    query, matchList);
-            if (matches) {
-                for (SmartDialMatchPosition smartDialMatchPosition : matchList) {
-                    if (smartDialMatchPosition.start > separatorIndex) {
-                        smartDialMatchPosition.start--;
-                    }
-                    if (smartDialMatchPosition.end > separatorIndex) {
-                        smartDialMatchPosition.end--;
-                    }
+        int separatorIndex = separatedName.indexOf(' ');
+        boolean matches = smartDialNameMatcher.matchesCombination(separatedName, query,
+                matchList);
+        if (matches) {
+            for (SmartDialMatchPosition smartDialMatchPosition : matchList) {
+                if (smartDialMatchPosition.start > separatorIndex) {
+                    smartDialMatchPosition.start--;
+                }
+                if (smartDialMatchPosition.end > separatorIndex) {
+                    smartDialMatchPosition.end--;
                 }
-                return true;
-            } else {
-                return false;
             }
+            return true;
         } else {
-            return smartDialNameMatcher.matchesCombination(displayName, query, matchList);
+            return false;
         }
     }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+/**
+ * Dense lookup table over the characters a {@link SmartDialMap} knows about, compiled once when
+ * the map class is loaded. It covers every character from 0 up to the highest one given to the
+ * builder, so that normalizing a character and finding its dialpad key each take one array read.
+ * Characters past the end of the table are neither normalized nor on the dialpad.
+ */
+final class SmartDialCharTable {
+    /** Normalized form of each character. */
+    private final char[] mNormalized;
+    /** Digit of the dialpad key of each character, or 0 if it is not on the dialpad. */
+    private final char[] mDigits;
+    /** Digit of the dialpad key of each character once normalized, or 0. */
+    private final char[] mNormalizedDigits;
+
+    private SmartDialCharTable(char[] normalized, char[] digits) {
+        mNormalized = normalized;
+        mDigits = digits;
+        mNormalizedDigits = new char[normalized.length];
+        for (int i = 0; i < normalized.length; i++) {
+            mNormalizedDigits[i] = getDigit(normalized[i]);
+        }
+    }
+
+    public char normalize(char ch) {
+        return ch < mNormalized.length ? mNormalized[ch] : ch;
+    }
+
+    /**
+     * Returns the digit of the dialpad key for the character, or 0 if it is not on the dialpad.
+     */
+    public char getDigit(char ch) {
+        return ch < mDigits.length ? mDigits[ch] : 0;
+    }
+
+    /**
+     * Same as {@link #getDigit(char)} on the normalized character.
+     */
+    public char getNormalizedDigit(char ch) {
+        return ch < mNormalizedDigits.length ? mNormalizedDigits[ch] : 0;
+    }
+
+    public boolean isNumeric(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    public boolean isAlphabetic(char ch) {
+        return getDigit(ch) != 0 && !isNumeric(ch);
+    }
+
+    /**
+     * Size of the table in bytes, for benchmarks.
+     */
+    public int getFootprintBytes() {
+        return mNormalized.length * 3 * 2;
+    }
+
+    public static class Builder {
+        private char[] mNormalized = new char[128];
+        private char[] mDigits = new char[128];
+
+        public Builder() {
+            for (char ch = '0'; ch <= '9'; ch++) {
+                ensureCapacity(ch);
+                mDigits[ch] = ch;
+            }
+        }
+
+        /**
+         * Puts consecutive letters starting at first on the dialpad keys of the given digits.
+         */
+        public Builder letters(char first, char[] digits) {
+            ensureCapacity((char) (first + digits.length - 1));
+            System.arraycopy(digits, 0, mDigits, first, digits.length);
+            return this;
+        }
+
+        /**
+         * Normalizes each character of from to the character at the same index of to.
+         */
+        public Builder fold(String from, String to) {
+            if (from.length() != to.length()) {
+                throw new IllegalArgumentException("Mismatched folding " + from + " -> " + to);
+            }
+            for (int i = 0; i < from.length(); i++) {
+                ensureCapacity(from.charAt(i));
+                mNormalized[from.charAt(i)] = to.charAt(i);
+            }
+            return this;
+        }
+
+        /**
+         * Normalizes every character of from to the character to.
+         */
+        public Builder fold(String from, char to) {
+            for (int i = 0; i < from.length(); i++) {
+                ensureCapacity(from.charAt(i));
+                mNormalized[from.charAt(i)] = to;
+            }
+            return this;
+        }
+
+        public SmartDialCharTable build() {
+            int size = 0;
+            for (int i = 0; i < mNormalized.length; i++) {
+                if (mNormalized[i] != 0 || mDigits[i] != 0) {
+                    size = i + 1;
+                }
+            }
+            final char[] normalized = new char[size];
+            final char[] digits = new char[size];
+            for (int i = 0; i < size; i++) {
+                normalized[i] = mNormalized[i] != 0 ? mNormalized[i] : (char) i;
+                digits[i] = mDigits[i];
+            }
+            return new SmartDialCharTable(normalized, digits);
+        }
+
+        private void ensureCapacity(char ch) {
+            if (ch >= mNormalized.length) {
+                final int length = Math.max(ch + 1, mNormalized.length * 2);
+                final char[] normalized = new char[length];
+                final char[] digits = new char[length];
+                System.arraycopy(mNormalized, 0, normalized, 0, mNormalized.length);
+                System.arraycopy(mDigits, 0, digits, 0, mDigits.length);
+                mNormalized = normalized;
+                mDigits = digits;
+            }
+        }
+    }
+}
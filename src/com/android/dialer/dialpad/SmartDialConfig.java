@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.text.TextUtils;
+
+/**
+ * Immutable snapshot of the settings smart dial prefixes are computed with: the dialpad map of
+ * the T9 locale and whether the user is in a NANP region.
+ *
+ * Snapshots are published as a whole by {@link SmartDialPrefix}, so that the prefixes of a
+ * contact are never computed with the map of one locale and the NANP setting of another. Each
+ * snapshot with different settings gets a new generation, and {@link #getKey()} identifies the
+ * prefixes it computes across processes.
+ */
+public final class SmartDialConfig {
+    private final SmartDialMap mMap;
+    private final String mSimCountryCode;
+    private final boolean mUserInNanpRegion;
+    private final int mGeneration;
+    private final String mKey;
+
+    SmartDialConfig(SmartDialMap map, String simCountryCode, boolean userInNanpRegion,
+            int generation) {
+        mMap = map;
+        mSimCountryCode = simCountryCode;
+        mUserInNanpRegion = userInNanpRegion;
+        mGeneration = generation;
+        mKey = map.getClass().getName() + ";nanp=" + userInNanpRegion;
+    }
+
+    public SmartDialMap getMap() {
+        return mMap;
+    }
+
+    /**
+     * Returns the country code of the user's sim card, or null if it is unknown.
+     */
+    public String getSimCountryCode() {
+        return mSimCountryCode;
+    }
+
+    public boolean isUserInNanpRegion() {
+        return mUserInNanpRegion;
+    }
+
+    /**
+     * Returns the generation of the snapshot, which increases every time different settings are
+     * published.
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns a string identifying the prefixes computed with this snapshot. Snapshots with the
+     * same key compute the same prefixes, including in another process.
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * Returns whether this snapshot holds the given settings, in which case publishing them
+     * again is not needed.
+     */
+    boolean hasSettings(SmartDialMap map, String simCountryCode, boolean userInNanpRegion) {
+        return mMap.getClass() == map.getClass() && mUserInNanpRegion == userInNanpRegion
+                && TextUtils.equals(mSimCountryCode, simCountryCode);
+    }
+
+    @Override
+    public String toString() {
+        return mKey + ";generation=" + mGeneration;
+    }
+}
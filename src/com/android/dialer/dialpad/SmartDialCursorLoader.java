@@ -17,23 +17,21 @@
 package com.android.dialer.dialpad;
 
 import android.content.AsyncTaskLoader;
-import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
-import android.net.Uri;
-import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.RawContacts;
-import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
 import com.android.contacts.common.list.PhoneNumberListAdapter.PhoneQuery;
 import com.android.dialer.database.DialerDatabaseHelper;
 import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.DialerDatabaseHelper.LooseMatchResult;
 import com.android.dialerbind.DatabaseHelperManager;
 
+import com.google.common.annotations.VisibleForTesting;
+
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Implements a Loader<Cursor> class to asynchronously load SmartDial search results.
@@ -44,15 +42,26 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
     private final boolean DEBUG = false;
 
     private final Context mContext;
+    /** Database helper to query, or null to use the one of {@link DatabaseHelperManager}. */
+    private final DialerDatabaseHelper mDatabaseHelper;
 
     private Cursor mCursor;
 
     private String mQuery;
     private SmartDialNameMatcher mNameMatcher;
 
+    /** Result of the last load, shared by the loaders created for consecutive keystrokes. */
+    private AtomicReference<LooseMatchResult> mLastResult;
+
     public SmartDialCursorLoader(Context context) {
+        this(context, null);
+    }
+
+    @VisibleForTesting
+    SmartDialCursorLoader(Context context, DialerDatabaseHelper databaseHelper) {
         super(context);
         mContext = context;
+        mDatabaseHelper = databaseHelper;
     }
 
     /**
@@ -69,6 +78,17 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
         mNameMatcher = new SmartDialNameMatcher(mQuery, SmartDialPrefix.getMap(), mContext);
     }
 
+    /**
+     * Configures the query string, and the result of the previous query which is narrowed down
+     * instead of querying the database again when the new query extends it.
+     * @param query The query string user typed.
+     * @param lastResult Holder of the last result, updated once this loader has finished.
+     */
+    public void configureQuery(String query, AtomicReference<LooseMatchResult> lastResult) {
+        configureQuery(query);
+        mLastResult = lastResult;
+    }
+
     /**
      * Queries the SmartDial database and loads results in background.
      * @return Cursor of contacts that matches the SmartDial query.
@@ -80,10 +100,17 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
         }
 
         /** Loads results from the database helper. */
-        final DialerDatabaseHelper dialerDatabaseHelper = DatabaseHelperManager.getDatabaseHelper(
-                mContext);
-        final ArrayList<ContactNumber> allMatches = dialerDatabaseHelper.getLooseMatches(mQuery,
-                mNameMatcher);
+        final DialerDatabaseHelper dialerDatabaseHelper = mDatabaseHelper != null ? mDatabaseHelper
+                : DatabaseHelperManager.getDatabaseHelper(mContext);
+        final ArrayList<ContactNumber> allMatches;
+        if (mLastResult != null) {
+            final LooseMatchResult result = dialerDatabaseHelper.getLooseMatches(mQuery,
+                    mNameMatcher, mLastResult.get());
+            mLastResult.set(result);
+            allMatches = result.matches;
+        } else {
+            allMatches = dialerDatabaseHelper.getLooseMatches(mQuery, mNameMatcher);
+        }
 
         if (DEBUG) {
             Log.v(TAG, "Loaded matches " + String.valueOf(allMatches.size()));
@@ -99,21 +126,8 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
             row[PhoneQuery.LOOKUP_KEY] = contact.lookupKey;
             row[PhoneQuery.PHOTO_ID] = contact.photoId;
             row[PhoneQuery.DISPLAY_NAME] = contact.displayName;
-
-            String accountType = null;
-            String accountName = null;
-            Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contact.id);
-            Cursor c = mContext.getContentResolver().query(
-                    contactUri,
-                    new String[] { RawContacts.ACCOUNT_TYPE, RawContacts.ACCOUNT_NAME },
-                    null, null, null);
-            if (c != null && c.moveToFirst()) {
-                accountType = c.getString(0);
-                accountName = c.getString(1);
-                c.close();
-            }
-            row[PhoneQuery.PHONE_ACCOUNT_TYPE] = accountType;
-            row[PhoneQuery.PHONE_ACCOUNT_NAME] = accountName;
+            row[PhoneQuery.PHONE_ACCOUNT_TYPE] = contact.accountType;
+            row[PhoneQuery.PHONE_ACCOUNT_NAME] = contact.accountName;
 
             cursor.addRow(row);
         }
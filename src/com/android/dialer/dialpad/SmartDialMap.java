@@ -43,6 +43,12 @@ public interface SmartDialMap {
      */
     public char normalizeCharacter(char ch);
 
+    /*
+     * Get the numeric character on the dialpad which the character corresponds to once normalized,
+     * or 0 if the normalized character cannot be mapped to a key on the dialpad.
+     */
+    public char getNormalizedDialpadCharacter(char ch);
+
     /*
      * Allow the SmartDialMaps to convert the characters if needed.
      */
@@ -53,4 +59,12 @@ public interface SmartDialMap {
      */
     public boolean matchesCombination(SmartDialNameMatcher smartDialNameMatcher, String displayName, String query,
             ArrayList<SmartDialMatchPosition> matchList);
+
+    /*
+     * Same as above, but with the name already converted by transliterateName, so that the
+     * conversion does not need to be done again for each query. Match positions still refer to
+     * the display name.
+     */
+    public boolean matchesCombination(SmartDialNameMatcher smartDialNameMatcher, String displayName,
+            String transliteratedName, String query, ArrayList<SmartDialMatchPosition> matchList);
 }
@@ -28,6 +28,7 @@ import com.google.common.collect.Lists;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * {@link #SmartDialNameMatcher} contains utility functions to remove accents from accented
@@ -49,15 +50,35 @@ public class SmartDialNameMatcher {
     // positives
     private static final int INITIAL_LENGTH_LIMIT = 1;
 
+    // Characters ignored when matching a phone number against a query
+    private static final String NUMBER_SEPARATORS = "+*#-.(,)/ ";
+
+    // Whether each ASCII character is one of NUMBER_SEPARATORS
+    private static final boolean[] IS_NUMBER_SEPARATOR = new boolean[128];
+
+    static {
+        for (int i = 0; i < NUMBER_SEPARATORS.length(); i++) {
+            IS_NUMBER_SEPARATOR[NUMBER_SEPARATORS.charAt(i)] = true;
+        }
+    }
+
     private final ArrayList<SmartDialMatchPosition> mMatchPositions = Lists.newArrayList();
 
     private final SmartDialMap mMap;
 
-    private String mNameMatchMask = "";
-    private String mPhoneNumberMatchMask = "";
+    // Positions of the last name match as start and end pairs, from which the name highlight mask
+    // is built on demand, and the length of the matched name. The buffer is reused by every
+    // match, and also serves as scratch space while matching.
+    private int[] mPositions = new int[16];
+    private int mPositionCount = 0;
+    private int mNameLength = 0;
+    // Length of the last matched phone number and the matched range, from which the number
+    // highlight mask is built on demand
+    private int mPhoneNumberLength = 0;
+    private int mPhoneNumberMatchStart = -1;
+    private int mPhoneNumberMatchEnd = -1;
 
     private Context mContext;
-    private String mSchar = "+*#-.(,)/ ";
     private Object mMultiMatchObject;
     private Method mMultiMatchMethod;
 
@@ -76,6 +97,24 @@ public class SmartDialNameMatcher {
                 .getMultiMatchMethod();
     }
 
+    /**
+     * Returns a new matcher for the same query and map. Matchers keep the positions of the last
+     * match, so threads matching names concurrently each need their own.
+     */
+    public SmartDialNameMatcher copy() {
+        return new SmartDialNameMatcher(mQuery, mMap, mContext, mMultiMatchObject,
+                mMultiMatchMethod);
+    }
+
+    private SmartDialNameMatcher(String query, SmartDialMap map, Context context,
+            Object multiMatchObject, Method multiMatchMethod) {
+        mQuery = query;
+        mMap = map;
+        mContext = context;
+        mMultiMatchObject = multiMatchObject;
+        mMultiMatchMethod = multiMatchMethod;
+    }
+
     /**
      * Constructs empty highlight mask. Bit 0 at a position means there is no match, Bit 1 means
      * there is a match and should be highlighted in the TextView.
@@ -89,13 +128,14 @@ public class SmartDialNameMatcher {
     }
 
     /**
-     * Replaces the 0-bit at a position with 1-bit, indicating that there is a match.
+     * Replaces the 0-bits in a range with 1-bits, indicating that there is a match.
      * @param builder StringBuilder object.
-     * @param matchPos Match Positions to mask as 1.
+     * @param start First position to mask as 1.
+     * @param end Position after the last one to mask as 1.
      */
-    private void replaceBitInMask(StringBuilder builder, SmartDialMatchPosition matchPos) {
-        for (int i = matchPos.start; i < matchPos.end; ++i) {
-            builder.replace(i, i + 1, "1");
+    private void replaceBitsInMask(StringBuilder builder, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            builder.setCharAt(i, '1');
         }
     }
 
@@ -138,15 +178,16 @@ public class SmartDialNameMatcher {
      */
     @VisibleForTesting
     public SmartDialMatchPosition matchesNumber(String phoneNumber, String query, boolean useNanp) {
-        StringBuilder builder = new StringBuilder();
-        constructEmptyMask(builder, phoneNumber.length());
-        mPhoneNumberMatchMask = builder.toString();
+        mPhoneNumberLength = phoneNumber.length();
 
         // Try matching the number as is
         SmartDialMatchPosition matchPos = matchesNumberWithOffset(phoneNumber, query, 0);
         if (matchPos != null) {
-            replaceBitInMask(builder, matchPos);
-            mPhoneNumberMatchMask = builder.toString();
+            mPhoneNumberMatchStart = matchPos.start;
+            mPhoneNumberMatchEnd = matchPos.end;
+        } else {
+            mPhoneNumberMatchStart = -1;
+            mPhoneNumberMatchEnd = -1;
         }
         return matchPos;
     }
@@ -193,42 +234,40 @@ public class SmartDialNameMatcher {
             return null;
         }
 
-        String phoneNum = phoneNumber.replaceAll("[\\+\\*\\#\\-\\.\\(\\,\\)\\/ ]", "");
-        if (!TextUtils.isEmpty(phoneNum) && phoneNum.contains(query)) {
-            // firstly, find the start position in original phone number.
-            int start = phoneNum.indexOf(query);
-            int length = phoneNumber.length();
-            for (int i = start; i < length; i++) {
-                char ch = phoneNumber.charAt(i);
-                if (ch != phoneNum.charAt(start)) {
-                    continue;
-                }
-                if (phoneNumber.substring(i).replaceAll("[\\+\\*\\#\\-\\.\\(\\,\\)\\/ ]", "")
-                        .indexOf(query) == 0) {
-                    start = i;
-                    break;
-                }
+        // Tries each position of the number as the start of the match, skipping separators
+        // while comparing the following characters to the query.
+        final int length = phoneNumber.length();
+        final int queryLength = query.length();
+        final char first = query.charAt(0);
+        for (int start = offset; start < length; start++) {
+            final char ch = phoneNumber.charAt(start);
+            if (ch != first || isNumberSeparator(ch)) {
+                continue;
             }
-            // secondly, find the end position in original phone number.
-            int specialCount = 0;
-            int queryLength = query.length();
-            int end = start + queryLength;
-            for (int i = start; i < length; i++) {
-                char ch = phoneNumber.charAt(i);
-                if (mSchar.indexOf(ch) != -1) {
-                    specialCount++;
+            int matched = 1;
+            int end = start + 1;
+            while (matched < queryLength && end < length) {
+                final char next = phoneNumber.charAt(end++);
+                if (isNumberSeparator(next)) {
                     continue;
                 }
-
-                if (i - start + 1 - specialCount == queryLength) {
-                    end = i + 1;
+                if (next != query.charAt(matched)) {
                     break;
                 }
+                matched++;
+            }
+            if (matched == queryLength) {
+                return new SmartDialMatchPosition(start, end);
             }
-            return new SmartDialMatchPosition(start, end);
-        } else {
-            return null;
         }
+        return null;
+    }
+
+    /**
+     * Returns whether the character is ignored when matching a phone number against a query.
+     */
+    static boolean isNumberSeparator(char ch) {
+        return ch < IS_NUMBER_SEPARATOR.length && IS_NUMBER_SEPARATOR[ch];
     }
 
     /**
@@ -261,29 +300,51 @@ public class SmartDialNameMatcher {
     @VisibleForTesting
     boolean matchesCombination(String displayName, String query,
             ArrayList<SmartDialMatchPosition> matchList) {
-        StringBuilder builder = new StringBuilder();
-        constructEmptyMask(builder, displayName.length());
-        mNameMatchMask = builder.toString();
+        mNameLength = displayName.length();
+        final int length = matchTokens(displayName, 0, query, 0, 0);
+        if (length < 0) {
+            mPositionCount = 0;
+            return false;
+        }
+        mPositionCount = length;
+        for (int i = 0; i < length; i += 2) {
+            matchList.add(new SmartDialMatchPosition(mPositions[i], mPositions[i + 1]));
+        }
+        return true;
+    }
+
+    /**
+     * Core of {@link #matchesCombination(String, String, ArrayList)}, matching the query from
+     * queryFrom against the display name from nameFrom. It works on offsets in both strings and
+     * writes match positions to the reused {@link #mPositions} buffer, so that names which do not
+     * match are checked without allocating.
+     *
+     * @param out Index in {@link #mPositions} from which the positions of a match are written,
+     * as start and end pairs. The buffer after this index is used as scratch space.
+     * @return The number of ints written at out if the name matches, -1 otherwise.
+     */
+    private int matchTokens(String displayName, int nameFrom, String query, int queryFrom,
+            int out) {
         final int nameLength = displayName.length();
         final int queryLength = query.length();
 
-        if (nameLength < queryLength) {
-            return false;
+        if (nameLength - nameFrom < queryLength - queryFrom) {
+            return -1;
         }
 
-        if (queryLength == 0) {
-            return false;
+        if (queryLength == queryFrom) {
+            return -1;
         }
 
         // The current character index in displayName
         // E.g. 3 corresponds to 'd' in "Fred Smith"
-        int nameStart = 0;
+        int nameStart = nameFrom;
 
         // The current character in the query we are trying to match the displayName against
-        int queryStart = 0;
+        int queryStart = queryFrom;
 
         // The start position of the current token we are inspecting
-        int tokenStart = 0;
+        int tokenStart = nameFrom;
 
         // The number of non-alphabetic characters we've encountered so far in the current match.
         // E.g. if we've currently matched 3733764849 to (Fred Smith W)illiam, then the
@@ -291,16 +352,14 @@ public class SmartDialNameMatcher {
         // positions
         int seperatorCount = 0;
 
-        ArrayList<SmartDialMatchPosition> partial = new ArrayList<SmartDialMatchPosition>();
+        // Length of the partial token match found so far, written at out, or -1 if none
+        int partialLength = -1;
         // Keep going until we reach the end of displayName
         while (nameStart < nameLength && queryStart < queryLength) {
-            char ch = displayName.charAt(nameStart);
-            // Strip diacritics from accented characters if any
-            ch = mMap.normalizeCharacter(ch);
-            if (mMap.isValidDialpadCharacter(ch)) {
-                if (mMap.isValidDialpadAlphabeticChar(ch)) {
-                    ch = mMap.getDialpadNumericCharacter(ch);
-                }
+            // Strip diacritics from accented characters if any, and map the character to its
+            // dialpad digit
+            final char ch = mMap.getNormalizedDialpadCharacter(displayName.charAt(nameStart));
+            if (ch != 0) {
                 if (ch != query.charAt(queryStart)) {
                     // Failed to match the current character in the query.
 
@@ -318,19 +377,18 @@ public class SmartDialNameMatcher {
                     // Yo-Yoghurt because the query match would fail on the 3rd character, and
                     // then skip to the end of the "Yoghurt" token.
 
-                    if (queryStart == 0 || mMap.isValidDialpadCharacter(mMap.normalizeCharacter(
-                            displayName.charAt(nameStart - 1)))) {
+                    if (queryStart == queryFrom || mMap.getNormalizedDialpadCharacter(
+                            displayName.charAt(nameStart - 1)) != 0) {
                         // skip to the next token, in the case of 1 or 2.
-                        while (nameStart < nameLength &&
-                                mMap.isValidDialpadCharacter(mMap.normalizeCharacter(
-                                        displayName.charAt(nameStart)))) {
+                        while (nameStart < nameLength && mMap.getNormalizedDialpadCharacter(
+                                displayName.charAt(nameStart)) != 0) {
                             nameStart++;
                         }
                         nameStart++;
                     }
 
                     // Restart the query and set the correct token position
-                    queryStart = 0;
+                    queryStart = queryFrom;
                     seperatorCount = 0;
                     tokenStart = nameStart;
                 } else {
@@ -338,41 +396,40 @@ public class SmartDialNameMatcher {
 
                         // As much as possible, we prioritize a full token match over a sub token
                         // one so if we find a full token match, we can return right away
-                        matchList.add(new SmartDialMatchPosition(
-                                tokenStart, queryLength + tokenStart + seperatorCount));
-                        for (SmartDialMatchPosition match : matchList) {
-                            replaceBitInMask(builder, match);
-                        }
-                        mNameMatchMask = builder.toString();
-                        return true;
-                    } else if (ALLOW_INITIAL_MATCH && queryStart < INITIAL_LENGTH_LIMIT) {
+                        ensurePositionCapacity(out + 2);
+                        mPositions[out] = tokenStart;
+                        mPositions[out + 1] = queryLength - queryFrom + tokenStart + seperatorCount;
+                        return 2;
+                    } else if (ALLOW_INITIAL_MATCH
+                            && queryStart - queryFrom < INITIAL_LENGTH_LIMIT) {
                         // we matched the first character.
                         // branch off and see if we can find another match with the remaining
                         // characters in the query string and the remaining tokens
                         // find the next separator in the query string
                         int j;
                         for (j = nameStart; j < nameLength; j++) {
-                            if (!mMap.isValidDialpadCharacter(mMap.normalizeCharacter(
-                                    displayName.charAt(j)))) {
+                            if (mMap.getNormalizedDialpadCharacter(displayName.charAt(j)) == 0) {
                                 break;
                             }
                         }
                         // this means there is at least one character left after the separator
                         if (j < nameLength - 1) {
-                            final String remainder = displayName.substring(j + 1);
-                            final ArrayList<SmartDialMatchPosition> partialTemp =
-                                    Lists.newArrayList();
-                            if (matchesCombination(
-                                    remainder, query.substring(queryStart + 1), partialTemp)) {
-
-                                // store the list of possible match positions
-                                SmartDialMatchPosition.advanceMatchPositions(partialTemp, j + 1);
-                                partialTemp.add(0,
-                                        new SmartDialMatchPosition(nameStart, nameStart + 1));
-                                // we found a partial token match, store the data in a
-                                // temp buffer and return it if we end up not finding a full
-                                // token match
-                                partial = partialTemp;
+                            // The candidate is written after the partial match found so far,
+                            // which is kept if the remaining tokens do not match
+                            final int candidate = partialLength < 0 ? out : out + partialLength;
+                            final int length = matchTokens(displayName, j + 1, query,
+                                    queryStart + 1, candidate + 2);
+                            if (length > 0) {
+                                // we found a partial token match, keep its positions and
+                                // return them if we end up not finding a full token match
+                                ensurePositionCapacity(candidate + 2);
+                                mPositions[candidate] = nameStart;
+                                mPositions[candidate + 1] = nameStart + 1;
+                                if (candidate != out) {
+                                    System.arraycopy(mPositions, candidate, mPositions, out,
+                                            length + 2);
+                                }
+                                partialLength = length + 2;
                             }
                         }
                     }
@@ -384,7 +441,7 @@ public class SmartDialNameMatcher {
             } else {
                 // found a separator, we skip this character and continue to the next one
                 nameStart++;
-                if (queryStart == 0) {
+                if (queryStart == queryFrom) {
                     // This means we found a separator before the start of a token,
                     // so we should increment the token's start position to reflect its true
                     // start position
@@ -399,15 +456,17 @@ public class SmartDialNameMatcher {
         // if we have no complete match at this point, then we attempt to fall back to the partial
         // token match(if any). If we don't allow initial matching (ALLOW_INITIAL_MATCH = false)
         // then partial will always be empty.
-        if (!partial.isEmpty()) {
-            matchList.addAll(partial);
-            for (SmartDialMatchPosition match : matchList) {
-                replaceBitInMask(builder, match);
-            }
-            mNameMatchMask = builder.toString();
-            return true;
+        return partialLength;
+    }
+
+    /**
+     * Grows {@link #mPositions} to hold at least the given number of ints. The buffer is kept
+     * across calls, so it only grows for longer queries than seen before.
+     */
+    private void ensurePositionCapacity(int capacity) {
+        if (capacity > mPositions.length) {
+            mPositions = Arrays.copyOf(mPositions, Math.max(capacity, mPositions.length * 2));
         }
-        return false;
     }
 
     public boolean matches(String displayName) {
@@ -419,6 +478,26 @@ public class SmartDialNameMatcher {
         }
     }
 
+    /**
+     * Same as {@link #matches(String)}, for a name whose {@link SmartDialMap#transliterateName}
+     * form was computed beforehand.
+     *
+     * @param displayName The name to match.
+     * @param transliteratedName The transliterated name, or null if it is not known.
+     */
+    public boolean matches(String displayName, String transliteratedName) {
+        if (transliteratedName == null) {
+            return matches(displayName);
+        }
+        mMatchPositions.clear();
+        if (mMultiMatchObject != null && mMultiMatchMethod != null) {
+            return matchesMultiLanguage(displayName, mQuery, mMatchPositions);
+        } else {
+            return mMap.matchesCombination(this, displayName, transliteratedName, mQuery,
+                    mMatchPositions);
+        }
+    }
+
     public ArrayList<SmartDialMatchPosition> getMatchPositions() {
         // Return a clone of mMatchPositions so that the caller can use it without
         // worrying about it changing
@@ -430,11 +509,21 @@ public class SmartDialNameMatcher {
     }
 
     public String getNameMatchPositionsInString() {
-        return mNameMatchMask;
+        final StringBuilder builder = new StringBuilder();
+        constructEmptyMask(builder, mNameLength);
+        for (int i = 0; i < mPositionCount; i += 2) {
+            replaceBitsInMask(builder, mPositions[i], mPositions[i + 1]);
+        }
+        return builder.toString();
     }
 
     public String getNumberMatchPositionsInString() {
-        return mPhoneNumberMatchMask;
+        final StringBuilder builder = new StringBuilder();
+        constructEmptyMask(builder, mPhoneNumberLength);
+        if (mPhoneNumberMatchStart >= 0) {
+            replaceBitsInMask(builder, mPhoneNumberMatchStart, mPhoneNumberMatchEnd);
+        }
+        return builder.toString();
     }
 
     public String getQuery() {
@@ -443,10 +532,8 @@ public class SmartDialNameMatcher {
 
     boolean matchesMultiLanguage(String displayName, String query,
             ArrayList<SmartDialMatchPosition> matchList) {
-        StringBuilder builder = new StringBuilder();
-        constructEmptyMask(builder, displayName.length());
-        mNameMatchMask = builder.toString();
-        final int nameLength = displayName.length();
+        mNameLength = displayName.length();
+        mPositionCount = 0;
         final int queryLength = query.length();
 
         if (queryLength == 0) {
@@ -475,10 +562,11 @@ public class SmartDialNameMatcher {
             return false;
         }
 
+        ensurePositionCapacity(matchList.size() * 2);
         for (SmartDialMatchPosition match : matchList) {
-            replaceBitInMask(builder, match);
+            mPositions[mPositionCount++] = match.start;
+            mPositions[mPositionCount++] = match.end;
         }
-        mNameMatchMask = builder.toString();
         return true;
     }
 }
@@ -57,25 +57,35 @@ public class SmartDialPrefix {
     private static final int LAST_TOKENS_FOR_INITIALS = 2;
     private static final int FIRST_TOKENS_FOR_INITIALS = 2;
 
+    /** Added by {@link #generateNamePrefixes} for names with tokens between the first and last
+     * ones considered for initials. {@link SmartDialNameMatcher} matches the initials of those
+     * tokens too, so such contacts are checked against every query. It is not made of digits,
+     * so no query starts with it.
+     */
+    public static final String UNINDEXED_INITIALS_PREFIX = "initials";
+
+    /** Shortest suffix returned by {@link #generateNumberSuffixes}. Queries shorter than this
+     * need to be checked against every number.
+     */
+    public static final int MIN_NUMBER_SUFFIX_LENGTH = 3;
+
     /** The country code of the user's sim card obtained by calling getSimCountryIso*/
     private static final String PREF_USER_SIM_COUNTRY_CODE =
             "DialtactsActivity_user_sim_country_code";
     private static final String PREF_USER_SIM_COUNTRY_CODE_DEFAULT = null;
-    private static String sUserSimCountryCode = PREF_USER_SIM_COUNTRY_CODE_DEFAULT;
-
-    /** Indicates whether user is in NANP regions.*/
-    private static boolean sUserInNanpRegion = false;
 
     /** Set of country names that use NANP code.*/
-    private static Set<String> sNanpCountries = null;
+    private static final Set<String> sNanpCountries = initNanpCountries();
 
     /** Set of supported country codes in front of the phone number. */
-    private static Set<String> sCountryCodes = null;
+    private static final Set<String> sCountryCodes = initCountryCodes();
 
-    /** Dialpad mapping. */
-    private static SmartDialMap mMap = null;
+    /** Generation of the last published configuration. */
+    private static int sGeneration = 0;
 
-    private static boolean sNanpInitialized = false;
+    /** Dialpad mapping and NANP settings, replaced as a whole whenever one of them changes. */
+    private static volatile SmartDialConfig sConfig = new SmartDialConfig(new LatinSmartDialMap(),
+            PREF_USER_SIM_COUNTRY_CODE_DEFAULT, false, sGeneration);
 
     private static final Map<String, SmartDialMap> languageToSmartDialMap = new HashMap<String, SmartDialMap>();
     static {
@@ -102,38 +112,39 @@ public class SmartDialPrefix {
     public static void initializeNanpSettings(Context context){
         final TelephonyManager manager = (TelephonyManager) context.getSystemService(
                 Context.TELEPHONY_SERVICE);
+        String userSimCountryCode = PREF_USER_SIM_COUNTRY_CODE_DEFAULT;
         if (manager != null) {
-            sUserSimCountryCode = manager.getSimCountryIso();
+            userSimCountryCode = manager.getSimCountryIso();
         }
 
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
-        if (sUserSimCountryCode != null) {
+        if (userSimCountryCode != null) {
             /** Updates shared preferences with the latest country obtained from getSimCountryIso.*/
-            prefs.edit().putString(PREF_USER_SIM_COUNTRY_CODE, sUserSimCountryCode).apply();
+            prefs.edit().putString(PREF_USER_SIM_COUNTRY_CODE, userSimCountryCode).apply();
         } else {
             /** Uses previously stored country code if loading fails. */
-            sUserSimCountryCode = prefs.getString(PREF_USER_SIM_COUNTRY_CODE,
+            userSimCountryCode = prefs.getString(PREF_USER_SIM_COUNTRY_CODE,
                     PREF_USER_SIM_COUNTRY_CODE_DEFAULT);
         }
-        /** Queries the NANP country list to find out whether user is in a NANP region.*/
-        sUserInNanpRegion = isCountryNanp(sUserSimCountryCode);
 
         /** Sets a layout for SmartDial based on locale.  Lookup by language first and fallback to country */
         Locale locale = SettingsUtil.getT9SearchInputLocale(context);
-        mMap = languageToSmartDialMap.get(locale.getLanguage());
-        if (mMap == null)
-            mMap = countryToSmartDialMap.get(locale.getCountry());
-        if (mMap == null)
-            mMap = new LatinSmartDialMap();
+        SmartDialMap map = languageToSmartDialMap.get(locale.getLanguage());
+        if (map == null)
+            map = countryToSmartDialMap.get(locale.getCountry());
+        if (map == null)
+            map = new LatinSmartDialMap();
 
-        sNanpInitialized = true;
+        /** Queries the NANP country list to find out whether user is in a NANP region.*/
+        publishConfig(map, userSimCountryCode, isCountryNanp(userSimCountryCode));
     }
 
     // for testing only
     @VisibleForTesting
     static void setSmartDialMap(SmartDialMap map) {
-        mMap = map;
+        final SmartDialConfig config = sConfig;
+        publishConfig(map, config.getSimCountryCode(), config.isUserInNanpRegion());
     }
 
     /**
@@ -141,7 +152,27 @@ public class SmartDialPrefix {
      */
     @VisibleForTesting
     public static void setUserInNanpRegion(boolean userInNanpRegion) {
-        sUserInNanpRegion = userInNanpRegion;
+        final SmartDialConfig config = sConfig;
+        publishConfig(config.getMap(), config.getSimCountryCode(), userInNanpRegion);
+    }
+
+    /**
+     * Replaces the configuration with one holding the given settings, unless they did not change.
+     * Readers see either the previous configuration or the new one as a whole.
+     */
+    private static synchronized void publishConfig(SmartDialMap map, String simCountryCode,
+            boolean userInNanpRegion) {
+        if (!sConfig.hasSettings(map, simCountryCode, userInNanpRegion)) {
+            sConfig = new SmartDialConfig(map, simCountryCode, userInNanpRegion, ++sGeneration);
+        }
+    }
+
+    /**
+     * Returns the current configuration. Callers computing several prefixes should read it once
+     * and pass it along, so that all of them are computed with the same settings.
+     */
+    public static SmartDialConfig getConfig() {
+        return sConfig;
     }
 
     /**
@@ -171,6 +202,15 @@ public class SmartDialPrefix {
      * @return A list of name tokens, for example separated first names, last name, etc.
      */
     public static ArrayList<String> parseToIndexTokens(String contactName) {
+        return parseToIndexTokens(sConfig, contactName);
+    }
+
+    /**
+     * Same as {@link #parseToIndexTokens(String)}, with the given configuration.
+     */
+    public static ArrayList<String> parseToIndexTokens(SmartDialConfig config,
+            String contactName) {
+        final SmartDialMap map = config.getMap();
         final int length = contactName.length();
         final ArrayList<String> result = Lists.newArrayList();
         char c;
@@ -181,10 +221,10 @@ public class SmartDialPrefix {
          * example space " ", mark the current token as complete and add it to the list of tokens.
          */
         for (int i = 0; i < length; i++) {
-            c = mMap.normalizeCharacter(contactName.charAt(i));
-            if (mMap.isValidDialpadCharacter(c)) {
-                /** Converts a character into the number on dialpad that represents the character.*/
-                currentIndexToken.append(mMap.getDialpadIndex(c));
+            c = map.getNormalizedDialpadCharacter(contactName.charAt(i));
+            if (c != 0) {
+                /** Appends the number on dialpad that represents the character.*/
+                currentIndexToken.append(c);
             } else {
                 if (currentIndexToken.length() != 0) {
                     result.add(currentIndexToken.toString());
@@ -208,10 +248,17 @@ public class SmartDialPrefix {
      * @return A List of strings, whose prefix can be used to look up the contact.
      */
     public static ArrayList<String> generateNamePrefixes(String index) {
+        return generateNamePrefixes(sConfig, index);
+    }
+
+    /**
+     * Same as {@link #generateNamePrefixes(String)}, with the given configuration.
+     */
+    public static ArrayList<String> generateNamePrefixes(SmartDialConfig config, String index) {
         final ArrayList<String> result = Lists.newArrayList();
-        index = mMap.transliterateName(index);
+        index = config.getMap().transliterateName(index);
         /** Parses the name into a list of tokens.*/
-        final ArrayList<String> indexTokens = parseToIndexTokens(index);
+        final ArrayList<String> indexTokens = parseToIndexTokens(config, index);
 
         if (indexTokens.size() > 0) {
             /** Adds the full token combinations to the list. For example, a contact with name
@@ -253,6 +300,10 @@ public class SmartDialPrefix {
                     fullNames.add(indexTokens.get(i) +  currentFullName);
                 }
             }
+
+            if (indexTokens.size() > FIRST_TOKENS_FOR_INITIALS + LAST_TOKENS_FOR_INITIALS) {
+                result.add(UNINDEXED_INITIALS_PREFIX);
+            }
         }
 
         return result;
@@ -272,29 +323,84 @@ public class SmartDialPrefix {
      * @return A list of strings where any prefix of any entry can be used to look up the number.
      */
     public static ArrayList<String> parseToNumberTokens(String number) {
+        return parseToNumberTokens(sConfig, number);
+    }
+
+    /**
+     * Same as {@link #parseToNumberTokens(String)}, with the given configuration.
+     */
+    public static ArrayList<String> parseToNumberTokens(SmartDialConfig config, String number) {
         final ArrayList<String> result = Lists.newArrayList();
         if (!TextUtils.isEmpty(number)) {
+            final SmartDialMap map = config.getMap();
             /** Adds the full number to the list.*/
-            result.add(SmartDialNameMatcher.normalizeNumber(number, mMap));
+            result.add(SmartDialNameMatcher.normalizeNumber(number, map));
 
-            final PhoneNumberTokens phoneNumberTokens = parsePhoneNumber(number);
+            final PhoneNumberTokens phoneNumberTokens = parsePhoneNumber(config, number);
             if (phoneNumberTokens == null) {
                 return result;
             }
 
             if (phoneNumberTokens.countryCodeOffset != 0) {
                 result.add(SmartDialNameMatcher.normalizeNumber(number,
-                        phoneNumberTokens.countryCodeOffset, mMap));
+                        phoneNumberTokens.countryCodeOffset, map));
             }
 
             if (phoneNumberTokens.nanpCodeOffset != 0) {
                 result.add(SmartDialNameMatcher.normalizeNumber(number,
-                        phoneNumberTokens.nanpCodeOffset, mMap));
+                        phoneNumberTokens.nanpCodeOffset, map));
             }
         }
         return result;
     }
 
+    /**
+     * Computes the suffixes of each run of digits in a phone number, once the separators ignored
+     * by {@link SmartDialNameMatcher#matchesNumber(String, String)} are removed. A query of at
+     * least {@link #MIN_NUMBER_SUFFIX_LENGTH} digits contained anywhere in the number is a prefix
+     * of one of the suffixes, so storing them in the prefix table lets infix number matches be
+     * looked up with the same range query as prefixes. Shorter suffixes are left out to keep the
+     * prefix table small, so shorter queries are checked against every number. For example,
+     * 555-3023 gives 5553023, 553023, 53023, 3023 and 023.
+     *
+     * @param number String of user's phone number.
+     * @return A list of the suffixes of the digits of the number.
+     */
+    public static ArrayList<String> generateNumberSuffixes(String number) {
+        final ArrayList<String> result = Lists.newArrayList();
+        if (TextUtils.isEmpty(number)) {
+            return result;
+        }
+        final StringBuilder stripped = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            final char ch = number.charAt(i);
+            if (!SmartDialNameMatcher.isNumberSeparator(ch)) {
+                stripped.append(ch);
+            }
+        }
+        final int length = stripped.length();
+        int runEnd = 0;
+        for (int start = 0; start < length; start++) {
+            if (!isDigit(stripped.charAt(start))) {
+                continue;
+            }
+            if (runEnd <= start) {
+                runEnd = start;
+                while (runEnd < length && isDigit(stripped.charAt(runEnd))) {
+                    runEnd++;
+                }
+            }
+            if (runEnd - start >= MIN_NUMBER_SUFFIX_LENGTH) {
+                result.add(stripped.substring(start, runEnd));
+            }
+        }
+        return result;
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
     /**
      * Parses a phone number to find out whether it has country code and NANP area code.
      *
@@ -302,12 +408,21 @@ public class SmartDialPrefix {
      * @return a PhoneNumberToken instance with country code, NANP code information.
      */
     public static PhoneNumberTokens parsePhoneNumber(String number) {
+        return parsePhoneNumber(sConfig, number);
+    }
+
+    /**
+     * Same as {@link #parsePhoneNumber(String)}, with the given configuration.
+     */
+    public static PhoneNumberTokens parsePhoneNumber(SmartDialConfig config, String number) {
+        final boolean userInNanpRegion = config.isUserInNanpRegion();
         String countryCode = "";
         int countryCodeOffset = 0;
         int nanpNumberOffset = 0;
 
         if (!TextUtils.isEmpty(number)) {
-            String normalizedNumber = SmartDialNameMatcher.normalizeNumber(number, mMap);
+            String normalizedNumber = SmartDialNameMatcher.normalizeNumber(number,
+                    config.getMap());
             if (number.charAt(0) == '+') {
                 /** If the number starts with '+', tries to find valid country code. */
                 for (int i = 1; i <= 1 + 3; i++) {
@@ -325,7 +440,7 @@ public class SmartDialPrefix {
                  * format and has '1' preceding the number.
                  */
                 if ((normalizedNumber.length() == 11) && (normalizedNumber.charAt(0) == '1'
-                     || normalizedNumber.charAt(0) == '7') && (sUserInNanpRegion)) {
+                     || normalizedNumber.charAt(0) == '7') && (userInNanpRegion)) {
                     countryCode = normalizedNumber.substring(0, 1);
                     countryCodeOffset = number.indexOf(normalizedNumber.charAt(1));
                     if (countryCodeOffset == -1) {
@@ -335,7 +450,7 @@ public class SmartDialPrefix {
             }
 
             /** If user is in NANP region, finds out whether a number is in NANP format.*/
-            if (sUserInNanpRegion)  {
+            if (userInNanpRegion)  {
                 String areaCode = "";
                 if (countryCode.equals("") && normalizedNumber.length() == 10){
                     /** if the number has no country code but fits the NANP format, extracts the
@@ -364,9 +479,6 @@ public class SmartDialPrefix {
      * Checkes whether a country code is valid.
      */
     private static boolean isValidCountryCode(String countryCode) {
-        if (sCountryCodes == null) {
-            sCountryCodes = initCountryCodes();
-        }
         return sCountryCodes.contains(countryCode);
     }
 
@@ -591,7 +703,7 @@ public class SmartDialPrefix {
     }
 
     public static SmartDialMap getMap() {
-        return mMap;
+        return sConfig.getMap();
     }
 
     /**
@@ -607,9 +719,6 @@ public class SmartDialPrefix {
         if (TextUtils.isEmpty(country)) {
             return false;
         }
-        if (sNanpCountries == null) {
-            sNanpCountries = initNanpCountries();
-        }
         return sNanpCountries.contains(country.toUpperCase());
     }
 
@@ -649,6 +758,6 @@ public class SmartDialPrefix {
      * @return Whether user is in Nanp region.
      */
     public static boolean getUserInNanpRegion() {
-        return sUserInNanpRegion;
+        return sConfig.isUserInNanpRegion();
     }
 }
@@ -29,12 +29,14 @@ import com.android.contacts.common.CallUtil;
 import com.android.contacts.common.list.ContactListItemView;
 import com.android.contacts.common.list.PhoneNumberListAdapter;
 import com.android.contacts.common.list.PhoneNumberListAdapter.PhoneQuery;
+import com.android.dialer.database.DialerDatabaseHelper.LooseMatchResult;
 import com.android.dialer.dialpad.SmartDialCursorLoader;
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
 import com.android.dialer.dialpad.SmartDialMatchPosition;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * List adapter to display the SmartDial search results.
@@ -46,6 +48,10 @@ public class SmartDialNumberListAdapter extends DialerPhoneNumberListAdapter {
 
     private SmartDialNameMatcher mNameMatcher;
 
+    /** Result of the last SmartDial query, narrowed down as the user keeps typing. */
+    private final AtomicReference<LooseMatchResult> mLastResult =
+            new AtomicReference<LooseMatchResult>();
+
     public SmartDialNumberListAdapter(Context context) {
         super(context);
 
@@ -68,7 +74,7 @@ public class SmartDialNumberListAdapter extends DialerPhoneNumberListAdapter {
             loader.configureQuery("");
             mNameMatcher.setQuery("");
         } else {
-            loader.configureQuery(getQueryString());
+            loader.configureQuery(getQueryString(), mLastResult);
             mNameMatcher.setQuery(PhoneNumberUtils.normalizeNumber(getQueryString()));
         }
     }
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.dialer.calllog.ContactInfo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queries several reverse lookup providers in parallel.
+ *
+ * Providers are given by decreasing priority, and each of them is abandoned after its own
+ * {@link ReverseLookup#getLookupDeadlineMillis() deadline}. Once a provider found the number,
+ * higher priority providers get {@link #MERGE_WINDOW_MILLIS} more to answer, and the result of
+ * the highest priority provider that found the number is returned. The other lookups are then
+ * cancelled.
+ *
+ * Nothing is returned only when every provider answered that it found nothing. If a provider
+ * failed or missed its deadline instead, an IOException is thrown, so that the number is not
+ * remembered as unknown.
+ */
+public class CompositeReverseLookup extends ReverseLookup {
+    private static final String TAG = CompositeReverseLookup.class.getSimpleName();
+
+    private static final boolean DEBUG = false;
+
+    /** Time higher priority providers get to answer after a provider found the number. */
+    static final long MERGE_WINDOW_MILLIS = 300;
+    /** Threads kept for each provider, for the lookups still running after being cancelled. */
+    private static final int THREADS_PER_PROVIDER = 3;
+    /** Threads are released after staying idle that long. */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final List<String> mNames;
+    private final List<ReverseLookup> mProviders;
+    private final long mMergeWindowMillis;
+    private final ExecutorService mExecutor;
+
+    /**
+     * @param names Names of the providers, by decreasing priority
+     * @param providers The providers, in the same order
+     */
+    public CompositeReverseLookup(List<String> names, List<ReverseLookup> providers) {
+        this(names, providers, MERGE_WINDOW_MILLIS);
+    }
+
+    CompositeReverseLookup(List<String> names, List<ReverseLookup> providers,
+            long mergeWindowMillis) {
+        mNames = new ArrayList<String>(names);
+        mProviders = new ArrayList<ReverseLookup>(providers);
+        mMergeWindowMillis = mergeWindowMillis;
+        // Cancelled lookups may stay blocked on the network until their requests time out,
+        // which is not later than their deadline, so a few threads per provider are enough.
+        // Lookups submitted while they are all busy wait in the queue.
+        final int threads = THREADS_PER_PROVIDER * Math.max(1, mProviders.size());
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "ReverseLookup #" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns whether this lookup queries the given providers, in the same order.
+     */
+    public boolean hasProviders(List<String> names) {
+        return mNames.equals(names);
+    }
+
+    @Override
+    public Bitmap lookupImage(Context context, Uri uri) {
+        for (ReverseLookup provider : mProviders) {
+            Bitmap bmp = provider.lookupImage(context, uri);
+            if (bmp != null) {
+                return bmp;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the shortest time any of the providers keeps negative results, as a number
+     * is only unknown to all providers until one of them looks it up again.
+     */
+    @Override
+    public long getNegativeResultTtlMillis() {
+        long ttl = Long.MAX_VALUE;
+        for (ReverseLookup provider : mProviders) {
+            ttl = Math.min(ttl, provider.getNegativeResultTtlMillis());
+        }
+        return ttl;
+    }
+
+    @Override
+    public long getLookupDeadlineMillis() {
+        long deadline = 0;
+        for (ReverseLookup provider : mProviders) {
+            deadline = Math.max(deadline, provider.getLookupDeadlineMillis());
+        }
+        return deadline;
+    }
+
+    @Override
+    public ContactInfo lookupNumber(final Context context, final String normalizedNumber,
+            final String formattedNumber) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        final int count = mProviders.size();
+
+        final CompletionService<ContactInfo> completion =
+                new ExecutorCompletionService<ContactInfo>(mExecutor);
+        final HashMap<Future<ContactInfo>, Integer> indexes =
+                new HashMap<Future<ContactInfo>, Integer>();
+        final long[] deadlines = new long[count];
+        for (int i = 0; i < count; i++) {
+            final ReverseLookup provider = mProviders.get(i);
+            deadlines[i] = start + provider.getLookupDeadlineMillis();
+            indexes.put(completion.submit(new Callable<ContactInfo>() {
+                @Override
+                public ContactInfo call() throws IOException {
+                    return provider.lookupNumber(context, normalizedNumber, formattedNumber);
+                }
+            }), i);
+        }
+
+        final ContactInfo[] results = new ContactInfo[count];
+        final boolean[] answered = new boolean[count];
+        final boolean[] pending = new boolean[count];
+        int pendingCount = count;
+        for (int i = 0; i < count; i++) {
+            pending[i] = true;
+        }
+        long windowEnd = Long.MAX_VALUE;
+        IOException failure = null;
+
+        try {
+            while (pendingCount > 0 && !hasBestResult(results, pending)) {
+                long now = SystemClock.elapsedRealtime();
+                long wakeUp = windowEnd;
+                for (int i = 0; i < count; i++) {
+                    if (pending[i]) {
+                        wakeUp = Math.min(wakeUp, deadlines[i]);
+                    }
+                }
+
+                final Future<ContactInfo> future =
+                        completion.poll(Math.max(0, wakeUp - now), TimeUnit.MILLISECONDS);
+                now = SystemClock.elapsedRealtime();
+                if (future != null) {
+                    final int i = indexes.get(future);
+                    if (!pending[i]) {
+                        // Answered after its deadline
+                        continue;
+                    }
+                    pending[i] = false;
+                    pendingCount--;
+                    try {
+                        final ContactInfo info = future.get();
+                        answered[i] = true;
+                        if (info != null && !info.equals(ContactInfo.EMPTY)) {
+                            if (DEBUG) Log.d(TAG, mNames.get(i) + " found the number in "
+                                    + (now - start) + " ms");
+                            results[i] = info;
+                            if (windowEnd == Long.MAX_VALUE) {
+                                windowEnd = now + mMergeWindowMillis;
+                            }
+                        }
+                    } catch (ExecutionException e) {
+                        Log.w(TAG, mNames.get(i) + " failed", e.getCause());
+                        failure = toIOException(e.getCause());
+                    }
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        if (pending[i] && deadlines[i] <= now) {
+                            Log.w(TAG, mNames.get(i) + " missed its deadline");
+                            pending[i] = false;
+                            pendingCount--;
+                        }
+                    }
+                    if (now >= windowEnd) {
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            // Cancel the lookups that lost
+            for (Future<ContactInfo> future : indexes.keySet()) {
+                future.cancel(true);
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (results[i] != null) {
+                return results[i];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (!answered[i]) {
+                throw failure != null ? failure
+                        : new IOException(mNames.get(i) + " missed its deadline");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether a provider found the number and every provider with a higher priority
+     * answered.
+     */
+    private static boolean hasBestResult(ContactInfo[] results, boolean[] pending) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) {
+                return true;
+            }
+            if (pending[i]) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static IOException toIOException(Throwable t) {
+        if (t instanceof IOException) {
+            return (IOException) t;
+        }
+        return new IOException(t);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts fields from an HTML page while it is received, instead of matching regular
+ * expressions over the whole page.
+ *
+ * Each field is the first match of a precompiled pattern, optionally after the match of another
+ * field. The page is read in chunks, and a match is only accepted once more text could not
+ * change it, so the values are those the patterns find in the whole page. Text that can no
+ * longer start a match of a missing field, given the longest match it can have, is dropped, so
+ * memory does not grow with the page. Reading stops as soon as all fields are found, leaving
+ * out optional fields, which are only extracted if they are found before that.
+ *
+ * Extractors are immutable and can be shared by threads.
+ */
+public final class HtmlExtractor implements LookupUtils.ResponseParser<HtmlExtractor.Result> {
+    /** Default longest match of a field. */
+    private static final int DEFAULT_MAX_LENGTH = 4096;
+    private static final int CHUNK_SIZE = 8192;
+
+    /** Required fields, followed by the optional ones. */
+    private final Field[] mFields;
+    private final int mRequiredCount;
+
+    /**
+     * A value to extract. The value is the given group of the first match of the pattern.
+     */
+    public static final class Field {
+        private final Pattern mPattern;
+        private final int mGroup;
+        private final int mMaxLength;
+        private final Field mAfter;
+
+        /**
+         * @param regex Pattern with the value in its first group
+         * @param flags Flags of the pattern
+         */
+        public Field(String regex, int flags) {
+            this(regex, flags, 1, DEFAULT_MAX_LENGTH, null);
+        }
+
+        /**
+         * @param regex Pattern of the field
+         * @param flags Flags of the pattern
+         * @param group Group of the value, 0 for the whole match
+         * @param maxLength Longest match of the pattern. Longer matches may be missed.
+         * @param after Field whose match the pattern is searched after, or null
+         */
+        public Field(String regex, int flags, int group, int maxLength, Field after) {
+            mPattern = Pattern.compile(regex, flags);
+            mGroup = group;
+            mMaxLength = maxLength;
+            mAfter = after;
+        }
+
+        public Pattern getPattern() {
+            return mPattern;
+        }
+
+        @VisibleForTesting
+        int getGroup() {
+            return mGroup;
+        }
+
+        @VisibleForTesting
+        Field getAfter() {
+            return mAfter;
+        }
+    }
+
+    /**
+     * Values found in a page.
+     */
+    public static final class Result {
+        private final IdentityHashMap<Field, String[]> mGroups =
+                new IdentityHashMap<Field, String[]>();
+
+        /**
+         * Returns the trimmed value of the field, or null if it was not found.
+         */
+        public String get(Field field) {
+            return getGroup(field, field.mGroup);
+        }
+
+        /**
+         * Returns a trimmed group of the match of the field, or null if it was not found.
+         */
+        public String getGroup(Field field, int group) {
+            String[] groups = mGroups.get(field);
+            if (groups == null || groups[group] == null) {
+                return null;
+            }
+            return groups[group].trim();
+        }
+
+        public boolean has(Field field) {
+            return mGroups.containsKey(field);
+        }
+    }
+
+    /**
+     * @param fields Fields to extract
+     */
+    public HtmlExtractor(Field... fields) {
+        this(fields, new Field[0]);
+    }
+
+    /**
+     * @param fields Fields to extract, reading stops once they are all found
+     * @param optionalFields Fields to extract if they are found before reading stops
+     */
+    public HtmlExtractor(Field[] fields, Field[] optionalFields) {
+        mFields = new Field[fields.length + optionalFields.length];
+        System.arraycopy(fields, 0, mFields, 0, fields.length);
+        System.arraycopy(optionalFields, 0, mFields, fields.length, optionalFields.length);
+        mRequiredCount = fields.length;
+    }
+
+    @VisibleForTesting
+    Field[] getFields() {
+        return mFields.clone();
+    }
+
+    @Override
+    public Result parse(InputStream in, Charset charset) throws IOException {
+        return extract(new InputStreamReader(in, charset));
+    }
+
+    /**
+     * Extracts the fields from the text read, without closing the reader.
+     */
+    public Result extract(Reader reader) throws IOException {
+        final int count = mFields.length;
+        final Result result = new Result();
+        final Matcher[] matchers = new Matcher[count];
+        // Offsets in the page from which each field is searched
+        final long[] starts = new long[count];
+        final boolean[] ready = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            matchers[i] = mFields[i].mPattern.matcher("");
+            ready[i] = mFields[i].mAfter == null;
+        }
+
+        final StringBuilder buffer = new StringBuilder(CHUNK_SIZE * 2);
+        // Offset in the page of the start of the buffer
+        long base = 0;
+        final char[] chunk = new char[CHUNK_SIZE];
+        // Required fields not found yet
+        int pending = mRequiredCount;
+        boolean eof = false;
+
+        while (pending > 0 && !eof) {
+            final int read = reader.read(chunk);
+            if (read == -1) {
+                eof = true;
+            } else {
+                buffer.append(chunk, 0, read);
+            }
+
+            // Fields found can make fields searched after them ready, so repeat until nothing
+            // is found.
+            boolean found = true;
+            while (found) {
+                found = false;
+                for (int i = 0; i < count; i++) {
+                    if (!ready[i] || result.mGroups.containsKey(mFields[i])) {
+                        continue;
+                    }
+                    final Matcher m = matchers[i];
+                    m.reset(buffer);
+                    m.region((int) (starts[i] - base), buffer.length());
+                    if (m.find()) {
+                        if (eof || !m.hitEnd()) {
+                            final String[] groups = new String[m.groupCount() + 1];
+                            for (int g = 0; g < groups.length; g++) {
+                                groups[g] = m.group(g);
+                            }
+                            result.mGroups.put(mFields[i], groups);
+                            if (i < mRequiredCount) {
+                                pending--;
+                            }
+                            found = true;
+                            onFound(mFields[i], base + m.end(), starts, ready);
+                        }
+                    } else {
+                        // A match cannot start before the longest match of the end
+                        starts[i] = Math.max(starts[i],
+                                base + buffer.length() - mFields[i].mMaxLength);
+                    }
+                }
+            }
+
+            if (eof) {
+                break;
+            }
+
+            // Drop the text no missing field can match
+            long keep = base + buffer.length();
+            for (int i = 0; i < count; i++) {
+                if (!result.mGroups.containsKey(mFields[i])) {
+                    keep = Math.min(keep, ready[i] ? starts[i] : keepFor(i, starts, ready));
+                }
+            }
+            final int drop = (int) (keep - base);
+            if (drop > CHUNK_SIZE) {
+                buffer.delete(0, drop);
+                base = keep;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Makes the fields searched after a found field ready, from the end of its match.
+     */
+    private void onFound(Field field, long end, long[] starts, boolean[] ready) {
+        for (int i = 0; i < mFields.length; i++) {
+            if (mFields[i].mAfter == field) {
+                ready[i] = true;
+                starts[i] = end;
+            }
+        }
+    }
+
+    /**
+     * Returns where the text must be kept from for a field which is not ready, which is where
+     * the field it is searched after can still match.
+     */
+    private long keepFor(int index, long[] starts, boolean[] ready) {
+        Field after = mFields[index].mAfter;
+        for (int i = 0; i < mFields.length; i++) {
+            if (mFields[i] == after) {
+                return ready[i] ? starts[i] : keepFor(i, starts, ready);
+            }
+        }
+        return 0;
+    }
+}
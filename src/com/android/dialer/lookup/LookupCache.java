@@ -18,181 +18,774 @@ package com.android.dialer.lookup;
 
 import com.android.dialer.calllog.ContactInfo;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.net.Uri;
+import android.os.SystemProperties;
 import android.provider.ContactsContract.Contacts;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
-import android.util.JsonReader;
-import android.util.JsonWriter;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.LruCache;
+
+import com.google.common.annotations.VisibleForTesting;
 
 import libcore.io.IoUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStreamReader;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+/**
+ * Cache of reverse lookup results, keyed by the E.164 form of the number.
+ *
+ * Results are kept in a single SQLite table, fronted by an in-memory LRU of recently used
+ * numbers, so that a hit costs neither a file stat nor JSON parsing. Numbers for which the lookup
+ * found nothing are cached as well, for a time to live chosen by the provider, so that they are
+ * not looked up again on every call. Found results expire after {@link #POSITIVE_TTL_MILLIS}, and
+ * are still served for {@link #MAX_STALE_MILLIS} after that while they are looked up again in the
+ * background. The table is bounded to {@link #MAX_ROWS} entries, the oldest ones being evicted
+ * along with their cached image. Writes are made on a background thread, after the in-memory LRU
+ * has been updated.
+ *
+ * Images are scaled down to the largest size they are displayed at before being stored, and the
+ * recently used ones are kept decoded in a second in-memory LRU.
+ */
 public class LookupCache {
     private static final String TAG = LookupCache.class.getSimpleName();
 
-    public static final String NAME = "Name";
-    public static final String TYPE = "Type";
-    public static final String LABEL = "Label";
-    public static final String NUMBER = "Number";
-    public static final String FORMATTED_NUMBER = "FormattedNumber";
-    public static final String NORMALIZED_NUMBER = "NormalizedNumber";
-    public static final String PHOTO_ID = "PhotoID";
-    //public static final String PHOTO_URI = "PhotoURI";
-    public static final String LOOKUP_URI = "LookupURI";
+    private static final String DATABASE_NAME = "lookup_cache.db";
+    private static final int DATABASE_VERSION = 2;
+    private static final String TABLE = "lookup_cache";
+
+    /** How long found results are used before looking the number up again. */
+    @VisibleForTesting
+    static final long POSITIVE_TTL_MILLIS = TimeUnit.DAYS.toMillis(30);
+    /** How long expired found results are still served while they are looked up again. */
+    @VisibleForTesting
+    static final long MAX_STALE_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    /** System property serving expired found results while they are looked up again. */
+    private static final String SERVE_STALE_PROPERTY = "persist.dialer.lookup_stale";
+
+    /** Maximum number of results in the table, and in memory. */
+    @VisibleForTesting
+    static final int MAX_ROWS = 1000;
+    private static final int MAX_MEMORY_ENTRIES = 64;
+    /** Time between two deletions of the expired results while the table is not full. */
+    private static final long EXPIRY_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    /** Maximum size of the decoded images kept in memory. */
+    private static final int MAX_MEMORY_IMAGE_BYTES = 4 * 1024 * 1024;
+    private static final int IMAGE_QUALITY = 85;
+
+    public interface Columns {
+        String NUMBER = "normalized_number";
+        String NAME = "name";
+        String TYPE = "type";
+        String LABEL = "label";
+        String RAW_NUMBER = "number";
+        String FORMATTED_NUMBER = "formatted_number";
+        String PHOTO_ID = "photo_id";
+        String LOOKUP_URI = "lookup_uri";
+        /** Whether an image of the number is in the image cache. */
+        String HAS_IMAGE = "has_image";
+        /** Whether the lookup found nothing for the number. */
+        String NEGATIVE = "negative";
+        /** Provider which found nothing for the number. */
+        String PROVIDER = "provider";
+        String CACHED_MILLIS = "cached_millis";
+        String EXPIRES_MILLIS = "expires_millis";
+    }
+
+    private static final String[] PROJECTION = new String[] {
+            Columns.NAME,
+            Columns.TYPE,
+            Columns.LABEL,
+            Columns.RAW_NUMBER,
+            Columns.FORMATTED_NUMBER,
+            Columns.PHOTO_ID,
+            Columns.LOOKUP_URI,
+            Columns.HAS_IMAGE,
+            Columns.NEGATIVE,
+            Columns.PROVIDER,
+            Columns.EXPIRES_MILLIS};
+
+    /** Marks numbers known to be missing from the table in the in-memory LRU. */
+    private static final Entry ABSENT = new Entry();
+
+    private static LookupCache sInstance;
+
+    private final Context mContext;
+    private final DatabaseHelper mDatabaseHelper;
+    private final Executor mWriteExecutor;
+    private final LruCache<String, Entry> mMemoryCache =
+            new LruCache<String, Entry>(MAX_MEMORY_ENTRIES);
+    private final LruCache<String, Bitmap> mImageCache =
+            new LruCache<String, Bitmap>(MAX_MEMORY_IMAGE_BYTES) {
+                @Override
+                protected int sizeOf(String normalizedNumber, Bitmap bmp) {
+                    return bmp.getByteCount();
+                }
+            };
+
+    private final Object mLock = new Object();
+    /**
+     * Entries not written to the table yet, {@link #ABSENT} for removed ones, guarded by mLock.
+     * They are found there even if the in-memory LRU evicted them.
+     */
+    private final HashMap<String, Entry> mPendingEntries = new HashMap<String, Entry>();
+    /** Incremented by every change, guarded by mLock. */
+    private int mChangeCount;
+
+    /**
+     * Number of rows in the table, -1 until counted, only used on the write thread. Replaced
+     * rows are counted as added, so the table is counted again before evicting.
+     */
+    private long mRowCount = -1;
+    /** Time the expired results were last deleted, only used on the write thread. */
+    private long mLastExpiryMillis;
+
+    private volatile boolean mServeStale;
+
+    /** Outcomes of the reads of the cache, for {@link #dump}. */
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mStaleHits = new AtomicInteger();
+    private final AtomicInteger mNegativeHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mImagesCached = new AtomicInteger();
+    private final AtomicLong mProvidedImageBytes = new AtomicLong();
+    private final AtomicLong mCachedImageBytes = new AtomicLong();
+    private final AtomicLong mImageFileBytes = new AtomicLong();
+    private final AtomicInteger mImageMemoryHits = new AtomicInteger();
+    private final AtomicInteger mImageDecodes = new AtomicInteger();
+
+    /**
+     * Result read from the cache.
+     */
+    public static final class CachedResult {
+        /** The cached contact, {@link ContactInfo#EMPTY} if the lookup found nothing. */
+        public final ContactInfo info;
+        /** Whether the result expired, and should be looked up again. */
+        public final boolean stale;
+
+        private CachedResult(ContactInfo info, boolean stale) {
+            this.info = info;
+            this.stale = stale;
+        }
+    }
+
+    public static synchronized LookupCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            sInstance = new LookupCache(appContext, DATABASE_NAME, executor);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns a new instance for unit tests. The database will be created in memory.
+     */
+    @VisibleForTesting
+    static LookupCache getNewInstanceForTest(Context context, Executor writeExecutor) {
+        return new LookupCache(context, null, writeExecutor);
+    }
+
+    @VisibleForTesting
+    LookupCache(Context context, String databaseName, Executor writeExecutor) {
+        mContext = context;
+        mDatabaseHelper = new DatabaseHelper(context, databaseName);
+        mWriteExecutor = writeExecutor;
+        mServeStale = SystemProperties.getBoolean(SERVE_STALE_PROPERTY, true);
+    }
+
+    /**
+     * Chooses whether expired found results are served while they are looked up again, or are
+     * treated as missing.
+     */
+    @VisibleForTesting
+    void setServeStale(boolean serveStale) {
+        mServeStale = serveStale;
+    }
 
     public static boolean hasCachedContact(Context context, String number) {
+        return getCachedContact(context, number) != null;
+    }
+
+    public static void cacheContact(Context context, ContactInfo info) {
+        if (info == null || info.normalizedNumber == null || ContactInfo.EMPTY.equals(info)) {
+            return;
+        }
+        getInstance(context).put(info, System.currentTimeMillis());
+    }
+
+    /**
+     * Records that a provider found nothing for a number, so that the provider is not asked
+     * again before the given time to live.
+     */
+    public static void cacheNegativeResult(Context context, String normalizedNumber,
+            String provider, long ttlMillis) {
+        if (normalizedNumber == null) {
+            return;
+        }
+        getInstance(context).putNegative(normalizedNumber, provider, ttlMillis,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the cached result for a number, or null if the number must be looked up.
+     *
+     * @param provider The reverse lookup provider. Only the negative results of this provider
+     *     are returned.
+     */
+    public static CachedResult getCachedResult(Context context, String number,
+            String provider) {
+        String normalizedNumber = formatE164(context, number);
+
+        if (normalizedNumber == null) {
+            return null;
+        }
+
+        return getInstance(context).get(normalizedNumber, provider, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the cached contact found for a number, or null if there is none.
+     */
+    public static ContactInfo getCachedContact(Context context, String number) {
+        CachedResult result = getCachedResult(context, number, null);
+        return result != null ? result.info : null;
+    }
+
+    public static void deleteCachedContacts(Context context) {
+        getInstance(context).clear();
+    }
+
+    public static void deleteCachedContact(
+            Context context, String normalizedNumber) {
+        getInstance(context).remove(normalizedNumber);
+    }
+
+    public static boolean hasCachedImage(Context context, String number) {
         String normalizedNumber = formatE164(context, number);
 
         if (normalizedNumber == null) {
             return false;
         }
 
-        File file = getFilePath(context, normalizedNumber);
+        File file = getImagePath(context, normalizedNumber);
         return file.exists();
     }
 
-    public static void cacheContact(Context context, ContactInfo info) {
-        File file = getFilePath(context, info.normalizedNumber);
+    /**
+     * Caches the image of a number, scaled down to the largest size it is displayed at.
+     *
+     * @return The cached image, or null if the image was null
+     */
+    public static Bitmap cacheImage(Context context,
+            String normalizedNumber, Bitmap bmp) {
+        if (bmp == null) {
+            Log.e(TAG, "Failed to cache image");
+            return null;
+        }
+
+        return getInstance(context).putImage(normalizedNumber, bmp, getMaxImageSize(context));
+    }
 
-        if (file.exists()) {
-            file.delete();
+    /**
+     * Returns the cached image of a number, decoding it only if it is not in memory.
+     */
+    public static Bitmap getCachedImage(Context context, String normalizedNumber) {
+        return getInstance(context).getImage(normalizedNumber, getMaxImageSize(context));
+    }
+
+    /**
+     * Returns the largest width and height images are displayed at. The in-call UI shows the
+     * photo across the width of the screen, while the call log shows small thumbnails.
+     */
+    @VisibleForTesting
+    static int getMaxImageSize(Context context) {
+        final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        return Math.min(metrics.widthPixels, metrics.heightPixels);
+    }
+
+    private static String formatE164(Context context, String number) {
+        String countryIso = ((TelephonyManager) context.getSystemService(
+                Context.TELEPHONY_SERVICE)).getSimCountryIso().toUpperCase();
+        return PhoneNumberUtils.formatNumberToE164(number, countryIso);
+    }
+
+    private static File getCacheDir(Context context) {
+        File dir = new File(context.getCacheDir()
+                + File.separator + "lookup");
+
+        if (!dir.exists()) {
+            dir.mkdirs();
         }
 
-        FileOutputStream out = null;
-        JsonWriter writer = null;
+        return dir;
+    }
 
-        try {
-            out = new FileOutputStream(file);
-            writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
-            writer.setIndent("  ");
-            List messages = new ArrayList();
-
-            writer.beginObject();
-            if (info.name != null) writer.name(NAME).value(info.name);
-            writer.name(TYPE).value(info.type);
-            if (info.label != null) writer.name(LABEL).value(info.label);
-            if (info.number != null) writer.name(NUMBER).value(info.number);
-            if (info.formattedNumber != null) {
-                writer.name(FORMATTED_NUMBER).value(info.formattedNumber);
+    public static File getImagePath(Context context, String normalizedNumber) {
+        return new File(getCacheDir(context), normalizedNumber + ".webp");
+    }
+
+    /**
+     * Returns the cached result for a number in E.164 form, or null if nothing valid is cached.
+     *
+     * @param provider The provider whose negative results are returned, null for none.
+     */
+    @VisibleForTesting
+    CachedResult get(String normalizedNumber, String provider, long nowMillis) {
+        final Entry entry = getEntry(normalizedNumber);
+        if (entry != ABSENT) {
+            if (entry.negative) {
+                // Another provider may know the number
+                if (entry.expiresMillis > nowMillis && provider != null
+                        && provider.equals(entry.provider)) {
+                    mNegativeHits.incrementAndGet();
+                    return new CachedResult(ContactInfo.EMPTY, false);
+                }
+            } else if (entry.expiresMillis > nowMillis) {
+                mHits.incrementAndGet();
+                return new CachedResult(entry.toContactInfo(normalizedNumber), false);
+            } else if (mServeStale && entry.expiresMillis + MAX_STALE_MILLIS > nowMillis) {
+                mStaleHits.incrementAndGet();
+                return new CachedResult(entry.toContactInfo(normalizedNumber), true);
+            }
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    @VisibleForTesting
+    void put(ContactInfo info, long nowMillis) {
+        final Entry entry = new Entry(info, nowMillis + POSITIVE_TTL_MILLIS);
+        write(info.normalizedNumber, entry, nowMillis);
+    }
+
+    @VisibleForTesting
+    void putNegative(String normalizedNumber, String provider, long ttlMillis, long nowMillis) {
+        final Entry entry = new Entry();
+        entry.negative = true;
+        entry.provider = provider;
+        entry.expiresMillis = nowMillis + ttlMillis;
+        write(normalizedNumber, entry, nowMillis);
+    }
+
+    /**
+     * Returns the entry of a number from the in-memory LRU, or from the table if it is not
+     * there, {@link #ABSENT} if there is none.
+     */
+    private Entry getEntry(String normalizedNumber) {
+        Entry entry = mMemoryCache.get(normalizedNumber);
+        if (entry != null) {
+            return entry;
+        }
+
+        final int changeCount;
+        synchronized (mLock) {
+            entry = mPendingEntries.get(normalizedNumber);
+            changeCount = mChangeCount;
+        }
+        if (entry == null) {
+            entry = query(normalizedNumber);
+            // The entry read is only kept if nothing changed while it was read
+            synchronized (mLock) {
+                if (changeCount == mChangeCount) {
+                    mMemoryCache.put(normalizedNumber, entry);
+                }
             }
-            if (info.normalizedNumber != null) {
-                writer.name(NORMALIZED_NUMBER).value(info.normalizedNumber);
+        }
+        return entry;
+    }
+
+    private void write(final String normalizedNumber, final Entry entry,
+            final long nowMillis) {
+        final ContentValues values = entry.toContentValues(normalizedNumber);
+        values.put(Columns.CACHED_MILLIS, nowMillis);
+        change(normalizedNumber, entry, new Runnable() {
+            @Override
+            public void run() {
+                final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    db.replace(TABLE, null, values);
+                    mRowCount = mRowCount < 0
+                            ? DatabaseUtils.queryNumEntries(db, TABLE) : mRowCount + 1;
+                    if (mRowCount > MAX_ROWS) {
+                        mRowCount = DatabaseUtils.queryNumEntries(db, TABLE);
+                    }
+                    if (mRowCount > MAX_ROWS
+                            || nowMillis - mLastExpiryMillis >= EXPIRY_INTERVAL_MILLIS) {
+                        evict(db, nowMillis);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
             }
-            writer.name(PHOTO_ID).value(info.photoId);
+        });
+    }
 
-            if (info.lookupUri != null) {
-                writer.name(LOOKUP_URI).value(info.lookupUri.toString());
+    /**
+     * Replaces the entry of a number in memory, and runs the given change of the table on the
+     * write thread. Until it is written, the entry is kept in {@link #mPendingEntries}.
+     */
+    private void change(final String normalizedNumber, final Entry entry,
+            final Runnable databaseChange) {
+        synchronized (mLock) {
+            mChangeCount++;
+            mMemoryCache.put(normalizedNumber, entry);
+            mPendingEntries.put(normalizedNumber, entry);
+        }
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    databaseChange.run();
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Failed to update the lookup cache", e);
+                } finally {
+                    synchronized (mLock) {
+                        if (mPendingEntries.get(normalizedNumber) == entry) {
+                            mPendingEntries.remove(normalizedNumber);
+                        }
+                    }
+                }
             }
+        });
+    }
 
-            // We do not save the photo URI. If there's a cached image, that
-            // will be used when the contact is retrieved. Otherwise, photoUri
-            // will be set to null.
+    /**
+     * Adds the cached image of a number to its cached result. The lookup URI gets the image URI
+     * in its fragment here, rather than every time the result is read.
+     */
+    private void setHasImage(final String normalizedNumber) {
+        final Entry entry = getEntry(normalizedNumber);
+        if (entry == ABSENT || entry.negative || entry.hasImage) {
+            return;
+        }
+
+        final Entry updated = entry.copy();
+        updated.hasImage = true;
+        if (updated.lookupUri != null) {
+            final Uri lookupUri = Uri.parse(updated.lookupUri);
+            final String json = lookupUri.getEncodedFragment();
+            if (json != null) {
+                try {
+                    JSONObject jsonObj = new JSONObject(json);
+                    jsonObj.putOpt(Contacts.PHOTO_URI,
+                            getImageUri(normalizedNumber).toString());
+                    updated.lookupUri = lookupUri.buildUpon()
+                            .encodedFragment(jsonObj.toString())
+                            .build().toString();
+                } catch (JSONException e) {
+                    Log.e(TAG, "Failed to add image URI to json", e);
+                }
+            }
+        }
+
+        final ContentValues values = new ContentValues();
+        values.put(Columns.HAS_IMAGE, 1);
+        values.put(Columns.LOOKUP_URI, updated.lookupUri);
+        change(normalizedNumber, updated, new Runnable() {
+            @Override
+            public void run() {
+                mDatabaseHelper.getWritableDatabase().update(TABLE, values,
+                        Columns.NUMBER + "=?", new String[] {normalizedNumber});
+            }
+        });
+    }
+
+    @VisibleForTesting
+    Bitmap putImage(String normalizedNumber, Bitmap bmp, int maxSize) {
+        final Bitmap scaled = scaleImage(bmp, maxSize);
+        final File image = getImagePath(mContext, normalizedNumber);
+
+        FileOutputStream out = null;
 
-            writer.endObject();
-        } catch (IOException e) {
-            e.printStackTrace();
+        try {
+            out = new FileOutputStream(image);
+            scaled.compress(Bitmap.CompressFormat.WEBP, IMAGE_QUALITY, out);
+            setHasImage(normalizedNumber);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to cache image", e);
         } finally {
-            IoUtils.closeQuietly(writer);
             IoUtils.closeQuietly(out);
         }
-    }
 
-    public static ContactInfo getCachedContact(Context context, String number) {
-        String normalizedNumber = formatE164(context, number);
+        mImageCache.put(normalizedNumber, scaled);
+        mImagesCached.incrementAndGet();
+        mProvidedImageBytes.addAndGet(bmp.getByteCount());
+        mCachedImageBytes.addAndGet(scaled.getByteCount());
+        mImageFileBytes.addAndGet(image.length());
+        return scaled;
+    }
 
+    @VisibleForTesting
+    Bitmap getImage(String normalizedNumber, int maxSize) {
         if (normalizedNumber == null) {
             return null;
         }
 
-        File file = getFilePath(context, normalizedNumber);
-        if (!file.exists()) {
-            // Whatever is calling this should probably check anyway
+        Bitmap bmp = mImageCache.get(normalizedNumber);
+        if (bmp != null) {
+            mImageMemoryHits.incrementAndGet();
+            return bmp;
+        }
+
+        final File image = getImagePath(mContext, normalizedNumber);
+        if (!image.exists()) {
             return null;
         }
 
-        ContactInfo info = new ContactInfo();
+        // Images cached before they were scaled down are subsampled while being decoded
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getPath(), options);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, maxSize);
+        // Opaque images are decoded to RGB_565, the others keep their alpha channel
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        bmp = BitmapFactory.decodeFile(image.getPath(), options);
+        if (bmp != null) {
+            mImageDecodes.incrementAndGet();
+            mImageCache.put(normalizedNumber, bmp);
+        }
+        return bmp;
+    }
 
-        FileInputStream in = null;
-        JsonReader reader = null;
+    /**
+     * Scales an image down to fit in a square of the given size. Opaque images use RGB_565,
+     * which takes half the memory of ARGB_8888.
+     *
+     * @return The image itself if it already fits and has the right configuration
+     */
+    @VisibleForTesting
+    static Bitmap scaleImage(Bitmap bmp, int maxSize) {
+        final int width = bmp.getWidth();
+        final int height = bmp.getHeight();
+        final float scale = Math.min(1f, (float) maxSize / Math.max(width, height));
+        final Bitmap.Config config = bmp.hasAlpha()
+                ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        if (scale == 1f && bmp.getConfig() == config) {
+            return bmp;
+        }
 
-        try {
-            in = new FileInputStream(file);
-            reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
-
-            reader.beginObject();
-            while (reader.hasNext()) {
-                String name = reader.nextName();
-
-                if (NAME.equals(name)) {
-                    info.name = reader.nextString();
-                } else if (TYPE.equals(name)) {
-                    info.type = reader.nextInt();
-                } else if (LABEL.equals(name)) {
-                    info.label = reader.nextString();
-                } else if (NUMBER.equals(name)) {
-                    info.number = reader.nextString();
-                } else if (FORMATTED_NUMBER.equals(name)) {
-                    info.formattedNumber = reader.nextString();
-                } else if (NORMALIZED_NUMBER.equals(name)) {
-                    info.normalizedNumber = reader.nextString();
-                } else if (PHOTO_ID.equals(name)) {
-                    info.photoId = reader.nextInt();
-                } else if (LOOKUP_URI.equals(name)) {
-                    Uri lookupUri = Uri.parse(reader.nextString());
-
-                    if (hasCachedImage(context, normalizedNumber)) {
-                        // Insert cached photo URI
-                        Uri image = Uri.withAppendedPath(
-                                LookupProvider.IMAGE_CACHE_URI,
-                                Uri.encode(normalizedNumber));
-
-                        String json = lookupUri.getEncodedFragment();
-                        if (json != null) {
-                            try {
-                                JSONObject jsonObj = new JSONObject(json);
-                                jsonObj.putOpt(Contacts.PHOTO_URI, image.toString());
-                                lookupUri = lookupUri.buildUpon()
-                                        .encodedFragment(jsonObj.toString())
-                                        .build();
-                            } catch (JSONException e) {
-                                Log.e(TAG, "Failed to add image URI to json", e);
-                            }
-                        }
+        final int scaledWidth = Math.max(1, Math.round(width * scale));
+        final int scaledHeight = Math.max(1, Math.round(height * scale));
+        final Bitmap scaled = Bitmap.createBitmap(scaledWidth, scaledHeight, config);
+        final Canvas canvas = new Canvas(scaled);
+        canvas.drawBitmap(bmp, null, new Rect(0, 0, scaledWidth, scaledHeight),
+                new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+        canvas.setBitmap(null);
+        return scaled;
+    }
 
-                        info.photoUri = image;
-                    }
+    /**
+     * Returns the largest power of two an image can be subsampled by while still covering a
+     * square of the given size.
+     */
+    @VisibleForTesting
+    static int getSampleSize(int width, int height, int maxSize) {
+        int sampleSize = 1;
+        while (Math.max(width, height) / (sampleSize * 2) >= maxSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void remove(final String normalizedNumber) {
+        mImageCache.remove(normalizedNumber);
+        change(normalizedNumber, ABSENT, new Runnable() {
+            @Override
+            public void run() {
+                final int deleted = mDatabaseHelper.getWritableDatabase().delete(TABLE,
+                        Columns.NUMBER + "=?", new String[] {normalizedNumber});
+                if (mRowCount > 0) {
+                    mRowCount -= deleted;
+                }
+                getImagePath(mContext, normalizedNumber).delete();
+            }
+        });
+    }
+
+    private void clear() {
+        synchronized (mLock) {
+            mChangeCount++;
+            mMemoryCache.evictAll();
+            mPendingEntries.clear();
+        }
+        mImageCache.evictAll();
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mDatabaseHelper.getWritableDatabase().delete(TABLE, null, null);
+                    mRowCount = 0;
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Failed to delete cached lookup results", e);
+                }
+                deleteCacheFiles(mContext);
+            }
+        });
+    }
+
+    /**
+     * Deletes the expired results, found ones once they are too stale to be served, and the
+     * oldest ones beyond {@link #MAX_ROWS}, along with their images. Called once a day, or
+     * when the table is full.
+     */
+    private void evict(SQLiteDatabase db, long nowMillis) {
+        final String expiresMillis = Columns.EXPIRES_MILLIS + " + (" + Columns.NEGATIVE +
+                " = 0) * " + MAX_STALE_MILLIS;
+        final ArrayList<String> evicted = new ArrayList<String>();
+        readEvicted(db.query(TABLE, new String[] {Columns.NUMBER, Columns.HAS_IMAGE},
+                expiresMillis + " <= " + nowMillis, null, null, null, null), evicted);
+        final long overflow = mRowCount - evicted.size() - MAX_ROWS;
+        if (overflow > 0) {
+            readEvicted(db.query(TABLE, new String[] {Columns.NUMBER, Columns.HAS_IMAGE},
+                    expiresMillis + " > " + nowMillis, null, null, null,
+                    Columns.CACHED_MILLIS, String.valueOf(overflow)), evicted);
+        }
+        mLastExpiryMillis = nowMillis;
+        if (evicted.isEmpty()) {
+            return;
+        }
 
-                    info.lookupUri = lookupUri;
+        final SQLiteStatement delete = db.compileStatement(
+                "DELETE FROM " + TABLE + " WHERE " + Columns.NUMBER + "=?");
+        try {
+            for (String number : evicted) {
+                delete.bindString(1, number);
+                delete.executeUpdateDelete();
+            }
+        } finally {
+            delete.close();
+        }
+        mRowCount -= evicted.size();
+        synchronized (mLock) {
+            mChangeCount++;
+            for (String number : evicted) {
+                if (!mPendingEntries.containsKey(number)) {
+                    mMemoryCache.remove(number);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the numbers of a cursor over the number and image columns to the evicted ones, and
+     * deletes their images.
+     */
+    private void readEvicted(Cursor cursor, ArrayList<String> evicted) {
+        try {
+            while (cursor.moveToNext()) {
+                final String number = cursor.getString(0);
+                evicted.add(number);
+                if (cursor.getInt(1) != 0) {
+                    getImagePath(mContext, number).delete();
+                    mImageCache.remove(number);
                 }
             }
-            reader.endObject();
-        } catch (IOException e) {
-            e.printStackTrace();
         } finally {
-            IoUtils.closeQuietly(reader);
-            IoUtils.closeQuietly(in);
+            cursor.close();
         }
+    }
 
-        return info;
+    /**
+     * Reads the entry of a number from the table, or {@link #ABSENT} if there is none.
+     */
+    private Entry query(String normalizedNumber) {
+        try {
+            final Cursor cursor = mDatabaseHelper.getReadableDatabase().query(TABLE, PROJECTION,
+                    Columns.NUMBER + "=?", new String[] {normalizedNumber}, null, null, null);
+            try {
+                return cursor.moveToFirst() ? new Entry(cursor) : ABSENT;
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to read cached lookup result", e);
+            return ABSENT;
+        }
     }
 
-    public static void deleteCachedContacts(Context context) {
+    /**
+     * Returns the size of the database file, or 0 for an in-memory database.
+     */
+    @VisibleForTesting
+    long getDatabaseSize() {
+        final String path = mDatabaseHelper.getReadableDatabase().getPath();
+        return path != null ? new File(path).length() : 0;
+    }
+
+    @VisibleForTesting
+    void close() {
+        mDatabaseHelper.close();
+    }
+
+    /**
+     * Prints the outcomes of the reads of the cache, and its size.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("Reverse lookup cache:");
+        pw.println("  hits=" + mHits.get() + " staleHits=" + mStaleHits.get()
+                + " negativeHits=" + mNegativeHits.get() + " misses=" + mMisses.get());
+        long rows = 0;
+        try {
+            rows = DatabaseUtils.queryNumEntries(mDatabaseHelper.getReadableDatabase(), TABLE);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to count cached lookup results", e);
+        }
+        pw.println("  rows=" + rows + " memoryEntries=" + mMemoryCache.size()
+                + " serveStale=" + mServeStale);
+        final int images = mImagesCached.get();
+        if (images > 0) {
+            pw.println("  imagesCached=" + images
+                    + " providedBytesPerImage=" + mProvidedImageBytes.get() / images
+                    + " cachedBytesPerImage=" + mCachedImageBytes.get() / images
+                    + " fileBytesPerImage=" + mImageFileBytes.get() / images);
+        }
+        pw.println("  imageMemoryHits=" + mImageMemoryHits.get()
+                + " imageDecodes=" + mImageDecodes.get()
+                + " imageMemoryBytes=" + mImageCache.size());
+    }
+
+    private static Uri getImageUri(String normalizedNumber) {
+        return Uri.withAppendedPath(LookupProvider.IMAGE_CACHE_URI,
+                Uri.encode(normalizedNumber));
+    }
+
+    /**
+     * Deletes the files of the cache directory. Results cached as one JSON file per number by
+     * earlier versions are removed along with the images.
+     */
+    private static void deleteCacheFiles(Context context) {
         File dir = new File(context.getCacheDir()
                 + File.separator + "lookup");
 
@@ -216,88 +809,146 @@ public class LookupCache {
         }
     }
 
-    public static void deleteCachedContact(
-            Context context, String normalizedNumber) {
-        File f = getFilePath(context, normalizedNumber);
-        if (f.exists()) {
-            f.delete();
+    /**
+     * Cached result of a number, as stored in a row of the table.
+     */
+    private static class Entry {
+        String name;
+        int type;
+        String label;
+        String number;
+        String formattedNumber;
+        long photoId;
+        String lookupUri;
+        boolean hasImage;
+        boolean negative;
+        String provider;
+        long expiresMillis;
+
+        Entry() {
         }
 
-        f = getImagePath(context, normalizedNumber);
-        if (f.exists()) {
-            f.delete();
+        Entry(ContactInfo info, long expiresMillis) {
+            name = info.name;
+            type = info.type;
+            label = info.label;
+            number = info.number;
+            formattedNumber = info.formattedNumber;
+            photoId = info.photoId;
+            lookupUri = info.lookupUri != null ? info.lookupUri.toString() : null;
+            this.expiresMillis = expiresMillis;
         }
-    }
 
-    public static boolean hasCachedImage(Context context, String number) {
-        String normalizedNumber = formatE164(context, number);
-
-        if (normalizedNumber == null) {
-            return false;
+        Entry(Cursor cursor) {
+            name = cursor.getString(0);
+            type = cursor.getInt(1);
+            label = cursor.getString(2);
+            number = cursor.getString(3);
+            formattedNumber = cursor.getString(4);
+            photoId = cursor.getLong(5);
+            lookupUri = cursor.getString(6);
+            hasImage = cursor.getInt(7) != 0;
+            negative = cursor.getInt(8) != 0;
+            provider = cursor.getString(9);
+            expiresMillis = cursor.getLong(10);
         }
 
-        File file = getImagePath(context, normalizedNumber);
-        return file.exists();
-    }
-
-    public static void cacheImage(Context context,
-            String normalizedNumber, Bitmap bmp) {
-        // Compress the cached images to save space
-        if (bmp == null) {
-            Log.e(TAG, "Failed to cache image");
-            return;
+        Entry copy() {
+            final Entry entry = new Entry();
+            entry.name = name;
+            entry.type = type;
+            entry.label = label;
+            entry.number = number;
+            entry.formattedNumber = formattedNumber;
+            entry.photoId = photoId;
+            entry.lookupUri = lookupUri;
+            entry.hasImage = hasImage;
+            entry.negative = negative;
+            entry.provider = provider;
+            entry.expiresMillis = expiresMillis;
+            return entry;
         }
 
-        File image = getImagePath(context, normalizedNumber);
-
-        FileOutputStream out = null;
-
-        try {
-            out = new FileOutputStream(image);
-            bmp.compress(Bitmap.CompressFormat.WEBP, 100, out);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            IoUtils.closeQuietly(out);
+        /**
+         * Returns a new contact for the entry, which callers are free to modify.
+         */
+        ContactInfo toContactInfo(String normalizedNumber) {
+            final ContactInfo info = new ContactInfo();
+            info.name = name;
+            info.type = type;
+            info.label = label;
+            info.number = number;
+            info.formattedNumber = formattedNumber;
+            info.normalizedNumber = normalizedNumber;
+            info.photoId = photoId;
+            if (lookupUri != null) {
+                info.lookupUri = Uri.parse(lookupUri);
+            }
+            // We do not save the photo URI. If there's a cached image, that
+            // will be used when the contact is retrieved. Otherwise, photoUri
+            // will be set to null.
+            if (hasImage) {
+                info.photoUri = getImageUri(normalizedNumber);
+            }
+            return info;
         }
-    }
 
-    public static Bitmap getCachedImage(Context context, String normalizedNumber) {
-        File image = getImagePath(context, normalizedNumber);
-        if (!image.exists()) {
-            return null;
+        ContentValues toContentValues(String normalizedNumber) {
+            final ContentValues values = new ContentValues();
+            values.put(Columns.NUMBER, normalizedNumber);
+            values.put(Columns.NAME, name);
+            values.put(Columns.TYPE, type);
+            values.put(Columns.LABEL, label);
+            values.put(Columns.RAW_NUMBER, number);
+            values.put(Columns.FORMATTED_NUMBER, formattedNumber);
+            values.put(Columns.PHOTO_ID, photoId);
+            values.put(Columns.LOOKUP_URI, lookupUri);
+            values.put(Columns.HAS_IMAGE, hasImage ? 1 : 0);
+            values.put(Columns.NEGATIVE, negative ? 1 : 0);
+            values.put(Columns.PROVIDER, provider);
+            values.put(Columns.EXPIRES_MILLIS, expiresMillis);
+            return values;
         }
-
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-        return BitmapFactory.decodeFile(image.getPath(), options);
     }
 
-    private static String formatE164(Context context, String number) {
-        String countryIso = ((TelephonyManager) context.getSystemService(
-                Context.TELEPHONY_SERVICE)).getSimCountryIso().toUpperCase();
-        return PhoneNumberUtils.formatNumberToE164(number, countryIso);
-    }
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        private final Context mContext;
 
-    private static File getFilePath(Context context, String normalizedNumber) {
-        File dir = new File(context.getCacheDir()
-                + File.separator + "lookup");
-
-        if (!dir.exists()) {
-            dir.mkdirs();
+        DatabaseHelper(Context context, String databaseName) {
+            super(context, databaseName, null, DATABASE_VERSION);
+            mContext = context;
         }
 
-        return new File(dir, normalizedNumber + ".json");
-    }
-
-    public static File getImagePath(Context context, String normalizedNumber) {
-        File dir = new File(context.getCacheDir()
-                + File.separator + "lookup");
-
-        if (!dir.exists()) {
-            dir.mkdirs();
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " (" +
+                    Columns.NUMBER + " TEXT PRIMARY KEY, " +
+                    Columns.NAME + " TEXT, " +
+                    Columns.TYPE + " INTEGER, " +
+                    Columns.LABEL + " TEXT, " +
+                    Columns.RAW_NUMBER + " TEXT, " +
+                    Columns.FORMATTED_NUMBER + " TEXT, " +
+                    Columns.PHOTO_ID + " INTEGER, " +
+                    Columns.LOOKUP_URI + " TEXT, " +
+                    Columns.HAS_IMAGE + " INTEGER DEFAULT 0, " +
+                    Columns.NEGATIVE + " INTEGER DEFAULT 0, " +
+                    Columns.PROVIDER + " TEXT, " +
+                    Columns.CACHED_MILLIS + " INTEGER, " +
+                    Columns.EXPIRES_MILLIS + " INTEGER" +
+                    ");");
+            db.execSQL("CREATE INDEX " + TABLE + "_cached_index ON " + TABLE + " (" +
+                    Columns.CACHED_MILLIS + ");");
+
+            if (getDatabaseName() != null) {
+                // Results cached by earlier versions have no entry, nor do their images
+                deleteCacheFiles(mContext);
+            }
         }
 
-        return new File(dir, normalizedNumber + ".webp");
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            onCreate(db);
+        }
     }
 }
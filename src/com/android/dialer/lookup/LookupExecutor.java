@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.dialer.calllog.ContactInfo;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the forward lookups of {@link LookupProvider} on a fixed pool of worker threads.
+ *
+ * Every keystroke in the dialer search can start a lookup. Lookups with the same type, filter
+ * and location share one future instead of querying the provider again. A lookup that has not
+ * completed yet is cancelled when a lookup of the same type and location extends its filter,
+ * since its results would replace the ones being typed for. When the queue is full, the oldest
+ * queued lookup is cancelled, like the oldest thread was before.
+ */
+class LookupExecutor {
+    private static final String TAG = LookupExecutor.class.getSimpleName();
+
+    private static final boolean DEBUG = false;
+
+    /** Lookups running at the same time. */
+    @VisibleForTesting
+    static final int THREADS = 2;
+    /** Lookups waiting for a thread before the oldest of them is cancelled. */
+    @VisibleForTesting
+    static final int MAX_QUEUED = 6;
+    /** Threads are released after staying idle that long. */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    /** Lookups that did not complete yet, guarded by itself. */
+    private final HashMap<Key, Task> mInFlight = new HashMap<Key, Task>();
+
+    private final AtomicInteger mThreadsCreated = new AtomicInteger();
+    private final AtomicInteger mSubmitted = new AtomicInteger();
+    private final AtomicInteger mCoalesced = new AtomicInteger();
+    private final AtomicInteger mSuperseded = new AtomicInteger();
+    private final AtomicInteger mDropped = new AtomicInteger();
+    private final AtomicInteger mTimedOut = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicInteger mCompleted = new AtomicInteger();
+    private final AtomicLong mTotalLatencyMillis = new AtomicLong();
+    private final AtomicLong mMaxLatencyMillis = new AtomicLong();
+
+    /**
+     * Identifies the results of a lookup. The location is rounded to about a hundred meters, as
+     * providers return the same places for locations closer than that.
+     */
+    static final class Key {
+        private static final double LOCATION_SCALE = 1000;
+
+        private final int mType;
+        private final String mFilter;
+        private final long mLatitude;
+        private final long mLongitude;
+
+        /**
+         * @param location Location the results depend on, or null if they do not.
+         */
+        Key(int type, String filter, Location location) {
+            mType = type;
+            mFilter = filter;
+            if (location != null) {
+                mLatitude = Math.round(location.getLatitude() * LOCATION_SCALE);
+                mLongitude = Math.round(location.getLongitude() * LOCATION_SCALE);
+            } else {
+                mLatitude = Long.MIN_VALUE;
+                mLongitude = Long.MIN_VALUE;
+            }
+        }
+
+        /**
+         * Returns whether the given lookup types more of the filter of this one, with the same
+         * type and location.
+         */
+        boolean isExtendedBy(Key other) {
+            return mType == other.mType && mLatitude == other.mLatitude
+                    && mLongitude == other.mLongitude
+                    && other.mFilter.length() > mFilter.length()
+                    && other.mFilter.startsWith(mFilter);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mType == other.mType && mLatitude == other.mLatitude
+                    && mLongitude == other.mLongitude && mFilter.equals(other.mFilter);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mType;
+            result = 31 * result + mFilter.hashCode();
+            result = 31 * result + (int) (mLatitude ^ (mLatitude >>> 32));
+            result = 31 * result + (int) (mLongitude ^ (mLongitude >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return mType + ":" + mFilter;
+        }
+    }
+
+    private final class Task extends FutureTask<ContactInfo[]> {
+        private final Key mKey;
+        /** Callers waiting for the results, guarded by mInFlight. */
+        private int mWaiters = 1;
+
+        public Task(Key key, Callable<ContactInfo[]> callable) {
+            super(callable);
+            mKey = key;
+        }
+
+        @Override
+        protected void done() {
+            synchronized (mInFlight) {
+                if (mInFlight.get(mKey) == this) {
+                    mInFlight.remove(mKey);
+                }
+            }
+        }
+    }
+
+    LookupExecutor() {
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "LookupWorker #" + mThreadsCreated.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable,
+                            ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            ((Future<?>) runnable).cancel(false);
+                            return;
+                        }
+                        final Runnable oldest = executor.getQueue().poll();
+                        if (oldest != null) {
+                            Log.w(TAG, "Too many lookups, canceling one");
+                            ((Future<?>) oldest).cancel(false);
+                            mDropped.incrementAndGet();
+                        }
+                        executor.execute(runnable);
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the results of a lookup, running it unless the same lookup is in flight already.
+     * Blocks the caller until the results are available.
+     *
+     * @param key Identifies the results
+     * @param callable Performs the lookup
+     * @param timeoutMillis Time to wait for the results
+     * @return The results, or null if the lookup failed, timed out or was superseded
+     */
+    ContactInfo[] execute(Key key, Callable<ContactInfo[]> callable, long timeoutMillis) {
+        final long start = SystemClock.elapsedRealtime();
+        mSubmitted.incrementAndGet();
+
+        Task task;
+        boolean created = false;
+        ArrayList<Task> superseded = null;
+        synchronized (mInFlight) {
+            task = mInFlight.get(key);
+            if (task != null) {
+                task.mWaiters++;
+                mCoalesced.incrementAndGet();
+            } else {
+                for (Task pending : mInFlight.values()) {
+                    if (pending.mKey.isExtendedBy(key)) {
+                        if (superseded == null) {
+                            superseded = new ArrayList<Task>();
+                        }
+                        superseded.add(pending);
+                    }
+                }
+                task = new Task(key, callable);
+                mInFlight.put(key, task);
+                created = true;
+            }
+        }
+
+        if (superseded != null) {
+            for (Task pending : superseded) {
+                if (pending.cancel(true)) {
+                    mExecutor.remove(pending);
+                    if (DEBUG) Log.v(TAG, "Lookup " + pending.mKey + " superseded by " + key);
+                    mSuperseded.incrementAndGet();
+                }
+            }
+        }
+        if (created) {
+            mExecutor.execute(task);
+            updateMax(mMaxQueueDepth, mExecutor.getQueue().size());
+        }
+
+        try {
+            final ContactInfo[] results = task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            final long latency = SystemClock.elapsedRealtime() - start;
+            mCompleted.incrementAndGet();
+            mTotalLatencyMillis.addAndGet(latency);
+            updateMax(mMaxLatencyMillis, latency);
+            return results;
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Lookup was interrupted: " + key);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Lookup threw an exception: " + key, e);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Lookup timed out: " + key);
+            mTimedOut.incrementAndGet();
+        } catch (CancellationException e) {
+            if (DEBUG) Log.v(TAG, "Lookup was cancelled: " + key);
+        } finally {
+            // The last caller to stop waiting cancels the lookup. It is removed from the lookups
+            // in flight first, under the same lock, so that no other caller can join it before
+            // it is cancelled.
+            boolean cancelled = false;
+            synchronized (mInFlight) {
+                if (--task.mWaiters == 0 && !task.isDone()) {
+                    if (mInFlight.get(key) == task) {
+                        mInFlight.remove(key);
+                    }
+                    cancelled = task.cancel(true);
+                }
+            }
+            if (cancelled) {
+                mExecutor.remove(task);
+            }
+        }
+
+        return null;
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    @VisibleForTesting
+    int getThreadsCreated() {
+        return mThreadsCreated.get();
+    }
+
+    @VisibleForTesting
+    int getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    @VisibleForTesting
+    int getSupersededCount() {
+        return mSuperseded.get();
+    }
+
+    @VisibleForTesting
+    int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * Returns the mean time callers waited for completed lookups.
+     */
+    @VisibleForTesting
+    long getAverageLatencyMillis() {
+        final int completed = mCompleted.get();
+        return completed == 0 ? 0 : mTotalLatencyMillis.get() / completed;
+    }
+
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Forward lookups:");
+        writer.println("  submitted=" + mSubmitted.get() + " coalesced=" + mCoalesced.get()
+                + " superseded=" + mSuperseded.get() + " dropped=" + mDropped.get()
+                + " timedOut=" + mTimedOut.get());
+        writer.println("  threadsCreated=" + mThreadsCreated.get()
+                + " activeThreads=" + mExecutor.getActiveCount()
+                + " queued=" + mExecutor.getQueue().size()
+                + " maxQueued=" + mMaxQueueDepth.get());
+        writer.println("  completed=" + mCompleted.get()
+                + " avgLatencyMillis=" + getAverageLatencyMillis()
+                + " maxLatencyMillis=" + mMaxLatencyMillis.get());
+    }
+}
@@ -43,16 +43,10 @@ import android.provider.Settings;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.io.PrintWriter;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.TimeUnit;
-import java.util.LinkedList;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -73,9 +67,11 @@ public class LookupProvider extends ContentProvider {
     public static final Uri IMAGE_CACHE_URI =
             Uri.withAppendedPath(AUTHORITY_URI, "images");
 
+    /** Time a query waits for the results of its lookup. */
+    private static final long LOOKUP_TIMEOUT_MILLIS = 10000;
+
     private static final UriMatcher sURIMatcher = new UriMatcher(-1);
-    private final LinkedList<FutureTask> mActiveTasks =
-            new LinkedList<FutureTask>();
+    private final LookupExecutor mExecutor = new LookupExecutor();
 
     private static final int NEARBY = 0;
     private static final int PEOPLE = 1;
@@ -87,43 +83,13 @@ public class LookupProvider extends ContentProvider {
         sURIMatcher.addURI(AUTHORITY, "images/*", IMAGE);
     }
 
-    private class FutureCallable<T> implements Callable<T> {
-        private final Callable<T> mCallable;
-        private volatile FutureTask<T> mFuture;
-
-        public FutureCallable(Callable<T> callable) {
-            mFuture = null;
-            mCallable = callable;
-        }
-
-        public T call() throws Exception {
-            Log.v(TAG, "Future called for " + Thread.currentThread().getName());
-
-            T result = mCallable.call();
-            if (mFuture == null) {
-                return result;
-            }
-
-            synchronized (mActiveTasks) {
-                mActiveTasks.remove(mFuture);
-            }
-
-            mFuture = null;
-            return result;
-        }
-
-        public void setFuture(FutureTask<T> future) {
-            mFuture = future;
-        }
-    }
-
     @Override
     public boolean onCreate() {
         return true;
     }
 
     @Override
-    public Cursor query(Uri uri, final String[] projection, String selection,
+    public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
         if (DEBUG) Log.v(TAG, "query: " + uri);
 
@@ -144,7 +110,7 @@ public class LookupProvider extends ContentProvider {
                 return null;
             }
 
-            final String filter = Uri.encode(uri.getLastPathSegment());
+            final String filter = uri.getLastPathSegment();
             String limit = uri.getQueryParameter(ContactsContract.LIMIT_PARAM_KEY);
 
             int maxResults = -1;
@@ -157,15 +123,21 @@ public class LookupProvider extends ContentProvider {
                 Log.e(TAG, "query: invalid limit parameter: '" + limit + "'");
             }
 
-            final int finalMaxResults = maxResults;
+            if (filter == null) {
+                return null;
+            }
 
-            return execute(new Callable<Cursor>() {
+            // Nearby places depend on the location, people do not
+            final LookupExecutor.Key key = new LookupExecutor.Key(match, filter,
+                    match == NEARBY ? lastLocation : null);
+            ContactInfo[] results = mExecutor.execute(key, new Callable<ContactInfo[]>() {
                 @Override
-                public Cursor call() {
-                    return handleFilter(match, projection, filter,
-                            finalMaxResults, lastLocation);
+                public ContactInfo[] call() {
+                    return handleFilter(match, filter, lastLocation);
                 }
-            }, "FilterThread");
+            }, LOOKUP_TIMEOUT_MILLIS);
+
+            return buildResultCursor(filter, results, maxResults);
         }
 
         return null;
@@ -226,6 +198,25 @@ public class LookupProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Dumps the state of the reverse lookup cache, of the forward lookups and of the HTTP
+     * requests, through
+     * adb shell dumpsys activity provider com.android.dialer/.lookup.LookupProvider
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        LookupCache.getInstance(getContext()).dump(writer);
+        mExecutor.dump(writer);
+        LookupUtils.dumpHttpStats(writer);
+        ReverseLookupService.dump(writer);
+        ReverseLookupPrewarmService.dump(writer);
+    }
+
+    @Override
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
     /**
      * Check if the location services is on.
      *
@@ -280,64 +271,64 @@ public class LookupProvider extends ContentProvider {
     }
 
     /**
-     * Process filter/query and perform the lookup.
+     * Perform the lookup of a filter/query.
      *
-     * @param projection Columns to include in query
+     * @param type Type of the lookup
      * @param filter String to lookup
-     * @param maxResults Maximum number of results
      * @param lastLocation Coordinates of last location query
-     * @return Cursor for the results
+     * @return Results of the lookup
      */
-    private Cursor handleFilter(int type, String[] projection, String filter,
-            int maxResults, Location lastLocation) {
+    private ContactInfo[] handleFilter(int type, String filter, Location lastLocation) {
         if (DEBUG) Log.v(TAG, "handleFilter(" + filter + ")");
 
-        if (filter != null) {
-            try {
-                filter = URLDecoder.decode(filter, "UTF-8");
-            } catch (UnsupportedEncodingException e) {
-            }
-
-            ContactInfo[] results = null;
-            if (type == NEARBY) {
-                ForwardLookup fl = ForwardLookup.getInstance(getContext());
-                results = fl.lookup(getContext(), filter, lastLocation);
-            } else if (type == PEOPLE) {
-                PeopleLookup pl = PeopleLookup.getInstance(getContext());
-                results = pl.lookup(getContext(), filter);
-            }
+        ContactInfo[] results = null;
+        if (type == NEARBY) {
+            ForwardLookup fl = ForwardLookup.getInstance(getContext());
+            results = fl.lookup(getContext(), filter, lastLocation);
+        } else if (type == PEOPLE) {
+            PeopleLookup pl = PeopleLookup.getInstance(getContext());
+            results = pl.lookup(getContext(), filter);
+        }
 
-            if (results == null || results.length == 0) {
-                if (DEBUG) Log.v(TAG, "handleFilter(" + filter + "): No results");
-                return null;
-            }
+        return results;
+    }
 
-            Cursor cur = null;
-            try {
-                cur = buildResultCursor(projection, results, maxResults);
+    /**
+     * Build the cursor of a query from the results of its lookup. Each query gets its own
+     * cursor, as queries can share the results of a lookup.
+     *
+     * @param filter String that was looked up
+     * @param results Results of the lookup
+     * @param maxResults Maximum number of results
+     * @return Cursor for the results
+     */
+    private Cursor buildResultCursor(String filter, ContactInfo[] results, int maxResults) {
+        if (results == null || results.length == 0) {
+            if (DEBUG) Log.v(TAG, "handleFilter(" + filter + "): No results");
+            return null;
+        }
 
-                if (DEBUG) Log.v(TAG, "handleFilter(" + filter + "): "
-                        + cur.getCount() + " matches");
-            } catch (JSONException e) {
-                Log.e(TAG, "JSON failure", e);
-            }
+        Cursor cur = null;
+        try {
+            cur = buildResultCursor(results, maxResults);
 
-            return cur;
+            if (DEBUG) Log.v(TAG, "handleFilter(" + filter + "): "
+                    + cur.getCount() + " matches");
+        } catch (JSONException e) {
+            Log.e(TAG, "JSON failure", e);
         }
 
-        return null;
+        return cur;
     }
 
     /**
      * Query results.
      *
-     * @param projection Columns to include in query
      * @param results Results for the forward lookup
      * @param maxResults Maximum number of rows/results to add to cursor
      * @return Cursor for forward lookup query results
      */
-    private Cursor buildResultCursor(String[] projection,
-            ContactInfo[] results, int maxResults)
+    private Cursor buildResultCursor(ContactInfo[] results, int maxResults)
             throws JSONException {
         // Extended directories always use this projection
         MatrixCursor cursor = new MatrixCursor(PhoneQuery.PROJECTION_PRIMARY);
@@ -413,48 +404,4 @@ public class LookupProvider extends ContentProvider {
             return null;
         }
     }
-
-    /**
-     * Execute thread that is killed after a specified amount of time.
-     *
-     * @param callable The thread
-     * @param name Name of the thread
-     * @return Instance of the thread
-     */
-    private <T> T execute(Callable<T> callable, String name) {
-        FutureCallable<T> futureCallable = new FutureCallable<T>(callable);
-        FutureTask<T> future = new FutureTask<T>(futureCallable);
-        futureCallable.setFuture(future);
-
-        synchronized (mActiveTasks) {
-            mActiveTasks.addLast(future);
-            Log.v(TAG, "Currently running tasks: " + mActiveTasks.size());
-
-            while (mActiveTasks.size() > 8) {
-                Log.w(TAG, "Too many tasks, canceling one");
-                mActiveTasks.removeFirst().cancel(true);
-            }
-        }
-
-        Log.v(TAG, "Starting task " + name);
-
-        new Thread(future, name).start();
-
-        try {
-            Log.v(TAG, "Getting future " + name);
-            return future.get(10000, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "Task was interrupted: " + name);
-            Thread.currentThread().interrupt();
-        } catch (ExecutionException e) {
-            Log.w(TAG, "Task threw an exception: " + name, e);
-        } catch (TimeoutException e) {
-            Log.w(TAG, "Task timed out: " + name);
-            future.cancel(true);
-        } catch (CancellationException e) {
-            Log.w(TAG, "Task was cancelled: " + name);
-        }
-
-        return null;
-    }
 }
@@ -20,8 +20,12 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.os.SystemProperties;
 import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public final class LookupSettings {
@@ -50,6 +54,16 @@ public final class LookupSettings {
     public static final String RLP_AUSKUNFT = "Auskunft";
     public static final String RLP_DEFAULT = RLP_OPENCNAM;
 
+    /**
+     * System property listing reverse lookup providers, separated by commas, that are queried in
+     * parallel with the chosen one. The chosen provider keeps the highest priority.
+     */
+    private static final String REVERSE_LOOKUP_FALLBACK_PROPERTY = "persist.dialer.rlp_fallback";
+    private static final String[] REVERSE_LOOKUP_PROVIDERS = {
+        RLP_OPENCNAM, RLP_WHITEPAGES, RLP_WHITEPAGES_CA, RLP_YELLOWPAGES, RLP_YELLOWPAGES_CA,
+        RLP_ZABASEARCH, RLP_CYNGN_CHINESE, RLP_DASTELEFONBUCH, RLP_GEBELD, RLP_AUSKUNFT
+    };
+
     private LookupSettings() {
     }
 
@@ -95,6 +109,35 @@ public final class LookupSettings {
         return provider;
     }
 
+    /**
+     * Returns the reverse lookup providers to query, by decreasing priority.
+     */
+    public static List<String> getReverseLookupProviders(Context context) {
+        List<String> providers = new ArrayList<String>();
+        providers.add(getReverseLookupProvider(context));
+
+        String fallback = SystemProperties.get(REVERSE_LOOKUP_FALLBACK_PROPERTY, "");
+        for (String provider : TextUtils.split(fallback, ",")) {
+            provider = provider.trim();
+            if (!isReverseLookupProvider(provider)) {
+                Log.w(TAG, "Unknown reverse lookup provider: " + provider);
+            } else if (!providers.contains(provider)) {
+                providers.add(provider);
+            }
+        }
+
+        return providers;
+    }
+
+    private static boolean isReverseLookupProvider(String provider) {
+        for (String known : REVERSE_LOOKUP_PROVIDERS) {
+            if (known.equals(provider)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static String getLookupProvider(Context context,
             String key, String defaultValue) {
         ContentResolver cr = context.getContentResolver();
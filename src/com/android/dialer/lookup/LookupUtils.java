@@ -16,22 +16,29 @@
 
 package com.android.dialer.lookup;
 
+import android.os.SystemClock;
 import android.text.Html;
+import android.util.LruCache;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,12 +46,106 @@ public class LookupUtils {
     private static final String USER_AGENT =
             "Mozilla/5.0 (X11; Linux x86_64; rv:26.0) Gecko/20100101 Firefox/26.0";
 
-    private static HttpURLConnection prepareHttpConnection(String url, Map<String, String> headers)
-            throws IOException {
+    /** Time to establish a connection before a request fails. */
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    /** Default time to wait for data before a request fails. */
+    public static final int READ_TIMEOUT_MILLIS = 15000;
+
+    /** Responses of conditional requests kept to be revalidated, in bytes. */
+    private static final int CONDITIONAL_CACHE_BYTES = 256 * 1024;
+
+    private static final LruCache<String, CachedResponse> sConditionalCache =
+            new LruCache<String, CachedResponse>(CONDITIONAL_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(String url, CachedResponse response) {
+                    return response.body.length;
+                }
+            };
+
+    private static final int MAX_PATTERNS = 64;
+
+    private static final LruCache<String, Pattern> sPatterns =
+            new LruCache<String, Pattern>(MAX_PATTERNS);
+
+    /** Statistics of the requests to each host, guarded by itself. */
+    private static final HashMap<String, HostStats> sHostStats =
+            new HashMap<String, HostStats>();
+
+    /**
+     * Parses the body of a response while it is received.
+     */
+    public interface ResponseParser<T> {
+        /**
+         * @param in The decompressed body, closed by the caller
+         * @param charset The charset of the body
+         */
+        T parse(InputStream in, Charset charset) throws IOException;
+    }
+
+    private static final class CachedResponse {
+        final String etag;
+        final String lastModified;
+        final Charset charset;
+        final byte[] body;
+
+        CachedResponse(String etag, String lastModified, Charset charset, byte[] body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.charset = charset;
+            this.body = body;
+        }
+    }
+
+    private static final class HostStats {
+        int requests;
+        int failures;
+        int notModified;
+        long wireBytes;
+        long bodyBytes;
+        long totalMillis;
+        long maxMillis;
+    }
+
+    /**
+     * Counts the bytes read from the network, before they are decompressed.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    private static HttpURLConnection prepareHttpConnection(String url, Map<String, String> headers,
+            int timeoutMillis) throws IOException {
         // open connection
         HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
+        urlConnection.setConnectTimeout(Math.min(CONNECT_TIMEOUT_MILLIS, timeoutMillis));
+        urlConnection.setReadTimeout(timeoutMillis);
         // set user agent (default value is null)
         urlConnection.setRequestProperty("User-Agent", USER_AGENT);
+        // ask for a compressed response, which is decompressed in httpFetch() so that
+        // the bytes received can be counted
+        urlConnection.setRequestProperty("Accept-Encoding", "gzip");
         // set all other headers if not null
         if (headers != null) {
             for (Map.Entry<String, String> header : headers.entrySet()) {
@@ -55,24 +156,145 @@ public class LookupUtils {
         return urlConnection;
     }
 
-    private static byte[] httpFetch(HttpURLConnection urlConnection) throws IOException {
-        // query url, read and return buffered response body
-        // we want to make sure that the connection gets closed here
-        InputStream is = new BufferedInputStream(urlConnection.getInputStream());
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] result = null;
+    /**
+     * Parses the response of the connection. The connection is not disconnected, so that it is
+     * kept alive to be reused by the next request to the same host, unless the parser stopped
+     * before the end of the body.
+     */
+    private static <T> T httpFetch(HttpURLConnection connection, ResponseParser<T> parser)
+            throws IOException {
+        return httpFetch(connection, parser, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @param start Time at which the request was sent, as returned by
+     *     {@link SystemClock#elapsedRealtime()}
+     */
+    private static <T> T httpFetch(HttpURLConnection connection, ResponseParser<T> parser,
+            long start) throws IOException {
+        CountingInputStream wireCounter = null;
+        CountingInputStream bodyCounter = null;
+        boolean success = false;
         try {
-            byte[] partial = new byte[4096];
-            int read;
-            while ((read = is.read(partial, 0, 4096)) != -1) {
-                baos.write(partial, 0, read);
+            wireCounter = new CountingInputStream(connection.getInputStream());
+            InputStream is = wireCounter;
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                is = new GZIPInputStream(is);
+            }
+            bodyCounter = new CountingInputStream(is);
+            is = new BufferedInputStream(bodyCounter);
+            try {
+                T result = parser.parse(is, determineCharset(connection));
+                success = true;
+                return result;
+            } finally {
+                is.close();
             }
-            result = baos.toByteArray();
+        } catch (IOException e) {
+            discardErrorStream(connection);
+            throw e;
         } finally {
-            is.close();
-            baos.close();
+            recordRequest(connection, start, wireCounter != null ? wireCounter.count : 0,
+                    bodyCounter != null ? bodyCounter.count : 0, success, false);
+        }
+    }
+
+    private static byte[] httpFetchBytes(HttpURLConnection connection) throws IOException {
+        return httpFetchBytes(connection, SystemClock.elapsedRealtime());
+    }
+
+    private static byte[] httpFetchBytes(final HttpURLConnection connection, long start)
+            throws IOException {
+        return httpFetch(connection, new ResponseParser<byte[]>() {
+            @Override
+            public byte[] parse(InputStream in, Charset charset) throws IOException {
+                // the length of a compressed response is not that of its body
+                int length = connection.getContentEncoding() == null
+                        ? connection.getContentLength() : -1;
+                return readFully(in, length);
+            }
+        }, start);
+    }
+
+    private static String httpFetchString(HttpURLConnection connection) throws IOException {
+        byte[] response = httpFetchBytes(connection);
+        return new String(response, determineCharset(connection));
+    }
+
+    /**
+     * Reads the body of an error response, so that the connection can be reused.
+     */
+    private static void discardErrorStream(HttpURLConnection connection) {
+        InputStream es = connection.getErrorStream();
+        if (es == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[4096];
+            while (es.read(buffer) != -1) {
+            }
+        } catch (IOException e) {
+            // ignored, the connection is not reused
+        } finally {
+            try {
+                es.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * Reads a stream until its end. If its length is known, the bytes are read in place instead
+     * of being copied from a growing buffer.
+     *
+     * @param length The length of the stream if it is known, or -1
+     */
+    private static byte[] readFully(InputStream is, int length) throws IOException {
+        if (length >= 0) {
+            byte[] result = new byte[length];
+            int offset = 0;
+            int read;
+            while (offset < length && (read = is.read(result, offset, length - offset)) != -1) {
+                offset += read;
+            }
+            if (offset < length) {
+                throw new EOFException("Expected " + length + " bytes, got " + offset);
+            }
+            return result;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] partial = new byte[4096];
+        int read;
+        while ((read = is.read(partial, 0, partial.length)) != -1) {
+            baos.write(partial, 0, read);
+        }
+        return baos.toByteArray();
+    }
+
+    private static void recordRequest(HttpURLConnection connection, long start, long wireBytes,
+            long bodyBytes, boolean success, boolean notModified) {
+        final long millis = SystemClock.elapsedRealtime() - start;
+        final String host = connection.getURL().getHost();
+        synchronized (sHostStats) {
+            HostStats stats = sHostStats.get(host);
+            if (stats == null) {
+                stats = new HostStats();
+                sHostStats.put(host, stats);
+            }
+            stats.requests++;
+            if (!success) {
+                stats.failures++;
+            }
+            if (notModified) {
+                stats.notModified++;
+            }
+            stats.wireBytes += wireBytes;
+            stats.bodyBytes += bodyBytes;
+            stats.totalMillis += millis;
+            stats.maxMillis = Math.max(stats.maxMillis, millis);
         }
-        return result;
     }
 
     private static Charset determineCharset(HttpURLConnection connection) {
@@ -94,53 +316,133 @@ public class LookupUtils {
     }
 
     public static String httpGet(String url, Map<String, String> headers) throws IOException {
-        HttpURLConnection connection = prepareHttpConnection(url, headers);
-        try {
-            byte[] response = httpFetch(connection);
-            return new String(response, determineCharset(connection));
-        } finally {
-            connection.disconnect();
-        }
+        return httpGet(url, headers, READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param timeoutMillis Time to wait for data before the request fails
+     */
+    public static String httpGet(String url, Map<String, String> headers, int timeoutMillis)
+            throws IOException {
+        return httpFetchString(prepareHttpConnection(url, headers, timeoutMillis));
     }
 
     public static byte[] httpGetBytes(String url, Map<String, String> headers) throws IOException {
-        HttpURLConnection connection = prepareHttpConnection(url, headers);
+        return httpFetchBytes(prepareHttpConnection(url, headers, READ_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Parses the response while it is received, instead of buffering it.
+     */
+    public static <T> T httpGet(String url, Map<String, String> headers,
+            ResponseParser<T> parser) throws IOException {
+        return httpGet(url, headers, parser, READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param timeoutMillis Time to wait for data before the request fails
+     */
+    public static <T> T httpGet(String url, Map<String, String> headers,
+            ResponseParser<T> parser, int timeoutMillis) throws IOException {
+        return httpFetch(prepareHttpConnection(url, headers, timeoutMillis), parser);
+    }
+
+    /**
+     * Gets a page which rarely changes. The last response of the URL is kept in memory with
+     * its ETag and Last-Modified headers, and is returned again if the server answers that it
+     * was not modified.
+     */
+    public static String httpGetConditional(String url, Map<String, String> headers)
+            throws IOException {
+        return httpGetConditional(url, headers, READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param timeoutMillis Time to wait for data before the request fails
+     */
+    public static String httpGetConditional(String url, Map<String, String> headers,
+            int timeoutMillis) throws IOException {
+        CachedResponse cached = sConditionalCache.get(url);
+        HttpURLConnection connection = prepareHttpConnection(url, headers, timeoutMillis);
+        if (cached != null) {
+            if (cached.etag != null) {
+                connection.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        final int status;
         try {
-            return httpFetch(connection);
-        } finally {
-            connection.disconnect();
+            status = connection.getResponseCode();
+        } catch (IOException e) {
+            recordRequest(connection, start, 0, 0, false, false);
+            throw e;
+        }
+        if (cached != null && status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            discardErrorStream(connection);
+            recordRequest(connection, start, 0, 0, true, true);
+            return new String(cached.body, cached.charset);
+        }
+
+        byte[] body = httpFetchBytes(connection, start);
+        Charset charset = determineCharset(connection);
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (etag != null || lastModified != null) {
+            sConditionalCache.put(url, new CachedResponse(etag, lastModified, charset, body));
+        } else {
+            sConditionalCache.remove(url);
         }
+        return new String(body, charset);
     }
 
     public static String httpPost(String url, Map<String, String> headers, String postData)
             throws IOException {
-        HttpURLConnection connection = prepareHttpConnection(url, headers);
+        HttpURLConnection connection = prepareHttpConnection(url, headers, READ_TIMEOUT_MILLIS);
 
-        try {
-            // write postData to buffered output stream
-            if (postData != null) {
-                connection.setDoOutput(true);
-                BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
-                        connection.getOutputStream()));
-                try {
-                    bw.write(postData, 0, postData.length());
-                    // close connection and re-throw exception
-                } finally {
-                    bw.close();
-                }
+        // write postData to buffered output stream
+        if (postData != null) {
+            connection.setDoOutput(true);
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                    connection.getOutputStream()));
+            try {
+                bw.write(postData, 0, postData.length());
+                // close connection and re-throw exception
+            } finally {
+                bw.close();
+            }
+        }
+        return httpFetchString(connection);
+    }
+
+    /**
+     * Dumps the number of requests, the bytes received and the latency per host.
+     */
+    public static void dumpHttpStats(PrintWriter writer) {
+        writer.println("HTTP requests:");
+        synchronized (sHostStats) {
+            for (Map.Entry<String, HostStats> entry : sHostStats.entrySet()) {
+                HostStats stats = entry.getValue();
+                writer.println("  " + entry.getKey() + ": requests=" + stats.requests
+                        + " failures=" + stats.failures + " notModified=" + stats.notModified
+                        + " wireBytes=" + stats.wireBytes + " bodyBytes=" + stats.bodyBytes
+                        + " avgMillis=" + (stats.totalMillis / stats.requests)
+                        + " maxMillis=" + stats.maxMillis);
             }
-            byte[] response = httpFetch(connection);
-            return new String(response, determineCharset(connection));
-        } finally {
-            connection.disconnect();
         }
     }
 
     public static List<String> allRegexResults(String input, String regex, boolean dotall) {
+        return allRegexResults(input, compile(regex, dotall));
+    }
+
+    public static List<String> allRegexResults(String input, Pattern pattern) {
         if (input == null) {
             return null;
         }
-        Pattern pattern = Pattern.compile(regex, dotall ? Pattern.DOTALL : 0);
         Matcher matcher = pattern.matcher(input);
 
         List<String> regexResults = new ArrayList<String>();
@@ -151,14 +453,31 @@ public class LookupUtils {
     }
 
     public static String firstRegexResult(String input, String regex, boolean dotall) {
+        return firstRegexResult(input, compile(regex, dotall));
+    }
+
+    public static String firstRegexResult(String input, Pattern pattern) {
         if (input == null) {
             return null;
         }
-        Pattern pattern = Pattern.compile(regex, dotall ? Pattern.DOTALL : 0);
         Matcher m = pattern.matcher(input);
         return m.find() ? m.group(1).trim() : null;
     }
 
+    /**
+     * Compiles a pattern, or returns it if it was compiled recently. Providers use a fixed set
+     * of patterns, so they are not compiled on every request.
+     */
+    private static Pattern compile(String regex, boolean dotall) {
+        String key = (dotall ? "s:" : "n:") + regex;
+        Pattern pattern = sPatterns.get(key);
+        if (pattern == null) {
+            pattern = Pattern.compile(regex, dotall ? Pattern.DOTALL : 0);
+            sPatterns.put(key, pattern);
+        }
+        return pattern;
+    }
+
     public static String fromHtml(String input) {
         if (input == null) {
             return null;
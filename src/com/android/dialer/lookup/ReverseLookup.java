@@ -32,42 +32,71 @@ import android.net.Uri;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public abstract class ReverseLookup {
     private static final String TAG = ReverseLookup.class.getSimpleName();
 
     private static ReverseLookup INSTANCE = null;
 
-    public static ReverseLookup getInstance(Context context) {
-        String provider = LookupSettings.getReverseLookupProvider(context);
-
-        if (INSTANCE == null || !isInstance(provider)) {
-            Log.d(TAG, "Chosen reverse lookup provider: " + provider);
-
-            if (provider.equals(LookupSettings.RLP_OPENCNAM)) {
-                INSTANCE = new OpenCnamReverseLookup(context);
-            } else if (provider.equals(LookupSettings.RLP_WHITEPAGES)
-                    || provider.equals(LookupSettings.RLP_WHITEPAGES_CA)) {
-                INSTANCE = new WhitePagesReverseLookup(context);
-            } else if (provider.equals(LookupSettings.RLP_YELLOWPAGES)
-                    || provider.equals(LookupSettings.RLP_YELLOWPAGES_CA)) {
-                INSTANCE = new YellowPagesReverseLookup(context);
-            } else if (provider.equals(LookupSettings.RLP_ZABASEARCH)) {
-                INSTANCE = new ZabaSearchReverseLookup(context);
-            } else if (provider.equals(LookupSettings.RLP_CYNGN_CHINESE)) {
-                INSTANCE = new CyngnChineseReverseLookup(context);
-            } else if (provider.equals(LookupSettings.RLP_DASTELEFONBUCH)) {
-                INSTANCE = new TelefonbuchReverseLookup(context);
-            } else if (provider.equals(LookupSettings.RLP_GEBELD)) {
-                INSTANCE = new GebeldReverseLookup(context);
-            } else if (provider.equals(LookupSettings.RLP_AUSKUNFT)) {
-                INSTANCE = new AuskunftReverseLookup(context);
+    /** Default time during which a number the provider found nothing for is not looked up. */
+    private static final long NEGATIVE_RESULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    /** Default time after which a lookup of this provider is abandoned. */
+    private static final long LOOKUP_DEADLINE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    public static synchronized ReverseLookup getInstance(Context context) {
+        List<String> providers = LookupSettings.getReverseLookupProviders(context);
+
+        if (providers.size() == 1) {
+            String provider = providers.get(0);
+            if (INSTANCE == null || !isInstance(provider)) {
+                Log.d(TAG, "Chosen reverse lookup provider: " + provider);
+                INSTANCE = createInstance(context, provider);
             }
+        } else if (!(INSTANCE instanceof CompositeReverseLookup)
+                || !((CompositeReverseLookup) INSTANCE).hasProviders(providers)) {
+            Log.d(TAG, "Chosen reverse lookup providers: " + providers);
+
+            List<String> names = new ArrayList<String>();
+            List<ReverseLookup> lookups = new ArrayList<ReverseLookup>();
+            for (String provider : providers) {
+                ReverseLookup lookup = createInstance(context, provider);
+                if (lookup != null) {
+                    names.add(provider);
+                    lookups.add(lookup);
+                }
+            }
+            INSTANCE = new CompositeReverseLookup(names, lookups);
         }
 
         return INSTANCE;
     }
 
+    private static ReverseLookup createInstance(Context context, String provider) {
+        if (provider.equals(LookupSettings.RLP_OPENCNAM)) {
+            return new OpenCnamReverseLookup(context);
+        } else if (provider.equals(LookupSettings.RLP_WHITEPAGES)
+                || provider.equals(LookupSettings.RLP_WHITEPAGES_CA)) {
+            return new WhitePagesReverseLookup(context);
+        } else if (provider.equals(LookupSettings.RLP_YELLOWPAGES)
+                || provider.equals(LookupSettings.RLP_YELLOWPAGES_CA)) {
+            return new YellowPagesReverseLookup(context);
+        } else if (provider.equals(LookupSettings.RLP_ZABASEARCH)) {
+            return new ZabaSearchReverseLookup(context);
+        } else if (provider.equals(LookupSettings.RLP_CYNGN_CHINESE)) {
+            return new CyngnChineseReverseLookup(context);
+        } else if (provider.equals(LookupSettings.RLP_DASTELEFONBUCH)) {
+            return new TelefonbuchReverseLookup(context);
+        } else if (provider.equals(LookupSettings.RLP_GEBELD)) {
+            return new GebeldReverseLookup(context);
+        } else if (provider.equals(LookupSettings.RLP_AUSKUNFT)) {
+            return new AuskunftReverseLookup(context);
+        }
+        return null;
+    }
+
     private static boolean isInstance(String provider) {
         if (provider.equals(LookupSettings.RLP_OPENCNAM)
                 && INSTANCE instanceof OpenCnamReverseLookup) {
@@ -110,6 +139,31 @@ public abstract class ReverseLookup {
         return null;
     }
 
+    /**
+     * Returns how long a number this provider found nothing for is not looked up again.
+     * Providers whose answers rarely change, or which limit the number of requests, can keep
+     * negative results longer.
+     */
+    public long getNegativeResultTtlMillis() {
+        return NEGATIVE_RESULT_TTL_MILLIS;
+    }
+
+    /**
+     * Returns the time after which a lookup of this provider is abandoned when it is queried
+     * with other providers.
+     */
+    public long getLookupDeadlineMillis() {
+        return LOOKUP_DEADLINE_MILLIS;
+    }
+
+    /**
+     * Returns the time the requests of this provider wait for the network before they fail. It
+     * is not longer than the deadline, so that an abandoned lookup does not keep its thread.
+     */
+    protected int getRequestTimeoutMillis() {
+        return (int) Math.min(getLookupDeadlineMillis(), Integer.MAX_VALUE);
+    }
+
     /**
      * Perform phone number lookup.
      *
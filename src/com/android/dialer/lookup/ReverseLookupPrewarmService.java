@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemProperties;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.common.GeoUtil;
+import com.android.contacts.common.util.UriUtils;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Looks up the recent callers which are not contacts while the device is idle, so that the
+ * lookup of their next call is served by {@link LookupCache}.
+ *
+ * Numbers with a valid cached result are skipped, and lookups are spaced out so that providers
+ * are not flooded.
+ */
+public class ReverseLookupPrewarmService extends JobService {
+    private static final String TAG = ReverseLookupPrewarmService.class.getSimpleName();
+
+    private static final boolean DEBUG = false;
+
+    private static final int JOB_ID = 1;
+
+    /** System property enabling the lookups of recent callers. */
+    private static final String PREWARM_PROPERTY = "persist.dialer.lookup_prewarm";
+
+    private static final long PERIOD_MILLIS = TimeUnit.DAYS.toMillis(1);
+    /** Calls older than this are not looked at. */
+    private static final long WINDOW_MILLIS = TimeUnit.DAYS.toMillis(14);
+    private static final int MAX_CALLS = 200;
+    private static final int MAX_LOOKUPS_PER_RUN = 20;
+    /** Time between the start of two lookups. */
+    private static final long LOOKUP_INTERVAL_MILLIS = 3000;
+
+    private static final String[] CALL_PROJECTION = new String[] {
+            Calls.NUMBER,
+            Calls.CACHED_NAME,
+            Calls.CACHED_LOOKUP_URI
+    };
+    private static final String CALL_SELECTION = Calls.DATE + " > ? AND "
+            + Calls.NUMBER_PRESENTATION + " = " + Calls.PRESENTATION_ALLOWED + " AND "
+            + Calls.TYPE + " IN (" + Calls.INCOMING_TYPE + ", " + Calls.MISSED_TYPE + ")";
+
+    /** Outcomes of the runs, for {@link #dump}. */
+    private static final AtomicInteger sRuns = new AtomicInteger();
+    private static final AtomicInteger sCachedNumbers = new AtomicInteger();
+    private static final AtomicInteger sLookups = new AtomicInteger();
+    private static final AtomicInteger sFound = new AtomicInteger();
+
+    private PrewarmThread mThread;
+
+    /**
+     * Schedules the lookups of recent callers, unless they are already scheduled.
+     */
+    public static void schedule(Context context) {
+        if (!SystemProperties.getBoolean(PREWARM_PROPERTY, true)) {
+            return;
+        }
+
+        final JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+
+        final JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, ReverseLookupPrewarmService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setPeriodic(PERIOD_MILLIS)
+                .setPersisted(true)
+                .build();
+        scheduler.schedule(job);
+    }
+
+    /**
+     * Prints the outcomes of the runs.
+     */
+    public static void dump(PrintWriter pw) {
+        pw.println("Reverse lookup prewarm:");
+        pw.println("  runs=" + sRuns.get() + " alreadyCached=" + sCachedNumbers.get()
+                + " lookups=" + sLookups.get() + " found=" + sFound.get());
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (!LookupSettings.isReverseLookupEnabled(this)
+                || !SystemProperties.getBoolean(PREWARM_PROPERTY, true)) {
+            ((JobScheduler) getSystemService(Context.JOB_SCHEDULER_SERVICE)).cancel(JOB_ID);
+            return false;
+        }
+
+        mThread = new PrewarmThread(params);
+        mThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+        // The periodic job runs again anyway
+        return false;
+    }
+
+    /**
+     * Returns the recent callers which are not contacts, in E.164 form, mapped to their
+     * formatted numbers. The most recent callers come first.
+     *
+     * Callers the call log cached as contacts are skipped without a query. The cached contact
+     * info is filled lazily and can be stale, so every other number is checked against the
+     * contacts before it is sent to a provider.
+     */
+    private Map<String, String> queryUnknownNumbers() {
+        final LinkedHashMap<String, String> numbers = new LinkedHashMap<String, String>();
+        final HashSet<String> contacts = new HashSet<String>();
+        final String countryIso = ((TelephonyManager) getSystemService(
+                Context.TELEPHONY_SERVICE)).getSimCountryIso().toUpperCase();
+        final String currentCountryIso = GeoUtil.getCurrentCountryIso(this);
+
+        final Cursor cursor = getContentResolver().query(
+                Calls.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(Calls.LIMIT_PARAM_KEY, String.valueOf(MAX_CALLS))
+                        .build(),
+                CALL_PROJECTION, CALL_SELECTION,
+                new String[] { String.valueOf(System.currentTimeMillis() - WINDOW_MILLIS) },
+                Calls.DEFAULT_SORT_ORDER);
+        if (cursor == null) {
+            return numbers;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final String number = cursor.getString(0);
+                final String normalizedNumber = number != null
+                        ? PhoneNumberUtils.formatNumberToE164(number, countryIso) : null;
+                if (normalizedNumber == null || numbers.containsKey(normalizedNumber)
+                        || contacts.contains(normalizedNumber)) {
+                    continue;
+                }
+                if (isCachedContact(cursor.getString(1), cursor.getString(2))
+                        || isContact(normalizedNumber)) {
+                    contacts.add(normalizedNumber);
+                    continue;
+                }
+                numbers.put(normalizedNumber, PhoneNumberUtils.formatNumber(number,
+                        normalizedNumber, currentCountryIso));
+            }
+        } finally {
+            cursor.close();
+        }
+        return numbers;
+    }
+
+    /**
+     * Returns whether the cached contact info of a call belongs to a contact. Results of
+     * reverse lookups are cached with an encoded lookup uri instead of a contact one.
+     */
+    private static boolean isCachedContact(String cachedName, String cachedLookupUri) {
+        return !TextUtils.isEmpty(cachedName) && cachedLookupUri != null
+                && !UriUtils.isEncodedContactUri(UriUtils.parseUriOrNull(cachedLookupUri));
+    }
+
+    private boolean isContact(String normalizedNumber) {
+        final Cursor cursor = getContentResolver().query(
+                Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
+                        Uri.encode(normalizedNumber)),
+                new String[] { PhoneLookup._ID }, null, null, null);
+        if (cursor == null) {
+            // Numbers which cannot be checked are not sent to the providers
+            return true;
+        }
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private class PrewarmThread extends Thread {
+        private final JobParameters mParams;
+
+        public PrewarmThread(JobParameters params) {
+            super("ReverseLookupPrewarm");
+            mParams = params;
+        }
+
+        @Override
+        public void run() {
+            sRuns.incrementAndGet();
+            final Context context = ReverseLookupPrewarmService.this;
+            final String provider = ReverseLookupService.getProviderKey(context);
+            int lookups = 0;
+
+            try {
+                for (Map.Entry<String, String> entry : queryUnknownNumbers().entrySet()) {
+                    if (lookups == MAX_LOOKUPS_PER_RUN || isInterrupted()) {
+                        break;
+                    }
+
+                    final String number = entry.getKey();
+                    final LookupCache.CachedResult cached =
+                            LookupCache.getCachedResult(context, number, provider);
+                    if (cached != null && !cached.stale) {
+                        sCachedNumbers.incrementAndGet();
+                        continue;
+                    }
+
+                    if (lookups > 0) {
+                        Thread.sleep(LOOKUP_INTERVAL_MILLIS);
+                    }
+                    lookups++;
+                    sLookups.incrementAndGet();
+                    // A stale result is kept if nothing is found
+                    if (ReverseLookupService.lookupAndCache(context, number, entry.getValue(),
+                            cached == null) != null) {
+                        sFound.incrementAndGet();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stopped by the scheduler
+                return;
+            }
+
+            if (DEBUG) Log.d(TAG, "Looked up " + lookups + " recent callers");
+            jobFinished(mParams, false);
+        }
+    }
+}
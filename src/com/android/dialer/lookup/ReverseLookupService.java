@@ -24,12 +24,16 @@ import android.os.HandlerThread;
 import android.os.Message;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
+import android.text.TextUtils;
 
 import com.android.contacts.common.GeoUtil;
 import com.android.dialer.calllog.ContactInfo;
 import com.android.incallui.service.PhoneNumberService;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ReverseLookupService implements PhoneNumberService, Handler.Callback {
     private final HandlerThread mBackgroundThread;
@@ -41,6 +45,18 @@ public class ReverseLookupService implements PhoneNumberService, Handler.Callbac
     private static final int MSG_LOOKUP = 1;
     private static final int MSG_NOTIFY_NUMBER = 2;
     private static final int MSG_NOTIFY_IMAGE = 3;
+    private static final int MSG_REFRESH = 4;
+    private static final int MSG_SCHEDULE_PREWARM = 5;
+
+    /** Numbers whose stale cached result is being looked up again, on the background thread. */
+    private final HashSet<String> mRefreshingNumbers = new HashSet<String>();
+
+    /** Outcomes of the lookups of incoming calls, for {@link #dump}. */
+    private static final AtomicInteger sWarmHits = new AtomicInteger();
+    private static final AtomicInteger sStaleHits = new AtomicInteger();
+    private static final AtomicInteger sColdLookups = new AtomicInteger();
+
+    private boolean mPrewarmScheduled;
 
     public ReverseLookupService(Context context) {
         mContext = context;
@@ -62,6 +78,12 @@ public class ReverseLookupService implements PhoneNumberService, Handler.Callbac
             return;
         }
 
+        if (!mPrewarmScheduled) {
+            // Reading the pending jobs is a binder call, keep it off the main thread
+            mBackgroundHandler.sendEmptyMessage(MSG_SCHEDULE_PREWARM);
+            mPrewarmScheduled = true;
+        }
+
         String countryIso = mTelephonyManager.getSimCountryIso().toUpperCase();
         String normalizedNumber = phoneNumber != null
                 ? PhoneNumberUtils.formatNumberToE164(phoneNumber, countryIso) : null;
@@ -77,6 +99,7 @@ public class ReverseLookupService implements PhoneNumberService, Handler.Callbac
                 request.normalizedNumber, GeoUtil.getCurrentCountryIso(mContext));
         request.numberListener = numberListener;
         request.imageListener = imageListener;
+        request.isIncoming = isIncoming;
 
         mBackgroundHandler.obtainMessage(MSG_LOOKUP, request).sendToTarget();
     }
@@ -99,6 +122,17 @@ public class ReverseLookupService implements PhoneNumberService, Handler.Callbac
                 }
                 break;
             }
+            case MSG_REFRESH: {
+                // background thread
+                LookupRequest request = (LookupRequest) msg.obj;
+                lookupAndCache(mContext, request.normalizedNumber, request.formattedNumber, false);
+                mRefreshingNumbers.remove(request.normalizedNumber);
+                break;
+            }
+            case MSG_SCHEDULE_PREWARM:
+                // background thread
+                ReverseLookupPrewarmService.schedule(mContext);
+                break;
             case MSG_NOTIFY_NUMBER: {
                 // main thread
                 LookupRequest request = (LookupRequest) msg.obj;
@@ -123,39 +157,86 @@ public class ReverseLookupService implements PhoneNumberService, Handler.Callbac
     private ContactInfo doLookup(LookupRequest request) {
         final String number = request.normalizedNumber;
 
-        if (LookupCache.hasCachedContact(mContext, number)) {
-            ContactInfo info = LookupCache.getCachedContact(mContext, number);
-            if (!ContactInfo.EMPTY.equals(info)) {
-                return info;
-            } else if (info != null) {
-                // If we have an empty cached contact, remove it and redo lookup
-                LookupCache.deleteCachedContact(mContext, number);
+        final String provider = getProviderKey(mContext);
+        LookupCache.CachedResult cached =
+                LookupCache.getCachedResult(mContext, number, provider);
+        if (cached != null) {
+            if (request.isIncoming && cached.stale) {
+                sStaleHits.incrementAndGet();
+            } else if (request.isIncoming) {
+                sWarmHits.incrementAndGet();
             }
+            if (cached.stale && mRefreshingNumbers.add(number)) {
+                // Serve the stale result now, and look the number up again afterwards
+                mBackgroundHandler.obtainMessage(MSG_REFRESH, request).sendToTarget();
+            }
+            // An empty result means the provider recently found nothing for this number
+            return cached.info != ContactInfo.EMPTY ? cached.info : null;
+        }
+
+        if (request.isIncoming) {
+            sColdLookups.incrementAndGet();
         }
+        return lookupAndCache(mContext, number, request.formattedNumber, true);
+    }
+
+    /**
+     * Looks the number up and caches the result.
+     *
+     * @param cacheNegative Whether to cache that nothing was found. A stale result being
+     *     refreshed is kept instead.
+     */
+    static ContactInfo lookupAndCache(Context context, String number, String formattedNumber,
+            boolean cacheNegative) {
+        final ReverseLookup reverseLookup = ReverseLookup.getInstance(context);
 
         try {
-            ContactInfo info = ReverseLookup.getInstance(mContext).lookupNumber(mContext,
-                    number, request.formattedNumber);
+            ContactInfo info = reverseLookup.lookupNumber(context,
+                    number, formattedNumber);
             if (info != null && !info.equals(ContactInfo.EMPTY)) {
-                LookupCache.cacheContact(mContext, info);
+                LookupCache.cacheContact(context, info);
                 return info;
             }
+            if (cacheNegative) {
+                LookupCache.cacheNegativeResult(context, number,
+                        getProviderKey(context),
+                        reverseLookup.getNegativeResultTtlMillis());
+            }
         } catch (IOException e) {
-            // ignored
+            // ignored, the number is looked up again next time
         }
 
         return null;
     }
 
+    /**
+     * Returns the providers cached results are found by, so that negative results are looked
+     * up again when other providers are chosen.
+     */
+    static String getProviderKey(Context context) {
+        return TextUtils.join(",", LookupSettings.getReverseLookupProviders(context));
+    }
+
+    /**
+     * Prints how incoming calls were looked up: from the cache, possibly warmed by
+     * {@link ReverseLookupPrewarmService}, or from the network.
+     */
+    public static void dump(PrintWriter pw) {
+        pw.println("Incoming call lookups:");
+        pw.println("  warmHits=" + sWarmHits.get() + " staleHits=" + sStaleHits.get()
+                + " coldLookups=" + sColdLookups.get());
+    }
+
     private Bitmap fetchImage(LookupRequest request, Uri uri) {
-        if (!LookupCache.hasCachedImage(mContext, request.normalizedNumber)) {
-            Bitmap bmp = ReverseLookup.getInstance(mContext).lookupImage(mContext, uri);
+        Bitmap bmp = LookupCache.getCachedImage(mContext, request.normalizedNumber);
+        if (bmp == null) {
+            bmp = ReverseLookup.getInstance(mContext).lookupImage(mContext, uri);
             if (bmp != null) {
-                LookupCache.cacheImage(mContext, request.normalizedNumber, bmp);
+                // The scaled down image is used as is, rather than decoded again
+                bmp = LookupCache.cacheImage(mContext, request.normalizedNumber, bmp);
             }
         }
-
-        return LookupCache.getCachedImage(mContext, request.normalizedNumber);
+        return bmp;
     }
 
     private static class LookupRequest {
@@ -163,6 +244,7 @@ public class ReverseLookupService implements PhoneNumberService, Handler.Callbac
         String formattedNumber;
         NumberLookupListener numberListener;
         ImageLookupListener imageListener;
+        boolean isIncoming;
         ContactInfo contactInfo;
         Bitmap photo;
     }
@@ -48,8 +48,11 @@ public final class AuskunftApi {
     private AuskunftApi() {
     }
 
+    /**
+     * @param timeoutMillis Time to wait for data before the request fails
+     */
     public static List<ContactInfo> query(String filter, int lookupType, String normalizedNumber,
-            String formattedNumber) throws IOException {
+            String formattedNumber, int timeoutMillis) throws IOException {
         // build URI
         Uri uri = Uri.parse(PEOPLE_LOOKUP_URL)
                 .buildUpon()
@@ -58,7 +61,7 @@ public final class AuskunftApi {
 
         // get all search entry sections
         List<String> entries = LookupUtils.allRegexResults(LookupUtils.httpGet(uri.toString(),
-                null), SEARCH_RESULTS_REGEX, true);
+                null, timeoutMillis), SEARCH_RESULTS_REGEX, true);
 
         // abort lookup if nothing found
         if (entries == null || entries.isEmpty()) {
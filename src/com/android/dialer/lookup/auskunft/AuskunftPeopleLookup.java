@@ -21,6 +21,7 @@ import android.util.Log;
 
 import com.android.dialer.calllog.ContactInfo;
 import com.android.dialer.lookup.ContactBuilder;
+import com.android.dialer.lookup.LookupUtils;
 import com.android.dialer.lookup.PeopleLookup;
 
 import java.io.IOException;
@@ -36,7 +37,8 @@ public class AuskunftPeopleLookup extends PeopleLookup {
     public ContactInfo[] lookup(Context context, String filter) {
         List<ContactInfo> infos = null;
         try {
-            infos = AuskunftApi.query(filter, ContactBuilder.PEOPLE_LOOKUP, null, null);
+            infos = AuskunftApi.query(filter, ContactBuilder.PEOPLE_LOOKUP, null, null,
+                    LookupUtils.READ_TIMEOUT_MILLIS);
         } catch (IOException e) {
             Log.e(TAG, "People lookup failed", e);
         }
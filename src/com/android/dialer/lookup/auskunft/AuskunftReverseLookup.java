@@ -41,7 +41,7 @@ public class AuskunftReverseLookup extends ReverseLookup {
 
         // query the API and return null if nothing found or general error
         List<ContactInfo> infos = AuskunftApi.query(normalizedNumber, ContactBuilder.REVERSE_LOOKUP,
-                normalizedNumber, formattedNumber);
+                normalizedNumber, formattedNumber, getRequestTimeoutMillis());
         return (infos != null && !infos.isEmpty()) ? infos.get(0) : null;
     }
 }
@@ -19,9 +19,12 @@ package com.android.dialer.lookup.dastelefonbuch;
 import android.content.Context;
 import android.net.Uri;
 
+import com.android.dialer.lookup.HtmlExtractor;
 import com.android.dialer.lookup.LookupUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
+import java.util.regex.Pattern;
 
 public class TelefonbuchApi {
     private static final String TAG = TelefonbuchApi.class.getSimpleName();
@@ -30,32 +33,55 @@ public class TelefonbuchApi {
             "http://www.dastelefonbuch.de/?s=a20000" +
             "&cmd=search&sort_ok=0&sp=55&vert_ok=0&aktion=23";
 
-    private static String NAME_REGEX ="<a id=\"name0.*?>\\s*\n?(.*?)\n?\\s*</a>";
-    private static String NUMBER_REGEX = "<span\\s+class=\"ico fon.*>.*<span>(.*?)</span><br/>";
-    private static String ADDRESS_REGEX = "<address.*?>\n?(.*?)</address>";
+    // Everything before the results (scripts etc.) is skipped.
+    private static final HtmlExtractor.Field RESULTS = new HtmlExtractor.Field(
+            ": Treffer", 0, 0, 64, null);
+    // Values after the end of the results (footer etc.) are ignored, so the page is read
+    // up to it.
+    private static final String BEFORE_RESULTS_END = "(?=(?s:.*?)Ende Treffer)";
+    /** Longest distance from the start of a value to the end of the results. */
+    private static final int RESULTS_MAX_LENGTH = 256 * 1024;
+
+    @VisibleForTesting
+    public static final HtmlExtractor.Field NAME = new HtmlExtractor.Field(
+            "<a id=\"name0.*?>\\s*\n?(.*?)\n?\\s*</a>" + BEFORE_RESULTS_END, Pattern.DOTALL, 1,
+            RESULTS_MAX_LENGTH, RESULTS);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field NUMBER = new HtmlExtractor.Field(
+            "<span\\s+class=\"ico fon.*>.*<span>(.*?)</span><br/>" + BEFORE_RESULTS_END, 0, 1,
+            RESULTS_MAX_LENGTH, RESULTS);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS = new HtmlExtractor.Field(
+            "<address.*?>\n?(.*?)</address>" + BEFORE_RESULTS_END, Pattern.DOTALL, 1,
+            RESULTS_MAX_LENGTH, RESULTS);
+
+    @VisibleForTesting
+    public static final HtmlExtractor EXTRACTOR =
+            new HtmlExtractor(RESULTS, NAME, NUMBER, ADDRESS);
+
+    private static final Pattern HIDDEN_SPAN_PATTERN =
+            Pattern.compile("<span class=\"hide\".*?\\/span>");
+    private static final Pattern SPAN_PATTERN = Pattern.compile("</?span.*?>");
 
     private TelefonbuchApi() {
     }
 
-    public static ContactInfo reverseLookup(Context context, String number)
+    public static ContactInfo reverseLookup(Context context, String number, int timeoutMillis)
             throws IOException {
         Uri uri = Uri.parse(REVERSE_LOOKUP_URL)
                 .buildUpon()
                 .appendQueryParameter("kw", number)
                 .build();
-        // Cut out everything we're not interested in (scripts etc.) to
-        // speed up the subsequent matching.
-        String output = LookupUtils.firstRegexResult(
-                LookupUtils.httpGet(uri.toString(), null),
-                ": Treffer(.*)Ende Treffer", true);
+        HtmlExtractor.Result output = LookupUtils.httpGet(uri.toString(), null, EXTRACTOR,
+                timeoutMillis);
 
-        String name = parseValue(output, NAME_REGEX, true, false);
+        String name = parseValue(output.get(NAME), false);
         if (name == null) {
             return null;
         }
 
-        String phoneNumber = parseValue(output, NUMBER_REGEX, false, true);
-        String address = parseValue(output, ADDRESS_REGEX, true, true);
+        String phoneNumber = parseValue(output.get(NUMBER), true);
+        String address = parseValue(output.get(ADDRESS), true);
 
         ContactInfo info = new ContactInfo();
         info.name = name;
@@ -66,14 +92,12 @@ public class TelefonbuchApi {
         return info;
     }
 
-    private static String parseValue(String output, String regex,
-            boolean dotall, boolean removeSpans) {
-        String result = LookupUtils.firstRegexResult(output, regex, dotall);
+    private static String parseValue(String result, boolean removeSpans) {
         if (result != null && removeSpans) {
             // completely remove hidden spans (including contents) ...
-            result = result.replaceAll("<span class=\"hide\".*?\\/span>", "");
+            result = HIDDEN_SPAN_PATTERN.matcher(result).replaceAll("");
             // ... and remove span wrappers around data content
-            result = result.replaceAll("</?span.*?>", "");
+            result = SPAN_PATTERN.matcher(result).replaceAll("");
         }
         return LookupUtils.fromHtml(result);
     }
@@ -49,7 +49,8 @@ public class TelefonbuchReverseLookup extends ReverseLookup {
             return null;
         }
 
-        TelefonbuchApi.ContactInfo info = TelefonbuchApi.reverseLookup(context, normalizedNumber);
+        TelefonbuchApi.ContactInfo info = TelefonbuchApi.reverseLookup(context, normalizedNumber,
+                getRequestTimeoutMillis());
         if (info == null) {
             return null;
         }
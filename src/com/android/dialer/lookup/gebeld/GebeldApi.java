@@ -19,7 +19,9 @@ package com.android.dialer.lookup.gebeld;
 import android.content.Context;
 import android.net.Uri;
 
+import com.android.dialer.lookup.HtmlExtractor;
 import com.android.dialer.lookup.LookupUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.util.regex.Matcher;
@@ -32,23 +34,30 @@ public class GebeldApi {
             "http://www.gebeld.nl/zoeken.asp?Page=4,%201" +
             "&searchfield1=fullnumber&action=Zoeken";
 
-    private static String REGEX = "\n?\\s*(.*)<(?:(?:BR|br)\\s*/?)>";
+    // Everything but the information (scripts etc.) is skipped.
+    @VisibleForTesting
+    public static final HtmlExtractor.Field INFORMATION = new HtmlExtractor.Field(
+            "<div class=\"small-12 large-4 columns information\">(.*?)</div>",
+            Pattern.DOTALL, 1, 16384, null);
+
+    @VisibleForTesting
+    public static final HtmlExtractor EXTRACTOR = new HtmlExtractor(INFORMATION);
+
+    private static final Pattern LINE_PATTERN =
+            Pattern.compile("\n?\\s*(.*)<(?:(?:BR|br)\\s*/?)>");
 
     private GebeldApi() {
     }
 
-    public static ContactInfo reverseLookup(Context context, String number)
+    public static ContactInfo reverseLookup(Context context, String number, int timeoutMillis)
             throws IOException {
         String phoneNumber = number.replace("+31", "0");
         Uri uri = Uri.parse(REVERSE_LOOKUP_URL)
                 .buildUpon()
                 .appendQueryParameter("queryfield1", phoneNumber)
                 .build();
-        // Cut out everything we're not interested in (scripts etc.) to
-        // speed up the subsequent matching.
-        String output = LookupUtils.firstRegexResult(
-                LookupUtils.httpGet(uri.toString(), null),
-                "<div class=\"small-12 large-4 columns information\">(.*?)</div>", true);
+        String output = LookupUtils.httpGet(uri.toString(), null, EXTRACTOR, timeoutMillis)
+                .get(INFORMATION);
 
         String name = null;
         String address = null;
@@ -56,8 +65,7 @@ public class GebeldApi {
         if (output == null) {
             return null;
         } else {
-            Pattern pattern = Pattern.compile(REGEX, 0);
-            Matcher m = pattern.matcher(output);
+            Matcher m = LINE_PATTERN.matcher(output);
 
             if (m.find()) {
                 name = LookupUtils.fromHtml(m.group(1).trim());
@@ -49,7 +49,8 @@ public class GebeldReverseLookup extends ReverseLookup {
             return null;
         }
 
-        GebeldApi.ContactInfo info = GebeldApi.reverseLookup(context, normalizedNumber);
+        GebeldApi.ContactInfo info = GebeldApi.reverseLookup(context, normalizedNumber,
+                getRequestTimeoutMillis());
         if (info == null) {
             return null;
         }
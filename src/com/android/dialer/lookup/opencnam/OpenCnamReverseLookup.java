@@ -28,6 +28,7 @@ import com.android.dialer.lookup.LookupUtils;
 import com.android.dialer.lookup.ReverseLookup;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 public class OpenCnamReverseLookup extends ReverseLookup {
     private static final String TAG =
@@ -42,9 +43,20 @@ public class OpenCnamReverseLookup extends ReverseLookup {
     private static final String ACCOUNT_SID = "account_sid";
     private static final String AUTH_TOKEN = "auth_token";
 
+    /**
+     * Numbers outside the US are never found, and the free tier of the service only allows a
+     * few lookups per hour, so numbers not found are not looked up again for a week.
+     */
+    private static final long NEGATIVE_RESULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+
     public OpenCnamReverseLookup(Context context) {
     }
 
+    @Override
+    public long getNegativeResultTtlMillis() {
+        return NEGATIVE_RESULT_TTL_MILLIS;
+    }
+
     /**
      * Perform phone number lookup.
      *
@@ -102,6 +114,6 @@ public class OpenCnamReverseLookup extends ReverseLookup {
             builder.appendQueryParameter(AUTH_TOKEN, authToken);
         }
 
-        return LookupUtils.httpGet(builder.build().toString(), null);
+        return LookupUtils.httpGet(builder.build().toString(), null, getRequestTimeoutMillis());
     }
 }
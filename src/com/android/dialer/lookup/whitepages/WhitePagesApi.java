@@ -21,8 +21,10 @@ import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.dialer.lookup.HtmlExtractor;
 import com.android.dialer.lookup.LookupSettings;
 import com.android.dialer.lookup.LookupUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -49,6 +51,86 @@ public class WhitePagesApi {
             "Mozilla/5.0 (X11; Linux x86_64; rv:26.0) Gecko/20100101 Firefox/26.0";
     private static final String COOKIE_REGEX = "distil_RID=([A-Za-z0-9\\-]+)";
     private static final String COOKIE = "D_UID";
+    private static final String REFRESH_REGEX = "<meta[^>]+http-equiv=\"refresh\"";
+    private static final String CAPTCHA = "distil_r_captcha.html";
+
+    private static final Pattern COOKIE_PATTERN = Pattern.compile(COOKIE_REGEX, Pattern.DOTALL);
+    private static final Pattern REFRESH_PATTERN =
+            Pattern.compile(REFRESH_REGEX, Pattern.DOTALL);
+    private static final Pattern PERSON_PATTERN = Pattern.compile(
+            "<li\\s[^>]+?http:\\/\\/schema\\.org\\/Person", Pattern.DOTALL);
+    private static final Pattern PERSON_NAME_PATTERN =
+            Pattern.compile("<span[^>]+?itemprop=\"name\">", Pattern.DOTALL);
+    private static final Pattern PERSON_COUNTRY_PATTERN =
+            Pattern.compile("<span[^>]+?itemprop=\"addressCountry\">", Pattern.DOTALL);
+    private static final Pattern PERSON_STATE_PATTERN =
+            Pattern.compile("<span[^>]+?itemprop=\"addressRegion\">", Pattern.DOTALL);
+    private static final Pattern PERSON_CITY_PATTERN =
+            Pattern.compile("<span[^>]+?itemprop=\"addressLocality\">", Pattern.DOTALL);
+    private static final Pattern PERSON_WEBSITE_PATTERN = Pattern.compile("href=\"(.+?)\"");
+    private static final Pattern PROFILE_NUMBER_PATTERN =
+            Pattern.compile("<li[^>]+?class=\"no-overflow tel\">", Pattern.DOTALL);
+
+    private static final String ADDRESS_REGEX_UNITED_STATES =
+            "<span\\s+class=\"%s[^\"]+\"\\s*>([^<]*)</span>";
+    private static final Pattern ADDRESS_PRIMARY_PATTERN = Pattern.compile(
+            String.format(ADDRESS_REGEX_UNITED_STATES, "address-primary"), Pattern.DOTALL);
+    private static final Pattern ADDRESS_SECONDARY_PATTERN = Pattern.compile(
+            String.format(ADDRESS_REGEX_UNITED_STATES, "address-secondary"), Pattern.DOTALL);
+    private static final Pattern ADDRESS_LOCATION_PATTERN = Pattern.compile(
+            String.format(ADDRESS_REGEX_UNITED_STATES, "address-location"), Pattern.DOTALL);
+
+    // Fields of every page, to renew the cookie and detect the captcha redirect. They are
+    // optional, so that reading stops once the data fields are found. The redirect page has no
+    // data fields, so it is read to the end.
+    private static final HtmlExtractor.Field COOKIE_FIELD =
+            new HtmlExtractor.Field(COOKIE_REGEX, Pattern.DOTALL);
+    private static final HtmlExtractor.Field REFRESH_FIELD =
+            new HtmlExtractor.Field(REFRESH_REGEX, Pattern.DOTALL, 0, 4096, null);
+    private static final HtmlExtractor.Field CAPTCHA_FIELD =
+            new HtmlExtractor.Field(Pattern.quote(CAPTCHA), 0, 0, CAPTCHA.length(), null);
+
+    @VisibleForTesting
+    public static final HtmlExtractor.Field NAME_UNITED_STATES = new HtmlExtractor.Field(
+            "<h2.*?>Send (.*?)&#39;s details to phone</h2>", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field SUBTITLE_UNITED_STATES = new HtmlExtractor.Field(
+            "<span\\s*class=\"subtitle.*?>\\s*\n?(.*?)\n?\\s*</span>", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field NUMBER_UNITED_STATES = new HtmlExtractor.Field(
+            "Full Number:</span>([0-9\\-\\+\\(\\)]+)</li>", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_PRIMARY_UNITED_STATES =
+            new HtmlExtractor.Field(ADDRESS_PRIMARY_PATTERN.pattern(), Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_SECONDARY_UNITED_STATES =
+            new HtmlExtractor.Field(ADDRESS_SECONDARY_PATTERN.pattern(), Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_LOCATION_UNITED_STATES =
+            new HtmlExtractor.Field(ADDRESS_LOCATION_PATTERN.pattern(), Pattern.DOTALL);
+
+    @VisibleForTesting
+    public static final HtmlExtractor EXTRACTOR_UNITED_STATES = new HtmlExtractor(
+            new HtmlExtractor.Field[] { NAME_UNITED_STATES, SUBTITLE_UNITED_STATES,
+                    NUMBER_UNITED_STATES, ADDRESS_PRIMARY_UNITED_STATES,
+                    ADDRESS_SECONDARY_UNITED_STATES, ADDRESS_LOCATION_UNITED_STATES },
+            new HtmlExtractor.Field[] { COOKIE_FIELD, REFRESH_FIELD, CAPTCHA_FIELD });
+
+    @VisibleForTesting
+    public static final HtmlExtractor.Field NAME_CANADA = new HtmlExtractor.Field(
+            "(<li\\s+class=\"listing_info\">.*?</li>)", Pattern.DOTALL);
+    private static final HtmlExtractor.Field RESULTS_CANADA = new HtmlExtractor.Field(
+            "<ol class=\"result people_result\">", 0, 0, 64, null);
+    // The location must be followed by the end of a list, as in the results list
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_CANADA = new HtmlExtractor.Field(
+            "(<li\\s+class=\"col_location\">.*?</li>)(?=.*?</ol>)", Pattern.DOTALL, 1, 65536,
+            RESULTS_CANADA);
+
+    @VisibleForTesting
+    public static final HtmlExtractor EXTRACTOR_CANADA = new HtmlExtractor(
+            new HtmlExtractor.Field[] { NAME_CANADA, RESULTS_CANADA, ADDRESS_CANADA },
+            new HtmlExtractor.Field[] { COOKIE_FIELD, REFRESH_FIELD, CAPTCHA_FIELD });
 
     private static String mCookie;
 
@@ -75,9 +157,7 @@ public class WhitePagesApi {
             int maxResults) throws IOException {
         ArrayList<ContactInfo> people = new ArrayList<ContactInfo>();
 
-        Pattern regex = Pattern.compile(
-                "<li\\s[^>]+?http:\\/\\/schema\\.org\\/Person", Pattern.DOTALL);
-        Matcher m = regex.matcher(output);
+        Matcher m = PERSON_PATTERN.matcher(output);
 
         while (m.find()) {
             if (people.size() == maxResults) {
@@ -93,7 +173,7 @@ public class WhitePagesApi {
             }
 
             String name = LookupUtils.fromHtml(extractXmlRegex(section,
-                    "<span[^>]+?itemprop=\"name\">", "span"));
+                    PERSON_NAME_PATTERN, "span"));
 
             if (name == null) {
                 continue;
@@ -101,11 +181,11 @@ public class WhitePagesApi {
 
             // Address
             String addrCountry = LookupUtils.fromHtml(extractXmlRegex(section,
-                    "<span[^>]+?itemprop=\"addressCountry\">", "span"));
+                    PERSON_COUNTRY_PATTERN, "span"));
             String addrState = LookupUtils.fromHtml(extractXmlRegex(section,
-                    "<span[^>]+?itemprop=\"addressRegion\">", "span"));
+                    PERSON_STATE_PATTERN, "span"));
             String addrCity = LookupUtils.fromHtml(extractXmlRegex(section,
-                    "<span[^>]+?itemprop=\"addressLocality\">", "span"));
+                    PERSON_CITY_PATTERN, "span"));
 
             StringBuilder sb = new StringBuilder();
 
@@ -126,8 +206,7 @@ public class WhitePagesApi {
             }
 
             // Website
-            Pattern p = Pattern.compile("href=\"(.+?)\"");
-            Matcher m2 = p.matcher(section);
+            Matcher m2 = PERSON_WEBSITE_PATTERN.matcher(section);
             String website = null;
             if (m2.find()) {
                 website = "http://www.whitepages.com" + m2.group(1);
@@ -141,7 +220,7 @@ public class WhitePagesApi {
 
             String profile = httpGet(website);
             String phoneNumber = LookupUtils.fromHtml(extractXmlRegex(profile,
-                    "<li[^>]+?class=\"no-overflow tel\">", "li"));
+                    PROFILE_NUMBER_PATTERN, "li"));
             String address = parseAddressUnitedStates(profile);
 
             if (phoneNumber == null) {
@@ -162,9 +241,8 @@ public class WhitePagesApi {
         return people.toArray(new ContactInfo[people.size()]);
     }
 
-    private static String extractXmlRegex(String str, String regex, String tag) {
-        Pattern p = Pattern.compile(regex, Pattern.DOTALL);
-        Matcher m = p.matcher(str);
+    private static String extractXmlRegex(String str, Pattern pattern, String tag) {
+        Matcher m = pattern.matcher(str);
         if (m.find()) {
             return extractXmlTag(str, m.start(), m.end(), tag);
         }
@@ -203,7 +281,7 @@ public class WhitePagesApi {
         return str.substring(realBegin, realEnd);
     }
 
-    public static ContactInfo reverseLookup(Context context, String number)
+    public static ContactInfo reverseLookup(Context context, String number, int timeoutMillis)
             throws IOException {
         String provider = LookupSettings.getReverseLookupProvider(context);
 
@@ -215,20 +293,22 @@ public class WhitePagesApi {
         }
         String newLookupUrl = lookupUrl + number;
 
-        String output = httpGet(newLookupUrl);
-
-        //
-
         String name = null;
         String phoneNumber = null;
         String address = null;
 
         if (LookupSettings.RLP_WHITEPAGES.equals(provider)) {
+            HtmlExtractor.Result output = httpGet(newLookupUrl, EXTRACTOR_UNITED_STATES,
+                    timeoutMillis);
             name = parseNameUnitedStates(output);
-            phoneNumber = parseNumberUnitedStates(output);
-            address = parseAddressUnitedStates(output);
+            phoneNumber = output.get(NUMBER_UNITED_STATES);
+            address = formatAddressUnitedStates(output.get(ADDRESS_PRIMARY_UNITED_STATES),
+                    output.get(ADDRESS_SECONDARY_UNITED_STATES),
+                    output.get(ADDRESS_LOCATION_UNITED_STATES));
         } else if (LookupSettings.RLP_WHITEPAGES_CA.equals(provider)) {
-            name = parseNameCanada(output);
+            HtmlExtractor.Result output = httpGet(newLookupUrl, EXTRACTOR_CANADA,
+                    timeoutMillis);
+            name = LookupUtils.fromHtml(output.get(NAME_CANADA));
             // Canada's WhitePages does not provide a formatted number
             address = parseAddressCanada(output);
         }
@@ -251,19 +331,12 @@ public class WhitePagesApi {
 
         String output = LookupUtils.httpGet(url, headers);
         // If we can find a new cookie, use it
-        Pattern p = Pattern.compile(COOKIE_REGEX, Pattern.DOTALL);
-        Matcher m = p.matcher(output);
-        if (m.find()) {
-            mCookie = m.group(1).trim();
-            Log.v(TAG, "Got new cookie");
-        }
+        updateCookie(LookupUtils.firstRegexResult(output, COOKIE_PATTERN));
 
         // If we hit a page with a <meta> refresh and the error URL, reload. If
         // this results in infinite recursion, then whatever. The thread is
         // killed after 10 seconds.
-        p = Pattern.compile("<meta[^>]+http-equiv=\"refresh\"", Pattern.DOTALL);
-        m = p.matcher(output);
-        if (m.find() && output.contains("distil_r_captcha.html")) {
+        if (REFRESH_PATTERN.matcher(output).find() && output.contains(CAPTCHA)) {
             Log.w(TAG, "Got <meta> refresh. Reloading...");
             return httpGet(url);
         }
@@ -271,14 +344,43 @@ public class WhitePagesApi {
         return output;
     }
 
-    private static String parseNameUnitedStates(String output) {
-        String name = LookupUtils.firstRegexResult(output,
-                "<h2.*?>Send (.*?)&#39;s details to phone</h2>", true);
+    /**
+     * Fetches a page like {@link #httpGet(String)}, extracting the fields while it is received.
+     * The extractor must extract the cookie, refresh and captcha fields.
+     */
+    private static HtmlExtractor.Result httpGet(String url, HtmlExtractor extractor,
+            int timeoutMillis) throws IOException {
+        Map<String, String> headers = null;
+        if (mCookie != null) {
+            headers = new HashMap<String, String>();
+            headers.put("Cookie", COOKIE + "=" + mCookie);
+        }
+
+        HtmlExtractor.Result output = LookupUtils.httpGet(url, headers, extractor,
+                timeoutMillis);
+        updateCookie(output.get(COOKIE_FIELD));
+
+        if (output.has(REFRESH_FIELD) && output.has(CAPTCHA_FIELD)) {
+            Log.w(TAG, "Got <meta> refresh. Reloading...");
+            return httpGet(url, extractor, timeoutMillis);
+        }
+
+        return output;
+    }
+
+    private static void updateCookie(String cookie) {
+        if (cookie != null) {
+            mCookie = cookie;
+            Log.v(TAG, "Got new cookie");
+        }
+    }
+
+    private static String parseNameUnitedStates(HtmlExtractor.Result output) {
+        String name = output.get(NAME_UNITED_STATES);
 
         // Use summary if name doesn't exist
         if (name == null) {
-            name = LookupUtils.firstRegexResult(output,
-                    "<span\\s*class=\"subtitle.*?>\\s*\n?(.*?)\n?\\s*</span>", true);
+            name = output.get(SUBTITLE_UNITED_STATES);
         }
 
         if (name != null) {
@@ -288,27 +390,15 @@ public class WhitePagesApi {
         return name;
     }
 
-    private static String parseNameCanada(String output) {
-        String name = LookupUtils.firstRegexResult(output,
-                "(<li\\s+class=\"listing_info\">.*?</li>)", true);
-        return LookupUtils.fromHtml(name);
-    }
-
-    private static String parseNumberUnitedStates(String output) {
-        return LookupUtils.firstRegexResult(output,
-                "Full Number:</span>([0-9\\-\\+\\(\\)]+)</li>", true);
-    }
-
     private static String parseAddressUnitedStates(String output) {
-        String regexBase = "<span\\s+class=\"%s[^\"]+\"\\s*>([^<]*)</span>";
-
-        String addressPrimary = LookupUtils.firstRegexResult(output,
-                String.format(regexBase, "address-primary"), true);
-        String addressSecondary = LookupUtils.firstRegexResult(output,
-                String.format(regexBase, "address-secondary"), true);
-        String addressLocation = LookupUtils.firstRegexResult(output,
-                String.format(regexBase, "address-location"), true);
+        return formatAddressUnitedStates(
+                LookupUtils.firstRegexResult(output, ADDRESS_PRIMARY_PATTERN),
+                LookupUtils.firstRegexResult(output, ADDRESS_SECONDARY_PATTERN),
+                LookupUtils.firstRegexResult(output, ADDRESS_LOCATION_PATTERN));
+    }
 
+    private static String formatAddressUnitedStates(String addressPrimary,
+            String addressSecondary, String addressLocation) {
         StringBuilder sb = new StringBuilder();
 
         if (!TextUtils.isEmpty(addressPrimary)) {
@@ -331,10 +421,8 @@ public class WhitePagesApi {
         return address;
     }
 
-    private static String parseAddressCanada(String output) {
-        String address = LookupUtils.firstRegexResult(output,
-                "<ol class=\"result people_result\">.*?(<li\\s+class=\"col_location\">.*?</li>)" +
-                ".*?</ol>", true);
+    private static String parseAddressCanada(HtmlExtractor.Result output) {
+        String address = output.get(ADDRESS_CANADA);
 
         if (address != null) {
             address = LookupUtils.fromHtml(address).replace("\n", ", ");
@@ -41,7 +41,8 @@ public class WhitePagesReverseLookup extends ReverseLookup {
      */
     public ContactInfo lookupNumber(Context context,
             String normalizedNumber, String formattedNumber) throws IOException {
-        WhitePagesApi.ContactInfo info = WhitePagesApi.reverseLookup(context, normalizedNumber);
+        WhitePagesApi.ContactInfo info = WhitePagesApi.reverseLookup(context, normalizedNumber,
+                getRequestTimeoutMillis());
         if (info == null || info.name == null) {
             return null;
         }
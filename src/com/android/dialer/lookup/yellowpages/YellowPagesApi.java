@@ -19,8 +19,10 @@ package com.android.dialer.lookup.yellowpages;
 import android.content.Context;
 import android.text.TextUtils;
 
+import com.android.dialer.lookup.HtmlExtractor;
 import com.android.dialer.lookup.LookupSettings;
 import com.android.dialer.lookup.LookupUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.util.regex.Matcher;
@@ -34,15 +36,62 @@ public class YellowPagesApi {
     private static final String LOOKUP_URL_CANADA =
             "http://www.yellowpages.ca/search/si/1/";
 
+    @VisibleForTesting
+    public static final HtmlExtractor.Field NAME_WEBSITE_UNITED_STATES =
+            new HtmlExtractor.Field(
+                    "<a href=\"([^>]+?)\"[^>]+?class=\"url[^>]+?>([^<]+)</a>", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field NUMBER_UNITED_STATES = new HtmlExtractor.Field(
+            "business-phone.*?>\n*([^\n<]+)\n*<", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_STREET_UNITED_STATES =
+            new HtmlExtractor.Field("street-address.*?>\n*([^\n<]+)\n*<", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_CITY_UNITED_STATES =
+            new HtmlExtractor.Field("locality.*?>\n*([^\n<]+)\n*<", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_STATE_UNITED_STATES =
+            new HtmlExtractor.Field("region.*?>\n*([^\n<]+)\n*<", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_ZIP_UNITED_STATES =
+            new HtmlExtractor.Field("postal-code.*?>\n*([^\n<]+)\n*<", Pattern.DOTALL);
+
+    @VisibleForTesting
+    public static final HtmlExtractor EXTRACTOR_UNITED_STATES = new HtmlExtractor(
+            NAME_WEBSITE_UNITED_STATES, NUMBER_UNITED_STATES, ADDRESS_STREET_UNITED_STATES,
+            ADDRESS_CITY_UNITED_STATES, ADDRESS_STATE_UNITED_STATES, ADDRESS_ZIP_UNITED_STATES);
+
+    @VisibleForTesting
+    public static final HtmlExtractor.Field NAME_WEBSITE_CANADA = new HtmlExtractor.Field(
+            "class=\"ypgListingTitleLink utagLink\".*?href=\"(.*?)\">"
+                    + "(<span\\s+class=\"listingTitle\">.*?</span>)", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field NUMBER_CANADA = new HtmlExtractor.Field(
+            "<div\\s+class=\"phoneNumber\">(.*?)</div>", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_CANADA = new HtmlExtractor.Field(
+            "<div\\s+class=\"address\">(.*?)</div>", Pattern.DOTALL);
+
+    @VisibleForTesting
+    public static final HtmlExtractor EXTRACTOR_CANADA = new HtmlExtractor(
+            NAME_WEBSITE_CANADA, NUMBER_CANADA, ADDRESS_CANADA);
+
+    private static final Pattern GALLERY_PATTERN =
+            Pattern.compile("href=\"([^\"]+gallery\\?lid=[^\"]+)\"", Pattern.DOTALL);
+    private static final Pattern IMAGE_PATTERN =
+            Pattern.compile("\"type\":\"image\",\"src\":\"([^\"]+)\"", Pattern.DOTALL);
+
     private String mProvider = null;
     private String mNumber = null;
-    private String mOutput = null;
+    private HtmlExtractor.Result mOutput = null;
     private ContactInfo mInfo = null;
     private String mLookupUrl = null;
+    private int mTimeoutMillis;
 
-    public YellowPagesApi(Context context, String number) {
+    public YellowPagesApi(Context context, String number, int timeoutMillis) {
         mProvider = LookupSettings.getReverseLookupProvider(context);
         mNumber = number;
+        mTimeoutMillis = timeoutMillis;
 
         if (mProvider.equals(LookupSettings.RLP_YELLOWPAGES)) {
             mLookupUrl = LOOKUP_URL_UNITED_STATES;
@@ -52,52 +101,36 @@ public class YellowPagesApi {
     }
 
     private void fetchPage() throws IOException {
-        mOutput = LookupUtils.httpGet(mLookupUrl + mNumber, null);
+        HtmlExtractor extractor = mProvider.equals(LookupSettings.RLP_YELLOWPAGES_CA)
+                ? EXTRACTOR_CANADA : EXTRACTOR_UNITED_STATES;
+        mOutput = LookupUtils.httpGet(mLookupUrl + mNumber, null, extractor, mTimeoutMillis);
     }
 
     private String getPhotoUrl(String website) throws IOException {
-        String output = LookupUtils.httpGet(website, null);
-        String galleryRef = LookupUtils.firstRegexResult(output,
-                "href=\"([^\"]+gallery\\?lid=[^\"]+)\"", true);
+        // the business page and its gallery rarely change
+        String output = LookupUtils.httpGetConditional(website, null, mTimeoutMillis);
+        String galleryRef = LookupUtils.firstRegexResult(output, GALLERY_PATTERN);
         if (galleryRef == null) {
             return null;
         }
 
         // Get first image
         return LookupUtils.firstRegexResult(
-                LookupUtils.httpGet("http://www.yellowpages.com" + galleryRef, null),
-                "\"type\":\"image\",\"src\":\"([^\"]+)\"", true);
+                LookupUtils.httpGetConditional("http://www.yellowpages.com" + galleryRef, null,
+                        mTimeoutMillis),
+                IMAGE_PATTERN);
     }
 
     private String[] parseNameWebsiteUnitedStates() {
-        Pattern regexNameAndWebsite = Pattern.compile(
-                "<a href=\"([^>]+?)\"[^>]+?class=\"url[^>]+?>([^<]+)</a>",
-                Pattern.DOTALL);
-        String name = null;
-        String website = null;
-
-        Matcher m = regexNameAndWebsite.matcher(mOutput);
-        if (m.find()) {
-            website = m.group(1).trim();
-            name = m.group(2).trim();
-        }
+        String website = mOutput.getGroup(NAME_WEBSITE_UNITED_STATES, 1);
+        String name = mOutput.getGroup(NAME_WEBSITE_UNITED_STATES, 2);
 
         return new String[] { name, website };
     }
 
     private String[] parseNameWebsiteCanada() {
-        Pattern regexNameAndWebsite = Pattern.compile(
-                "class=\"ypgListingTitleLink utagLink\".*?href=\"(.*?)\">"
-                        + "(<span\\s+class=\"listingTitle\">.*?</span>)",
-                Pattern.DOTALL);
-        String name = null;
-        String website = null;
-
-        Matcher m = regexNameAndWebsite.matcher(mOutput);
-        if (m.find()) {
-            website = m.group(1).trim();
-            name = LookupUtils.fromHtml(m.group(2).trim());
-        }
+        String website = mOutput.getGroup(NAME_WEBSITE_CANADA, 1);
+        String name = LookupUtils.fromHtml(mOutput.getGroup(NAME_WEBSITE_CANADA, 2));
 
         if (website != null) {
             website = "http://www.yellowpages.ca" + website;
@@ -107,28 +140,22 @@ public class YellowPagesApi {
     }
 
     private String parseNumberUnitedStates() {
-        return LookupUtils.firstRegexResult(mOutput,
-                "business-phone.*?>\n*([^\n<]+)\n*<", true);
+        return mOutput.get(NUMBER_UNITED_STATES);
     }
 
     private String parseNumberCanada() {
-        return LookupUtils.firstRegexResult(mOutput,
-                "<div\\s+class=\"phoneNumber\">(.*?)</div>", true);
+        return mOutput.get(NUMBER_CANADA);
     }
 
     private String parseAddressUnitedStates() {
-        String addressStreet = LookupUtils.firstRegexResult(mOutput,
-                "street-address.*?>\n*([^\n<]+)\n*<", true);
+        String addressStreet = mOutput.get(ADDRESS_STREET_UNITED_STATES);
         if (addressStreet != null && addressStreet.endsWith(",")) {
             addressStreet = addressStreet.substring(0, addressStreet.length() - 1);
         }
 
-        String addressCity = LookupUtils.firstRegexResult(mOutput,
-                "locality.*?>\n*([^\n<]+)\n*<", true);
-        String addressState = LookupUtils.firstRegexResult(mOutput,
-                "region.*?>\n*([^\n<]+)\n*<", true);
-        String addressZip = LookupUtils.firstRegexResult(mOutput,
-                "postal-code.*?>\n*([^\n<]+)\n*<", true);
+        String addressCity = mOutput.get(ADDRESS_CITY_UNITED_STATES);
+        String addressState = mOutput.get(ADDRESS_STATE_UNITED_STATES);
+        String addressZip = mOutput.get(ADDRESS_ZIP_UNITED_STATES);
 
         StringBuilder sb = new StringBuilder();
 
@@ -157,9 +184,7 @@ public class YellowPagesApi {
     }
 
     private String parseAddressCanada() {
-        String address = LookupUtils.firstRegexResult(mOutput,
-                "<div\\s+class=\"address\">(.*?)</div>", true);
-        return LookupUtils.fromHtml(address);
+        return LookupUtils.fromHtml(mOutput.get(ADDRESS_CANADA));
     }
 
     private void buildContactInfo() throws IOException {
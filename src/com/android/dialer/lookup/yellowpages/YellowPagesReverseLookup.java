@@ -31,6 +31,8 @@ import android.util.Log;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
 
 public class YellowPagesReverseLookup extends ReverseLookup {
     private static final String TAG =
@@ -56,8 +58,14 @@ public class YellowPagesReverseLookup extends ReverseLookup {
 
         if (scheme.startsWith("http")) {
             try {
-                byte[] response = LookupUtils.httpGetBytes(uri.toString(), null);
-                return BitmapFactory.decodeByteArray(response, 0, response.length);
+                // decode the image while it is received
+                return LookupUtils.httpGet(uri.toString(), null,
+                        new LookupUtils.ResponseParser<Bitmap>() {
+                    @Override
+                    public Bitmap parse(InputStream in, Charset charset) {
+                        return BitmapFactory.decodeStream(in);
+                    }
+                });
             } catch (IOException e) {
                 Log.e(TAG, "Failed to retrieve image", e);
             }
@@ -84,7 +92,8 @@ public class YellowPagesReverseLookup extends ReverseLookup {
      */
     public ContactInfo lookupNumber(Context context,
             String normalizedNumber, String formattedNumber) throws IOException {
-        YellowPagesApi ypa = new YellowPagesApi(context, normalizedNumber);
+        YellowPagesApi ypa = new YellowPagesApi(context, normalizedNumber,
+                getRequestTimeoutMillis());
         YellowPagesApi.ContactInfo info = ypa.getContactInfo();
 
         if (info.name == null) {
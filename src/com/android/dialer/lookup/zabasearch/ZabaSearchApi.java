@@ -18,43 +18,65 @@ package com.android.dialer.lookup.zabasearch;
 
 import android.text.TextUtils;
 
+import com.android.dialer.lookup.HtmlExtractor;
 import com.android.dialer.lookup.LookupUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
+import java.util.regex.Pattern;
 
 public class ZabaSearchApi {
     private static final String TAG = ZabaSearchApi.class.getSimpleName();
 
     private static final String LOOKUP_URL = "http://www.zabasearch.com/phone/";
 
+    @VisibleForTesting
+    public static final HtmlExtractor.Field NAME = new HtmlExtractor.Field(
+            "itemprop=\"?name\"?>([^<]+)<", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field PHONE_NUMBER = new HtmlExtractor.Field(
+            "itemprop=\"?telephone\"?>([^<]+)<", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_STREET = new HtmlExtractor.Field(
+            "itemprop=\"?streetAddress\"?>([^<]+?)(&nbsp;)*<", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_CITY = new HtmlExtractor.Field(
+            "itemprop=\"?addressLocality\"?>([^<]+)<", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_STATE = new HtmlExtractor.Field(
+            "itemprop=\"?addressRegion\"?>([^<]+)<", Pattern.DOTALL);
+    @VisibleForTesting
+    public static final HtmlExtractor.Field ADDRESS_ZIP = new HtmlExtractor.Field(
+            "itemprop=\"?postalCode\"?>([^<]+)<", Pattern.DOTALL);
+
+    @VisibleForTesting
+    public static final HtmlExtractor EXTRACTOR = new HtmlExtractor(NAME, PHONE_NUMBER,
+            ADDRESS_STREET, ADDRESS_CITY, ADDRESS_STATE, ADDRESS_ZIP);
+
     private String mNumber = null;
-    public String mOutput = null;
+    private HtmlExtractor.Result mOutput = null;
     private ContactInfo mInfo = null;
+    private int mTimeoutMillis;
 
-    public ZabaSearchApi(String number) {
+    public ZabaSearchApi(String number, int timeoutMillis) {
         mNumber = number;
+        mTimeoutMillis = timeoutMillis;
     }
 
     private void fetchPage() throws IOException {
-        mOutput = LookupUtils.httpGet(LOOKUP_URL + mNumber, null);
+        mOutput = LookupUtils.httpGet(LOOKUP_URL + mNumber, null, EXTRACTOR, mTimeoutMillis);
     }
 
     private void buildContactInfo() {
         // Name
-        String name = LookupUtils.firstRegexResult(mOutput,
-                "itemprop=\"?name\"?>([^<]+)<", true);
+        String name = mOutput.get(NAME);
         // Formatted phone number
-        String phoneNumber = LookupUtils.firstRegexResult(mOutput,
-                "itemprop=\"?telephone\"?>([^<]+)<", true);
+        String phoneNumber = mOutput.get(PHONE_NUMBER);
         // Address
-        String addressStreet = LookupUtils.firstRegexResult(mOutput,
-                "itemprop=\"?streetAddress\"?>([^<]+?)(&nbsp;)*<", true);
-        String addressCity = LookupUtils.firstRegexResult(mOutput,
-                "itemprop=\"?addressLocality\"?>([^<]+)<", true);
-        String addressState = LookupUtils.firstRegexResult(mOutput,
-                "itemprop=\"?addressRegion\"?>([^<]+)<", true);
-        String addressZip = LookupUtils.firstRegexResult(mOutput,
-                "itemprop=\"?postalCode\"?>([^<]+)<", true);
+        String addressStreet = mOutput.get(ADDRESS_STREET);
+        String addressCity = mOutput.get(ADDRESS_CITY);
+        String addressState = mOutput.get(ADDRESS_STATE);
+        String addressZip = mOutput.get(ADDRESS_ZIP);
 
         StringBuilder sb = new StringBuilder();
 
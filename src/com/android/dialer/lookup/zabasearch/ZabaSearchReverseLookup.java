@@ -41,7 +41,7 @@ public class ZabaSearchReverseLookup extends ReverseLookup {
      */
     public ContactInfo lookupNumber(Context context,
             String normalizedNumber, String formattedNumber) throws IOException {
-        ZabaSearchApi zsa = new ZabaSearchApi(normalizedNumber);
+        ZabaSearchApi zsa = new ZabaSearchApi(normalizedNumber, getRequestTimeoutMillis());
         ZabaSearchApi.ContactInfo info = zsa.getContactInfo();
         if (info.name == null) {
             return null;
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Latency and allocation samples of a benchmarked operation, each sample covering one call
+ * between {@link #start()} and {@link #stop()}.
+ *
+ * Allocations are read from the per-thread counters, which are only maintained between
+ * {@link Debug#startAllocCounting()} and {@link Debug#stopAllocCounting()}. The operation must run
+ * on the calling thread for its allocations to be counted.
+ */
+public class OperationStats {
+    private final String mName;
+    private long[] mNanos = new long[64];
+    private int mTotalAllocations;
+    private int mCount;
+
+    private long mStartNanos;
+    private int mStartAllocations;
+
+    public OperationStats(String name) {
+        mName = name;
+    }
+
+    public void start() {
+        mStartAllocations = Debug.getThreadAllocCount();
+        mStartNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    public void stop() {
+        final long nanos = SystemClock.elapsedRealtimeNanos() - mStartNanos;
+        mTotalAllocations += Debug.getThreadAllocCount() - mStartAllocations;
+        if (mCount == mNanos.length) {
+            mNanos = Arrays.copyOf(mNanos, mCount * 2);
+        }
+        mNanos[mCount++] = nanos;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the latency under which the given fraction of the samples fall, in nanoseconds.
+     */
+    public long getPercentileNanos(double fraction) {
+        if (mCount == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(mNanos, mCount);
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(fraction * mCount) - 1;
+        return sorted[Math.max(0, Math.min(index, mCount - 1))];
+    }
+
+    public double getAllocationsPerOperation() {
+        return mCount == 0 ? 0 : (double) mTotalAllocations / mCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: ops=%d p50=%.1fus p99=%.1fus allocations/op=%.1f", mName,
+                mCount, getPercentileNanos(0.5) / 1e3, getPercentileNanos(0.99) / 1e3,
+                getAllocationsPerOperation());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactMatch;
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.android.dialer.dialpad.SmartDialPrefix;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests that {@link ParallelMatcher} returns the same matches, and leaves the same candidates for
+ * the next keystroke, as matching the candidates one after the other.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.database.ParallelMatcherTest /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class ParallelMatcherTest extends AndroidTestCase {
+    private static final int THREADS = 4;
+
+    private SyntheticAddressBook mAddressBook;
+    private ExecutorService mExecutor;
+    private ParallelMatcher mMatcher;
+    private ArrayList<ContactNumber> mCandidates;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SmartDialPrefix.initializeNanpSettings(getContext());
+        mExecutor = Executors.newFixedThreadPool(THREADS);
+        mMatcher = new ParallelMatcher(mExecutor, THREADS);
+
+        // Two numbers per contact, so that matches need de-duplication across chunks.
+        mAddressBook = new SyntheticAddressBook(3000, 42);
+        mCandidates = Lists.newArrayList();
+        for (int i = 0; i < mAddressBook.getSize(); i++) {
+            final int contactId = i / 2;
+            mCandidates.add(new ContactNumber(contactId, i, mAddressBook.getDisplayName(contactId),
+                    mAddressBook.getPhoneNumber(i), String.valueOf(contactId), 0));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testGetTopMatches_sameAsSerial() {
+        final ArrayList<String> queries = Lists.newArrayList("2", "5", "0", "99999", "1234");
+        for (int i = 0; i < 100; i += 7) {
+            final ArrayList<String> tokens = SmartDialPrefix.parseToIndexTokens(
+                    mCandidates.get(i * 29).displayName);
+            if (!tokens.isEmpty()) {
+                final String digits = tokens.get(tokens.size() - 1);
+                queries.add(digits.substring(0, Math.min(4, digits.length())));
+            }
+        }
+
+        for (String query : queries) {
+            final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                    SmartDialPrefix.getMap(), getContext());
+            final ArrayList<ContactNumber> serialRemaining = Lists.newArrayList();
+            final ArrayList<ContactNumber> remaining = Lists.newArrayList();
+            assertEquals(query,
+                    getTopMatchesSerially(mCandidates, query, nameMatcher, serialRemaining),
+                    mMatcher.getTopMatches(mCandidates, query, nameMatcher, remaining));
+            assertEquals(query, serialRemaining, remaining);
+        }
+    }
+
+    public void testGetTopMatches_partialWave() {
+        final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher("5",
+                SmartDialPrefix.getMap(), getContext());
+        assertTrue(mMatcher.getTopMatches(new ArrayList<ContactNumber>(), "5",
+                nameMatcher).isEmpty());
+        // One full chunk and part of another.
+        final List<ContactNumber> candidates = mCandidates.subList(0, 300);
+        final ArrayList<ContactNumber> serialRemaining = Lists.newArrayList();
+        final ArrayList<ContactNumber> remaining = Lists.newArrayList();
+        assertEquals(getTopMatchesSerially(candidates, "5", nameMatcher, serialRemaining),
+                mMatcher.getTopMatches(candidates, "5", nameMatcher, remaining));
+        assertEquals(serialRemaining, remaining);
+    }
+
+    public void testGetLooseMatches_narrowedOnSeveralThreads() {
+        final DialerDatabaseHelper helper = mAddressBook.newDatabaseHelper(getContext());
+        helper.setParallelMatcher(mMatcher);
+
+        // Types "5276", backspaces twice and types "64", once on several threads and once on the
+        // calling thread, each keystroke narrowing down the candidates of the previous one.
+        final String[] keystrokes = {"5", "52", "527", "5276", "52", "526", "5264"};
+        DialerDatabaseHelper.LooseMatchResult previous = null;
+        DialerDatabaseHelper.LooseMatchResult serialPrevious = null;
+        try {
+            for (String query : keystrokes) {
+                final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                        SmartDialPrefix.getMap(), getContext());
+                helper.setParallelMatchingMinRows(0);
+                serialPrevious = helper.getLooseMatches(query, nameMatcher, serialPrevious);
+                helper.setParallelMatchingMinRows(1);
+                previous = helper.getLooseMatches(query, nameMatcher, previous);
+                assertEquals(query, serialPrevious.matches, previous.matches);
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    private static ArrayList<ContactNumber> getTopMatchesSerially(List<ContactNumber> candidates,
+            String query, SmartDialNameMatcher nameMatcher, ArrayList<ContactNumber> remaining) {
+        final ArrayList<ContactNumber> result = Lists.newArrayList();
+        final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
+        for (int i = 0; i < candidates.size(); i++) {
+            if (result.size() >= DialerDatabaseHelper.MAX_ENTRIES) {
+                remaining.addAll(candidates.subList(i, candidates.size()));
+                break;
+            }
+            final ContactNumber contact = candidates.get(i);
+            final ContactMatch contactMatch = new ContactMatch(contact.lookupKey, contact.id);
+            if (duplicates.contains(contactMatch)) {
+                remaining.add(contact);
+            } else if (DialerDatabaseHelper.matchesQuery(contact, query, nameMatcher)) {
+                duplicates.add(contactMatch);
+                result.add(contact);
+                remaining.add(contact);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemProperties;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.database.SyntheticAddressBook.Script;
+import com.android.dialer.dialpad.ChineseSmartDialMap;
+import com.android.dialer.dialpad.GreekSmartDialMap;
+import com.android.dialer.dialpad.HebrewSmartDialMap;
+import com.android.dialer.dialpad.KoreanSmartDialMap;
+import com.android.dialer.dialpad.LatinSmartDialMap;
+import com.android.dialer.dialpad.RussianSmartDialMap;
+import com.android.dialer.dialpad.SmartDialMap;
+import com.android.dialer.dialpad.SmartDialMatchPosition;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmarks each stage of the smart dial pipeline on a synthetic address book: computing the
+ * prefixes of names and numbers, full and delta updates of the smart dial database, looking up
+ * matches, and matching names in each {@link SmartDialMap}. Every stage reports the 50th and 99th
+ * percentile latency of a single operation, and the number of objects it allocates. Updates also
+ * report how long they take to swap in their changes. Lookups are also run with candidates
+ * matched serially and by {@link ParallelMatcher}, whose thread count is the number of cores.
+ *
+ * The database runs in memory, and updates read contacts from a
+ * {@link SyntheticContactsProvider}, so the device's own contacts are neither read nor modified.
+ *
+ * The address book is configured through system properties:
+ * debug.dialer.bench.contacts - number of contacts, 5000 by default.
+ * debug.dialer.bench.scripts - comma separated scripts of the names, out of latin, hanzi, greek,
+ * cyrillic and hebrew. Only latin by default.
+ *
+ * To run this test, use the command:
+ * adb shell setprop debug.dialer.bench.scripts latin,greek,cyrillic
+ * adb shell am instrument -w -e class com.android.dialer.database.SmartDialPipelineBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ *
+ * Results are written to logcat under the SmartDialPipelineBenchmark tag.
+ */
+@LargeTest
+public class SmartDialPipelineBenchmark extends AndroidTestCase {
+    private static final String TAG = "SmartDialPipelineBenchmark";
+
+    private static final String CONTACTS_PROPERTY = "debug.dialer.bench.contacts";
+    private static final String SCRIPTS_PROPERTY = "debug.dialer.bench.scripts";
+    private static final int DEFAULT_CONTACTS = 5000;
+    private static final long SEED = 42;
+
+    /** Number of full updates, each on a new database. */
+    private static final int FULL_UPDATES = 3;
+    /** Number of delta updates following each full update. */
+    private static final int DELTA_UPDATES = 10;
+    /** Number of contacts changed between two delta updates. */
+    private static final int DELTA_CONTACTS = 20;
+
+    /** Number of contacts whose names are typed out when looking up matches. */
+    private static final int TYPED_CONTACTS = 50;
+    /** Number of keypresses typed for each contact. */
+    private static final int MAX_KEYPRESSES = 7;
+    /** Number of queries each name is matched against in each map. */
+    private static final int MATCHED_QUERIES = 20;
+
+    private SyntheticAddressBook mAddressBook;
+    private String mConfiguration;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SmartDialPrefix.initializeNanpSettings(getContext());
+
+        final int size = SystemProperties.getInt(CONTACTS_PROPERTY, DEFAULT_CONTACTS);
+        final String[] scriptNames = SystemProperties.get(SCRIPTS_PROPERTY, "latin").split(",");
+        final Script[] scripts = new Script[scriptNames.length];
+        for (int i = 0; i < scriptNames.length; i++) {
+            scripts[i] = Script.valueOf(scriptNames[i].trim().toUpperCase(Locale.US));
+        }
+        mAddressBook = new SyntheticAddressBook(size, SEED, scripts);
+        mConfiguration = "contacts=" + size + " scripts=" + SystemProperties.get(SCRIPTS_PROPERTY,
+                "latin") + " map=" + SmartDialPrefix.getMap().getClass().getSimpleName();
+
+        Debug.startAllocCounting();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Debug.stopAllocCounting();
+        super.tearDown();
+    }
+
+    public void testGenerateNamePrefixes() {
+        final String[] names = new String[mAddressBook.getSize()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = mAddressBook.getDisplayName(i);
+        }
+        final OperationStats stats = new OperationStats("generateNamePrefixes");
+        for (String name : names) {
+            SmartDialPrefix.generateNamePrefixes(name);
+        }
+        for (String name : names) {
+            stats.start();
+            SmartDialPrefix.generateNamePrefixes(name);
+            stats.stop();
+        }
+        report(stats);
+    }
+
+    public void testParseToNumberTokens() {
+        final String[] numbers = new String[mAddressBook.getSize()];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = mAddressBook.getPhoneNumber(i);
+        }
+        final OperationStats stats = new OperationStats("parseToNumberTokens");
+        for (String number : numbers) {
+            SmartDialPrefix.parseToNumberTokens(number);
+        }
+        for (String number : numbers) {
+            stats.start();
+            SmartDialPrefix.parseToNumberTokens(number);
+            stats.stop();
+        }
+        report(stats);
+    }
+
+    public void testUpdateSmartDialDatabase() {
+        final OperationStats full = new OperationStats("updateSmartDialDatabase full");
+        final OperationStats delta = new OperationStats("updateSmartDialDatabase delta");
+        final Random random = new Random(SEED);
+        long totalSwapNanos = 0;
+        long maxSwapNanos = 0;
+        for (int i = 0; i < FULL_UPDATES; i++) {
+            final SyntheticContactsProvider provider = new SyntheticContactsProvider(mAddressBook);
+            final Context context = provider.newContext(getContext());
+            final DialerDatabaseHelper helper = DialerDatabaseHelper.getNewInstanceForTest(context);
+
+            full.start();
+            helper.updateSmartDialDatabase();
+            full.stop();
+            totalSwapNanos += helper.getLastSwapNanos();
+            maxSwapNanos = Math.max(maxSwapNanos, helper.getLastSwapNanos());
+
+            for (int j = 0; j < DELTA_UPDATES; j++) {
+                provider.setUpdatedContacts(random.nextInt(mAddressBook.getSize()),
+                        DELTA_CONTACTS);
+                delta.start();
+                helper.updateSmartDialDatabase();
+                delta.stop();
+                totalSwapNanos += helper.getLastSwapNanos();
+                maxSwapNanos = Math.max(maxSwapNanos, helper.getLastSwapNanos());
+            }
+            helper.close();
+        }
+        report(full);
+        report(delta);
+        Log.i(TAG, String.format("%s swap: mean=%.1fus max=%.1fus", mConfiguration,
+                totalSwapNanos / 1e3 / (full.getCount() + delta.getCount()), maxSwapNanos / 1e3));
+    }
+
+    public void testGetLooseMatches() {
+        final DialerDatabaseHelper helper = mAddressBook.newDatabaseHelper(getContext());
+        final ArrayList<String> queries = new ArrayList<String>();
+        final Random random = new Random(SEED);
+        for (int i = 0; i < TYPED_CONTACTS; i++) {
+            final ArrayList<String> tokens = SmartDialPrefix.parseToIndexTokens(
+                    mAddressBook.getDisplayName(random.nextInt(mAddressBook.getSize())));
+            if (tokens.isEmpty()) {
+                continue;
+            }
+            final String digits = tokens.get(tokens.size() - 1);
+            for (int length = 1; length <= Math.min(digits.length(), MAX_KEYPRESSES); length++) {
+                queries.add(digits.substring(0, length));
+            }
+        }
+
+        final OperationStats sql = new OperationStats("getLooseMatches sql");
+        final OperationStats trie = new OperationStats("getLooseMatches trie");
+        helper.setUseSmartDialIndex(false);
+        runLooseMatches(helper, queries, null);
+        runLooseMatches(helper, queries, sql);
+        helper.setUseSmartDialIndex(true);
+        runLooseMatches(helper, queries, null);
+        runLooseMatches(helper, queries, trie);
+        helper.close();
+        report(sql);
+        report(trie);
+    }
+
+    /**
+     * Compares matching the candidates on the calling thread with {@link ParallelMatcher}, on
+     * the short queries which have the most candidates.
+     */
+    public void testGetLooseMatchesParallel() {
+        final DialerDatabaseHelper helper = mAddressBook.newDatabaseHelper(getContext());
+        helper.setUseSmartDialIndex(false);
+        final ArrayList<String> queries = new ArrayList<String>();
+        for (char first = '2'; first <= '9'; first++) {
+            queries.add(String.valueOf(first));
+            for (char second = '2'; second <= '9'; second++) {
+                queries.add(String.valueOf(first) + second);
+            }
+        }
+
+        final OperationStats serial = new OperationStats("getLooseMatches serial");
+        final OperationStats parallel = new OperationStats("getLooseMatches parallel cores="
+                + ParallelMatcher.getInstance().getParallelism());
+        helper.setParallelMatchingMinRows(0);
+        runLooseMatches(helper, queries, null);
+        runLooseMatches(helper, queries, serial);
+        helper.setParallelMatchingMinRows(1);
+        runLooseMatches(helper, queries, null);
+        runLooseMatches(helper, queries, parallel);
+        helper.close();
+        report(serial);
+        report(parallel);
+    }
+
+    private void runLooseMatches(DialerDatabaseHelper helper, ArrayList<String> queries,
+            OperationStats stats) {
+        for (String query : queries) {
+            final SmartDialNameMatcher matcher = new SmartDialNameMatcher(query,
+                    SmartDialPrefix.getMap(), getContext());
+            if (stats != null) {
+                stats.start();
+            }
+            helper.getLooseMatches(query, matcher);
+            if (stats != null) {
+                stats.stop();
+            }
+        }
+    }
+
+    public void testMatchesCombination() {
+        final String[] names = new String[mAddressBook.getSize()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = mAddressBook.getDisplayName(i);
+        }
+        final SmartDialMap[] maps = {
+            new LatinSmartDialMap(), new GreekSmartDialMap(), new RussianSmartDialMap(),
+            new HebrewSmartDialMap(), new ChineseSmartDialMap(), new KoreanSmartDialMap(),
+        };
+        for (SmartDialMap map : maps) {
+            final Random random = new Random(SEED);
+            final OperationStats stats = new OperationStats(
+                    "matchesCombination " + map.getClass().getSimpleName());
+            final ArrayList<SmartDialMatchPosition> matchList =
+                    new ArrayList<SmartDialMatchPosition>();
+            for (int i = 0; i < MATCHED_QUERIES; i++) {
+                final String query = getTypedDigits(map, names[random.nextInt(names.length)],
+                        1 + random.nextInt(MAX_KEYPRESSES));
+                if (query.isEmpty()) {
+                    continue;
+                }
+                final SmartDialNameMatcher matcher = new SmartDialNameMatcher(query, map,
+                        getContext());
+                for (String name : names) {
+                    matchList.clear();
+                    stats.start();
+                    map.matchesCombination(matcher, name, query, matchList);
+                    stats.stop();
+                }
+            }
+            report(stats);
+        }
+    }
+
+    /**
+     * Returns the digits typed for the first characters of the name in the given map.
+     */
+    private static String getTypedDigits(SmartDialMap map, String name, int length) {
+        final String transliteratedName = map.transliterateName(name);
+        final StringBuilder digits = new StringBuilder();
+        for (int i = 0; i < transliteratedName.length() && digits.length() < length; i++) {
+            final char digit = map.getNormalizedDialpadCharacter(transliteratedName.charAt(i));
+            if (digit != 0) {
+                digits.append(digit);
+            }
+        }
+        return digits.toString();
+    }
+
+    private void report(OperationStats stats) {
+        assertTrue(stats.getCount() > 0);
+        Log.i(TAG, mConfiguration + " " + stats);
+    }
+}
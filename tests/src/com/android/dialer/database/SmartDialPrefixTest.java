@@ -26,12 +26,16 @@ import android.util.Log;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
 
 import com.android.dialer.database.DialerDatabaseHelper;
 import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.dialpad.SmartDialConfig;
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
 
+import com.google.common.collect.Lists;
+
 import java.lang.Exception;
 import java.lang.Override;
 import java.lang.String;
@@ -108,13 +112,6 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     }
 
 
-    private MatrixCursor constructNewNameCursor() {
-        final MatrixCursor cursor = new MatrixCursor(new String[]{
-                DialerDatabaseHelper.SmartDialDbColumns.DISPLAY_NAME_PRIMARY,
-                DialerDatabaseHelper.SmartDialDbColumns.CONTACT_ID});
-        return cursor;
-    }
-
     private MatrixCursor constructNewContactCursor() {
         final MatrixCursor cursor = new MatrixCursor(new String[]{
                     Phone._ID,                          // 0
@@ -130,22 +127,22 @@ public class SmartDialPrefixTest extends AndroidTestCase {
                     Contacts.STARRED,                   // 10
                     Data.IS_SUPER_PRIMARY,              // 11
                     Contacts.IN_VISIBLE_GROUP,          // 12
-                    Data.IS_PRIMARY});                  // 13
+                    Data.IS_PRIMARY,                    // 13
+                    RawContacts.ACCOUNT_TYPE,           // 14
+                    RawContacts.ACCOUNT_NAME});         // 15
         return cursor;
     }
 
     private ContactNumber constructNewContactWithDummyIds(MatrixCursor contactCursor,
-            MatrixCursor nameCursor, String number, int id, String displayName) {
-        return constructNewContact(contactCursor, nameCursor, id, number, id, String.valueOf(id),
+            String number, int id, String displayName) {
+        return constructNewContact(contactCursor, id, number, id, String.valueOf(id),
                 displayName, 0, 0, 0, 0, 0, 0, 0);
     }
 
-    private ContactNumber constructNewContact(MatrixCursor contactCursor, MatrixCursor nameCursor,
-            int id, String number, int contactId, String lookupKey, String displayName, int photoId,
-            int lastTimeUsed, int timesUsed, int starred, int isSuperPrimary, int inVisibleGroup,
-            int isPrimary) {
+    private ContactNumber constructNewContact(MatrixCursor contactCursor, int id, String number,
+            int contactId, String lookupKey, String displayName, int photoId, int lastTimeUsed,
+            int timesUsed, int starred, int isSuperPrimary, int inVisibleGroup, int isPrimary) {
         assertNotNull(contactCursor);
-        assertNotNull(nameCursor);
 
         if (TextUtils.isEmpty(number)) {
             // Add a dummy number, otherwise DialerDatabaseHelper simply ignores the entire
@@ -155,8 +152,7 @@ public class SmartDialPrefixTest extends AndroidTestCase {
 
         contactCursor.addRow(new Object[]{id, "", "", number, contactId, lookupKey, displayName,
                 photoId, lastTimeUsed, timesUsed, starred, isSuperPrimary, inVisibleGroup,
-                isPrimary});
-        nameCursor.addRow(new Object[]{displayName, contactId});
+                isPrimary, null, null});
 
         return new ContactNumber(contactId, id, displayName, number, lookupKey, 0);
     }
@@ -170,19 +166,16 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testPutForFullName() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber jasonsmith = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber jasonsmith = constructNewContactWithDummyIds(contactCursor,
                 "", 0, "Jason Smith");
-        final ContactNumber jasonsmitt = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber jasonsmitt = constructNewContactWithDummyIds(contactCursor,
                 "", 1, "Jason Smitt");
-        final ContactNumber alphabet = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber alphabet = constructNewContactWithDummyIds(contactCursor,
                 "12345678", 2, "abc def ghi jkl mno pqrs tuv wxyz");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
 
-        nameCursor.close();
         contactCursor.close();
 
         final ArrayList<ContactNumber> result1 = getLooseMatchesFromDb("5276676484");
@@ -208,19 +201,16 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testPutForPartialName() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber maryjane = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber maryjane = constructNewContactWithDummyIds(contactCursor,
                 "", 0, "Mary Jane");
-        final ContactNumber sarahsmith = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber sarahsmith = constructNewContactWithDummyIds(contactCursor,
                 "", 1, "Sarah Smith");
-        final ContactNumber jasonsmitt = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber jasonsmitt = constructNewContactWithDummyIds(contactCursor,
                 "", 2, "Jason Smitt");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
 
-        nameCursor.close();
         contactCursor.close();
 
         final ArrayList<ContactNumber> result1 = getLooseMatchesFromDb("6279");
@@ -243,15 +233,12 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testPutForNameTokens() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
         final ContactNumber jasonfwilliams = constructNewContactWithDummyIds(contactCursor,
-                nameCursor, "", 0, "Jason F. Williams");
+                "", 0, "Jason F. Williams");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("527").contains(jasonfwilliams));
@@ -264,15 +251,12 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testPutForInitialMatches() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
         final ContactNumber martinjuniorharry = constructNewContactWithDummyIds(contactCursor,
-                nameCursor, "", 0, "Martin Jr Harry");
+                "", 0, "Martin Jr Harry");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
 
-        nameCursor.close();
         contactCursor.close();
 
         // 654 corresponds to mjh = "(M)artin (J)r (H)arry"
@@ -308,15 +292,12 @@ public class SmartDialPrefixTest extends AndroidTestCase {
 
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber alphabet = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber alphabet = constructNewContactWithDummyIds(contactCursor,
                 "12345678", 0, "abc def ghi jkl mno pqrs tuv wxyz");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
 
-        nameCursor.close();
         contactCursor.close();
 
         // Makes sure only only the first two and last two token are considered for initials.
@@ -337,40 +318,36 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testCheckLongToken() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber alphabet = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber alphabet = constructNewContactWithDummyIds(contactCursor,
                 "1", 0,  " aaaa bbbb cccc dddd eeee ffff gggg hhhh iiii jjjj kkkk llll mmmm nnnn" +
                 " oooo pppp qqqq rrrr ssss tttt uuuu vvvv wwww xxxx yyyy zzzz");
 
-        final ContactNumber alphabet2 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber alphabet2 = constructNewContactWithDummyIds(contactCursor,
                 "1", 1, "aaaabbbbccccddddeeeeffffgggghhhhiiiijjjjkkkkllllmmmmnnnnooooppppqqqqrrrr" +
                 "ssssttttuuuuvvvvwwwwxxxxyyyyzzzz");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("2222").contains(alphabet));
-        assertEquals(40, mTestHelper.countPrefixTableRows(db));
+        // "aaaa" and "bbbb" share the initial 2, so 3 of the 37 initial and full name prefixes of
+        // the first contact are duplicates. + 1 for the second name, + 1 for each number
+        assertEquals(37, mTestHelper.countPrefixTableRows(db));
     }
 
     public void testAccentedCharacters() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber reene = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber reene = constructNewContactWithDummyIds(contactCursor,
                 "0", 0, "Reenée");
-        final ContactNumber bronte = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber bronte = constructNewContactWithDummyIds(contactCursor,
                 "0", 1, "Brontë");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("733633").contains(reene));
@@ -380,17 +357,14 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testNumbersInName() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber contact = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contact = constructNewContactWithDummyIds(contactCursor,
                 "0", 0, "12345678");
-        final ContactNumber teacher = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber teacher = constructNewContactWithDummyIds(contactCursor,
                 "0", 1, "1st Grade Teacher");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("12345678").contains(contact));
@@ -401,19 +375,16 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testPutForNumbers() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor,
                 "510-527-2357", 0,  "James");
-        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor,
                 "77212862357", 1, "James");
-        final ContactNumber contactno3 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno3 = constructNewContactWithDummyIds(contactCursor,
                 "+13684976334", 2, "James");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("510").contains(contactno1));
@@ -427,23 +398,20 @@ public class SmartDialPrefixTest extends AndroidTestCase {
     public void testPutNumbersCountryCode() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor,
                 "+13684976334", 0, "James");
-        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor,
                 "+65 9177-6930", 1, "Jason");
-        final ContactNumber contactno3 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno3 = constructNewContactWithDummyIds(contactCursor,
                 "+85212345678", 2, "Mike");
-        final ContactNumber contactno4 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno4 = constructNewContactWithDummyIds(contactCursor,
                 "+85112345678", 3, "Invalid");
-        final ContactNumber contactno5 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno5 = constructNewContactWithDummyIds(contactCursor,
                 "+852", 4, "Invalid");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("1368").contains(contactno1));
@@ -467,31 +435,28 @@ public class SmartDialPrefixTest extends AndroidTestCase {
         SmartDialPrefix.setUserInNanpRegion(true);
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
-        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor,
                 "16503337596", 0, "James");
-        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor,
                 "5109921234", 1, "Michael");
-        final ContactNumber contactno3 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno3 = constructNewContactWithDummyIds(contactCursor,
                 "(415)-123-4567", 2, "Jason");
-        final ContactNumber contactno4 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno4 = constructNewContactWithDummyIds(contactCursor,
                 "1 510-284-9170", 3, "Mike");
-        final ContactNumber contactno5 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno5 = constructNewContactWithDummyIds(contactCursor,
                 "1-415-123-123", 4, "Invalid");
-        final ContactNumber contactno6 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno6 = constructNewContactWithDummyIds(contactCursor,
                 "415-123-123", 5, "Invalid2");
-        final ContactNumber contactno7 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno7 = constructNewContactWithDummyIds(contactCursor,
                 "+1-510-284-9170", 6, "Mike");
-        final ContactNumber contactno8 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno8 = constructNewContactWithDummyIds(contactCursor,
                 "+1-510-284-917", 7, "Invalid");
-        final ContactNumber contactno9 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno9 = constructNewContactWithDummyIds(contactCursor,
                 "+857-510-284-9170", 8, "Inv");
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("16503337596").contains(contactno1));
@@ -537,19 +502,16 @@ public class SmartDialPrefixTest extends AndroidTestCase {
         SmartDialPrefix.setUserInNanpRegion(false);
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
-        final MatrixCursor nameCursor =  constructNewNameCursor();
         final MatrixCursor contactCursor = constructNewContactCursor();
 
-        final ContactNumber contactno0 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno0 = constructNewContactWithDummyIds(contactCursor,
                 "(415)-123-4567", 0, "Jason");
-        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor,
                 "1 510-284-9170", 1, "Mike");
 
 
-        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
-        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
 
-        nameCursor.close();
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("4151234567").contains(contactno0));
@@ -560,6 +522,220 @@ public class SmartDialPrefixTest extends AndroidTestCase {
         assertFalse(getLooseMatchesFromDb("2849170").contains(contactno1));
     }
 
+    public void testUpdatePrefixesForConfig() {
+        SmartDialPrefix.setUserInNanpRegion(true);
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber jason = constructNewContactWithDummyIds(contactCursor,
+                "(415)-123-4567", 0, "Jason");
+        final ContactNumber inv = constructNewContactWithDummyIds(contactCursor,
+                "+857-510-284-9170", 1, "Inv");
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
+        contactCursor.close();
+        assertTrue(getLooseMatchesFromDb("1234567").contains(jason));
+        assertEquals(0, mTestHelper.updatePrefixesForConfig(db, SmartDialPrefix.getConfig()));
+
+        // Publishing the same settings again keeps the configuration.
+        final SmartDialConfig nanpConfig = SmartDialPrefix.getConfig();
+        SmartDialPrefix.setUserInNanpRegion(true);
+        assertSame(nanpConfig, SmartDialPrefix.getConfig());
+
+        SmartDialPrefix.setUserInNanpRegion(false);
+        final SmartDialConfig config = SmartDialPrefix.getConfig();
+        assertTrue(config.getGeneration() > nanpConfig.getGeneration());
+        assertFalse(config.getKey().equals(nanpConfig.getKey()));
+
+        // Only the NANP number is rewritten.
+        assertEquals(1, mTestHelper.updatePrefixesForConfig(db, config));
+        assertFalse(getLooseMatchesFromDb("1234567").contains(jason));
+        assertTrue(getLooseMatchesFromDb("4151234567").contains(jason));
+        assertTrue(getLooseMatchesFromDb("8575102849170").contains(inv));
+        assertTrue(getLooseMatchesFromDb("468").contains(inv));
+        assertEquals(0, mTestHelper.updatePrefixesForConfig(db, config));
+    }
+
+    public void testIndexedMatchesEqualFullScan() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContactWithDummyIds(contactCursor, "+1-510-527-2357", 0,
+                "Martin Jr Harry");
+        constructNewContactWithDummyIds(contactCursor, "(650) 253-0000", 1,
+                "Yo-Yoghurt");
+        constructNewContactWithDummyIds(contactCursor, "+41 71 394 8392", 2,
+                "Reenée Brontë");
+        constructNewContactWithDummyIds(contactCursor, "#31#6502530000", 3,
+                "1st Grade Teacher");
+        // Initials of the middle tokens are not indexed.
+        constructNewContactWithDummyIds(contactCursor, "555 0100", 4,
+                "Albert Ben Charles Daniel Ed Foster");
+
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
+        mTestHelper.updateSmartDialIndexes(db);
+
+        contactCursor.close();
+
+        final String[] queries = {"6", "654", "5272", "964", "9649", "733633", "276683",
+                "2530000", "1", "31", "3948392", "713", "0", "14832", "99999", "2333",
+                "2367837", "3367837", "33", "57", "100"};
+        for (String query : queries) {
+            final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                    SmartDialPrefix.getMap(), getContext());
+            assertEquals(query, mTestHelper.getLooseMatchesFullScan(query, nameMatcher),
+                    mTestHelper.getLooseMatches(query, nameMatcher));
+        }
+    }
+
+    public void testSmartDialIndexMatchesEqualFullScan() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContactWithDummyIds(contactCursor, "+1-510-527-2357", 0,
+                "Martin Jr Harry");
+        constructNewContactWithDummyIds(contactCursor, "(650) 253-0000", 1,
+                "Yo-Yoghurt");
+        constructNewContactWithDummyIds(contactCursor, "+41 71 394 8392", 2,
+                "Reenée Brontë");
+        constructNewContactWithDummyIds(contactCursor, "#31#6502530000", 3,
+                "1st Grade Teacher");
+        constructNewContact(contactCursor, 4, "650 999 7777", 1, "1", "Yo-Yoghurt",
+                0, 0, 5, 0, 0, 1, 0);
+        constructNewContact(contactCursor, 5, "510 333 4444", 5, "5", "Martina",
+                0, 0, 0, 1, 0, 1, 1);
+        constructNewContactWithDummyIds(contactCursor, "555 0100", 6,
+                "Albert Ben Charles Daniel Ed Foster");
+
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
+        mTestHelper.updateSmartDialIndexes(db);
+        mTestHelper.setUseSmartDialIndex(true);
+
+        contactCursor.close();
+
+        final SmartDialIndex index = mTestHelper.getSmartDialIndex();
+        assertNotNull(index);
+        assertEquals(6, index.getContactCount());
+
+        final String[] queries = {"6", "654", "5272", "964", "9649", "733633", "276683",
+                "2530000", "1", "31", "3948392", "713", "0", "14832", "99999", "9997777", "510",
+                "2333", "2367837", "33", "57", "100"};
+        for (String query : queries) {
+            final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                    SmartDialPrefix.getMap(), getContext());
+            assertEquals(query, mTestHelper.getLooseMatchesFullScan(query, nameMatcher),
+                    index.getLooseMatches(query, nameMatcher));
+            assertEquals(query, mTestHelper.getLooseMatchesFullScan(query, nameMatcher),
+                    mTestHelper.getLooseMatches(query, nameMatcher));
+        }
+    }
+
+    public void testComputeRankScore() {
+        final long now = 100L * 24 * 60 * 60 * 1000;
+        final long day = 24 * 60 * 60 * 1000;
+        assertTrue(DialerDatabaseHelper.computeRankScore(true, false, 0, now)
+                < DialerDatabaseHelper.computeRankScore(false, true, now, now));
+        assertTrue(DialerDatabaseHelper.computeRankScore(false, true, 0, now)
+                < DialerDatabaseHelper.computeRankScore(false, false, now, now));
+        assertTrue(DialerDatabaseHelper.computeRankScore(false, false, now - 2 * day, now)
+                < DialerDatabaseHelper.computeRankScore(false, false, now - 4 * day, now));
+        assertTrue(DialerDatabaseHelper.computeRankScore(false, false, now - 29 * day, now)
+                < DialerDatabaseHelper.computeRankScore(false, false, now - 31 * day, now));
+    }
+
+    public void testUpdateRankScores() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        final long day = 24 * 60 * 60 * 1000;
+
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber jasonsmith = constructNewContactWithDummyIds(contactCursor, "", 0,
+                "Jason Smith");
+        final ContactNumber jasonsmitt = constructNewContactWithDummyIds(contactCursor, "", 1,
+                "Jason Smitt");
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
+        contactCursor.close();
+        assertEquals(Lists.newArrayList(jasonsmith, jasonsmitt),
+                getLooseMatchesFromDb("527667648"));
+
+        // Scores Jason Smitt as if it had been computed right after its last use.
+        db.execSQL("UPDATE " + DialerDatabaseHelper.Tables.SMARTDIAL_TABLE + " SET " +
+                DialerDatabaseHelper.SmartDialDbColumns.RANK_SCORE + " = " +
+                DialerDatabaseHelper.computeRankScore(false, false, 0, 0) + " WHERE " +
+                DialerDatabaseHelper.SmartDialDbColumns.CONTACT_ID + " = 1");
+        assertEquals(Lists.newArrayList(jasonsmitt, jasonsmith),
+                getLooseMatchesFromDb("527667648"));
+
+        // Crosses the 3 days threshold, still ranks first.
+        assertEquals(30 * day, mTestHelper.updateRankScores(db, 4 * day));
+        assertEquals(Lists.newArrayList(jasonsmitt, jasonsmith),
+                getLooseMatchesFromDb("527667648"));
+
+        // Crosses the 30 days threshold, ranks by name again.
+        assertEquals(Long.MAX_VALUE, mTestHelper.updateRankScores(db, 31 * day));
+        assertEquals(Lists.newArrayList(jasonsmith, jasonsmitt),
+                getLooseMatchesFromDb("527667648"));
+    }
+
+    public void testFuzzyMatches() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber jasonsmith = constructNewContactWithDummyIds(contactCursor, "", 0,
+                "Jason Smith");
+        // Starred, so that it would rank first if fuzzy matches were not ranked last.
+        final ContactNumber jasminejones = constructNewContact(contactCursor, 1, "0", 1, "1",
+                "Jasmine Jones", 0, 0, 0, 1, 0, 0, 0);
+        final ContactNumber alice = constructNewContactWithDummyIds(contactCursor, "2345121", 2,
+                "Alice");
+
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
+        mTestHelper.updateSmartDialIndexes(db);
+        contactCursor.close();
+
+        // 52766 is "jason", and one digit away from 52764 "jasmi".
+        assertEquals(Lists.newArrayList(jasonsmith), getLooseMatchesFromDb("52766"));
+        mTestHelper.setUseFuzzyMatching(true);
+        assertEquals(Lists.newArrayList(jasonsmith, jasminejones),
+                getLooseMatchesFromDb("52766"));
+
+        // Wrong, missing and extra digits in "smith".
+        assertEquals(Lists.newArrayList(jasonsmith), getLooseMatchesFromDb("76584"));
+        assertEquals(Lists.newArrayList(jasonsmith), getLooseMatchesFromDb("7684"));
+        assertEquals(Lists.newArrayList(jasonsmith), getLooseMatchesFromDb("764484"));
+        // Wrong digit in the number.
+        assertEquals(Lists.newArrayList(alice), getLooseMatchesFromDb("2355121"));
+        // Short queries are not looked up fuzzily.
+        assertTrue(getLooseMatchesFromDb("77").isEmpty());
+    }
+
+    public void testNarrowedMatchesEqualFullQuery() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContactWithDummyIds(contactCursor, "", 0, "Jason Smith");
+        constructNewContactWithDummyIds(contactCursor, "", 1, "Jason Smitt");
+        constructNewContactWithDummyIds(contactCursor, "", 2, "Jasmine Jones");
+        constructNewContactWithDummyIds(contactCursor, "5276121", 3, "Alice");
+        constructNewContactWithDummyIds(contactCursor, "", 4, "Martin Jr Harry");
+
+        mTestHelper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
+        mTestHelper.updateSmartDialIndexes(db);
+
+        contactCursor.close();
+
+        // Types "527667648", backspaces twice and types "88".
+        final String[] keystrokes = {"5", "52", "527", "5276", "52766", "527667", "5276676",
+                "52766764", "527667648", "5276676", "52766768", "527667648", "5276676488"};
+        DialerDatabaseHelper.LooseMatchResult previous = null;
+        for (String query : keystrokes) {
+            final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                    SmartDialPrefix.getMap(), getContext());
+            final DialerDatabaseHelper.LooseMatchResult result =
+                    mTestHelper.getLooseMatches(query, nameMatcher, previous);
+            assertEquals(query, mTestHelper.getLooseMatches(query, nameMatcher), result.matches);
+            previous = result;
+        }
+    }
+
     public void testParseInfo() {
         final String name = "Mcdonald Jamie-Cullum";
         final ArrayList<String> info = SmartDialPrefix.parseToIndexTokens(name);
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.DialerDatabaseHelper.LooseMatchResult;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Measures the per-keypress latency of smart dial lookups on synthetic address books, through
+ * the SQLite tables and through the in-memory {@link SmartDialIndex}, along with the memory used
+ * by the latter. Also checks that fuzzy lookups stay within their latency budget.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.database.SmartDialQueryBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ *
+ * Results are written to logcat under the SmartDialQueryBenchmark tag.
+ */
+@LargeTest
+public class SmartDialQueryBenchmark extends AndroidTestCase {
+    private static final String TAG = "SmartDialQueryBenchmark";
+
+    private static final int[] ADDRESS_BOOK_SIZES = {1000, 10000, 50000};
+    private static final long SEED = 42;
+
+    /** Number of contacts whose names are typed out during a run. */
+    private static final int TYPED_CONTACTS = 20;
+    /** Number of keypresses typed for each contact. */
+    private static final int MAX_KEYPRESSES = 7;
+
+    /** Contacts in the address book of the fuzzy lookup budget. */
+    private static final int FUZZY_ADDRESS_BOOK_SIZE = 10000;
+    /** Number of mistyped queries looked up against the budget. */
+    private static final int FUZZY_QUERIES = 200;
+    /** Time a fuzzy lookup may take, a frame at 60fps. */
+    private static final long FUZZY_BUDGET_NANOS = 16000000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SmartDialPrefix.initializeNanpSettings(getContext());
+    }
+
+    public void testPerKeypressLatency() {
+        for (int size : ADDRESS_BOOK_SIZES) {
+            runKeypressBenchmark(new SyntheticAddressBook(size, SEED));
+        }
+    }
+
+    private void runKeypressBenchmark(SyntheticAddressBook addressBook) {
+        final DialerDatabaseHelper helper = addressBook.newDatabaseHelper(getContext());
+
+        final long buildStart = SystemClock.elapsedRealtimeNanos();
+        helper.setUseSmartDialIndex(true);
+        final SmartDialIndex index = helper.getSmartDialIndex();
+        final long buildNanos = SystemClock.elapsedRealtimeNanos() - buildStart;
+        helper.setUseSmartDialIndex(false);
+        Log.i(TAG, String.format("contacts=%d trie build=%.2fms nodes=%d bytes=%d bytes/contact=%d",
+                addressBook.getSize(), buildNanos / 1e6, index.getNodeCount(),
+                index.getMemoryFootprintBytes(),
+                index.getMemoryFootprintBytes() / index.getContactCount()));
+
+        final long[] indexedNanos = new long[MAX_KEYPRESSES];
+        final long[] fullScanNanos = new long[MAX_KEYPRESSES];
+        final long[] narrowedNanos = new long[MAX_KEYPRESSES];
+        final long[] trieNanos = new long[MAX_KEYPRESSES];
+        final Random random = new Random(SEED);
+        for (int i = 0; i < TYPED_CONTACTS; i++) {
+            final String digits = getTypedDigits(
+                    addressBook.getDisplayName(random.nextInt(addressBook.getSize())));
+            LooseMatchResult previous = null;
+            for (int length = 1; length <= Math.min(digits.length(), MAX_KEYPRESSES); length++) {
+                final String query = digits.substring(0, length);
+
+                long start = SystemClock.elapsedRealtimeNanos();
+                final ArrayList<ContactNumber> indexed = helper.getLooseMatches(query,
+                        newMatcher(query));
+                indexedNanos[length - 1] += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                final ArrayList<ContactNumber> fullScan = helper.getLooseMatchesFullScan(query,
+                        newMatcher(query));
+                fullScanNanos[length - 1] += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                previous = helper.getLooseMatches(query, newMatcher(query), previous);
+                narrowedNanos[length - 1] += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                final ArrayList<ContactNumber> trie = index.getLooseMatches(query,
+                        newMatcher(query));
+                trieNanos[length - 1] += SystemClock.elapsedRealtimeNanos() - start;
+
+                assertEquals("Mismatch for query " + query, fullScan, indexed);
+                assertEquals("Mismatch for query " + query, fullScan, previous.matches);
+                assertEquals("Mismatch for query " + query, fullScan, trie);
+            }
+        }
+
+        for (int i = 0; i < MAX_KEYPRESSES; i++) {
+            Log.i(TAG, String.format(
+                    "contacts=%d keypress=%d indexed=%.2fms fullscan=%.2fms narrowed=%.2fms"
+                    + " trie=%.2fms",
+                    addressBook.getSize(), i + 1, indexedNanos[i] / TYPED_CONTACTS / 1e6,
+                    fullScanNanos[i] / TYPED_CONTACTS / 1e6,
+                    narrowedNanos[i] / TYPED_CONTACTS / 1e6,
+                    trieNanos[i] / TYPED_CONTACTS / 1e6));
+        }
+        helper.close();
+    }
+
+    /**
+     * Looks up names typed with one wrong, missing or extra digit in fuzzy mode, and checks that
+     * the 99th percentile latency stays within {@link #FUZZY_BUDGET_NANOS} at
+     * {@link #FUZZY_ADDRESS_BOOK_SIZE} contacts.
+     */
+    public void testFuzzyLookupLatencyBudget() {
+        final SyntheticAddressBook addressBook =
+                new SyntheticAddressBook(FUZZY_ADDRESS_BOOK_SIZE, SEED);
+        final DialerDatabaseHelper helper = addressBook.newDatabaseHelper(getContext());
+        helper.setUseFuzzyMatching(true);
+        final SmartDialIndex index = helper.getSmartDialIndex();
+
+        final OperationStats stats = new OperationStats("fuzzy getLooseMatches");
+        final Random random = new Random(SEED);
+        for (int i = 0; i < FUZZY_QUERIES; i++) {
+            final String digits = getTypedDigits(
+                    addressBook.getDisplayName(random.nextInt(addressBook.getSize())));
+            final String typed = digits.substring(0, Math.min(digits.length(), MAX_KEYPRESSES));
+            if (typed.length() < 3) {
+                continue;
+            }
+            final String query = mistype(typed, random);
+
+            stats.start();
+            final ArrayList<ContactNumber> fuzzy = helper.getLooseMatches(query,
+                    newMatcher(query));
+            stats.stop();
+
+            /** Exact matches come first, in the same order. */
+            final ArrayList<ContactNumber> exact = index.getLooseMatches(query,
+                    newMatcher(query));
+            assertEquals("Mismatch for query " + query, exact,
+                    fuzzy.subList(0, exact.size()));
+        }
+        helper.close();
+
+        Log.i(TAG, "contacts=" + FUZZY_ADDRESS_BOOK_SIZE + " " + stats);
+        assertTrue(stats.toString(), stats.getPercentileNanos(0.99) < FUZZY_BUDGET_NANOS);
+    }
+
+    /**
+     * Returns the digits with one of them replaced, removed or doubled.
+     */
+    private static String mistype(String digits, Random random) {
+        final int position = random.nextInt(digits.length());
+        final char digit = digits.charAt(position);
+        switch (random.nextInt(3)) {
+            case 0:
+                final char replacement = (char) ('2' + (digit - '2' + 1 + random.nextInt(7)) % 8);
+                return digits.substring(0, position) + replacement
+                        + digits.substring(position + 1);
+            case 1:
+                return digits.substring(0, position) + digits.substring(position + 1);
+            default:
+                return digits.substring(0, position) + digit + digits.substring(position);
+        }
+    }
+
+    /**
+     * Returns the digits typed to look up the given name by its last token.
+     */
+    private String getTypedDigits(String displayName) {
+        final ArrayList<String> tokens = SmartDialPrefix.parseToIndexTokens(displayName);
+        return tokens.get(tokens.size() - 1);
+    }
+
+    private SmartDialNameMatcher newMatcher(String query) {
+        return new SmartDialNameMatcher(query, SmartDialPrefix.getMap(), getContext());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests that {@link SmartDialUpdateScheduler} runs one update at a time and merges the requests
+ * made in the meantime.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.database.SmartDialUpdateSchedulerTest /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class SmartDialUpdateSchedulerTest extends AndroidTestCase {
+    private final ArrayList<Runnable> mQueuedTasks = new ArrayList<Runnable>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            mQueuedTasks.add(task);
+        }
+    };
+
+    private CountingDatabaseHelper mHelper;
+    private SmartDialUpdateScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHelper = new CountingDatabaseHelper();
+        mScheduler = new SmartDialUpdateScheduler(mHelper, mExecutor,
+                new Handler(Looper.getMainLooper()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        super.tearDown();
+    }
+
+    public void testRequestsBeforeStart_areServedByOneUpdate() {
+        mScheduler.requestUpdate();
+        mScheduler.requestUpdate();
+        mScheduler.requestUpdate();
+        assertEquals(1, mQueuedTasks.size());
+
+        runQueuedTasks();
+        assertEquals(1, mHelper.mUpdates);
+        assertEquals(3, mScheduler.getRequestedCount());
+        assertEquals(1, mScheduler.getExecutedCount());
+    }
+
+    public void testRequestsDuringUpdate_areMergedIntoOne() {
+        mHelper.mRequestsDuringUpdate = 3;
+        mScheduler.requestUpdate();
+        runQueuedTasks();
+
+        assertEquals(2, mHelper.mUpdates);
+        assertEquals(4, mScheduler.getRequestedCount());
+        assertEquals(2, mScheduler.getExecutedCount());
+
+        // Later requests start a new update.
+        mScheduler.requestUpdate();
+        assertEquals(1, mQueuedTasks.size());
+        runQueuedTasks();
+        assertEquals(3, mHelper.mUpdates);
+    }
+
+    public void testRecreate_isKeptWhenMerged() {
+        mScheduler.requestUpdate();
+        mScheduler.requestRecreate();
+        mScheduler.requestUpdate();
+        runQueuedTasks();
+
+        assertEquals(1, mHelper.mUpdates);
+        assertEquals(1, mHelper.mResets);
+
+        mScheduler.requestUpdate();
+        runQueuedTasks();
+        assertEquals(2, mHelper.mUpdates);
+        assertEquals(1, mHelper.mResets);
+    }
+
+    public void testFailedUpdate_doesNotBlockLaterRequests() {
+        mHelper.mFailures = 1;
+        mScheduler.requestUpdate();
+        try {
+            runQueuedTasks();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        mScheduler.requestUpdate();
+        assertEquals(1, mQueuedTasks.size());
+        runQueuedTasks();
+        assertEquals(1, mHelper.mUpdates);
+    }
+
+    private void runQueuedTasks() {
+        while (!mQueuedTasks.isEmpty()) {
+            mQueuedTasks.remove(0).run();
+        }
+    }
+
+    /**
+     * Database helper counting the updates instead of running them, which can request more
+     * updates while it is "updating".
+     */
+    private class CountingDatabaseHelper extends DialerDatabaseHelper {
+        int mUpdates;
+        int mResets;
+        int mRequestsDuringUpdate;
+        int mFailures;
+
+        public CountingDatabaseHelper() {
+            super(getContext(), null);
+        }
+
+        @Override
+        public void updateSmartDialDatabase() {
+            if (mFailures > 0) {
+                mFailures--;
+                throw new IllegalStateException("Update failed");
+            }
+            mUpdates++;
+            for (; mRequestsDuringUpdate > 0; mRequestsDuringUpdate--) {
+                mScheduler.requestUpdate();
+            }
+        }
+
+        @Override
+        void resetSmartDialLastUpdatedTime() {
+            mResets++;
+        }
+    }
+}
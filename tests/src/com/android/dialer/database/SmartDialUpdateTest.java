@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract.DeletedContacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.DialerDatabaseHelper.DeleteContactQuery;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that smart dial lookups made while the database is being updated see its previous
+ * contents, and that updates only refresh the statistics of the tables once enough rows changed.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.database.SmartDialUpdateTest /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@MediumTest
+public class SmartDialUpdateTest extends AndroidTestCase {
+    /** Write-ahead logging, which lets readers run alongside the update, needs a file. */
+    private static final String DATABASE_NAME = "smartdial_update_test.db";
+    private static final String QUERY = "2";
+
+    private DialerDatabaseHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SmartDialPrefix.initializeNanpSettings(getContext());
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mHelper != null) {
+            mHelper.close();
+        }
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testGetLooseMatches_duringUpdate() throws Exception {
+        final BlockingDeletionsProvider provider = new BlockingDeletionsProvider(
+                new SyntheticAddressBook(200, 42));
+        mHelper = new DialerDatabaseHelper(provider.newContext(getContext()), DATABASE_NAME);
+        mHelper.updateSmartDialDatabase();
+        final ArrayList<ContactNumber> before = getLooseMatches();
+        assertTrue(before.size() > 1);
+
+        // Deletes the first two matches, and waits after the first deletion.
+        final long deletedContactId = before.get(0).id;
+        provider.setUpdatedContacts(0, 0);
+        provider.setDeletedContacts(deletedContactId, before.get(1).id);
+        final Thread updater = new Thread() {
+            @Override
+            public void run() {
+                mHelper.updateSmartDialDatabase();
+            }
+        };
+        updater.start();
+        assertTrue(provider.mDeleting.await(5, TimeUnit.SECONDS));
+
+        assertEquals(before, getLooseMatches());
+
+        provider.mResume.countDown();
+        updater.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(updater.isAlive());
+        for (ContactNumber contact : getLooseMatches()) {
+            assertTrue(contact.id != deletedContactId);
+        }
+        assertTrue(mHelper.getLastSwapNanos() > 0);
+    }
+
+    public void testUpdateSmartDialDatabase_defersAnalyze() {
+        final SyntheticContactsProvider provider = new SyntheticContactsProvider(
+                new SyntheticAddressBook(200, 42));
+        mHelper = new DialerDatabaseHelper(provider.newContext(getContext()), DATABASE_NAME) {
+            @Override
+            boolean isIdleOrCharging() {
+                return false;
+            }
+        };
+        mHelper.updateSmartDialDatabase();
+        assertEquals("0", getProperty(DialerDatabaseHelper.CHANGED_ROWS_PROPERTY));
+        assertTrue(getProperty(DialerDatabaseHelper.UPDATE_TIMINGS_PROPERTY).contains("analyze="));
+
+        // 5 contacts removed and inserted again stay below the threshold.
+        provider.setUpdatedContacts(10, 5);
+        mHelper.updateSmartDialDatabase();
+        assertEquals("10", getProperty(DialerDatabaseHelper.CHANGED_ROWS_PROPERTY));
+        final String timings = getProperty(DialerDatabaseHelper.UPDATE_TIMINGS_PROPERTY);
+        assertTrue(timings.contains("insert="));
+        assertFalse(timings.contains("analyze="));
+
+        // 10 + 2 * 50 rows reach it.
+        provider.setUpdatedContacts(100, 50);
+        mHelper.updateSmartDialDatabase();
+        assertEquals("0", getProperty(DialerDatabaseHelper.CHANGED_ROWS_PROPERTY));
+        assertTrue(getProperty(DialerDatabaseHelper.UPDATE_TIMINGS_PROPERTY).contains("analyze="));
+    }
+
+    public void testShouldAnalyze() {
+        assertFalse(DialerDatabaseHelper.shouldAnalyze(0, 0, true));
+        assertTrue(DialerDatabaseHelper.shouldAnalyze(1, 0, false));
+        assertTrue(DialerDatabaseHelper.shouldAnalyze(1, 10000, true));
+        assertFalse(DialerDatabaseHelper.shouldAnalyze(99, 200, false));
+        assertTrue(DialerDatabaseHelper.shouldAnalyze(100, 200, false));
+        assertFalse(DialerDatabaseHelper.shouldAnalyze(999, 10000, false));
+        assertTrue(DialerDatabaseHelper.shouldAnalyze(1000, 10000, false));
+    }
+
+    private String getProperty(String key) {
+        return mHelper.getProperty(key, "");
+    }
+
+    private ArrayList<ContactNumber> getLooseMatches() {
+        return mHelper.getLooseMatches(QUERY, new SmartDialNameMatcher(QUERY,
+                SmartDialPrefix.getMap(), getContext()));
+    }
+
+    /**
+     * Provider whose deleted contacts cursor stops after its first row, until resumed.
+     */
+    private static class BlockingDeletionsProvider extends SyntheticContactsProvider {
+        final CountDownLatch mDeleting = new CountDownLatch(1);
+        final CountDownLatch mResume = new CountDownLatch(1);
+        private long[] mDeletedContactIds = new long[0];
+
+        public BlockingDeletionsProvider(SyntheticAddressBook addressBook) {
+            super(addressBook);
+        }
+
+        public synchronized void setDeletedContacts(long... contactIds) {
+            mDeletedContactIds = contactIds;
+        }
+
+        @Override
+        public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (!DeletedContacts.CONTENT_URI.getPath().equals(uri.getPath())) {
+                return super.query(uri, projection, selection, selectionArgs, sortOrder);
+            }
+            final MatrixCursor cursor = new MatrixCursor(DeleteContactQuery.PROJECTION);
+            for (long contactId : mDeletedContactIds) {
+                cursor.addRow(new Object[] {contactId, System.currentTimeMillis()});
+            }
+            return new CursorWrapper(cursor) {
+                @Override
+                public boolean moveToNext() {
+                    if (getPosition() == 0) {
+                        mDeleting.countDown();
+                        try {
+                            mResume.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return super.moveToNext();
+                }
+            };
+        }
+    }
+}
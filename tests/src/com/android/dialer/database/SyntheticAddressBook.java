@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.dialer.database.DialerDatabaseHelper.PhoneQuery;
+
+import java.util.Random;
+
+/**
+ * Generates reproducible address books of arbitrary size, in the shape of the cursor consumed by
+ * {@link DialerDatabaseHelper#insertUpdatedContactsAndPrefixes}.
+ */
+public class SyntheticAddressBook {
+    private static final String[] FIRST_NAMES = {
+        "James", "Mary", "John", "Patricia", "Robert", "Jennifer", "Michael", "Linda",
+        "William", "Elizabeth", "David", "Barbara", "Richard", "Susan", "Joseph", "Jessica",
+        "Thomas", "Sarah", "Charles", "Karen", "Daniel", "Nancy", "Matthew", "Lisa",
+        "Anthony", "Betty", "Mark", "Margaret", "Donald", "Sandra", "Steven", "Ashley",
+        "Renée", "Jürgen", "Zoë", "François", "Søren", "Ana-Maria", "Jean Paul", "Li",
+    };
+
+    private static final String[] LAST_NAMES = {
+        "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis",
+        "Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson",
+        "Thomas", "Taylor", "Moore", "Jackson", "Martin", "Lee", "Perez", "Thompson", "White",
+        "Harris", "Sanchez", "Clark", "Ramirez", "Lewis", "Robinson", "Walker", "Young",
+        "O'Neil", "van der Berg", "Müller", "Brontë", "Smith-Jones", "St. Claire",
+    };
+
+    private static final String HANZI_SURNAMES = "王李张刘陈杨黄赵吴周徐孙马朱胡郭何高林罗郑梁谢宋唐";
+    private static final String HANZI_GIVEN_NAMES = "伟芳娜秀英敏静丽强磊军洋勇艳杰娟涛明超兰霞平刚桂"
+            + "华飞鹏辉建国玉梅红";
+
+    private static final String[] GREEK_FIRST_NAMES = {
+        "Γιώργος", "Μαρία", "Νίκος", "Ελένη", "Κώστας", "Σοφία", "Δημήτρης", "Αικατερίνη",
+    };
+
+    private static final String[] GREEK_LAST_NAMES = {
+        "Παπαδόπουλος", "Νικολάου", "Οικονόμου", "Γεωργίου", "Παπαδάκης", "Βλάχος",
+    };
+
+    private static final String[] CYRILLIC_FIRST_NAMES = {
+        "Александр", "Ирина", "Сергей", "Ольга", "Дмитрий", "Наталья", "Алексей", "Фёдор",
+    };
+
+    private static final String[] CYRILLIC_LAST_NAMES = {
+        "Иванов", "Смирнова", "Кузнецов", "Попова", "Соколов", "Лебедева", "Щукин",
+    };
+
+    private static final String[] HEBREW_FIRST_NAMES = {
+        "דוד", "מרים", "יוסף", "שרה", "משה", "רחל", "אברהם", "לאה",
+    };
+
+    private static final String[] HEBREW_LAST_NAMES = {
+        "כהן", "לוי", "מזרחי", "פרץ", "ביטון", "אברהמי", "פרידמן",
+    };
+
+    private static final String[] NUMBER_FORMATS = {
+        "+1 %s-%s-%s", "(%s) %s-%s", "%s.%s.%s", "1%s%s%s", "+41 %s %s %s",
+    };
+
+    /** Account types of the contacts, null standing for contacts stored on the phone. */
+    private static final String[] ACCOUNT_TYPES = {
+        "com.google", "com.google", "com.android.exchange", null,
+    };
+
+    /**
+     * Writing systems the names of the contacts can be written in.
+     */
+    public enum Script {
+        /** Mostly English names, some with accented letters or punctuation. */
+        LATIN,
+        /**
+         * Chinese names written in Hanzi, made of a one character surname followed by one or two
+         * characters.
+         */
+        HANZI,
+        GREEK,
+        CYRILLIC,
+        HEBREW,
+    }
+
+    private final int mSize;
+    private final long mSeed;
+    private final Script[] mScripts;
+
+    /**
+     * @param size Number of contacts in the address book.
+     * @param seed Seed used to generate names and numbers, so that runs are comparable.
+     */
+    public SyntheticAddressBook(int size, long seed) {
+        this(size, seed, Script.LATIN);
+    }
+
+    /**
+     * @param size Number of contacts in the address book.
+     * @param seed Seed used to generate names and numbers, so that runs are comparable.
+     * @param scripts Scripts the names are written in, each contact using one of them.
+     */
+    public SyntheticAddressBook(int size, long seed, Script... scripts) {
+        if (scripts.length == 0) {
+            throw new IllegalArgumentException("At least one script is needed");
+        }
+        mSize = size;
+        mSeed = seed;
+        mScripts = scripts;
+    }
+
+    /**
+     * Returns an address book whose contacts all have names written in Hanzi.
+     */
+    public static SyntheticAddressBook newHanziAddressBook(int size, long seed) {
+        return new SyntheticAddressBook(size, seed, Script.HANZI);
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the display name of the contact with the given id.
+     */
+    public String getDisplayName(int contactId) {
+        final Random random = new Random(mSeed + contactId);
+        final Script script = mScripts.length == 1
+                ? mScripts[0] : mScripts[random.nextInt(mScripts.length)];
+        switch (script) {
+            case HANZI:
+                final StringBuilder name = new StringBuilder(3);
+                name.append(HANZI_SURNAMES.charAt(random.nextInt(HANZI_SURNAMES.length())));
+                final int givenLength = 1 + random.nextInt(2);
+                for (int i = 0; i < givenLength; i++) {
+                    name.append(HANZI_GIVEN_NAMES.charAt(
+                            random.nextInt(HANZI_GIVEN_NAMES.length())));
+                }
+                return name.toString();
+            case GREEK:
+                return getName(random, GREEK_FIRST_NAMES, GREEK_LAST_NAMES);
+            case CYRILLIC:
+                return getName(random, CYRILLIC_FIRST_NAMES, CYRILLIC_LAST_NAMES);
+            case HEBREW:
+                return getName(random, HEBREW_FIRST_NAMES, HEBREW_LAST_NAMES);
+            default:
+                break;
+        }
+        final String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+        final String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        // Give some contacts a middle initial so that initial matching is exercised. Names are
+        // kept to four tokens, the most for which every initial is indexed.
+        if (random.nextInt(4) == 0 && countTokens(first) + countTokens(last) <= 3) {
+            return first + " " + (char) ('A' + random.nextInt(26)) + ". " + last;
+        }
+        return first + " " + last;
+    }
+
+    private static String getName(Random random, String[] firstNames, String[] lastNames) {
+        return firstNames[random.nextInt(firstNames.length)] + " "
+                + lastNames[random.nextInt(lastNames.length)];
+    }
+
+    private static int countTokens(String name) {
+        return name.split("[^\\p{L}]+").length;
+    }
+
+    /**
+     * Returns the phone number of the contact with the given id.
+     */
+    public String getPhoneNumber(int contactId) {
+        final Random random = new Random(~(mSeed + contactId));
+        final String format = NUMBER_FORMATS[random.nextInt(NUMBER_FORMATS.length)];
+        return String.format(format, 200 + random.nextInt(800), 100 + random.nextInt(900),
+                1000 + random.nextInt(9000));
+    }
+
+    /**
+     * Returns the account type of the contact with the given id, or null for a local contact.
+     */
+    public String getAccountType(int contactId) {
+        return ACCOUNT_TYPES[contactId % ACCOUNT_TYPES.length];
+    }
+
+    /**
+     * Returns the account name of the contact with the given id, or null for a local contact.
+     */
+    public String getAccountName(int contactId) {
+        final String accountType = getAccountType(contactId);
+        return accountType == null ? null : "user" + (contactId % 3) + "@example.com";
+    }
+
+    /**
+     * Returns a new in-memory database helper whose smart dial tables contain this address book.
+     */
+    public DialerDatabaseHelper newDatabaseHelper(Context context) {
+        final DialerDatabaseHelper helper = DialerDatabaseHelper.getNewInstanceForTest(context);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        final MatrixCursor contactCursor = newContactCursor(0);
+        helper.insertUpdatedContactsAndPrefixes(db, contactCursor, Long.valueOf(0));
+        helper.updateSmartDialIndexes(db);
+        contactCursor.close();
+        return helper;
+    }
+
+    /**
+     * Builds a cursor over {@link PhoneQuery#PROJECTION} containing one phone row per contact.
+     *
+     * @param firstContactId Only contacts with an id of at least this value are included, which
+     * mimics the delta query done by {@link DialerDatabaseHelper#updateSmartDialDatabase}.
+     */
+    public MatrixCursor newContactCursor(int firstContactId) {
+        return newContactCursor(firstContactId, mSize);
+    }
+
+    /**
+     * Same as {@link #newContactCursor(int)}, only including contacts with an id lower than
+     * endContactId.
+     */
+    public MatrixCursor newContactCursor(int firstContactId, int endContactId) {
+        final MatrixCursor cursor = new MatrixCursor(PhoneQuery.PROJECTION);
+        for (int id = firstContactId; id < Math.min(endContactId, mSize); id++) {
+            final Random random = new Random(mSeed ^ id);
+            cursor.addRow(new Object[] {
+                    id,                                         // Phone._ID
+                    0,                                          // Phone.TYPE
+                    "",                                         // Phone.LABEL
+                    getPhoneNumber(id),                         // Phone.NUMBER
+                    id,                                         // Phone.CONTACT_ID
+                    "lookup" + id,                              // Phone.LOOKUP_KEY
+                    getDisplayName(id),                         // Phone.DISPLAY_NAME_PRIMARY
+                    0,                                          // Phone.PHOTO_ID
+                    random.nextInt(4) == 0 ? System.currentTimeMillis() : 0, // LAST_TIME_USED
+                    random.nextInt(20),                         // Data.TIMES_USED
+                    random.nextInt(20) == 0 ? 1 : 0,            // Contacts.STARRED
+                    0,                                          // Data.IS_SUPER_PRIMARY
+                    1,                                          // Contacts.IN_VISIBLE_GROUP
+                    1,                                          // Data.IS_PRIMARY
+                    getAccountType(id),                         // RawContacts.ACCOUNT_TYPE
+                    getAccountName(id)});                       // RawContacts.ACCOUNT_NAME
+        }
+        return cursor;
+    }
+}
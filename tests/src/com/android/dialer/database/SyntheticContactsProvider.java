@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.DeletedContacts;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import com.android.dialer.database.DialerDatabaseHelper.DeleteContactQuery;
+
+import java.util.HashSet;
+
+/**
+ * Contacts provider answering the queries of
+ * {@link DialerDatabaseHelper#updateSmartDialDatabase()} from a {@link SyntheticAddressBook}, so
+ * that full and delta updates can be run without touching the contacts of the device.
+ *
+ * The first update, which asks for contacts changed since time 0, receives the whole address
+ * book. Later ones receive the contacts set with {@link #setUpdatedContacts(int, int)}.
+ */
+public class SyntheticContactsProvider extends MockContentProvider {
+    private final SyntheticAddressBook mAddressBook;
+    private int mFirstUpdatedContact;
+    private int mUpdatedContactCount;
+
+    public SyntheticContactsProvider(SyntheticAddressBook addressBook) {
+        mAddressBook = addressBook;
+    }
+
+    /**
+     * Sets the contacts returned as updated to the delta queries.
+     */
+    public synchronized void setUpdatedContacts(int firstContactId, int count) {
+        mFirstUpdatedContact = firstContactId;
+        mUpdatedContactCount = count;
+    }
+
+    @Override
+    public synchronized Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        final String path = uri.getPath();
+        if (Phone.CONTENT_URI.getPath().equals(path)) {
+            if ("0".equals(selectionArgs[0])) {
+                return mAddressBook.newContactCursor(0);
+            }
+            return mAddressBook.newContactCursor(mFirstUpdatedContact,
+                    mFirstUpdatedContact + mUpdatedContactCount);
+        } else if (DeletedContacts.CONTENT_URI.getPath().equals(path)) {
+            return new MatrixCursor(DeleteContactQuery.PROJECTION);
+        }
+        throw new UnsupportedOperationException("Unexpected query on " + uri);
+    }
+
+    /**
+     * Returns a context whose content resolver routes contacts queries to this provider. Its
+     * shared preferences are kept apart from the ones of the base context, and start out empty.
+     */
+    public Context newContext(Context base) {
+        return new SyntheticContactsContext(base, this);
+    }
+
+    private static class SyntheticContactsContext extends ContextWrapper {
+        private static final String PREFERENCES_PREFIX = "synthetic_contacts_";
+
+        private final MockContentResolver mResolver = new MockContentResolver();
+        private final HashSet<String> mClearedPreferences = new HashSet<String>();
+
+        public SyntheticContactsContext(Context base, MockContentProvider contactsProvider) {
+            super(base);
+            mResolver.addProvider(ContactsContract.AUTHORITY, contactsProvider);
+        }
+
+        @Override
+        public ContentResolver getContentResolver() {
+            return mResolver;
+        }
+
+        @Override
+        public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+            final SharedPreferences preferences =
+                    super.getSharedPreferences(PREFERENCES_PREFIX + name, mode);
+            if (mClearedPreferences.add(name)) {
+                preferences.edit().clear().commit();
+            }
+            return preferences;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.database.SyntheticAddressBook;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares the cost of matching Hanzi names when their pinyin is computed for every row, as the
+ * smart dial query used to do, and when it is computed once at index time.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.dialpad.ChineseSmartDialBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ *
+ * Results are written to logcat under the ChineseSmartDialBenchmark tag.
+ */
+@LargeTest
+public class ChineseSmartDialBenchmark extends AndroidTestCase {
+    private static final String TAG = "ChineseSmartDialBenchmark";
+
+    private static final int ADDRESS_BOOK_SIZE = 5000;
+    private static final long SEED = 42;
+    /** Number of names typed out during a run. */
+    private static final int TYPED_NAMES = 10;
+    /** Number of keypresses typed for each name. */
+    private static final int MAX_KEYPRESSES = 5;
+
+    private SmartDialMap mMap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SmartDialPrefix.initializeNanpSettings(getContext());
+        mMap = new ChineseSmartDialMap();
+        SmartDialPrefix.setSmartDialMap(mMap);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SmartDialPrefix.initializeNanpSettings(getContext());
+        super.tearDown();
+    }
+
+    public void testCachedTransliteration() {
+        final SyntheticAddressBook addressBook = SyntheticAddressBook.newHanziAddressBook(
+                ADDRESS_BOOK_SIZE, SEED);
+        final String[] names = new String[addressBook.getSize()];
+        final String[] pinyinNames = new String[addressBook.getSize()];
+
+        final long indexStart = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < names.length; i++) {
+            names[i] = addressBook.getDisplayName(i);
+            pinyinNames[i] = mMap.transliterateName(names[i]);
+        }
+        final long indexNanos = SystemClock.elapsedRealtimeNanos() - indexStart;
+
+        long uncachedNanos = 0;
+        long cachedNanos = 0;
+        int queries = 0;
+        final Random random = new Random(SEED);
+        for (int i = 0; i < TYPED_NAMES; i++) {
+            final String digits = getTypedDigits(pinyinNames[random.nextInt(names.length)]);
+            for (int length = 1; length <= Math.min(digits.length(), MAX_KEYPRESSES); length++) {
+                final String query = digits.substring(0, length);
+                final SmartDialNameMatcher matcher = new SmartDialNameMatcher(query, mMap,
+                        getContext());
+                final boolean[] uncached = new boolean[names.length];
+                final ArrayList<ArrayList<SmartDialMatchPosition>> uncachedPositions =
+                        new ArrayList<ArrayList<SmartDialMatchPosition>>();
+
+                long start = SystemClock.elapsedRealtimeNanos();
+                for (int row = 0; row < names.length; row++) {
+                    uncached[row] = matcher.matches(names[row]);
+                    uncachedPositions.add(matcher.getMatchPositions());
+                }
+                uncachedNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+                final boolean[] cached = new boolean[names.length];
+                final ArrayList<ArrayList<SmartDialMatchPosition>> cachedPositions =
+                        new ArrayList<ArrayList<SmartDialMatchPosition>>();
+                start = SystemClock.elapsedRealtimeNanos();
+                for (int row = 0; row < names.length; row++) {
+                    cached[row] = matcher.matches(names[row], pinyinNames[row]);
+                    cachedPositions.add(matcher.getMatchPositions());
+                }
+                cachedNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+                for (int row = 0; row < names.length; row++) {
+                    assertEquals(names[row] + " " + query, uncached[row], cached[row]);
+                    assertEquals(names[row] + " " + query, toString(uncachedPositions.get(row)),
+                            toString(cachedPositions.get(row)));
+                }
+                queries++;
+            }
+        }
+
+        Log.i(TAG, String.format("names=%d index=%.2fms uncached=%.2fms/query cached=%.2fms/query",
+                names.length, indexNanos / 1e6, uncachedNanos / queries / 1e6,
+                cachedNanos / queries / 1e6));
+    }
+
+    /**
+     * Returns the digits typed to look up a name by its pinyin.
+     */
+    private String getTypedDigits(String pinyinName) {
+        final StringBuilder digits = new StringBuilder();
+        for (String token : SmartDialPrefix.parseToIndexTokens(pinyinName)) {
+            digits.append(token);
+        }
+        return digits.toString();
+    }
+
+    private static String toString(ArrayList<SmartDialMatchPosition> positions) {
+        final StringBuilder builder = new StringBuilder();
+        for (SmartDialMatchPosition position : positions) {
+            builder.append(position.start).append('-').append(position.end).append(' ');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.text.TextUtils;
+
+import java.util.Random;
+
+/**
+ * The regular expression based number matching that {@link SmartDialNameMatcher} used before it
+ * was rewritten, kept as a reference for differential tests and benchmarks.
+ */
+public class LegacyNumberMatcher {
+    private static final String SEPARATORS = "+*#-.(,)/ ";
+
+    /**
+     * Returns the position of the query in the number ignoring separators, or null.
+     */
+    public static SmartDialMatchPosition matchesNumber(String phoneNumber, String query) {
+        if (TextUtils.isEmpty(phoneNumber) || TextUtils.isEmpty(query)
+                || query.length() > phoneNumber.length()) {
+            return null;
+        }
+
+        String phoneNum = phoneNumber.replaceAll("[\\+\\*\\#\\-\\.\\(\\,\\)\\/ ]", "");
+        if (!TextUtils.isEmpty(phoneNum) && phoneNum.contains(query)) {
+            // firstly, find the start position in original phone number.
+            int start = phoneNum.indexOf(query);
+            int length = phoneNumber.length();
+            for (int i = start; i < length; i++) {
+                char ch = phoneNumber.charAt(i);
+                if (ch != phoneNum.charAt(start)) {
+                    continue;
+                }
+                if (phoneNumber.substring(i).replaceAll("[\\+\\*\\#\\-\\.\\(\\,\\)\\/ ]", "")
+                        .indexOf(query) == 0) {
+                    start = i;
+                    break;
+                }
+            }
+            // secondly, find the end position in original phone number.
+            int specialCount = 0;
+            int queryLength = query.length();
+            int end = start + queryLength;
+            for (int i = start; i < length; i++) {
+                char ch = phoneNumber.charAt(i);
+                if (SEPARATORS.indexOf(ch) != -1) {
+                    specialCount++;
+                    continue;
+                }
+
+                if (i - start + 1 - specialCount == queryLength) {
+                    end = i + 1;
+                    break;
+                }
+            }
+            return new SmartDialMatchPosition(start, end);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a random phone number, formatted with separators and occasionally containing
+     * wait or extension characters.
+     */
+    public static String randomFormattedNumber(Random random) {
+        final StringBuilder number = new StringBuilder();
+        if (random.nextBoolean()) {
+            number.append(random.nextBoolean() ? "+" : "(");
+        }
+        final int digits = 3 + random.nextInt(12);
+        for (int i = 0; i < digits; i++) {
+            // Few distinct digits, so that numbers have repeated partial matches.
+            number.append((char) ('0' + random.nextInt(random.nextBoolean() ? 3 : 10)));
+            final int separator = random.nextInt(8);
+            if (separator < 3) {
+                number.append(SEPARATORS.charAt(random.nextInt(SEPARATORS.length())));
+            } else if (separator == 3 && random.nextInt(8) == 0) {
+                // Wait character, which is not a separator.
+                number.append(';');
+            }
+        }
+        if (random.nextInt(10) == 0) {
+            number.append(" x").append(random.nextInt(1000));
+        }
+        return number.toString();
+    }
+
+    /**
+     * Returns a query for the number: digits taken from it most of the time, random digits
+     * otherwise.
+     */
+    public static String randomQuery(Random random, String number) {
+        final String digits = number.replaceAll("[^0-9]", "");
+        if (digits.length() > 0 && random.nextInt(4) != 0) {
+            final int start = random.nextInt(digits.length());
+            final int end = start + 1 + random.nextInt(digits.length() - start);
+            return digits.substring(start, end);
+        }
+        final StringBuilder query = new StringBuilder();
+        final int length = 1 + random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            query.append((char) ('0' + random.nextInt(3)));
+        }
+        return query.toString();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.common.list.PhoneNumberListAdapter.PhoneQuery;
+import com.android.dialer.database.DialerDatabaseHelper;
+import com.android.dialer.database.SyntheticAddressBook;
+
+/**
+ * Tests for {@link SmartDialCursorLoader}.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.dialpad.SmartDialCursorLoaderTest /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class SmartDialCursorLoaderTest extends AndroidTestCase {
+    private static final String[] QUERIES = {"2", "26", "266", "5", "56", "564", "7"};
+
+    private SyntheticAddressBook mAddressBook;
+    private DialerDatabaseHelper mHelper;
+    private CountingContactsProvider mContactsProvider;
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SmartDialPrefix.initializeNanpSettings(getContext());
+        mAddressBook = new SyntheticAddressBook(500, 42);
+        mHelper = mAddressBook.newDatabaseHelper(getContext());
+        mContactsProvider = new CountingContactsProvider();
+        mContext = new ContactsCountingContext(getContext(), mContactsProvider);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        super.tearDown();
+    }
+
+    public void testLoadInBackground_noContentResolverQueries() {
+        int rows = 0;
+        for (String query : QUERIES) {
+            final Cursor cursor = load(query);
+            rows += cursor.getCount();
+            cursor.close();
+        }
+        assertTrue(rows > 0);
+        assertEquals(0, mContactsProvider.getQueryCount());
+    }
+
+    public void testLoadInBackground_returnsAccounts() {
+        final Cursor cursor = load("2");
+        assertTrue(cursor.getCount() > 0);
+        while (cursor.moveToNext()) {
+            final int contactId = (int) cursor.getLong(PhoneQuery.CONTACT_ID);
+            assertEquals(mAddressBook.getAccountType(contactId),
+                    cursor.getString(PhoneQuery.PHONE_ACCOUNT_TYPE));
+            assertEquals(mAddressBook.getAccountName(contactId),
+                    cursor.getString(PhoneQuery.PHONE_ACCOUNT_NAME));
+        }
+        cursor.close();
+    }
+
+    private Cursor load(String query) {
+        final SmartDialCursorLoader loader = new SmartDialCursorLoader(mContext, mHelper);
+        loader.configureQuery(query);
+        return loader.loadInBackground();
+    }
+
+    /**
+     * Contacts provider which only counts the queries it receives.
+     */
+    private static class CountingContactsProvider extends MockContentProvider {
+        private int mQueryCount;
+
+        @Override
+        public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueryCount++;
+            return null;
+        }
+
+        public synchronized int getQueryCount() {
+            return mQueryCount;
+        }
+    }
+
+    /**
+     * Context whose content resolver routes contacts queries to the given provider.
+     */
+    private static class ContactsCountingContext extends ContextWrapper {
+        private final MockContentResolver mResolver = new MockContentResolver();
+
+        public ContactsCountingContext(Context base, MockContentProvider contactsProvider) {
+            super(base);
+            mResolver.addProvider(ContactsContract.AUTHORITY, contactsProvider);
+        }
+
+        @Override
+        public ContentResolver getContentResolver() {
+            return mResolver;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Compares the table driven smart dial maps with the switch statement based ones they replaced,
+ * by matching queries against names mixing latin, accented latin, greek, cyrillic and hebrew
+ * tokens.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.dialpad.SmartDialMapBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ *
+ * Results are written to logcat under the SmartDialMapBenchmark tag.
+ */
+@LargeTest
+public class SmartDialMapBenchmark extends AndroidTestCase {
+    private static final String TAG = "SmartDialMapBenchmark";
+
+    private static final int NAMES = 2000;
+    private static final int QUERIES = 50;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 10;
+
+    private static final String[] TOKENS = {
+        "John", "Smith", "Zoë", "Ångström", "Łukasz", "Dvořák", "Ñúñez", "Øyvind", "Şahin",
+        "Γιώργος", "Παπαδόπουλος", "Ελένη", "Σωκράτης", "Ирина", "Фёдоров", "Алексей",
+        "Щукин", "דוד", "כהן", "מרים", "לוי", "O'Brien", "Jean-Luc", "Mary Ann",
+    };
+
+    private final String[] mNames = new String[NAMES];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SmartDialPrefix.initializeNanpSettings(getContext());
+        final Random random = new Random(42);
+        for (int i = 0; i < NAMES; i++) {
+            final StringBuilder name = new StringBuilder();
+            final int tokens = 1 + random.nextInt(3);
+            for (int j = 0; j < tokens; j++) {
+                if (j > 0) {
+                    name.append(' ');
+                }
+                name.append(TOKENS[random.nextInt(TOKENS.length)]);
+            }
+            mNames[i] = name.toString();
+        }
+    }
+
+    public void testLatin() {
+        compare(new LatinSmartDialMap(), new LegacyLatinSmartDialMap());
+    }
+
+    public void testGreek() {
+        compare(new GreekSmartDialMap(), new LegacyGreekSmartDialMap());
+    }
+
+    public void testRussian() {
+        compare(new RussianSmartDialMap(), new LegacyRussianSmartDialMap());
+    }
+
+    public void testHebrew() {
+        compare(new HebrewSmartDialMap(), new LegacyHebrewSmartDialMap());
+    }
+
+    private void compare(SmartDialMap map, SmartDialMap legacy) {
+        final Random random = new Random(42);
+        final String[] queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = getTypedDigits(legacy, mNames[random.nextInt(NAMES)],
+                    1 + random.nextInt(4));
+        }
+
+        final boolean[] expected = run(legacy, queries);
+        final boolean[] actual = run(map, queries);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(mNames[i % NAMES] + " " + queries[i / NAMES], expected[i], actual[i]);
+        }
+
+        final long legacyNanos = time(legacy, queries);
+        final long tableNanos = time(map, queries);
+        final int calls = NAMES * QUERIES * MEASURED_ROUNDS;
+        Log.i(TAG, String.format("%s: switch=%.1fns/name table=%.1fns/name",
+                map.getClass().getSimpleName(), (double) legacyNanos / calls,
+                (double) tableNanos / calls));
+    }
+
+    private long time(SmartDialMap map, String[] queries) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            run(map, queries);
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            run(map, queries);
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private boolean[] run(SmartDialMap map, String[] queries) {
+        final boolean[] matches = new boolean[NAMES * queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            final SmartDialNameMatcher matcher = new SmartDialNameMatcher(queries[i], map,
+                    getContext());
+            for (int j = 0; j < NAMES; j++) {
+                matches[i * NAMES + j] = matcher.matches(mNames[j]);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the digits typed for the first characters of the name.
+     */
+    private static String getTypedDigits(SmartDialMap map, String name, int length) {
+        final StringBuilder digits = new StringBuilder();
+        for (int i = 0; i < name.length() && digits.length() < length; i++) {
+            final char ch = map.normalizeCharacter(name.charAt(i));
+            if (map.isValidDialpadCharacter(ch)) {
+                digits.append(map.getDialpadNumericCharacter(ch));
+            }
+        }
+        return digits.toString();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Checks that the table driven smart dial maps behave exactly as the switch statement based ones
+ * they replaced, for every character of the basic multilingual plane.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.dialpad.SmartDialMapTest /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class SmartDialMapTest extends AndroidTestCase {
+
+    public void testLatinSameAsLegacy() {
+        checkSameAsLegacy(new LatinSmartDialMap(), new LegacyLatinSmartDialMap());
+    }
+
+    public void testGreekSameAsLegacy() {
+        checkSameAsLegacy(new GreekSmartDialMap(), new LegacyGreekSmartDialMap());
+    }
+
+    public void testRussianSameAsLegacy() {
+        checkSameAsLegacy(new RussianSmartDialMap(), new LegacyRussianSmartDialMap());
+    }
+
+    public void testHebrewSameAsLegacy() {
+        checkSameAsLegacy(new HebrewSmartDialMap(), new LegacyHebrewSmartDialMap());
+    }
+
+    public void testGetNormalizedDialpadCharacter() {
+        final SmartDialMap map = new GreekSmartDialMap();
+        assertEquals('2', map.getNormalizedDialpadCharacter('Á'));
+        assertEquals('2', map.getNormalizedDialpadCharacter('Ά'));
+        assertEquals('7', map.getNormalizedDialpadCharacter('Σ'));
+        assertEquals('7', map.getNormalizedDialpadCharacter('7'));
+        assertEquals(0, map.getNormalizedDialpadCharacter(' '));
+        assertEquals(0, map.getNormalizedDialpadCharacter('\uffff'));
+    }
+
+    private void checkSameAsLegacy(SmartDialMap map, SmartDialMap legacy) {
+        for (int i = Character.MIN_VALUE; i <= Character.MAX_VALUE; i++) {
+            final char ch = (char) i;
+            final String message = Integer.toHexString(i);
+            assertEquals(message, legacy.normalizeCharacter(ch), map.normalizeCharacter(ch));
+            assertEquals(message, legacy.isValidDialpadCharacter(ch),
+                    map.isValidDialpadCharacter(ch));
+            assertEquals(message, legacy.isValidDialpadAlphabeticChar(ch),
+                    map.isValidDialpadAlphabeticChar(ch));
+            assertEquals(message, legacy.isValidDialpadNumericChar(ch),
+                    map.isValidDialpadNumericChar(ch));
+            assertEquals(message, legacy.getDialpadIndex(ch), map.getDialpadIndex(ch));
+            assertEquals(message, legacy.getDialpadNumericCharacter(ch),
+                    map.getDialpadNumericCharacter(ch));
+            assertEquals(message, legacy.getNormalizedDialpadCharacter(ch),
+                    map.getNormalizedDialpadCharacter(ch));
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.dialer.dialpad;
 
+import android.os.Debug;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.test.suitebuilder.annotation.Suppress;
 import android.util.Log;
@@ -26,6 +27,7 @@ import com.android.dialer.dialpad.SmartDialPrefix;
 
 import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -262,6 +264,63 @@ public class SmartDialNameMatcherTest extends AndroidTestCase {
         checkMatchesNumber("(650) 292 2323", "6502922323", true, false, 0, 14);
     }
 
+    public void testMatches_NumberSameAsLegacyMatcher() {
+        final Random random = new Random(42);
+        final SmartDialNameMatcher matcher = new SmartDialNameMatcher("", getContext());
+        for (int i = 0; i < 10000; i++) {
+            final String number = LegacyNumberMatcher.randomFormattedNumber(random);
+            final String query = LegacyNumberMatcher.randomQuery(random, number);
+            final SmartDialMatchPosition expected =
+                    LegacyNumberMatcher.matchesNumber(number, query);
+            final SmartDialMatchPosition actual = matcher.matchesNumber(number, query);
+            final String message = "number=" + number + " query=" + query;
+            assertEquals(message, expected != null, actual != null);
+
+            final StringBuilder expectedMask = new StringBuilder();
+            for (int j = 0; j < number.length(); j++) {
+                expectedMask.append(expected != null && j >= expected.start && j < expected.end
+                        ? '1' : '0');
+            }
+            assertEquals(message, expectedMask.toString(),
+                    matcher.getNumberMatchPositionsInString());
+            if (expected != null) {
+                assertEquals(message, expected.start, actual.start);
+                assertEquals(message, expected.end, actual.end);
+            }
+        }
+    }
+
+    public void testMatches_nameMatchMask() {
+        final SmartDialNameMatcher matcher = new SmartDialNameMatcher("576", getContext());
+        assertTrue(matcher.matches("joe smith"));
+        assertEquals("100011000", matcher.getNameMatchPositionsInString());
+        assertFalse(matcher.matches("jane"));
+        assertEquals("0000", matcher.getNameMatchPositionsInString());
+    }
+
+    public void testMatches_noAllocationsForNonMatchingNames() {
+        // Names starting tokens with the first digit of the query, so that initial matches are
+        // tried across tokens before failing.
+        final String[] names = {"Wendy Xavier", "Yvonne Zhang", "Xena Warrior-Young",
+                "Zack W. Yates", "John Smith", "Émile Zola", "Wwww Aaa"};
+        final SmartDialNameMatcher matcher = new SmartDialNameMatcher("99999", getContext());
+        for (String name : names) {
+            assertFalse(name, matcher.matches(name, name));
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < 100; i++) {
+                for (String name : names) {
+                    matcher.matches(name, name);
+                }
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertEquals(0, Debug.getThreadAllocCount());
+    }
 
     private void checkMatchesNumber(String number, String query, boolean expectedMatches,
             int matchStart, int matchEnd) {
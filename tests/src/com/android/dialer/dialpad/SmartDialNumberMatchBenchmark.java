@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Micro-benchmark of {@link SmartDialNameMatcher#matchesNumber(String, String)} against the
+ * regular expression based {@link LegacyNumberMatcher}. Each variant is run for a number of warm
+ * up rounds before being measured, and the time and objects allocated per call are reported.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.dialpad.SmartDialNumberMatchBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ *
+ * Results are written to logcat under the SmartDialNumberMatchBenchmark tag.
+ */
+@LargeTest
+public class SmartDialNumberMatchBenchmark extends AndroidTestCase {
+    private static final String TAG = "SmartDialNumberMatchBenchmark";
+
+    private static final int SAMPLES = 1000;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 20;
+
+    private final String[] mNumbers = new String[SAMPLES];
+    private final String[] mQueries = new String[SAMPLES];
+
+    /** Result of the benchmarked calls, so that they cannot be optimized away. */
+    private int mMatches;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            mNumbers[i] = LegacyNumberMatcher.randomFormattedNumber(random);
+            mQueries[i] = LegacyNumberMatcher.randomQuery(random, mNumbers[i]);
+        }
+    }
+
+    public void testMatchesNumber() {
+        final SmartDialNameMatcher matcher = new SmartDialNameMatcher("", getContext());
+        final Runnable current = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < SAMPLES; i++) {
+                    if (matcher.matchesNumber(mNumbers[i], mQueries[i]) != null) {
+                        mMatches++;
+                    }
+                }
+            }
+        };
+        final Runnable legacy = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < SAMPLES; i++) {
+                    if (LegacyNumberMatcher.matchesNumber(mNumbers[i], mQueries[i]) != null) {
+                        mMatches++;
+                    }
+                }
+            }
+        };
+        report("current", current);
+        report("legacy", legacy);
+    }
+
+    private void report(String name, Runnable round) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round.run();
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            round.run();
+        }
+        final long nanos = SystemClock.elapsedRealtimeNanos() - start;
+        final int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        final int calls = SAMPLES * MEASURED_ROUNDS;
+        Log.i(TAG, String.format("%s: %.1fns/call %.2f allocations/call (%d matches)", name,
+                (double) nanos / calls, (double) allocations / calls, mMatches));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.calllog.ContactInfo;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Measures the time to name of an incoming call with a single reverse lookup provider and with
+ * {@link CompositeReverseLookup}, for providers simulated by a {@link FakeHttpServer}.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.lookup.CompositeReverseLookupBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ *
+ * Results are written to logcat under the CompositeReverseLookupBenchmark tag.
+ */
+@LargeTest
+public class CompositeReverseLookupBenchmark extends AndroidTestCase {
+    private static final String TAG = "CompositeReverseLookupBenchmark";
+
+    private static final String NUMBER = "+16505550100";
+    private static final long DEADLINE_MILLIS = 3000;
+    private static final int ITERATIONS = 10;
+
+    private FakeHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeHttpServer();
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testFastPrimary() throws Exception {
+        mServer.setResponse("/primary", 200, "Primary", 100);
+        mServer.setResponse("/secondary", 200, "Secondary", 150);
+        mServer.setResponse("/tertiary", 200, "", 50);
+        measure("fast primary");
+    }
+
+    public void testSlowPrimary() throws Exception {
+        mServer.setResponse("/primary", 200, "Primary", 2000);
+        mServer.setResponse("/secondary", 200, "Secondary", 150);
+        mServer.setResponse("/tertiary", 200, "", 50);
+        measure("slow primary");
+    }
+
+    public void testPrimaryMissingNumber() throws Exception {
+        mServer.setResponse("/primary", 200, "", 100);
+        mServer.setResponse("/secondary", 200, "", 150);
+        mServer.setResponse("/tertiary", 200, "Tertiary", 300);
+        measure("primary missing the number");
+    }
+
+    public void testFailingPrimary() throws Exception {
+        mServer.setResponse("/primary", FakeHttpServer.STATUS_DISCONNECT, "", 100);
+        mServer.setResponse("/secondary", 200, "Secondary", 150);
+        mServer.setResponse("/tertiary", 200, "", 50);
+        measure("failing primary");
+    }
+
+    private void measure(String scenario) throws Exception {
+        final ArrayList<ReverseLookup> providers = Lists.<ReverseLookup>newArrayList(
+                new FakeReverseLookup(mServer, "/primary", DEADLINE_MILLIS),
+                new FakeReverseLookup(mServer, "/secondary", DEADLINE_MILLIS),
+                new FakeReverseLookup(mServer, "/tertiary", DEADLINE_MILLIS));
+        final CompositeReverseLookup composite = new CompositeReverseLookup(
+                Lists.newArrayList("Primary", "Secondary", "Tertiary"), providers);
+
+        Log.i(TAG, scenario + ": single provider " + timeToName(providers.get(0))
+                + ", composite " + timeToName(composite));
+    }
+
+    private String timeToName(ReverseLookup lookup) {
+        long total = 0;
+        String name = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                final ContactInfo info = lookup.lookupNumber(getContext(), NUMBER, NUMBER);
+                name = info != null ? info.name : null;
+            } catch (IOException e) {
+                name = null;
+            }
+            total += SystemClock.elapsedRealtime() - start;
+        }
+        return (total / ITERATIONS) + " ms (" + name + ")";
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.dialer.calllog.ContactInfo;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+
+/**
+ * Tests which result {@link CompositeReverseLookup} returns from slow, failing and empty
+ * providers, simulated with a {@link FakeHttpServer}.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.lookup.CompositeReverseLookupTest /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class CompositeReverseLookupTest extends AndroidTestCase {
+    private static final String NUMBER = "+16505550100";
+    private static final long DEADLINE_MILLIS = 1000;
+    private static final long WINDOW_MILLIS = 200;
+
+    private FakeHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeHttpServer();
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testLookupNumber_primaryWithinWindow() throws Exception {
+        mServer.setResponse("/primary", 200, "Primary", 50);
+        mServer.setResponse("/secondary", 200, "Secondary", 0);
+        assertEquals("Primary", lookupNumber().name);
+    }
+
+    public void testLookupNumber_slowPrimary() throws Exception {
+        mServer.setResponse("/primary", 200, "Primary", 800);
+        mServer.setResponse("/secondary", 200, "Secondary", 0);
+        final long start = SystemClock.elapsedRealtime();
+        assertEquals("Secondary", lookupNumber().name);
+        // Returned when the window closed, without waiting for the primary provider.
+        assertTrue(SystemClock.elapsedRealtime() - start < 800);
+    }
+
+    public void testLookupNumber_primaryNotFound() throws Exception {
+        mServer.setResponse("/primary", 200, "", 0);
+        mServer.setResponse("/secondary", 200, "Secondary", 100);
+        assertEquals("Secondary", lookupNumber().name);
+    }
+
+    public void testLookupNumber_failingPrimary() throws Exception {
+        mServer.setResponse("/primary", FakeHttpServer.STATUS_DISCONNECT, "", 0);
+        mServer.setResponse("/secondary", 200, "Secondary", 0);
+        assertEquals("Secondary", lookupNumber().name);
+    }
+
+    public void testLookupNumber_notFound() throws Exception {
+        mServer.setResponse("/primary", 200, "", 0);
+        mServer.setResponse("/secondary", 200, "", 0);
+        assertNull(lookupNumber());
+    }
+
+    public void testLookupNumber_deadlineMissed() throws Exception {
+        mServer.setResponse("/primary", 200, "", 0);
+        mServer.setResponse("/secondary", 200, "Secondary", DEADLINE_MILLIS * 2);
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            lookupNumber();
+            fail("A provider missing its deadline must not make the number unknown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(SystemClock.elapsedRealtime() - start < DEADLINE_MILLIS * 2);
+    }
+
+    public void testLookupNumber_requestTimesOutByDeadline() throws Exception {
+        mServer.setResponse("/slow", 200, "Slow", DEADLINE_MILLIS * 3);
+        final ReverseLookup provider = new FakeReverseLookup(mServer, "/slow", DEADLINE_MILLIS);
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            provider.lookupNumber(getContext(), NUMBER, NUMBER);
+            fail("A request must not outlive the deadline of its provider");
+        } catch (IOException e) {
+            // expected
+        }
+        // The thread of an abandoned lookup is released soon after its deadline.
+        assertTrue(SystemClock.elapsedRealtime() - start < DEADLINE_MILLIS * 2);
+    }
+
+    private ContactInfo lookupNumber() throws IOException {
+        final CompositeReverseLookup lookup = new CompositeReverseLookup(
+                Lists.newArrayList("Primary", "Secondary"),
+                Lists.<ReverseLookup>newArrayList(
+                        new FakeReverseLookup(mServer, "/primary", DEADLINE_MILLIS),
+                        new FakeReverseLookup(mServer, "/secondary", DEADLINE_MILLIS)),
+                WINDOW_MILLIS);
+        return lookup.lookupNumber(getContext(), NUMBER, NUMBER);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Minimal HTTP server on the loopback interface, standing in for lookup providers in tests.
+ *
+ * Each path answers with a fixed status and body after a delay, so that slow and failing
+ * providers can be simulated. Paths without a response answer 404. Connections are kept alive,
+ * bodies are compressed for clients accepting gzip if requested, and a path with an ETag
+ * answers 304 to requests revalidating it.
+ */
+public class FakeHttpServer {
+    private static final String TAG = "FakeHttpServer";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Status closing the connection without a response, as a failing provider. */
+    public static final int STATUS_DISCONNECT = -1;
+
+    private static final class Response {
+        final int status;
+        final byte[] body;
+        final long delayMillis;
+        final String etag;
+        final boolean gzip;
+
+        Response(int status, String body, long delayMillis, String etag, boolean gzip) {
+            this.status = status;
+            this.body = body.getBytes(UTF_8);
+            this.delayMillis = delayMillis;
+            this.etag = etag;
+            this.gzip = gzip;
+        }
+    }
+
+    private final HashMap<String, Response> mResponses = new HashMap<String, Response>();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mNotModified = new AtomicInteger();
+    private final AtomicInteger mCompressed = new AtomicInteger();
+    private final AtomicInteger mConcurrentRequests = new AtomicInteger();
+    private final AtomicInteger mMaxConcurrentRequests = new AtomicInteger();
+    /** Connections kept alive, guarded by itself. */
+    private final HashSet<Socket> mSockets = new HashSet<Socket>();
+    private ServerSocket mServerSocket;
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // Closed by shutdown()
+                    }
+                }
+            }
+        });
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Answers requests for the path with the given status and body, after the given delay.
+     */
+    public void setResponse(String path, int status, String body, long delayMillis) {
+        setResponse(path, status, body, delayMillis, null, false);
+    }
+
+    /**
+     * @param etag ETag of the body, or null
+     * @param gzip Whether to compress the body for clients accepting gzip
+     */
+    public void setResponse(String path, int status, String body, long delayMillis, String etag,
+            boolean gzip) {
+        synchronized (mResponses) {
+            mResponses.put(path, new Response(status, body, delayMillis, etag, gzip));
+        }
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    public int getRequestCount() {
+        return mRequests.get();
+    }
+
+    public int getNotModifiedCount() {
+        return mNotModified.get();
+    }
+
+    public int getCompressedCount() {
+        return mCompressed.get();
+    }
+
+    public int getMaxConcurrentRequests() {
+        return mMaxConcurrentRequests.get();
+    }
+
+    private void handle(Socket socket) {
+        mConnections.incrementAndGet();
+        synchronized (mSockets) {
+            mSockets.add(socket);
+        }
+        try {
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), UTF_8));
+            while (handleRequest(reader, socket.getOutputStream())) {
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Request failed", e);
+        } catch (InterruptedException e) {
+            // Shutting down
+        } finally {
+            synchronized (mSockets) {
+                mSockets.remove(socket);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Answers the next request of a connection.
+     *
+     * @return Whether the connection can be used for another request
+     */
+    private boolean handleRequest(BufferedReader reader, OutputStream out)
+            throws IOException, InterruptedException {
+        final String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return false;
+        }
+
+        final int concurrent = mConcurrentRequests.incrementAndGet();
+        synchronized (mMaxConcurrentRequests) {
+            if (concurrent > mMaxConcurrentRequests.get()) {
+                mMaxConcurrentRequests.set(concurrent);
+            }
+        }
+        mRequests.incrementAndGet();
+        try {
+            boolean acceptsGzip = false;
+            String ifNoneMatch = null;
+            int contentLength = 0;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                final int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                final String name = line.substring(0, colon).trim();
+                final String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Accept-Encoding")) {
+                    acceptsGzip = value.contains("gzip");
+                } else if (name.equalsIgnoreCase("If-None-Match")) {
+                    ifNoneMatch = value;
+                } else if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Integer.parseInt(value);
+                }
+            }
+            // Skip the body of a post
+            for (int i = 0; i < contentLength; i++) {
+                reader.read();
+            }
+
+            String path = requestLine.split(" ")[1];
+            final int query = path.indexOf('?');
+            if (query >= 0) {
+                path = path.substring(0, query);
+            }
+
+            Response response;
+            synchronized (mResponses) {
+                response = mResponses.get(path);
+            }
+            if (response == null) {
+                response = new Response(404, "", 0, null, false);
+            }
+            if (response.delayMillis > 0) {
+                Thread.sleep(response.delayMillis);
+            }
+            if (response.status == STATUS_DISCONNECT) {
+                return false;
+            }
+
+            final StringBuilder headers = new StringBuilder();
+            byte[] body = response.body;
+            int status = response.status;
+            if (response.etag != null) {
+                headers.append("ETag: ").append(response.etag).append("\r\n");
+                if (response.etag.equals(ifNoneMatch)) {
+                    status = 304;
+                    body = new byte[0];
+                    mNotModified.incrementAndGet();
+                }
+            }
+            if (response.gzip && acceptsGzip && status != 304) {
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                final GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                gzip.write(body);
+                gzip.close();
+                body = compressed.toByteArray();
+                headers.append("Content-Encoding: gzip\r\n");
+                mCompressed.incrementAndGet();
+            }
+
+            out.write(("HTTP/1.1 " + status + " Fake\r\n"
+                    + "Content-Type: text/html; charset=UTF-8\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + headers + "\r\n").getBytes(UTF_8));
+            out.write(body);
+            out.flush();
+            return true;
+        } finally {
+            mConcurrentRequests.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.content.Context;
+
+import com.android.dialer.calllog.ContactInfo;
+
+import java.io.IOException;
+
+/**
+ * Reverse lookup provider querying a path of a {@link FakeHttpServer}. The body of the response
+ * is the name of the number, and an empty body means the number was not found.
+ */
+public class FakeReverseLookup extends ReverseLookup {
+    private final FakeHttpServer mServer;
+    private final String mPath;
+    private final long mDeadlineMillis;
+
+    public FakeReverseLookup(FakeHttpServer server, String path, long deadlineMillis) {
+        mServer = server;
+        mPath = path;
+        mDeadlineMillis = deadlineMillis;
+    }
+
+    @Override
+    public long getLookupDeadlineMillis() {
+        return mDeadlineMillis;
+    }
+
+    @Override
+    public ContactInfo lookupNumber(Context context, String normalizedNumber,
+            String formattedNumber) throws IOException {
+        final String name = LookupUtils.httpGet(mServer.getUrl(mPath), null,
+                getRequestTimeoutMillis());
+        if (name.isEmpty()) {
+            return null;
+        }
+        final ContactInfo info = new ContactInfo();
+        info.name = name;
+        info.normalizedNumber = normalizedNumber;
+        info.number = formattedNumber;
+        return info;
+    }
+}
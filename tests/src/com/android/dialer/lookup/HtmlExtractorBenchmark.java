@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.lookup.dastelefonbuch.TelefonbuchApi;
+import com.android.dialer.lookup.gebeld.GebeldApi;
+import com.android.dialer.lookup.whitepages.WhitePagesApi;
+import com.android.dialer.lookup.yellowpages.YellowPagesApi;
+import com.android.dialer.lookup.zabasearch.ZabaSearchApi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the extraction of the fields of the scraping providers with {@link HtmlExtractor} and
+ * with the whole page regular expressions it replaced.
+ *
+ * The pages in tests/assets/lookup are synthetic, not captured from the providers: the markup the
+ * providers' expressions look for is embedded in about 120 KB of generated style, script and
+ * navigation filler, at about 42% of the page. The number of bytes the extractor reads before
+ * stopping depends on where that markup sits in the page, so the streamingRead figures only
+ * hold for pages laid out like these ones.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.lookup.HtmlExtractorBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ *
+ * Results are written to logcat under the HtmlExtractorBenchmark tag.
+ */
+@LargeTest
+public class HtmlExtractorBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "HtmlExtractorBenchmark";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int ITERATIONS = 50;
+
+    public void testZabaSearch() throws IOException {
+        run("zabasearch.html", ZabaSearchApi.EXTRACTOR);
+    }
+
+    public void testTelefonbuch() throws IOException {
+        run("telefonbuch.html", TelefonbuchApi.EXTRACTOR);
+    }
+
+    public void testGebeld() throws IOException {
+        run("gebeld.html", GebeldApi.EXTRACTOR);
+    }
+
+    public void testWhitePages() throws IOException {
+        run("whitepages_us.html", WhitePagesApi.EXTRACTOR_UNITED_STATES);
+    }
+
+    public void testWhitePagesCanada() throws IOException {
+        run("whitepages_ca.html", WhitePagesApi.EXTRACTOR_CANADA);
+    }
+
+    public void testYellowPages() throws IOException {
+        run("yellowpages_us.html", YellowPagesApi.EXTRACTOR_UNITED_STATES);
+    }
+
+    public void testYellowPagesCanada() throws IOException {
+        run("yellowpages_ca.html", YellowPagesApi.EXTRACTOR_CANADA);
+    }
+
+    private void run(String page, HtmlExtractor extractor) throws IOException {
+        final byte[] bytes = readAsset("lookup/" + page);
+        final HtmlExtractor.Field[] fields = extractor.getFields();
+
+        // Both must find the same values
+        final HtmlExtractor.Result result =
+                extractor.parse(new ByteArrayInputStream(bytes), UTF_8);
+        final String text = new String(bytes, UTF_8);
+        for (HtmlExtractor.Field field : fields) {
+            assertEquals(page, findInPage(text, field), result.get(field));
+        }
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocSize();
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                final String output = readString(new ByteArrayInputStream(bytes));
+                for (HtmlExtractor.Field field : fields) {
+                    findInPage(output, field);
+                }
+            }
+            final long wholePageMillis = SystemClock.elapsedRealtime() - start;
+            final long wholePageBytes = Debug.getThreadAllocSize() / ITERATIONS;
+
+            Debug.resetThreadAllocSize();
+            long bytesRead = 0;
+            start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                final CountingInputStream in =
+                        new CountingInputStream(new ByteArrayInputStream(bytes));
+                extractor.parse(in, UTF_8);
+                bytesRead = in.getCount();
+            }
+            final long streamingMillis = SystemClock.elapsedRealtime() - start;
+            final long streamingBytes = Debug.getThreadAllocSize() / ITERATIONS;
+
+            Log.i(TAG, page + ": size=" + bytes.length
+                    + " wholePage=" + (wholePageMillis * 1000 / ITERATIONS) + "us/"
+                    + wholePageBytes + "B allocated"
+                    + " streaming=" + (streamingMillis * 1000 / ITERATIONS) + "us/"
+                    + streamingBytes + "B allocated"
+                    + " streamingRead=" + bytesRead);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * Returns the value of the field the way the providers found it before, compiling its
+     * pattern and matching it over the whole page.
+     */
+    private static String findInPage(String page, HtmlExtractor.Field field) {
+        int start = 0;
+        if (field.getAfter() != null) {
+            final Matcher after = compile(field.getAfter()).matcher(page);
+            if (!after.find()) {
+                return null;
+            }
+            start = after.end();
+        }
+        final Matcher m = compile(field).matcher(page);
+        if (!m.find(start) || m.group(field.getGroup()) == null) {
+            return null;
+        }
+        return m.group(field.getGroup()).trim();
+    }
+
+    private static Pattern compile(HtmlExtractor.Field field) {
+        return Pattern.compile(field.getPattern().pattern(), field.getPattern().flags());
+    }
+
+    private byte[] readAsset(String name) throws IOException {
+        final InputStream in = getInstrumentation().getContext().getAssets().open(name);
+        try {
+            return readBytes(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a response to a string, as the providers did before.
+     */
+    private static String readString(InputStream in) throws IOException {
+        return new String(readBytes(in), UTF_8);
+    }
+
+    private static byte[] readBytes(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests that {@link HtmlExtractor} finds the values matching the whole page, whatever the size
+ * of the chunks the page is received in.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.lookup.HtmlExtractorTest /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class HtmlExtractorTest extends AndroidTestCase {
+    private static final HtmlExtractor.Field NAME =
+            new HtmlExtractor.Field("<h1 class=\"name\">(.*?)</h1>", Pattern.DOTALL);
+    private static final HtmlExtractor.Field NUMBER =
+            new HtmlExtractor.Field("tel=([0-9]+)", 0);
+    private static final HtmlExtractor.Field RESULTS =
+            new HtmlExtractor.Field("<ol class=\"results\">", 0, 0, 64, null);
+    private static final HtmlExtractor.Field CITY = new HtmlExtractor.Field(
+            "<li class=\"city\">(.*?)</li>", Pattern.DOTALL, 1, 4096, RESULTS);
+    private static final HtmlExtractor.Field MISSING =
+            new HtmlExtractor.Field("<li class=\"fax\">(.*?)</li>", Pattern.DOTALL);
+
+    private static final String PAGE = filler(20000)
+            + "<li class=\"city\">Not a result</li>"
+            + "<h1 class=\"name\">\n  John Doe\n</h1>"
+            + filler(30000)
+            + "<a href=\"call?tel=5558675309\">Call</a>"
+            + "<ol class=\"results\">"
+            + filler(10000)
+            + "<li class=\"city\">Springfield</li></ol>"
+            + filler(50000);
+
+    public void testExtract_matchesWholePage() throws IOException {
+        final HtmlExtractor extractor = new HtmlExtractor(NAME, NUMBER, RESULTS, CITY);
+        for (int chunk : new int[] { 1, 7, 4096, PAGE.length() }) {
+            final HtmlExtractor.Result result = extractor.extract(new ChunkReader(PAGE, chunk));
+            for (HtmlExtractor.Field field : extractor.getFields()) {
+                assertEquals("chunk=" + chunk, findInPage(PAGE, field), result.get(field));
+            }
+        }
+    }
+
+    public void testExtract_waitsForLongestMatch() throws IOException {
+        final HtmlExtractor extractor = new HtmlExtractor(NUMBER);
+        // The number must not be cut at the end of a chunk
+        final HtmlExtractor.Result result =
+                extractor.extract(new ChunkReader(PAGE, 3));
+        assertEquals("5558675309", result.get(NUMBER));
+    }
+
+    public void testExtract_searchesAfterField() throws IOException {
+        final HtmlExtractor extractor = new HtmlExtractor(RESULTS, CITY);
+        final HtmlExtractor.Result result = extractor.extract(new ChunkReader(PAGE, 1000));
+        assertTrue(result.has(RESULTS));
+        assertEquals("Springfield", result.get(CITY));
+    }
+
+    public void testExtract_stopsOnceAllFound() throws IOException {
+        final HtmlExtractor extractor = new HtmlExtractor(NAME, NUMBER);
+        final ChunkReader reader = new ChunkReader(PAGE, 1000);
+        final HtmlExtractor.Result result = extractor.extract(reader);
+        assertEquals("John Doe", result.get(NAME));
+        assertTrue(reader.getCharsRead() < PAGE.indexOf("Springfield"));
+    }
+
+    public void testExtract_missingField() throws IOException {
+        final HtmlExtractor extractor = new HtmlExtractor(NAME, MISSING);
+        final ChunkReader reader = new ChunkReader(PAGE, 1000);
+        final HtmlExtractor.Result result = extractor.extract(reader);
+        assertEquals("John Doe", result.get(NAME));
+        assertFalse(result.has(MISSING));
+        assertNull(result.get(MISSING));
+        assertEquals(PAGE.length(), reader.getCharsRead());
+    }
+
+    public void testExtract_stopsWithoutOptionalFields() throws IOException {
+        final HtmlExtractor extractor = new HtmlExtractor(
+                new HtmlExtractor.Field[] { NUMBER },
+                new HtmlExtractor.Field[] { NAME, MISSING });
+        final ChunkReader reader = new ChunkReader(PAGE, 1000);
+        final HtmlExtractor.Result result = extractor.extract(reader);
+        assertEquals("5558675309", result.get(NUMBER));
+        // Optional fields found before reading stops are kept
+        assertEquals("John Doe", result.get(NAME));
+        assertFalse(result.has(MISSING));
+        assertTrue(reader.getCharsRead() < PAGE.indexOf("Springfield"));
+    }
+
+    public void testResult_getGroup() throws IOException {
+        final HtmlExtractor.Field link = new HtmlExtractor.Field(
+                "<a href=\"([^\"]+)\">([^<]+)</a>", 0);
+        final HtmlExtractor.Result result = new HtmlExtractor(link).extract(
+                new ChunkReader("<p><a href=\"/call\"> Call </a></p>", 5));
+        assertEquals("/call", result.get(link));
+        assertEquals("Call", result.getGroup(link, 2));
+    }
+
+    /**
+     * Returns the value of the field matched over the whole page.
+     */
+    private static String findInPage(String page, HtmlExtractor.Field field) {
+        int start = 0;
+        if (field.getAfter() != null) {
+            final Matcher after = field.getAfter().getPattern().matcher(page);
+            if (!after.find()) {
+                return null;
+            }
+            start = after.end();
+        }
+        final Matcher m = field.getPattern().matcher(page);
+        if (!m.find(start)) {
+            return null;
+        }
+        return m.group(field.getGroup()).trim();
+    }
+
+    private static String filler(int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        int i = 0;
+        while (sb.length() < length) {
+            sb.append("<div class=\"item").append(i++).append("\"><a href=\"/x\">Item</a></div>\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads a string at most a given number of characters at a time, as a network stream.
+     */
+    private static class ChunkReader extends Reader {
+        private final String mText;
+        private final int mChunkSize;
+        private int mPosition;
+
+        public ChunkReader(String text, int chunkSize) {
+            mText = text;
+            mChunkSize = chunkSize;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (mPosition == mText.length()) {
+                return -1;
+            }
+            final int count = Math.min(Math.min(length, mChunkSize),
+                    mText.length() - mPosition);
+            mText.getChars(mPosition, mPosition + count, buffer, offset);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        public int getCharsRead() {
+            return mPosition;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.android.dialer.calllog.ContactInfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Compares the hit latency and the disk footprint of {@link LookupCache} with the layout it
+ * replaced, one pretty-printed JSON file per number read with a stat of the file and of its
+ * image. Also compares the bytes per cached image with the full size images it stored before.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.lookup.LookupCacheBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ *
+ * Results are written to logcat under the LookupCacheBenchmark tag.
+ */
+@LargeTest
+public class LookupCacheBenchmark extends AndroidTestCase {
+    private static final String TAG = "LookupCacheBenchmark";
+
+    private static final String DATABASE_NAME = "lookup_cache_benchmark.db";
+    private static final int ENTRIES = 500;
+    /** Numbers looked up again right after, as when the call log is scrolled. */
+    private static final int RECENT_ENTRIES = 50;
+    private static final int BLOCK_SIZE = 4096;
+    private static final long NOW = 1000000000000L;
+    /** Size of the photo returned by the provider. */
+    private static final int IMAGE_WIDTH = 1600;
+    private static final int IMAGE_HEIGHT = 1200;
+    private static final int IMAGE_READS = 20;
+
+    private static final Executor INLINE_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File mFileCacheDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFileCacheDir = new File(getContext().getCacheDir(), "lookup_benchmark");
+        mFileCacheDir.mkdirs();
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = mFileCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mFileCacheDir.delete();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testHitLatencyAndFootprint() throws IOException {
+        LookupCache cache = new LookupCache(getContext(), DATABASE_NAME, INLINE_EXECUTOR);
+        long fileBytes = 0;
+        long fileBlockBytes = 0;
+        for (int i = 0; i < ENTRIES; i++) {
+            final ContactInfo info = newContactInfo(i);
+            final File file = writeJsonFile(info);
+            fileBytes += file.length();
+            fileBlockBytes += (file.length() + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            cache.put(info, NOW);
+        }
+        cache.close();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ENTRIES; i++) {
+            assertNotNull(readJsonFile(getNumber(i)));
+        }
+        final long fileNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        // Reopens the cache, so that the first hits are read from the table
+        cache = new LookupCache(getContext(), DATABASE_NAME, INLINE_EXECUTOR);
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ENTRIES; i++) {
+            assertNotNull(cache.get(getNumber(i), null, NOW));
+        }
+        final long tableNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = ENTRIES - RECENT_ENTRIES; i < ENTRIES; i++) {
+            assertNotNull(cache.get(getNumber(i), null, NOW));
+        }
+        final long memoryNanos = SystemClock.elapsedRealtimeNanos() - start;
+        final long databaseBytes = cache.getDatabaseSize();
+        cache.close();
+
+        Log.i(TAG, String.format("entries=%d hit: files=%.1fus table=%.1fus memory=%.1fus",
+                ENTRIES, fileNanos / 1e3 / ENTRIES, tableNanos / 1e3 / ENTRIES,
+                memoryNanos / 1e3 / RECENT_ENTRIES));
+        Log.i(TAG, String.format("footprint: files=%d bytes (%d allocated) table=%d bytes",
+                fileBytes, fileBlockBytes, databaseBytes));
+    }
+
+    public void testImageFootprint() throws IOException {
+        final Bitmap photo = newPhoto();
+        final String number = getNumber(0);
+
+        // Stored at full size and decoded on every read, as before
+        final File fullSize = new File(mFileCacheDir, number + ".webp");
+        final FileOutputStream out = new FileOutputStream(fullSize);
+        try {
+            photo.compress(Bitmap.CompressFormat.WEBP, 100, out);
+        } finally {
+            out.close();
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        long fullSizeBytes = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < IMAGE_READS; i++) {
+            fullSizeBytes = BitmapFactory.decodeFile(fullSize.getPath(), options).getByteCount();
+        }
+        final long fullSizeNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        final int maxSize = LookupCache.getMaxImageSize(getContext());
+        LookupCache cache = new LookupCache(getContext(), DATABASE_NAME, INLINE_EXECUTOR);
+        final Bitmap cached = cache.putImage(number, photo, maxSize);
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < IMAGE_READS; i++) {
+            assertSame(cached, cache.getImage(number, maxSize));
+        }
+        final long memoryNanos = SystemClock.elapsedRealtimeNanos() - start;
+        cache.close();
+
+        // Reopens the cache, so that the first read decodes the file
+        cache = new LookupCache(getContext(), DATABASE_NAME, INLINE_EXECUTOR);
+        start = SystemClock.elapsedRealtimeNanos();
+        assertNotNull(cache.getImage(number, maxSize));
+        final long decodeNanos = SystemClock.elapsedRealtimeNanos() - start;
+        cache.close();
+        final File scaled = LookupCache.getImagePath(getContext(), number);
+
+        Log.i(TAG, String.format("image %dx%d: before file=%d bytes decoded=%d bytes",
+                IMAGE_WIDTH, IMAGE_HEIGHT, fullSize.length(), fullSizeBytes));
+        Log.i(TAG, String.format("image %dx%d: after file=%d bytes decoded=%d bytes",
+                cached.getWidth(), cached.getHeight(), scaled.length(), cached.getByteCount()));
+        Log.i(TAG, String.format("image read: before=%.1fus after memory=%.1fus file=%.1fus",
+                fullSizeNanos / 1e3 / IMAGE_READS, memoryNanos / 1e3 / IMAGE_READS,
+                decodeNanos / 1e3));
+        scaled.delete();
+    }
+
+    /**
+     * Returns an opaque image with gradients and noise, compressing like a photo.
+     */
+    private static Bitmap newPhoto() {
+        final Random random = new Random(0);
+        final int[] pixels = new int[IMAGE_WIDTH * IMAGE_HEIGHT];
+        for (int y = 0; y < IMAGE_HEIGHT; y++) {
+            for (int x = 0; x < IMAGE_WIDTH; x++) {
+                final int noise = random.nextInt(16);
+                final int red = (x * 255 / IMAGE_WIDTH + noise) & 0xff;
+                final int green = (y * 255 / IMAGE_HEIGHT + noise) & 0xff;
+                final int blue = ((x + y) * 255 / (IMAGE_WIDTH + IMAGE_HEIGHT)) & 0xff;
+                pixels[y * IMAGE_WIDTH + x] = 0xff000000 | red << 16 | green << 8 | blue;
+            }
+        }
+        final Bitmap bmp = Bitmap.createBitmap(pixels, IMAGE_WIDTH, IMAGE_HEIGHT,
+                Bitmap.Config.ARGB_8888);
+        bmp.setHasAlpha(false);
+        return bmp;
+    }
+
+    private static String getNumber(int index) {
+        return String.format("+1650555%04d", index);
+    }
+
+    private static ContactInfo newContactInfo(int index) {
+        final ContactInfo info = new ContactInfo();
+        info.name = "Business " + index;
+        info.type = 0;
+        info.label = "Work";
+        info.number = getNumber(index);
+        info.formattedNumber = "(650) 555-" + String.format("%04d", index);
+        info.normalizedNumber = getNumber(index);
+        info.lookupUri = Uri.parse("content://com.android.dialer.provider/lookup#"
+                + "{\"display_name\":\"Business " + index + "\"}");
+        return info;
+    }
+
+    /**
+     * Writes a result as the replaced layout did.
+     */
+    private File writeJsonFile(ContactInfo info) throws IOException {
+        final File file = new File(mFileCacheDir, info.normalizedNumber + ".json");
+        final JsonWriter writer = new JsonWriter(
+                new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.setIndent("  ");
+            writer.beginObject();
+            writer.name("Name").value(info.name);
+            writer.name("Type").value(info.type);
+            writer.name("Label").value(info.label);
+            writer.name("Number").value(info.number);
+            writer.name("FormattedNumber").value(info.formattedNumber);
+            writer.name("NormalizedNumber").value(info.normalizedNumber);
+            writer.name("PhotoID").value(info.photoId);
+            writer.name("LookupURI").value(info.lookupUri.toString());
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * Reads a result as the replaced layout did, after checking that the file exists, and
+     * checking for its image.
+     */
+    private ContactInfo readJsonFile(String normalizedNumber) throws IOException {
+        final File file = new File(mFileCacheDir, normalizedNumber + ".json");
+        if (!file.exists()) {
+            return null;
+        }
+        final ContactInfo info = new ContactInfo();
+        final JsonReader reader = new JsonReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if ("Name".equals(name)) {
+                    info.name = reader.nextString();
+                } else if ("Type".equals(name)) {
+                    info.type = reader.nextInt();
+                } else if ("PhotoID".equals(name)) {
+                    info.photoId = reader.nextLong();
+                } else if ("LookupURI".equals(name)) {
+                    info.lookupUri = Uri.parse(reader.nextString());
+                    new File(mFileCacheDir, normalizedNumber + ".webp").exists();
+                } else {
+                    reader.nextString();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        return info;
+    }
+}
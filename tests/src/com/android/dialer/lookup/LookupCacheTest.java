@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.dialer.calllog.ContactInfo;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link LookupCache}.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.lookup.LookupCacheTest /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class LookupCacheTest extends AndroidTestCase {
+    private static final long NOW = 1000000000000L;
+    private static final String PROVIDER = "TestProvider";
+    private static final long TTL_MILLIS = 60 * 60 * 1000;
+    private static final String IMAGE_NUMBER = "+16505551234";
+    private static final int MAX_IMAGE_SIZE = 500;
+
+    /** Writes the changes of the cache as they are made. */
+    private static final Executor INLINE_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private LookupCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = LookupCache.getNewInstanceForTest(getContext(), INLINE_EXECUTOR);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.close();
+        LookupCache.getImagePath(getContext(), IMAGE_NUMBER).delete();
+        super.tearDown();
+    }
+
+    public void testGet_cachedContact() {
+        final ContactInfo info = newContactInfo("+16505551234", "Pizza Place");
+        info.lookupUri = Uri.parse("content://com.android.contacts/contacts/lookup/encoded");
+        mCache.put(info, NOW);
+
+        final LookupCache.CachedResult cached = mCache.get("+16505551234", PROVIDER, NOW + 1);
+        assertEquals(info, cached.info);
+        assertNotSame(info, cached.info);
+        assertFalse(cached.stale);
+        assertNull(mCache.get("+16505550000", PROVIDER, NOW + 1));
+    }
+
+    public void testGet_staleContact() {
+        mCache.put(newContactInfo("+16505551234", "Pizza Place"), NOW);
+        final long expiredMillis = NOW + LookupCache.POSITIVE_TTL_MILLIS;
+        assertFalse(mCache.get("+16505551234", PROVIDER, expiredMillis - 1).stale);
+
+        final LookupCache.CachedResult stale = mCache.get("+16505551234", PROVIDER,
+                expiredMillis);
+        assertTrue(stale.stale);
+        assertEquals("Pizza Place", stale.info.name);
+        assertNull(mCache.get("+16505551234", PROVIDER,
+                expiredMillis + LookupCache.MAX_STALE_MILLIS));
+
+        mCache.setServeStale(false);
+        assertNull(mCache.get("+16505551234", PROVIDER, expiredMillis));
+    }
+
+    public void testGet_negativeResult() {
+        mCache.putNegative("+16505551234", PROVIDER, TTL_MILLIS, NOW);
+        assertSame(ContactInfo.EMPTY, mCache.get("+16505551234", PROVIDER, NOW + 1).info);
+        assertNull(mCache.get("+16505551234", PROVIDER, NOW + TTL_MILLIS));
+
+        // Other providers may know the number.
+        assertNull(mCache.get("+16505551234", "OtherProvider", NOW + 1));
+        assertNull(mCache.get("+16505551234", null, NOW + 1));
+
+        // A later result replaces the negative one.
+        mCache.put(newContactInfo("+16505551234", "Pizza Place"), NOW + 2);
+        assertEquals("Pizza Place", mCache.get("+16505551234", PROVIDER, NOW + 3).info.name);
+    }
+
+    public void testPut_evictsOldestResults() {
+        final int count = LookupCache.MAX_ROWS + 10;
+        for (int i = 0; i < count; i++) {
+            mCache.put(newContactInfo(getNumber(i), "Business " + i), NOW + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertNull(mCache.get(getNumber(i), PROVIDER, NOW + count));
+        }
+        for (int i = 10; i < count; i += 97) {
+            assertEquals("Business " + i,
+                    mCache.get(getNumber(i), PROVIDER, NOW + count).info.name);
+        }
+    }
+
+    public void testPut_deletesExpiredResults() {
+        mCache.put(newContactInfo("+16505551234", "Pizza Place"), NOW);
+        mCache.putNegative("+16505550000", PROVIDER, TTL_MILLIS, NOW);
+        mCache.put(newContactInfo("+16505559999", "Taxi"),
+                NOW + LookupCache.POSITIVE_TTL_MILLIS + LookupCache.MAX_STALE_MILLIS);
+
+        final StringWriter writer = new StringWriter();
+        mCache.dump(new PrintWriter(writer));
+        assertTrue(writer.toString(), writer.toString().contains("rows=1"));
+    }
+
+    public void testDump_countsOutcomes() {
+        mCache.put(newContactInfo("+16505551234", "Pizza Place"), NOW);
+        mCache.putNegative("+16505550000", PROVIDER, TTL_MILLIS, NOW);
+        mCache.get("+16505551234", PROVIDER, NOW + 1);
+        mCache.get("+16505551234", PROVIDER, NOW + LookupCache.POSITIVE_TTL_MILLIS);
+        mCache.get("+16505550000", PROVIDER, NOW + 1);
+        mCache.get("+16505559999", PROVIDER, NOW + 1);
+
+        final StringWriter writer = new StringWriter();
+        mCache.dump(new PrintWriter(writer));
+        assertTrue(writer.toString(), writer.toString().contains(
+                "hits=1 staleHits=1 negativeHits=1 misses=1"));
+        assertTrue(writer.toString(), writer.toString().contains("rows=2"));
+    }
+
+    public void testScaleImage() {
+        final Bitmap opaque = newImage(2000, 1000, false);
+        final Bitmap scaled = LookupCache.scaleImage(opaque, MAX_IMAGE_SIZE);
+        assertEquals(500, scaled.getWidth());
+        assertEquals(250, scaled.getHeight());
+        assertEquals(Bitmap.Config.RGB_565, scaled.getConfig());
+
+        final Bitmap translucent = LookupCache.scaleImage(newImage(2000, 1000, true),
+                MAX_IMAGE_SIZE);
+        assertEquals(Bitmap.Config.ARGB_8888, translucent.getConfig());
+
+        // Images which already fit are kept.
+        assertSame(scaled, LookupCache.scaleImage(scaled, MAX_IMAGE_SIZE));
+    }
+
+    public void testGetSampleSize() {
+        assertEquals(1, LookupCache.getSampleSize(800, 600, 1080));
+        assertEquals(1, LookupCache.getSampleSize(2000, 1500, 1080));
+        assertEquals(2, LookupCache.getSampleSize(4000, 3000, 1080));
+        assertEquals(4, LookupCache.getSampleSize(4000, 3000, 1000));
+    }
+
+    public void testGetImage_servedFromMemory() {
+        final Bitmap cached = mCache.putImage(IMAGE_NUMBER, newImage(2000, 1000, false),
+                MAX_IMAGE_SIZE);
+        assertEquals(500, cached.getWidth());
+        assertSame(cached, mCache.getImage(IMAGE_NUMBER, MAX_IMAGE_SIZE));
+
+        final StringWriter writer = new StringWriter();
+        mCache.dump(new PrintWriter(writer));
+        assertTrue(writer.toString(), writer.toString().contains("imagesCached=1"));
+        assertTrue(writer.toString(), writer.toString().contains(
+                "imageMemoryHits=1 imageDecodes=0"));
+    }
+
+    public void testGetImage_decodedFromFile() {
+        mCache.putImage(IMAGE_NUMBER, newImage(2000, 1000, false), MAX_IMAGE_SIZE);
+
+        final LookupCache cache = LookupCache.getNewInstanceForTest(getContext(),
+                INLINE_EXECUTOR);
+        try {
+            final Bitmap decoded = cache.getImage(IMAGE_NUMBER, MAX_IMAGE_SIZE);
+            assertEquals(500, decoded.getWidth());
+            assertEquals(Bitmap.Config.RGB_565, decoded.getConfig());
+            assertSame(decoded, cache.getImage(IMAGE_NUMBER, MAX_IMAGE_SIZE));
+            assertNull(cache.getImage("+16505550000", MAX_IMAGE_SIZE));
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static Bitmap newImage(int width, int height, boolean hasAlpha) {
+        final Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bmp.eraseColor(hasAlpha ? Color.TRANSPARENT : Color.RED);
+        bmp.setHasAlpha(hasAlpha);
+        return bmp;
+    }
+
+    private static String getNumber(int index) {
+        return String.format("+1650555%04d", index);
+    }
+
+    private static ContactInfo newContactInfo(String normalizedNumber, String name) {
+        final ContactInfo info = new ContactInfo();
+        info.name = name;
+        info.number = normalizedNumber;
+        info.formattedNumber = normalizedNumber;
+        info.normalizedNumber = normalizedNumber;
+        return info;
+    }
+}
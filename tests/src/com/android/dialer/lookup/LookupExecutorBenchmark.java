@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.dialer.calllog.ContactInfo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the forward lookups of a typed search with {@link LookupExecutor} and with the thread
+ * per query it replaced, against a local HTTP server standing in for the provider.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.lookup.LookupExecutorBenchmark /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ *
+ * Results are written to logcat under the LookupExecutorBenchmark tag.
+ */
+@LargeTest
+public class LookupExecutorBenchmark extends AndroidTestCase {
+    private static final String TAG = "LookupExecutorBenchmark";
+
+    private static final String SEARCH = "pizza hut";
+    private static final long KEYSTROKE_MILLIS = 80;
+    private static final long PROVIDER_DELAY_MILLIS = 300;
+    private static final long TIMEOUT_MILLIS = 10000;
+    /** Queries per keystroke, as the search list and the dialpad both query the directory. */
+    private static final int QUERIES_PER_KEYSTROKE = 2;
+    private static final String PATH = "/search";
+
+    private FakeHttpServer mServer;
+
+    private interface Lookups {
+        ContactInfo[] execute(LookupExecutor.Key key, Callable<ContactInfo[]> callable);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeHttpServer();
+        mServer.start();
+        mServer.setResponse(PATH, 200, "<html><body>Pizza</body></html>",
+                PROVIDER_DELAY_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testThreadPerQuery() throws Exception {
+        final int[] threads = new int[1];
+        final long latency = typeSearch(new Lookups() {
+            @Override
+            public ContactInfo[] execute(LookupExecutor.Key key,
+                    Callable<ContactInfo[]> callable) {
+                final FutureTask<ContactInfo[]> future = new FutureTask<ContactInfo[]>(callable);
+                synchronized (threads) {
+                    threads[0]++;
+                }
+                new Thread(future, "FilterThread").start();
+                try {
+                    return future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    return null;
+                }
+            }
+        });
+        Log.i(TAG, "Thread per query: threads=" + threads[0]
+                + " requests=" + mServer.getRequestCount()
+                + " maxConcurrentRequests=" + mServer.getMaxConcurrentRequests()
+                + " lastKeystrokeMillis=" + latency);
+    }
+
+    public void testLookupExecutor() throws Exception {
+        final LookupExecutor executor = new LookupExecutor();
+        try {
+            final long latency = typeSearch(new Lookups() {
+                @Override
+                public ContactInfo[] execute(LookupExecutor.Key key,
+                        Callable<ContactInfo[]> callable) {
+                    return executor.execute(key, callable, TIMEOUT_MILLIS);
+                }
+            });
+            Log.i(TAG, "LookupExecutor: threads=" + executor.getThreadsCreated()
+                    + " requests=" + mServer.getRequestCount()
+                    + " maxConcurrentRequests=" + mServer.getMaxConcurrentRequests()
+                    + " coalesced=" + executor.getCoalescedCount()
+                    + " superseded=" + executor.getSupersededCount()
+                    + " maxQueued=" + executor.getMaxQueueDepth()
+                    + " avgLatencyMillis=" + executor.getAverageLatencyMillis()
+                    + " lastKeystrokeMillis=" + latency);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Queries every prefix of the search as it is typed, each query on its own thread like
+     * binder threads.
+     *
+     * @return Time from the last keystroke to the results of its queries
+     */
+    private long typeSearch(final Lookups lookups) throws Exception {
+        final Callable<ContactInfo[]> callable = new Callable<ContactInfo[]>() {
+            @Override
+            public ContactInfo[] call() throws IOException {
+                LookupUtils.httpGet(mServer.getUrl(PATH), null);
+                return new ContactInfo[] { new ContactInfo() };
+            }
+        };
+
+        final ArrayList<Thread> queries = new ArrayList<Thread>();
+        final ArrayList<Thread> lastQueries = new ArrayList<Thread>();
+        for (int i = 1; i <= SEARCH.length(); i++) {
+            final LookupExecutor.Key key = new LookupExecutor.Key(0, SEARCH.substring(0, i),
+                    null);
+            lastQueries.clear();
+            for (int j = 0; j < QUERIES_PER_KEYSTROKE; j++) {
+                final Thread query = new Thread() {
+                    @Override
+                    public void run() {
+                        lookups.execute(key, callable);
+                    }
+                };
+                query.start();
+                queries.add(query);
+                lastQueries.add(query);
+            }
+            Thread.sleep(KEYSTROKE_MILLIS);
+        }
+
+        final long lastKeystroke = SystemClock.elapsedRealtime() - KEYSTROKE_MILLIS;
+        for (Thread query : lastQueries) {
+            query.join();
+        }
+        final long latency = SystemClock.elapsedRealtime() - lastKeystroke;
+        for (Thread query : queries) {
+            query.join();
+        }
+        return latency;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.location.Location;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.dialer.calllog.ContactInfo;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests the de-duplication and the cancellation of forward lookups by {@link LookupExecutor}.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.lookup.LookupExecutorTest /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class LookupExecutorTest extends AndroidTestCase {
+    private static final int TYPE = 0;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private LookupExecutor mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = new LookupExecutor();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdown();
+        super.tearDown();
+    }
+
+    public void testKey_location() {
+        final Location here = newLocation(37.4220, -122.0841);
+        final Location nextDoor = newLocation(37.42201, -122.08411);
+        final Location elsewhere = newLocation(37.4320, -122.0841);
+
+        assertEquals(new LookupExecutor.Key(TYPE, "pizza", here),
+                new LookupExecutor.Key(TYPE, "pizza", nextDoor));
+        assertFalse(new LookupExecutor.Key(TYPE, "pizza", here).equals(
+                new LookupExecutor.Key(TYPE, "pizza", elsewhere)));
+        assertTrue(new LookupExecutor.Key(TYPE, "piz", here).isExtendedBy(
+                new LookupExecutor.Key(TYPE, "pizza", nextDoor)));
+        assertFalse(new LookupExecutor.Key(TYPE, "piz", here).isExtendedBy(
+                new LookupExecutor.Key(TYPE, "pizza", elsewhere)));
+        assertFalse(new LookupExecutor.Key(TYPE, "pizza", here).isExtendedBy(
+                new LookupExecutor.Key(TYPE, "pizza", here)));
+        assertFalse(new LookupExecutor.Key(TYPE, "pizza", null).isExtendedBy(
+                new LookupExecutor.Key(TYPE + 1, "pizzas", null)));
+    }
+
+    public void testExecute_sharesIdenticalLookups() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final ContactInfo[] results = new ContactInfo[] { new ContactInfo() };
+        final Callable<ContactInfo[]> lookup = new Callable<ContactInfo[]>() {
+            @Override
+            public ContactInfo[] call() throws Exception {
+                calls.incrementAndGet();
+                release.await();
+                return results;
+            }
+        };
+
+        final BackgroundLookup first = new BackgroundLookup(
+                new LookupExecutor.Key(TYPE, "pizza", null), lookup);
+        final BackgroundLookup second = new BackgroundLookup(
+                new LookupExecutor.Key(TYPE, "pizza", null), lookup);
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mExecutor.getCoalescedCount() == 1;
+            }
+        });
+        release.countDown();
+
+        assertSame(results, first.getResults());
+        assertSame(results, second.getResults());
+        assertEquals(1, calls.get());
+    }
+
+    public void testExecute_cancelsSupersededLookup() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<Boolean> interrupted = new AtomicReference<Boolean>(false);
+        final BackgroundLookup stale = new BackgroundLookup(
+                new LookupExecutor.Key(TYPE, "piz", null), new Callable<ContactInfo[]>() {
+                    @Override
+                    public ContactInfo[] call() throws Exception {
+                        started.countDown();
+                        try {
+                            Thread.sleep(TIMEOUT_MILLIS);
+                        } catch (InterruptedException e) {
+                            interrupted.set(true);
+                        }
+                        return new ContactInfo[0];
+                    }
+                });
+        assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        final ContactInfo[] results = new ContactInfo[] { new ContactInfo() };
+        assertSame(results, mExecutor.execute(new LookupExecutor.Key(TYPE, "pizz", null),
+                new Callable<ContactInfo[]>() {
+                    @Override
+                    public ContactInfo[] call() {
+                        return results;
+                    }
+                }, TIMEOUT_MILLIS));
+
+        assertEquals(1, mExecutor.getSupersededCount());
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return interrupted.get();
+            }
+        });
+        // The caller of the superseded lookup got no results.
+        assertNull(stale.getResults());
+    }
+
+    public void testExecute_restartsTimedOutLookup() throws Exception {
+        final AtomicReference<Boolean> interrupted = new AtomicReference<Boolean>(false);
+        final LookupExecutor.Key key = new LookupExecutor.Key(TYPE, "pizza", null);
+        assertNull(mExecutor.execute(key, new Callable<ContactInfo[]>() {
+            @Override
+            public ContactInfo[] call() throws Exception {
+                try {
+                    Thread.sleep(TIMEOUT_MILLIS);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+                return new ContactInfo[0];
+            }
+        }, 100));
+
+        // The timed out lookup had no other caller, so it was cancelled and the same lookup
+        // runs again instead of joining it.
+        final ContactInfo[] results = new ContactInfo[] { new ContactInfo() };
+        assertSame(results, mExecutor.execute(key, new Callable<ContactInfo[]>() {
+            @Override
+            public ContactInfo[] call() {
+                return results;
+            }
+        }, TIMEOUT_MILLIS));
+        assertEquals(0, mExecutor.getCoalescedCount());
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return interrupted.get();
+            }
+        });
+    }
+
+    public void testExecute_reusesThreads() {
+        for (int i = 0; i < 20; i++) {
+            // Filters that do not extend each other
+            final ContactInfo[] results = new ContactInfo[i];
+            assertSame(results, mExecutor.execute(new LookupExecutor.Key(TYPE, i + "x", null),
+                    new Callable<ContactInfo[]>() {
+                        @Override
+                        public ContactInfo[] call() {
+                            return results;
+                        }
+                    }, TIMEOUT_MILLIS));
+        }
+        assertTrue(mExecutor.getThreadsCreated() <= LookupExecutor.THREADS);
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.isMet()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Runs a lookup on a new thread.
+     */
+    private class BackgroundLookup extends Thread {
+        private final LookupExecutor.Key mKey;
+        private final Callable<ContactInfo[]> mLookup;
+        private ContactInfo[] mResults;
+
+        public BackgroundLookup(LookupExecutor.Key key, Callable<ContactInfo[]> lookup) {
+            mKey = key;
+            mLookup = lookup;
+            start();
+        }
+
+        @Override
+        public void run() {
+            mResults = mExecutor.execute(mKey, mLookup, TIMEOUT_MILLIS);
+        }
+
+        public ContactInfo[] getResults() throws InterruptedException {
+            join(TIMEOUT_MILLIS);
+            assertFalse("Timed out", isAlive());
+            return mResults;
+        }
+    }
+
+    private static Location newLocation(double latitude, double longitude) {
+        final Location location = new Location("test");
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        return location;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Tests the HTTP requests of {@link LookupUtils} against a {@link FakeHttpServer}.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.lookup.LookupUtilsTest /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class LookupUtilsTest extends AndroidTestCase {
+    private static final String PAGE = "<html><body><h1>Pizza Hut</h1>"
+            + "<p>1234 Main St, Mountain View, CA</p></body></html>";
+
+    private FakeHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeHttpServer();
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testHttpGet_gzip() throws IOException {
+        mServer.setResponse("/page", 200, PAGE, 0, null, true);
+        assertEquals(PAGE, LookupUtils.httpGet(mServer.getUrl("/page"), null));
+        assertEquals(PAGE, new String(LookupUtils.httpGetBytes(mServer.getUrl("/page"), null),
+                "UTF-8"));
+        assertEquals(2, mServer.getCompressedCount());
+    }
+
+    public void testHttpGet_keepAlive() throws IOException {
+        mServer.setResponse("/page", 200, PAGE, 0);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(PAGE, LookupUtils.httpGet(mServer.getUrl("/page"), null));
+        }
+        assertEquals(5, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    public void testHttpGet_keepAliveAfterError() throws IOException {
+        mServer.setResponse("/page", 200, PAGE, 0);
+        try {
+            LookupUtils.httpGet(mServer.getUrl("/missing"), null);
+            fail("A missing page must fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(PAGE, LookupUtils.httpGet(mServer.getUrl("/page"), null));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    public void testHttpGet_timeout() {
+        mServer.setResponse("/slow", 200, PAGE, 2000);
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            LookupUtils.httpGet(mServer.getUrl("/slow"), null, 200);
+            fail("The request must time out");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(SystemClock.elapsedRealtime() - start < 2000);
+    }
+
+    public void testHttpGet_parser() throws IOException {
+        mServer.setResponse("/page", 200, PAGE, 0, null, true);
+        final Integer length = LookupUtils.httpGet(mServer.getUrl("/page"), null,
+                new LookupUtils.ResponseParser<Integer>() {
+                    @Override
+                    public Integer parse(InputStream in, Charset charset) throws IOException {
+                        assertEquals("UTF-8", charset.name());
+                        int length = 0;
+                        while (in.read() != -1) {
+                            length++;
+                        }
+                        return length;
+                    }
+                });
+        assertEquals(PAGE.length(), length.intValue());
+    }
+
+    public void testHttpGetConditional() throws IOException {
+        final String url = mServer.getUrl("/gallery");
+        mServer.setResponse("/gallery", 200, PAGE, 0, "\"v1\"", true);
+        assertEquals(PAGE, LookupUtils.httpGetConditional(url, null));
+        assertEquals(PAGE, LookupUtils.httpGetConditional(url, null));
+        assertEquals(1, mServer.getNotModifiedCount());
+
+        // A modified page replaces the kept one
+        mServer.setResponse("/gallery", 200, "changed", 0, "\"v2\"", true);
+        assertEquals("changed", LookupUtils.httpGetConditional(url, null));
+        assertEquals("changed", LookupUtils.httpGetConditional(url, null));
+        assertEquals(2, mServer.getNotModifiedCount());
+    }
+
+    public void testDumpHttpStats() throws IOException {
+        mServer.setResponse("/page", 200, PAGE, 0, null, true);
+        LookupUtils.httpGet(mServer.getUrl("/page"), null);
+
+        final StringWriter dump = new StringWriter();
+        LookupUtils.dumpHttpStats(new PrintWriter(dump));
+        assertTrue(dump.toString(), dump.toString().contains("127.0.0.1: requests="));
+    }
+}
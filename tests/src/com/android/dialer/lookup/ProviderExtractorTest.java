@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.dialer.lookup.dastelefonbuch.TelefonbuchApi;
+import com.android.dialer.lookup.gebeld.GebeldApi;
+import com.android.dialer.lookup.whitepages.WhitePagesApi;
+import com.android.dialer.lookup.yellowpages.YellowPagesApi;
+import com.android.dialer.lookup.zabasearch.ZabaSearchApi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests that the extractors of the scraping providers find the values the providers found
+ * before, when they matched their regular expressions over the whole page. The expressions
+ * below are the ones the providers used then.
+ *
+ * The pages in tests/assets/lookup are synthetic, see {@link HtmlExtractorBenchmark}.
+ *
+ * To run this test, use the command:
+ * adb shell am instrument -w -e class com.android.dialer.lookup.ProviderExtractorTest /
+ * com.android.dialer.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class ProviderExtractorTest extends InstrumentationTestCase {
+    private static final String TELEFONBUCH_SECTION = ": Treffer(.*)Ende Treffer";
+    private static final String TELEFONBUCH_NAME = "<a id=\"name0.*?>\\s*\n?(.*?)\n?\\s*</a>";
+    private static final String TELEFONBUCH_NUMBER =
+            "<span\\s+class=\"ico fon.*>.*<span>(.*?)</span><br/>";
+    private static final String TELEFONBUCH_ADDRESS = "<address.*?>\n?(.*?)</address>";
+
+    private static final String WHITEPAGES_NAME_CANADA = "(<li\\s+class=\"listing_info\">.*?</li>)";
+    private static final String WHITEPAGES_ADDRESS_CANADA =
+            "<ol class=\"result people_result\">.*?(<li\\s+class=\"col_location\">.*?</li>)" +
+            ".*?</ol>";
+
+    public void testZabaSearch() throws IOException {
+        final String page = readAsset("zabasearch.html");
+        final HtmlExtractor.Result result = extract(page, ZabaSearchApi.EXTRACTOR);
+
+        assertFound(find(page, "itemprop=\"?name\"?>([^<]+)<", true),
+                result.get(ZabaSearchApi.NAME));
+        assertFound(find(page, "itemprop=\"?telephone\"?>([^<]+)<", true),
+                result.get(ZabaSearchApi.PHONE_NUMBER));
+        assertFound(find(page, "itemprop=\"?streetAddress\"?>([^<]+?)(&nbsp;)*<", true),
+                result.get(ZabaSearchApi.ADDRESS_STREET));
+        assertFound(find(page, "itemprop=\"?addressLocality\"?>([^<]+)<", true),
+                result.get(ZabaSearchApi.ADDRESS_CITY));
+        assertFound(find(page, "itemprop=\"?addressRegion\"?>([^<]+)<", true),
+                result.get(ZabaSearchApi.ADDRESS_STATE));
+        assertFound(find(page, "itemprop=\"?postalCode\"?>([^<]+)<", true),
+                result.get(ZabaSearchApi.ADDRESS_ZIP));
+    }
+
+    public void testTelefonbuch() throws IOException {
+        final String page = readAsset("telefonbuch.html");
+        assertTelefonbuch(page);
+        assertNotNull(extract(page, TelefonbuchApi.EXTRACTOR).get(TelefonbuchApi.ADDRESS));
+    }
+
+    public void testTelefonbuch_ignoresValuesAfterResults() throws IOException {
+        // The entry has no address, the one of the footer is not the entry's
+        final String page = "<h2>1 : Treffer</h2>\n"
+                + "<a id=\"name0\" href=\"/detail/1\">\n Max Mustermann\n</a>\n"
+                + "<p>Ende Treffer</p>\n"
+                + "<address class=\"imprint\">\nTelefonbuch GmbH, Berlin</address>\n";
+        assertTelefonbuch(page);
+        final HtmlExtractor.Result result = extract(page, TelefonbuchApi.EXTRACTOR);
+        assertEquals("Max Mustermann", result.get(TelefonbuchApi.NAME));
+        assertNull(result.get(TelefonbuchApi.ADDRESS));
+    }
+
+    public void testTelefonbuch_withoutResultsEnd() throws IOException {
+        // A page cut before the end of the results had no values
+        final String page = "<h2>1 : Treffer</h2>\n"
+                + "<a id=\"name0\" href=\"/detail/1\">\n Max Mustermann\n</a>\n"
+                + "<address class=\"adr\">\nMusterstra&szlig;e 1</address>\n";
+        assertTelefonbuch(page);
+        assertNull(extract(page, TelefonbuchApi.EXTRACTOR).get(TelefonbuchApi.NAME));
+    }
+
+    public void testGebeld() throws IOException {
+        final String page = readAsset("gebeld.html");
+        assertFound(find(page,
+                "<div class=\"small-12 large-4 columns information\">(.*?)</div>", true),
+                extract(page, GebeldApi.EXTRACTOR).get(GebeldApi.INFORMATION));
+    }
+
+    public void testWhitePagesUnitedStates() throws IOException {
+        final String page = readAsset("whitepages_us.html");
+        final HtmlExtractor.Result result =
+                extract(page, WhitePagesApi.EXTRACTOR_UNITED_STATES);
+        final String address = "<span\\s+class=\"%s[^\"]+\"\\s*>([^<]*)</span>";
+
+        assertFound(find(page, "<h2.*?>Send (.*?)&#39;s details to phone</h2>", true),
+                result.get(WhitePagesApi.NAME_UNITED_STATES));
+        assertFound(find(page, "<span\\s*class=\"subtitle.*?>\\s*\n?(.*?)\n?\\s*</span>", true),
+                result.get(WhitePagesApi.SUBTITLE_UNITED_STATES));
+        assertFound(find(page, "Full Number:</span>([0-9\\-\\+\\(\\)]+)</li>", true),
+                result.get(WhitePagesApi.NUMBER_UNITED_STATES));
+        assertFound(find(page, String.format(address, "address-primary"), true),
+                result.get(WhitePagesApi.ADDRESS_PRIMARY_UNITED_STATES));
+        assertFound(find(page, String.format(address, "address-secondary"), true),
+                result.get(WhitePagesApi.ADDRESS_SECONDARY_UNITED_STATES));
+        assertFound(find(page, String.format(address, "address-location"), true),
+                result.get(WhitePagesApi.ADDRESS_LOCATION_UNITED_STATES));
+    }
+
+    public void testWhitePagesCanada() throws IOException {
+        final String page = readAsset("whitepages_ca.html");
+        final HtmlExtractor.Result result = extract(page, WhitePagesApi.EXTRACTOR_CANADA);
+
+        assertFound(find(page, WHITEPAGES_NAME_CANADA, true),
+                result.get(WhitePagesApi.NAME_CANADA));
+        assertFound(find(page, WHITEPAGES_ADDRESS_CANADA, true),
+                result.get(WhitePagesApi.ADDRESS_CANADA));
+    }
+
+    public void testWhitePagesCanada_locationAfterResults() throws IOException {
+        // No list ends after the location, so it is not in the results
+        String page = "<ol class=\"result people_result\">\n"
+                + "<li class=\"listing_info\">Jenny Curran</li>\n</ol>\n"
+                + "<div class=\"nearby\"><li class=\"col_location\">Toronto</li></div>\n";
+        assertNull(find(page, WHITEPAGES_ADDRESS_CANADA, true));
+        assertNull(extract(page, WhitePagesApi.EXTRACTOR_CANADA)
+                .get(WhitePagesApi.ADDRESS_CANADA));
+
+        // The old expression did not stop at the end of the results list either
+        page = "<ol class=\"result people_result\">\n"
+                + "<li class=\"listing_info\">Jenny Curran</li>\n</ol>\n"
+                + "<ol class=\"nearby\"><li class=\"col_location\">Toronto</li></ol>\n";
+        assertFound(find(page, WHITEPAGES_ADDRESS_CANADA, true),
+                extract(page, WhitePagesApi.EXTRACTOR_CANADA).get(WhitePagesApi.ADDRESS_CANADA));
+    }
+
+    public void testYellowPagesUnitedStates() throws IOException {
+        final String page = readAsset("yellowpages_us.html");
+        final HtmlExtractor.Result result =
+                extract(page, YellowPagesApi.EXTRACTOR_UNITED_STATES);
+
+        final Matcher m = Pattern.compile(
+                "<a href=\"([^>]+?)\"[^>]+?class=\"url[^>]+?>([^<]+)</a>", Pattern.DOTALL)
+                .matcher(page);
+        assertTrue(m.find());
+        assertEquals(m.group(1).trim(),
+                result.getGroup(YellowPagesApi.NAME_WEBSITE_UNITED_STATES, 1));
+        assertEquals(m.group(2).trim(),
+                result.getGroup(YellowPagesApi.NAME_WEBSITE_UNITED_STATES, 2));
+        assertFound(find(page, "business-phone.*?>\n*([^\n<]+)\n*<", true),
+                result.get(YellowPagesApi.NUMBER_UNITED_STATES));
+        assertFound(find(page, "street-address.*?>\n*([^\n<]+)\n*<", true),
+                result.get(YellowPagesApi.ADDRESS_STREET_UNITED_STATES));
+        assertFound(find(page, "locality.*?>\n*([^\n<]+)\n*<", true),
+                result.get(YellowPagesApi.ADDRESS_CITY_UNITED_STATES));
+        assertFound(find(page, "region.*?>\n*([^\n<]+)\n*<", true),
+                result.get(YellowPagesApi.ADDRESS_STATE_UNITED_STATES));
+        assertFound(find(page, "postal-code.*?>\n*([^\n<]+)\n*<", true),
+                result.get(YellowPagesApi.ADDRESS_ZIP_UNITED_STATES));
+    }
+
+    public void testYellowPagesCanada() throws IOException {
+        final String page = readAsset("yellowpages_ca.html");
+        final HtmlExtractor.Result result = extract(page, YellowPagesApi.EXTRACTOR_CANADA);
+
+        final Matcher m = Pattern.compile(
+                "class=\"ypgListingTitleLink utagLink\".*?href=\"(.*?)\">"
+                        + "(<span\\s+class=\"listingTitle\">.*?</span>)", Pattern.DOTALL)
+                .matcher(page);
+        assertTrue(m.find());
+        assertEquals(m.group(1).trim(), result.getGroup(YellowPagesApi.NAME_WEBSITE_CANADA, 1));
+        assertEquals(m.group(2).trim(), result.getGroup(YellowPagesApi.NAME_WEBSITE_CANADA, 2));
+        assertFound(find(page, "<div\\s+class=\"phoneNumber\">(.*?)</div>", true),
+                result.get(YellowPagesApi.NUMBER_CANADA));
+        assertFound(find(page, "<div\\s+class=\"address\">(.*?)</div>", true),
+                result.get(YellowPagesApi.ADDRESS_CANADA));
+    }
+
+    /**
+     * Checks the values of a Telefonbuch page, which were matched in the results section only.
+     */
+    private static void assertTelefonbuch(String page) throws IOException {
+        final String section = find(page, TELEFONBUCH_SECTION, true);
+        final HtmlExtractor.Result result = extract(page, TelefonbuchApi.EXTRACTOR);
+        assertEquals(find(section, TELEFONBUCH_NAME, true), result.get(TelefonbuchApi.NAME));
+        assertEquals(find(section, TELEFONBUCH_NUMBER, false),
+                result.get(TelefonbuchApi.NUMBER));
+        assertEquals(find(section, TELEFONBUCH_ADDRESS, true),
+                result.get(TelefonbuchApi.ADDRESS));
+    }
+
+    /**
+     * Checks that a value was found in the page, and that the extractor found it too.
+     */
+    private static void assertFound(String expected, String actual) {
+        assertNotNull(expected);
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Returns the first group of the first match in the whole page, as the providers did.
+     */
+    private static String find(String page, String regex, boolean dotall) {
+        return LookupUtils.firstRegexResult(page, regex, dotall);
+    }
+
+    private static HtmlExtractor.Result extract(String page, HtmlExtractor extractor)
+            throws IOException {
+        return extractor.extract(new StringReader(page));
+    }
+
+    private String readAsset(String name) throws IOException {
+        final InputStream in =
+                getInstrumentation().getContext().getAssets().open("lookup/" + name);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}